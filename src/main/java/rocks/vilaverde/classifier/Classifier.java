@@ -50,4 +50,15 @@ public interface Classifier<T> {
    * @return set of unique features used in the model
    */
   Set<String> getFeatureNames();
+
+  /**
+   * Narrow a wide schema down to the features used by this model, so that samples only
+   * store and fill the values the model reads.
+   * @param features the wide schema
+   * @return Features containing only the features of the model
+   * @see FeatureVector#addAll(double[])
+   */
+  default Features project(Features features) {
+    return features.project(getFeatureNames());
+  }
 }
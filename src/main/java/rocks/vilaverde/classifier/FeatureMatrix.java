@@ -0,0 +1,183 @@
+package rocks.vilaverde.classifier;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+/**
+ * A read only view of the feature values of many samples, stored in memory the caller
+ * already has. The value of a feature of a sample is read from
+ * {@code offset + row * rowStride + column * columnStride}, where the columns are
+ * the features in the order of their index in {@link Features}. This covers both a row
+ * layout (rowStride of at least the number of features and a columnStride of 1) and a
+ * columnar layout (rowStride of 1 and a columnStride of at least the number of rows).
+ */
+public abstract class FeatureMatrix {
+
+    private final Features features;
+    private final int rows;
+    final int offset;
+    final int rowStride;
+    final int columnStride;
+
+    /**
+     * Wrap a double array.
+     * @param features the features of the columns
+     * @param data the values
+     * @param offset the index of the first feature of the first row
+     * @param rows the number of rows
+     * @param rowStride the distance between two rows
+     * @param columnStride the distance between two features of a row
+     * @return the FeatureMatrix
+     */
+    public static FeatureMatrix wrap(Features features, double[] data, int offset,
+                                     int rows, int rowStride, int columnStride) {
+        return new ArrayMatrix(features, data, offset, rows, rowStride, columnStride);
+    }
+
+    /**
+     * Wrap a DoubleBuffer, starting at its current position.
+     * @param features the features of the columns
+     * @param data the values
+     * @param rows the number of rows
+     * @param rowStride the distance between two rows
+     * @param columnStride the distance between two features of a row
+     * @return the FeatureMatrix
+     */
+    public static FeatureMatrix wrap(Features features, DoubleBuffer data,
+                                     int rows, int rowStride, int columnStride) {
+        return new DoubleBufferMatrix(features, data, rows, rowStride, columnStride);
+    }
+
+    /**
+     * Wrap a ByteBuffer of little-endian doubles, starting at its current position.
+     * The strides are a number of doubles, not bytes.
+     * @param features the features of the columns
+     * @param data the values
+     * @param rows the number of rows
+     * @param rowStride the distance between two rows
+     * @param columnStride the distance between two features of a row
+     * @return the FeatureMatrix
+     */
+    public static FeatureMatrix wrap(Features features, ByteBuffer data,
+                                     int rows, int rowStride, int columnStride) {
+        return new ByteBufferMatrix(features, data, rows, rowStride, columnStride);
+    }
+
+    /**
+     * Constructor, checks that the last value of the view is within the capacity.
+     */
+    private FeatureMatrix(Features features, int capacity, int offset,
+                          int rows, int rowStride, int columnStride) {
+        this.features = features;
+        this.rows = rows;
+        this.offset = offset;
+        this.rowStride = rowStride;
+        this.columnStride = columnStride;
+
+        if (offset < 0 || rows < 0 || rowStride < 0 || columnStride < 0) {
+            throw new IllegalArgumentException("offset, rows and strides can't be negative");
+        }
+
+        if (rows > 0 && features.getLength() > 0) {
+            long last = offset + (long) (rows - 1) * rowStride + (long) (features.getLength() - 1) * columnStride;
+            if (last >= capacity) {
+                throw new IllegalArgumentException(String.format("matrix needs %d values but only %d available",
+                        last + 1, capacity));
+            }
+        }
+    }
+
+    /**
+     * Get the features of the columns.
+     * @return the Features
+     */
+    public Features getFeatures() {
+        return features;
+    }
+
+    /**
+     * Get the number of rows.
+     * @return the number of samples
+     */
+    public int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * Get the value of a feature of a sample.
+     * @param row the row of the sample
+     * @param column the index of the feature
+     * @return the value
+     */
+    public abstract double get(int row, int column);
+
+    /**
+     * Copy a row into a new {@link FeatureVector}.
+     * @param row the row of the sample
+     * @return the FeatureVector
+     */
+    public FeatureVector getRow(int row) {
+        FeatureVector fv = new FeatureVector(features);
+        for (int column = 0; column < features.getLength(); column++) {
+            fv.add(column, get(row, column));
+        }
+        return fv;
+    }
+
+    /**
+     * A FeatureMatrix over a double array.
+     */
+    private static final class ArrayMatrix extends FeatureMatrix {
+        private final double[] data;
+
+        private ArrayMatrix(Features features, double[] data, int offset,
+                            int rows, int rowStride, int columnStride) {
+            super(features, data.length, offset, rows, rowStride, columnStride);
+            this.data = data;
+        }
+
+        @Override
+        public double get(int row, int column) {
+            return data[offset + row * rowStride + column * columnStride];
+        }
+    }
+
+    /**
+     * A FeatureMatrix over a DoubleBuffer.
+     */
+    private static final class DoubleBufferMatrix extends FeatureMatrix {
+        private final DoubleBuffer data;
+
+        private DoubleBufferMatrix(Features features, DoubleBuffer data,
+                                   int rows, int rowStride, int columnStride) {
+            super(features, data.limit(), data.position(), rows, rowStride, columnStride);
+            this.data = data;
+        }
+
+        @Override
+        public double get(int row, int column) {
+            return data.get(offset + row * rowStride + column * columnStride);
+        }
+    }
+
+    /**
+     * A FeatureMatrix over a ByteBuffer of little-endian doubles.
+     */
+    private static final class ByteBufferMatrix extends FeatureMatrix {
+        private final ByteBuffer data;
+        private final int base;
+
+        private ByteBufferMatrix(Features features, ByteBuffer data,
+                                 int rows, int rowStride, int columnStride) {
+            super(features, (data.limit() - data.position()) / Double.BYTES, 0, rows, rowStride, columnStride);
+            this.data = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            this.base = data.position();
+        }
+
+        @Override
+        public double get(int row, int column) {
+            return data.getDouble(base + (row * rowStride + column * columnStride) * Double.BYTES);
+        }
+    }
+}
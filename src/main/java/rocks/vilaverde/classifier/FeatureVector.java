@@ -13,8 +13,17 @@ public class FeatureVector {
      * @param features the features
      */
     public FeatureVector(Features features) {
+        this(features, new double[features.getLength()]);
+    }
+
+    /**
+     * Constructor for subclasses that store the feature values themselves.
+     * @param features the features
+     * @param vector the dense values, or null when the subclass stores them
+     */
+    protected FeatureVector(Features features, double[] vector) {
         this.features = features;
-        this.vector = new double[features.getLength()];
+        this.vector = vector;
     }
 
     /**
@@ -62,6 +71,20 @@ public class FeatureVector {
         return this;
     }
 
+    /**
+     * Add the values of all features from a row of values. When the features were projected
+     * with {@link Features#project(java.util.Set)} the row is in the order of the features
+     * they were projected from, and only the values of the projected features are copied.
+     * @param row the feature values
+     * @return the FeatureVector
+     */
+    public FeatureVector addAll(double[] row) {
+        for (int i = 0; i < features.getLength(); i++) {
+            add(i, row[features.getSourceIndex(i)]);
+        }
+        return this;
+    }
+
     /**
      * Get the feature value by index.
      * @param index the feature index
@@ -85,6 +108,14 @@ public class FeatureVector {
         return get(index);
     }
 
+    /**
+     * Get the features of this sample.
+     * @return the Features
+     */
+    public Features getFeatures() {
+        return features;
+    }
+
     /**
      * Returns true when the feature name is present in this feature vector.
      * @param feature feature name
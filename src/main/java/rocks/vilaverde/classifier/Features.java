@@ -20,6 +20,8 @@ public class Features {
     /* Feature can be added as long as no samples have yet to be created,
        at that point this is immutable */
     private boolean allowFeatureAdd = true;
+    /* When projected, the index of each feature in the Features it was projected from */
+    private int[] sourceIndex;
 
     /**
      * Convienence creation method.
@@ -61,6 +63,47 @@ public class Features {
         return new FeatureVector(this);
     }
 
+    SparseFeatureVector newSparseSample(double defaultValue) {
+        allowFeatureAdd = false;
+        return new SparseFeatureVector(this, defaultValue);
+    }
+
+    /**
+     * Create Features that only contain the named features of these Features, in the same
+     * relative order. Use this to narrow a wide schema down to the features a model uses,
+     * see {@link Classifier#project(Features)}.
+     * @param featureNames the names of the features to keep
+     * @return the projected Features
+     */
+    public Features project(Set<String> featureNames) {
+        int[] indexes = featureNames.stream()
+                .mapToInt(this::getFeatureIndex)
+                .sorted()
+                .toArray();
+
+        String[] names = new String[indexes.length];
+        for (Map.Entry<String, Integer> entry : features.entrySet()) {
+            int position = Arrays.binarySearch(indexes, entry.getValue());
+            if (position >= 0) {
+                names[position] = entry.getKey();
+            }
+        }
+
+        Features projected = new Features(names);
+        projected.allowFeatureAdd = false;
+        projected.sourceIndex = indexes;
+        return projected;
+    }
+
+    /**
+     * Get the index a feature had in the Features these were projected from.
+     * @param index the index of the feature in these Features
+     * @return the index in the source Features, or the index itself when not projected
+     */
+    public int getSourceIndex(int index) {
+        return sourceIndex == null ? index : sourceIndex[index];
+    }
+
     /**
      * Add a Feature to the set of features.
      * @param feature Feature name
@@ -0,0 +1,179 @@
+package rocks.vilaverde.classifier;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A {@link FeatureVector} where the value of a feature can be backed by a {@link DoubleSupplier}
+ * that is only called the first time a tree reads the feature. The value is remembered, so every
+ * other tree of a forest reading the feature gets the same value without calling the supplier
+ * again. Features that are expensive to compute are then only paid for when a decision path
+ * actually reaches a split on them.
+ * <p>
+ * The sample can be read by several threads at once, as a forest with an executor does, and each
+ * supplier is still called at most once.
+ */
+public class LazyFeatureVector extends FeatureVector {
+
+    private static final int UNSET = 0;
+    private static final int SUPPLIED = 1;
+    private static final int COMPUTED = 2;
+    private static final int COMPUTING = 3;
+
+    private final double[] values;
+    private final DoubleSupplier[] suppliers;
+    private final AtomicIntegerArray state;
+    private final Object[] locks;
+
+    /**
+     * Constructor
+     * @param features the features
+     */
+    public LazyFeatureVector(Features features) {
+        super(features, null);
+        this.values = new double[features.getLength()];
+        this.suppliers = new DoubleSupplier[features.getLength()];
+        this.state = new AtomicIntegerArray(features.getLength());
+        this.locks = new Object[features.getLength()];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Back a feature with a supplier, called when a tree first reads the feature.
+     * @param index index of the feature
+     * @param supplier computes the feature value
+     * @return the LazyFeatureVector
+     */
+    public LazyFeatureVector add(int index, DoubleSupplier supplier) {
+        checkIndex(index);
+        suppliers[index] = supplier;
+        state.set(index, SUPPLIED);
+        return this;
+    }
+
+    /**
+     * Back a feature with a supplier, called when a tree first reads the feature.
+     * @param feature name of the feature
+     * @param supplier computes the feature value
+     * @return the LazyFeatureVector
+     */
+    public LazyFeatureVector add(String feature, DoubleSupplier supplier) {
+        return add(getFeatures().getFeatureIndex(feature), supplier);
+    }
+
+    /**
+     * Add a feature by index, with a value that is already known.
+     * @param index index of the feature
+     * @param value the feature value
+     * @return the FeatureVector
+     */
+    @Override
+    public FeatureVector add(int index, double value) {
+        checkIndex(index);
+        values[index] = value;
+        suppliers[index] = null;
+        state.set(index, COMPUTED);
+        return this;
+    }
+
+    /**
+     * Get the feature value by index, calling its supplier when it is read for the first time.
+     * @param index the feature index
+     * @return the double value
+     * @throws IllegalStateException when the feature has neither a value nor a supplier
+     */
+    @Override
+    public double get(int index) {
+        checkIndex(index);
+
+        // the value is written before the state, so a computed state means the value is visible
+        if (state.get(index) == COMPUTED) {
+            return values[index];
+        }
+
+        return compute(index);
+    }
+
+    /**
+     * The first reader claims the feature by moving it to the computing state and calls the
+     * supplier outside of any lock, so suppliers of different features run at the same time.
+     * Other readers of the same feature wait on that feature's lock until the value is there.
+     */
+    private double compute(int index) {
+        while (true) {
+            switch (state.get(index)) {
+                case COMPUTED:
+                    return values[index];
+                case SUPPLIED:
+                    if (state.compareAndSet(index, SUPPLIED, COMPUTING)) {
+                        return supply(index);
+                    }
+                    break;
+                case COMPUTING:
+                    await(index);
+                    break;
+                default:
+                    throw new IllegalStateException(String.format("no value or supplier for feature %d", index));
+            }
+        }
+    }
+
+    private double supply(int index) {
+        int next = SUPPLIED;
+        try {
+            values[index] = suppliers[index].getAsDouble();
+            next = COMPUTED;
+            return values[index];
+        } finally {
+            // a supplier that throws leaves the feature to be supplied by the next reader
+            synchronized (locks[index]) {
+                state.set(index, next);
+                locks[index].notifyAll();
+            }
+        }
+    }
+
+    private void await(int index) {
+        boolean interrupted = false;
+        synchronized (locks[index]) {
+            while (state.get(index) == COMPUTING) {
+                try {
+                    locks[index].wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns true when the value of the feature has been added or computed.
+     * @param index the feature index
+     * @return boolean
+     */
+    public boolean isComputed(int index) {
+        checkIndex(index);
+        return state.get(index) == COMPUTED;
+    }
+
+    /**
+     * Forget the computed values, so the suppliers are called again by the next prediction.
+     * Values added directly are forgotten as well. The sample must not be read while it is reset.
+     */
+    public void reset() {
+        for (int i = 0; i < values.length; i++) {
+            state.set(i, suppliers[i] != null ? SUPPLIED : UNSET);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= values.length) {
+            throw new IllegalArgumentException(String.format("index must be less than %d", values.length));
+        }
+    }
+}
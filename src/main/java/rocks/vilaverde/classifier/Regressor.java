@@ -0,0 +1,55 @@
+package rocks.vilaverde.classifier;
+
+import java.nio.DoubleBuffer;
+import java.util.Set;
+
+/**
+ * Interface to be defined by regressor implementations. A regressor predicts a continuous
+ * value for a provided feature vector, and works with primitive doubles throughout.
+ */
+public interface Regressor {
+
+  /**
+   * Predict the regression value of a sample.
+   * @param sample the input sample
+   * @return the predicted value
+   */
+  double predictValue(FeatureVector sample);
+
+  /**
+   * Predict the regression values of the samples. Values will be returned at the same index
+   * of the sample provided.
+   * @param samples input samples
+   * @return the predicted values
+   */
+  default double[] predictValues(FeatureVector ... samples) {
+    double[] values = new double[samples.length];
+    for (int i = 0; i < samples.length; i++) {
+      values[i] = predictValue(samples[i]);
+    }
+    return values;
+  }
+
+  /**
+   * Predict the regression value of every row of the matrix.
+   * @param rows the samples
+   * @param out receives one value per row
+   */
+  void predict(FeatureMatrix rows, DoubleBuffer out);
+
+  /**
+   * Get the names of all the features in the model.
+   * @return set of unique features used in the model
+   */
+  Set<String> getFeatureNames();
+
+  /**
+   * Narrow a wide schema down to the features used by this model.
+   * @param features the wide schema
+   * @return Features containing only the features of the model
+   * @see Classifier#project(Features)
+   */
+  default Features project(Features features) {
+    return features.project(getFeatureNames());
+  }
+}
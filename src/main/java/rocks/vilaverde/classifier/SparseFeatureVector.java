@@ -0,0 +1,124 @@
+package rocks.vilaverde.classifier;
+
+import java.util.Arrays;
+
+/**
+ * A {@link FeatureVector} that only stores the values of the features that were added,
+ * for samples of wide feature schemas where a model reads few of the features. The values
+ * are kept in an open addressing map of feature index to value, and features that were
+ * not added have a configurable default value.
+ */
+public class SparseFeatureVector extends FeatureVector {
+
+    private static final int EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final double defaultValue;
+    private int[] keys;
+    private double[] values;
+    private int size;
+
+    /**
+     * Constructor
+     * @param features the features
+     * @param defaultValue the value of features that were not added
+     */
+    public SparseFeatureVector(Features features, double defaultValue) {
+        super(features, null);
+        this.defaultValue = defaultValue;
+        this.keys = new int[INITIAL_CAPACITY];
+        this.values = new double[INITIAL_CAPACITY];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Add a feature by index.
+     * @param index index of the feature
+     * @param value the feature value
+     * @return the FeatureVector
+     */
+    @Override
+    public FeatureVector add(int index, double value) {
+        checkIndex(index);
+
+        int slot = find(keys, index);
+        if (keys[slot] == EMPTY) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+                slot = find(keys, index);
+            }
+            keys[slot] = index;
+            size++;
+        }
+        values[slot] = value;
+        return this;
+    }
+
+    /**
+     * Get the feature value by index.
+     * @param index the feature index
+     * @return the double value, or the default value when the feature was not added
+     */
+    @Override
+    public double get(int index) {
+        checkIndex(index);
+
+        int slot = find(keys, index);
+        return keys[slot] == EMPTY ? defaultValue : values[slot];
+    }
+
+    /**
+     * Get the number of features that were added.
+     * @return the number of stored values
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all the values so this sample can be reused.
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= getFeatures().getLength()) {
+            throw new IllegalArgumentException(String.format("index must be less than %d",
+                    getFeatures().getLength()));
+        }
+    }
+
+    /**
+     * Find the slot holding the index, or the empty slot where it should be added.
+     */
+    private static int find(int[] keys, int index) {
+        int mask = keys.length - 1;
+        int slot = (index * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+        while (keys[slot] != EMPTY && keys[slot] != index) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Double the capacity of the map.
+     */
+    private void resize() {
+        int[] newKeys = new int[keys.length * 2];
+        double[] newValues = new double[values.length * 2];
+        Arrays.fill(newKeys, EMPTY);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                int slot = find(newKeys, keys[i]);
+                newKeys[slot] = keys[i];
+                newValues[slot] = values[i];
+            }
+        }
+
+        this.keys = newKeys;
+        this.values = newValues;
+    }
+}
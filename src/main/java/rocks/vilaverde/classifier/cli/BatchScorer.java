@@ -0,0 +1,359 @@
+package rocks.vilaverde.classifier.cli;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import rocks.vilaverde.classifier.FeatureMatrix;
+import rocks.vilaverde.classifier.Features;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.NumpyTrees;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.dt.TreeClassifier;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scores a file of samples with a tree or forest model and writes the predictions to another file.
+ * The input is memory mapped and split into chunks of rows that are scored by a pool of worker
+ * threads; a bounded number of chunks is in flight at any time and the results are written in
+ * the order of the input.
+ * <p>
+ * Two input formats are supported:
+ * <ul>
+ *     <li>csv: a header line with the feature names, followed by one row of numbers per line</li>
+ *     <li>bin: little-endian float64 values in row major order, with the feature names of the
+ *     columns given by the {@code --features} option</li>
+ * </ul>
+ * The output is either the index of the predicted class of each row, or with {@code --proba} the
+ * class probabilities of each row, written as csv or as little-endian int32 / float64 values.
+ */
+public final class BatchScorer {
+
+    /** The formats of the input and output files. */
+    public enum Format {
+        /** Comma separated text. */
+        CSV,
+        /** Little-endian binary values. */
+        BIN
+    }
+
+    private static final int DEFAULT_CHUNK_BYTES = 8 * 1024 * 1024;
+
+    private final TreeClassifier<?> model;
+    private final int threads;
+    private final int chunkBytes;
+    private final boolean probabilities;
+    private final ThreadLocal<double[]> rowBuffers = ThreadLocal.withInitial(() -> new double[0]);
+
+    /**
+     * Run the scorer from the command line.
+     * @param args the command line arguments
+     * @throws Exception when the model or the input can't be read
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (options.containsKey("help") || !options.containsKey("model")
+                || !options.containsKey("input") || !options.containsKey("output")) {
+            System.err.println("usage: BatchScorer --model <tree.txt|forest.tgz|npy dir> --input <file> --output <file>\n"
+                    + "         [--format csv|bin] [--output-format csv|bin] [--features name,name,...]\n"
+                    + "         [--proba] [--threads n] [--chunk-bytes n]");
+            System.exit(options.containsKey("help") ? 0 : 2);
+            return;
+        }
+
+        Path input = Paths.get(options.get("input"));
+        Format format = Format.valueOf(options.getOrDefault("format",
+                input.toString().endsWith(".csv") ? "csv" : "bin").toUpperCase());
+        Format outputFormat = Format.valueOf(options.getOrDefault("output-format",
+                format.name()).toUpperCase());
+        Features features = options.containsKey("features")
+                ? Features.of(options.get("features").split(",")) : null;
+
+        TreeClassifier<?> model = loadModel(Paths.get(options.get("model")));
+        BatchScorer scorer = new BatchScorer(model,
+                Integer.parseInt(options.getOrDefault("threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(options.getOrDefault("chunk-bytes", String.valueOf(DEFAULT_CHUNK_BYTES))),
+                options.containsKey("proba"));
+
+        long start = System.nanoTime();
+        long rows = scorer.score(input, format, features, Paths.get(options.get("output")), outputFormat);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("scored %d rows in %.3f s (%.0f rows/sec)%n", rows, seconds, rows / seconds);
+    }
+
+    /**
+     * Load a model, a forest when the file is a TAR archive otherwise a single tree.
+     * @param path the model file
+     * @return the model
+     * @throws Exception when the model can't be parsed
+     */
+    public static TreeClassifier<?> loadModel(Path path) throws Exception {
+        return loadModel(path, null);
+    }
+
+    /**
+     * Load a model, a forest when the file is a TAR archive otherwise a single tree. A directory
+     * or .npz file is read as the NumPy arrays of a tree, or of a forest when the directory
+     * has an entry for each estimator.
+     * @param path the model file
+     * @param executor the executor a forest evaluates its trees with, or null for the calling thread
+     * @return the model
+     * @throws Exception when the model can't be parsed
+     */
+    public static TreeClassifier<?> loadModel(Path path, ExecutorService executor) throws Exception {
+        String name = path.getFileName().toString();
+        PredictionFactory<String> factory = value -> value;
+
+        if (NumpyTrees.isNumpy(path)) {
+            return NumpyTrees.isTree(path) ? DecisionTreeClassifier.fromNumpy(path, factory)
+                    : RandomForestClassifier.fromNumpy(path, factory, executor);
+        }
+
+        if (name.endsWith(".tgz") || name.endsWith(".tar.gz") || name.endsWith(".tar")) {
+            InputStream in = new BufferedInputStream(Files.newInputStream(path));
+            if (!name.endsWith(".tar")) {
+                in = new GzipCompressorInputStream(in);
+            }
+            return RandomForestClassifier.parse(new TarArchiveInputStream(in), factory, executor);
+        }
+
+        return DecisionTreeClassifier.parse(Files.newBufferedReader(path), factory);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException(String.format("unexpected argument '%s'", args[i]));
+            }
+
+            String name = args[i].substring(2);
+            if (name.equals("proba") || name.equals("help")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException(String.format("option '%s' needs a value", args[i]));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Constructor
+     * @param model the model to score with
+     * @param threads the number of worker threads
+     * @param chunkBytes the approximate size of the input scored by one task
+     * @param probabilities true to write class probabilities instead of class indexes
+     */
+    public BatchScorer(TreeClassifier<?> model, int threads, int chunkBytes, boolean probabilities) {
+        if (threads < 1 || chunkBytes < 1) {
+            throw new IllegalArgumentException("threads and chunk size must be positive");
+        }
+        if (model.getClassCount() == 0) {
+            throw new IllegalArgumentException("model must be exported with show_weights=True");
+        }
+
+        this.model = model;
+        this.threads = threads;
+        this.chunkBytes = chunkBytes;
+        this.probabilities = probabilities;
+    }
+
+    /**
+     * Score every row of the input file.
+     * @param input the input file
+     * @param format the format of the input
+     * @param features the features of the columns for binary input, ignored for csv input
+     * @param output the output file, which is replaced
+     * @param outputFormat the format of the output
+     * @return the number of rows scored
+     * @throws Exception when the input can't be read or scored
+     */
+    public long score(Path input, Format format, Features features,
+                      Path output, Format outputFormat) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            Deque<Future<Scored>> inFlight = new ArrayDeque<>();
+            long rows = 0;
+            long position = 0;
+            long size = in.size();
+
+            if (format == Format.CSV) {
+                ByteBuffer head = in.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, chunkBytes));
+                features = Features.of(CsvRows.readHeader(head));
+                position = head.position();
+            } else if (features == null) {
+                throw new IllegalArgumentException("the features of the columns are needed for binary input");
+            } else if (size % ((long) features.getLength() * Double.BYTES) != 0) {
+                throw new IllegalArgumentException("binary input is not a whole number of rows");
+            }
+
+            final Features columns = features;
+            while (position < size) {
+                ByteBuffer chunk = nextChunk(in, position, size, format, columns.getLength());
+                position += chunk.limit();
+
+                inFlight.add(workers.submit(new Chunk(chunk, format, columns, outputFormat)));
+                if (inFlight.size() >= threads * 2) {
+                    rows += write(inFlight.poll(), out);
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                rows += write(inFlight.poll(), out);
+            }
+
+            return rows;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Map the next chunk of the input, ending at a row boundary.
+     */
+    private ByteBuffer nextChunk(FileChannel in, long position, long size,
+                                 Format format, int columns) throws IOException {
+        if (format == Format.BIN) {
+            long rowBytes = (long) columns * Double.BYTES;
+            long length = Math.min(size - position, Math.max(1, chunkBytes / rowBytes) * rowBytes);
+            return in.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+
+        long length = Math.min(size - position, chunkBytes);
+        while (true) {
+            ByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+            if (position + length == size) {
+                return chunk;
+            }
+
+            int end = CsvRows.lastRowEnd(chunk, 0);
+            if (end > 0) {
+                return chunk.limit(end).slice();
+            }
+
+            // a single row is longer than the chunk
+            length = Math.min(size - position, length * 2);
+        }
+    }
+
+    private static long write(Future<Scored> result, FileChannel out) throws Exception {
+        Scored scored = result.get();
+        while (scored.output.hasRemaining()) {
+            out.write(scored.output);
+        }
+        return scored.rows;
+    }
+
+    /**
+     * The encoded output of a chunk.
+     */
+    private static final class Scored {
+        private final int rows;
+        private final ByteBuffer output;
+
+        private Scored(int rows, ByteBuffer output) {
+            this.rows = rows;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Scores one chunk of the input and encodes the output.
+     */
+    private final class Chunk implements Callable<Scored> {
+        private final ByteBuffer input;
+        private final Format format;
+        private final Features features;
+        private final Format outputFormat;
+
+        private Chunk(ByteBuffer input, Format format, Features features, Format outputFormat) {
+            this.input = input;
+            this.format = format;
+            this.features = features;
+            this.outputFormat = outputFormat;
+        }
+
+        @Override
+        public Scored call() {
+            FeatureMatrix matrix;
+            int columns = features.getLength();
+            if (format == Format.BIN) {
+                int rows = input.limit() / (columns * Double.BYTES);
+                matrix = FeatureMatrix.wrap(features, input, rows, columns, 1);
+            } else {
+                int[] rows = new int[1];
+                double[] values = CsvRows.parse(input, columns, rowBuffers.get(), rows);
+                rowBuffers.set(values);
+                matrix = FeatureMatrix.wrap(features, values, 0, rows[0], columns, 1);
+            }
+
+            int rows = matrix.getRowCount();
+            int width = probabilities ? model.getClassCount() : 1;
+            if (probabilities) {
+                DoubleBuffer result = DoubleBuffer.allocate(rows * width);
+                model.predict_proba(matrix, result);
+                return encode(rows, width, result.array(), null);
+            } else {
+                IntBuffer result = IntBuffer.allocate(rows);
+                model.predict(matrix, result);
+                return encode(rows, width, null, result.array());
+            }
+        }
+
+        private Scored encode(int rows, int width, double[] doubles, int[] ints) {
+            if (outputFormat == Format.BIN) {
+                int bytes = doubles != null ? rows * width * Double.BYTES : rows * Integer.BYTES;
+                ByteBuffer out = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+                if (doubles != null) {
+                    out.asDoubleBuffer().put(doubles, 0, rows * width);
+                } else {
+                    out.asIntBuffer().put(ints, 0, rows);
+                }
+                return new Scored(rows, out);
+            }
+
+            StringBuilder text = new StringBuilder(rows * width * 8);
+            for (int row = 0; row < rows; row++) {
+                for (int k = 0; k < width; k++) {
+                    if (k > 0) {
+                        text.append(',');
+                    }
+                    if (doubles != null) {
+                        text.append(doubles[row * width + k]);
+                    } else {
+                        text.append(ints[row]);
+                    }
+                }
+                text.append('\n');
+            }
+
+            return new Scored(rows, ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+}
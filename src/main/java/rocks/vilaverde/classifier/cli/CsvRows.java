@@ -0,0 +1,252 @@
+package rocks.vilaverde.classifier.cli;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses rows of comma separated numbers directly out of a {@link ByteBuffer}. Numbers with
+ * up to 15 significant digits are converted without creating any objects, which covers the
+ * values written by numpy and pandas with their default precision. Longer numbers and the
+ * special values (nan, inf) fall back to {@link Double#parseDouble(String)}.
+ */
+final class CsvRows {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_FAST_DIGITS = 15;
+
+    private CsvRows() {
+    }
+
+    /**
+     * Read the header line at the position of the buffer, and advance the position past it.
+     * @param buffer the buffer
+     * @return the names of the columns
+     */
+    static String[] readHeader(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = start;
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+
+        byte[] line = new byte[end - start];
+        buffer.get(line);
+        if (buffer.hasRemaining()) {
+            buffer.get();
+        }
+
+        String[] names = new String(line, StandardCharsets.UTF_8).split(",");
+        for (int i = 0; i < names.length; i++) {
+            names[i] = unquote(names[i].trim());
+        }
+        return names;
+    }
+
+    private static String unquote(String name) {
+        if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+            return name.substring(1, name.length() - 1);
+        }
+        return name;
+    }
+
+    /**
+     * Find the end of the last complete row in the buffer.
+     * @param buffer the buffer
+     * @param start the index to search back to
+     * @return the index after the last line feed, or -1 when there is none
+     */
+    static int lastRowEnd(ByteBuffer buffer, int start) {
+        for (int i = buffer.limit() - 1; i >= start; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse all the rows between the position and the limit of the buffer into a row major
+     * array. Empty lines are skipped.
+     * @param buffer the buffer
+     * @param columns the number of values in a row
+     * @param values an array to reuse, grown when too small
+     * @param rows receives the number of rows parsed in its first element
+     * @return the values array, which may be a new array
+     */
+    static double[] parse(ByteBuffer buffer, int columns, double[] values, int[] rows) {
+        int count = 0;
+        int column = 0;
+        int i = buffer.position();
+        int limit = buffer.limit();
+
+        while (i < limit) {
+            byte b = buffer.get(i);
+            if (b == '\n' || b == '\r') {
+                i++;
+                continue;
+            }
+
+            // parse one row
+            if ((count + 1) * columns > values.length) {
+                values = Arrays.copyOf(values, Math.max((count + 1) * columns, values.length * 2));
+            }
+
+            column = 0;
+            while (true) {
+                int end = i;
+                while (end < limit && (b = buffer.get(end)) != ',' && b != '\n' && b != '\r') {
+                    end++;
+                }
+
+                if (column >= columns) {
+                    throw new IllegalArgumentException(String.format("row %d has more than %d values",
+                            count + 1, columns));
+                }
+                values[count * columns + column++] = parseDouble(buffer, i, end);
+
+                i = end + 1;
+                if (end >= limit || b != ',') {
+                    break;
+                }
+            }
+
+            if (column != columns) {
+                throw new IllegalArgumentException(String.format("row %d has %d values but expected %d",
+                        count + 1, column, columns));
+            }
+            count++;
+        }
+
+        rows[0] = count;
+        return values;
+    }
+
+    /**
+     * Parse the number between start and end in the buffer.
+     * @param buffer the buffer
+     * @param start the first byte of the number
+     * @param end the index after the last byte of the number
+     * @return the value, NaN when empty
+     */
+    static double parseDouble(ByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) == ' ') {
+            start++;
+        }
+        while (end > start && buffer.get(end - 1) == ' ') {
+            end--;
+        }
+        if (start == end) {
+            return Double.NaN;
+        }
+
+        int i = start;
+        boolean negative = false;
+        byte b = buffer.get(i);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean anyDigit = false;
+        boolean fraction = false;
+
+        for (; i < end; i++) {
+            b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                anyDigit = true;
+                if (mantissa != 0 || b != '0') {
+                    if (++digits > MAX_FAST_DIGITS) {
+                        return parseSlow(buffer, start, end);
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                }
+                if (fraction) {
+                    scale--;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+
+        if (!anyDigit) {
+            return parseSlow(buffer, start, end);
+        }
+
+        if (i < end) {
+            if (b != 'e' && b != 'E') {
+                return parseSlow(buffer, start, end);
+            }
+
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+
+            int exponent = 0;
+            int exponentStart = i;
+            for (; i < end; i++) {
+                b = buffer.get(i);
+                if (b < '0' || b > '9' || exponent > 1000) {
+                    return parseSlow(buffer, start, end);
+                }
+                exponent = exponent * 10 + (b - '0');
+            }
+            if (i == exponentStart) {
+                return parseSlow(buffer, start, end);
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+
+        // exact when the mantissa and the power of ten are both exactly representable
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (scale >= 0 && scale < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[scale];
+        } else if (scale < 0 && -scale < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-scale];
+        } else {
+            return parseSlow(buffer, start, end);
+        }
+
+        return negative ? -value : value;
+    }
+
+    private static double parseSlow(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+
+        String text = new String(bytes, StandardCharsets.US_ASCII).toLowerCase();
+        switch (text) {
+            case "nan":
+            case "-nan":
+                return Double.NaN;
+            case "inf":
+            case "+inf":
+            case "infinity":
+                return Double.POSITIVE_INFINITY;
+            case "-inf":
+            case "-infinity":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                try {
+                    return Double.parseDouble(text);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(String.format("'%s' is not a number", text), e);
+                }
+        }
+    }
+}
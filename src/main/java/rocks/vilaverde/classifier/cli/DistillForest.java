@@ -0,0 +1,150 @@
+package rocks.vilaverde.classifier.cli;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.dt.TreeClassifier;
+import rocks.vilaverde.classifier.ensemble.DistillationReport;
+import rocks.vilaverde.classifier.ensemble.ForestDistiller;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Selects the smallest subset of the trees of a forest that predicts within a tolerance of the
+ * forest on a CSV of representative samples, see {@link ForestDistiller}. The report is printed
+ * and the selected estimators are listed, or written to a smaller archive with {@code --output}.
+ */
+public final class DistillForest {
+
+    /**
+     * Run the distiller from the command line.
+     * @param args --model &lt;forest.tgz|npy dir&gt; --input &lt;samples.csv&gt; [--samples n]
+     *             [--max-disagreement rate] [--max-error error] [--threads n] [--output subset.tgz]
+     * @throws Exception when the model or samples can't be read or the archive can't be written
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException(String.format("unexpected argument '%s'", args[i]));
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        if (!options.containsKey("model") || !options.containsKey("input")) {
+            System.err.println("usage: DistillForest --model <forest.tgz|npy dir> --input <samples.csv> [--samples n]\n"
+                    + "         [--max-disagreement 0.01] [--max-error 0.02] [--threads n] [--output subset.tgz]");
+            System.exit(2);
+            return;
+        }
+
+        Path model = Paths.get(options.get("model"));
+        List<FeatureVector> samples = LoadTest.readSamples(Paths.get(options.get("input")),
+                Integer.parseInt(options.getOrDefault("samples", "10000")));
+        ExecutorService executor = Executors.newFixedThreadPool(Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        try {
+            TreeClassifier<?> classifier = BatchScorer.loadModel(model);
+            if (!(classifier instanceof RandomForestClassifier)) {
+                throw new IllegalArgumentException(String.format("%s is not a forest", model));
+            }
+
+            DistillationReport<?> report = ForestDistiller.distill((RandomForestClassifier<?>) classifier, samples,
+                    Double.parseDouble(options.getOrDefault("max-disagreement", "0.01")),
+                    Double.parseDouble(options.getOrDefault("max-error", "0.02")), executor);
+            System.err.println(report);
+
+            if (options.containsKey("output")) {
+                writeArchive(model, report.getTrees(), Paths.get(options.get("output")));
+                System.err.printf("wrote %d estimators to %s%n", report.getTrees().length, options.get("output"));
+            } else {
+                for (String estimator : estimatorNames(model, report.getTrees())) {
+                    System.out.println(estimator);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Copy the files of some trees of a forest archive to a new archive, gzipped unless the name of
+     * the output ends with .tar.
+     * @param source the .tar, .tgz or .tar.gz archive of the forest
+     * @param trees the indexes of the trees in the order of the archive
+     * @param output the new archive
+     * @throws Exception when an archive can't be read or written
+     */
+    public static void writeArchive(Path source, int[] trees, Path output) throws Exception {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(output));
+        if (!output.getFileName().toString().endsWith(".tar")) {
+            out = new GzipCompressorOutputStream(out);
+        }
+
+        try (TarArchiveInputStream in = open(source); TarArchiveOutputStream tar = new TarArchiveOutputStream(out)) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            ArchiveEntry entry;
+            for (int t = 0; (entry = in.getNextEntry()) != null; ) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                if (Arrays.binarySearch(trees, t++) >= 0) {
+                    byte[] text = in.readAllBytes();
+                    TarArchiveEntry copy = new TarArchiveEntry(entry.getName());
+                    copy.setSize(text.length);
+                    tar.putArchiveEntry(copy);
+                    tar.write(text);
+                    tar.closeArchiveEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * Name the selected trees by their file in the archive, or by index for NumPy arrays.
+     */
+    private static List<String> estimatorNames(Path model, int[] trees) throws Exception {
+        List<String> names = new ArrayList<>();
+        if (Files.isDirectory(model) || model.getFileName().toString().endsWith(".npz")) {
+            for (int t : trees) {
+                names.add(String.valueOf(t));
+            }
+            return names;
+        }
+
+        try (TarArchiveInputStream in = open(model)) {
+            ArchiveEntry entry;
+            for (int t = 0; (entry = in.getNextEntry()) != null; ) {
+                if (!entry.isDirectory() && Arrays.binarySearch(trees, t++) >= 0) {
+                    names.add(entry.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    private static TarArchiveInputStream open(Path archive) throws Exception {
+        InputStream in = new BufferedInputStream(Files.newInputStream(archive));
+        if (!archive.getFileName().toString().endsWith(".tar")) {
+            in = new GzipCompressorInputStream(in);
+        }
+        return new TarArchiveInputStream(in);
+    }
+}
@@ -0,0 +1,100 @@
+package rocks.vilaverde.classifier.cli;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds that can be recorded into from many threads. Values
+ * below 256 have a bucket each, and every power of two above that is split into 128 buckets, so
+ * a recorded value is off by less than 0.8% whatever its magnitude, with a fixed 57 KB of buckets.
+ */
+final class LatencyHistogram {
+
+    private static final int DIRECT = 256;
+    private static final int SUB_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int BUCKETS = DIRECT + 55 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a latency.
+     * @param nanos the latency, negative values are recorded as 0
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int index(long value) {
+        if (value < DIRECT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        return DIRECT + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the largest value recorded in the bucket
+     */
+    static long highestValue(int index) {
+        if (index < DIRECT) {
+            return index;
+        }
+        int shift = (index - DIRECT) / SUB_BUCKETS + 1;
+        long sub = (index - DIRECT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean of the recorded values, 0 when none were recorded
+     */
+    double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @return the largest recorded value
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value below or at which a percentage of the recorded values are.
+     * @param percentile the percentage, for example 99.9
+     * @return the highest value of the bucket holding the percentile, capped at the largest
+     *         recorded value, 0 when none were recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+}
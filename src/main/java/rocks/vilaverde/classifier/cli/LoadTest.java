@@ -0,0 +1,261 @@
+package rocks.vilaverde.classifier.cli;
+
+import rocks.vilaverde.classifier.Classifier;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Features;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a {@link Classifier} with requests at a fixed rate from a pool of client threads and
+ * records the latency of every request, to find the tail latency of a model and configuration
+ * under load.
+ * <p>
+ * The load is open loop: each request has an intended start time on a fixed schedule and is sent
+ * at that time whether or not earlier requests have completed, and its latency is measured from
+ * the intended start. A request that waits behind a slow one is counted with the time it waited,
+ * which a closed loop that waits for each response before sending the next would leave out.
+ * <p>
+ * From the command line a forest is loaded once for every {@code --forest-threads} value, with an
+ * executor of that many threads for evaluating its trees (0 for none), and the results of the
+ * configurations are written as one JSON document.
+ */
+public final class LoadTest {
+
+    /** The longest to wait for the requests still running when the schedule ends. */
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+    private final double rate;
+    private final Duration warmUp;
+    private final Duration duration;
+
+    /**
+     * Run the load test from the command line.
+     * @param args the command line arguments
+     * @throws Exception when the model or the samples can't be read
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (options.containsKey("help") || !options.containsKey("model") || !options.containsKey("input")) {
+            System.err.println("usage: LoadTest --model <tree.txt|forest.tgz|npy dir> --input <samples.csv>\n"
+                    + "         [--rate requests/sec] [--duration-seconds n] [--warmup-seconds n]\n"
+                    + "         [--threads n | --virtual] [--forest-threads n,n,...] [--samples n]\n"
+                    + "         [--output results.json]");
+            System.exit(options.containsKey("help") ? 0 : 2);
+            return;
+        }
+
+        Path model = Paths.get(options.get("model"));
+        List<FeatureVector> samples = readSamples(Paths.get(options.get("input")),
+                Integer.parseInt(options.getOrDefault("samples", "10000")));
+        LoadTest test = new LoadTest(Double.parseDouble(options.getOrDefault("rate", "1000")),
+                Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup-seconds", "10"))),
+                Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration-seconds", "30"))));
+
+        boolean virtual = options.containsKey("virtual");
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors() * 2)));
+
+        List<LoadTestResult> results = new ArrayList<>();
+        for (String value : options.getOrDefault("forest-threads", "0").split(",")) {
+            int forestThreads = Integer.parseInt(value.trim());
+            ExecutorService forestExecutor = forestThreads > 0 ? Executors.newFixedThreadPool(forestThreads) : null;
+            ExecutorService clients = virtual ? newVirtualThreadExecutor() : Executors.newFixedThreadPool(threads);
+            try {
+                Classifier<?> classifier = BatchScorer.loadModel(model, forestExecutor);
+                LoadTestResult result = test.run("forest-threads=" + forestThreads, classifier, samples, clients);
+                System.err.println(result);
+                results.add(result);
+            } finally {
+                clients.shutdownNow();
+                if (forestExecutor != null) {
+                    forestExecutor.shutdownNow();
+                }
+            }
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"model\": ").append(LoadTestResult.quote(model.toString()))
+                .append(", \"samples\": ").append(samples.size())
+                .append(", \"clientThreads\": ").append(virtual ? "\"virtual\"" : String.valueOf(threads))
+                .append(", \"runs\": [");
+        for (int i = 0; i < results.size(); i++) {
+            json.append(i > 0 ? ",\n  " : "\n  ").append(results.get(i).toJson());
+        }
+        json.append("\n]}\n");
+
+        if (options.containsKey("output")) {
+            Files.write(Paths.get(options.get("output")), json.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.print(json);
+        }
+    }
+
+    /**
+     * Constructor
+     * @param rate the requests per second to send
+     * @param warmUp how long to send requests before measuring them
+     * @param duration how long to send requests that are measured
+     */
+    public LoadTest(double rate, Duration warmUp, Duration duration) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException(String.format("rate must be positive but was %s", rate));
+        }
+        this.rate = rate;
+        this.warmUp = warmUp;
+        this.duration = duration;
+    }
+
+    /**
+     * Send requests to the classifier on the schedule of the target rate, each predicting the
+     * next of the samples, until the warm up and the duration have passed and the requests sent
+     * have completed. The schedule is kept on the calling thread.
+     * @param name the name of the configuration, for the result
+     * @param classifier the classifier
+     * @param samples the samples, used round robin
+     * @param clients the executor running the requests
+     * @return the result of the requests sent after the warm up
+     */
+    public LoadTestResult run(String name, Classifier<?> classifier, List<FeatureVector> samples,
+                              ExecutorService clients) {
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("no samples to send");
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder errors = new LongAdder();
+        AtomicLong outstanding = new AtomicLong();
+        LongAccumulator lastCompletion = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        long maxLag = 0;
+        long requests = 0;
+
+        double interval = 1e9 / rate;
+        long start = System.nanoTime();
+        long measureStart = start + warmUp.toNanos();
+        long end = measureStart + duration.toNanos();
+
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * interval);
+            if (intended - end >= 0) {
+                break;
+            }
+
+            long now;
+            while ((now = System.nanoTime()) - intended < 0) {
+                LockSupport.parkNanos(intended - now);
+            }
+            maxLag = Math.max(maxLag, now - intended);
+
+            boolean measured = intended - measureStart >= 0;
+            if (measured) {
+                requests++;
+            }
+            FeatureVector sample = samples.get((int) (i % samples.size()));
+            outstanding.incrementAndGet();
+            try {
+                clients.execute(() -> {
+                    try {
+                        classifier.predict(sample);
+                        if (measured) {
+                            long done = System.nanoTime();
+                            latency.record(done - intended);
+                            lastCompletion.accumulate(done);
+                        }
+                    } catch (RuntimeException e) {
+                        if (measured) {
+                            errors.increment();
+                        }
+                    } finally {
+                        outstanding.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                outstanding.decrementAndGet();
+                if (measured) {
+                    errors.increment();
+                }
+            }
+        }
+
+        long drainDeadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+        while (outstanding.get() > 0 && System.nanoTime() - drainDeadline < 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        long last = Math.max(end, lastCompletion.get());
+        return new LoadTestResult(name, rate, requests, errors.sum(), outstanding.get(),
+                Duration.ofNanos(last - measureStart), maxLag, latency);
+    }
+
+    /**
+     * Read the samples of a CSV file with a header line of feature names.
+     * @param path the file
+     * @param limit the most rows to read
+     * @return a sample for every row
+     * @throws Exception when the file can't be read
+     */
+    static List<FeatureVector> readSamples(Path path, int limit) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        Features features = Features.of(CsvRows.readHeader(buffer));
+        int columns = features.getLength();
+        int[] rows = new int[1];
+        double[] values = CsvRows.parse(buffer, columns, new double[0], rows);
+
+        List<FeatureVector> samples = new ArrayList<>(Math.min(rows[0], limit));
+        for (int row = 0; row < rows[0] && row < limit; row++) {
+            FeatureVector sample = new FeatureVector(features);
+            for (int f = 0; f < columns; f++) {
+                sample.add(f, values[row * columns + f]);
+            }
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    /**
+     * Create an executor starting a virtual thread for every request, on a JDK that has them.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("virtual threads need JDK 21 or later", e);
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException(String.format("unexpected argument '%s'", args[i]));
+            }
+
+            String name = args[i].substring(2);
+            if (name.equals("virtual") || name.equals("help")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException(String.format("option '%s' needs a value", args[i]));
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,147 @@
+package rocks.vilaverde.classifier.cli;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * The outcome of a {@link LoadTest} run: how many requests were sent and completed after the
+ * warm up, the throughput, and the latency percentiles measured from the time each request was
+ * meant to start.
+ */
+public final class LoadTestResult {
+
+    private final String name;
+    private final double rate;
+    private final long requests;
+    private final long errors;
+    private final long incomplete;
+    private final Duration measured;
+    private final long maxDispatchLag;
+    private final LatencyHistogram latency;
+
+    /**
+     * Constructor
+     * @param name the name of the configuration that was run
+     * @param rate the target rate in requests per second
+     * @param requests the number of requests sent after the warm up
+     * @param errors the number of those requests that failed or were rejected
+     * @param incomplete the number of requests still running when the run gave up waiting
+     * @param measured the time from the end of the warm up to the completion of the last request
+     * @param maxDispatchLag the most the sending of a request fell behind its intended start, in nanoseconds
+     * @param latency the latencies of the completed requests
+     */
+    LoadTestResult(String name, double rate, long requests, long errors, long incomplete, Duration measured,
+                   long maxDispatchLag, LatencyHistogram latency) {
+        this.name = name;
+        this.rate = rate;
+        this.requests = requests;
+        this.errors = errors;
+        this.incomplete = incomplete;
+        this.measured = measured;
+        this.maxDispatchLag = maxDispatchLag;
+        this.latency = latency;
+    }
+
+    /**
+     * @return the name of the configuration that was run
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of requests sent after the warm up
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the number of requests that completed without an error
+     */
+    public long getCompleted() {
+        return latency.getCount();
+    }
+
+    /**
+     * @return the number of requests that failed or were rejected
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the number of requests that had not completed when the run ended
+     */
+    public long getIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * @return the completed requests per second
+     */
+    public double getThroughput() {
+        double seconds = measured.toNanos() / 1e9;
+        return seconds == 0 ? 0.0 : getCompleted() / seconds;
+    }
+
+    /**
+     * Get a latency percentile, measured from the time the request was meant to start so the time
+     * a request waited behind slower ones is included.
+     * @param percentile the percentile, for example 99.9
+     * @return the latency in nanoseconds
+     */
+    public long getLatencyNanos(double percentile) {
+        return latency.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * @return the highest latency in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        return latency.getMax();
+    }
+
+    /**
+     * When this is large compared to the interval between requests, the load generator could not
+     * keep up with the target rate and the results understate the load.
+     * @return the most the sending of a request fell behind its intended start, in nanoseconds
+     */
+    public long getMaxDispatchLagNanos() {
+        return maxDispatchLag;
+    }
+
+    /**
+     * @return the result as a JSON object, with latencies in microseconds
+     */
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"name\": %s, \"targetRate\": %.1f, \"requests\": %d, \"completed\": %d, "
+                        + "\"errors\": %d, \"incomplete\": %d, \"seconds\": %.3f, \"throughput\": %.1f, "
+                        + "\"latencyMicros\": {\"mean\": %.1f, \"p50\": %.1f, \"p90\": %.1f, \"p99\": %.1f, "
+                        + "\"p99.9\": %.1f, \"max\": %.1f}, \"maxDispatchLagMicros\": %.1f}",
+                quote(name), rate, requests, getCompleted(), errors, incomplete, measured.toNanos() / 1e9,
+                getThroughput(), latency.getMean() / 1e3, getLatencyNanos(50) / 1e3, getLatencyNanos(90) / 1e3,
+                getLatencyNanos(99) / 1e3, getLatencyNanos(99.9) / 1e3, getMaxLatencyNanos() / 1e3,
+                maxDispatchLag / 1e3);
+    }
+
+    static String quote(String value) {
+        StringBuilder out = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
@@ -0,0 +1,90 @@
+package rocks.vilaverde.classifier.cli;
+
+import rocks.vilaverde.classifier.dt.CompiledTree;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.JavaSourceGenerator;
+import rocks.vilaverde.classifier.dt.TreeClassifier;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates the Java source of a tree or forest model at build time, see
+ * {@link JavaSourceGenerator}. Meant to run in the {@code generate-sources} phase of a build, for
+ * example with the exec-maven-plugin, so the model ships as compiled code instead of a file that
+ * is parsed when the service starts. The source is only rewritten when it changes, so incremental
+ * builds don't compile it again.
+ */
+public final class ModelCompiler {
+
+    /**
+     * Run the generator from the command line.
+     * @param args --model &lt;tree.txt|forest.tgz&gt; --class &lt;qualified class name&gt; --output &lt;source root&gt;
+     * @throws Exception when the model can't be read or the source can't be written
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException(String.format("unexpected argument '%s'", args[i]));
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        if (!options.containsKey("model") || !options.containsKey("class") || !options.containsKey("output")) {
+            System.err.println("usage: ModelCompiler --model <tree.txt|forest.tgz> --class <qualified class name>"
+                    + " --output <source root>");
+            System.exit(2);
+            return;
+        }
+
+        Path source = compile(Paths.get(options.get("model")), options.get("class"), Paths.get(options.get("output")));
+        System.err.printf("generated %s%n", source);
+    }
+
+    /**
+     * Generate the source of a model into a source root.
+     * @param model the model file, a forest when it is a TAR archive otherwise a single tree
+     * @param className the qualified name of the class to generate
+     * @param output the source root, the source is written in the directory of its package
+     * @return the path of the source
+     * @throws Exception when the model can't be read or the source can't be written
+     */
+    public static Path compile(Path model, String className, Path output) throws Exception {
+        int split = className.lastIndexOf('.');
+        String packageName = split < 0 ? "" : className.substring(0, split);
+        String simpleName = className.substring(split + 1);
+
+        StringBuilder code = new StringBuilder();
+        JavaSourceGenerator.generate(getCompiledTrees(BatchScorer.loadModel(model)), packageName, simpleName, code);
+
+        Path directory = output;
+        if (!packageName.isEmpty()) {
+            directory = output.resolve(packageName.replace('.', '/'));
+        }
+        Path source = directory.resolve(simpleName + ".java");
+        byte[] bytes = code.toString().getBytes(StandardCharsets.UTF_8);
+        if (!Files.exists(source) || !Arrays.equals(Files.readAllBytes(source), bytes)) {
+            Files.createDirectories(directory);
+            Files.write(source, bytes);
+        }
+        return source;
+    }
+
+    private static List<? extends CompiledTree<?>> getCompiledTrees(TreeClassifier<?> model) {
+        if (model instanceof RandomForestClassifier) {
+            return ((RandomForestClassifier<?>) model).getCompiledTrees();
+        }
+        return Collections.singletonList(((DecisionTreeClassifier<?>) model).getCompiledTree());
+    }
+
+    private ModelCompiler() {
+    }
+}
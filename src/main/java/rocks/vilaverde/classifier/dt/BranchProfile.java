@@ -0,0 +1,165 @@
+package rocks.vilaverde.classifier.dt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often each node of one or more trees is visited while predicting. Counting
+ * uses a {@link LongAdder} per node so recording never blocks the threads doing the
+ * predictions. The counts can be saved with {@link #write(OutputStream)} and read back
+ * with {@link #read(InputStream)} to lay out the trees of a model when it is next loaded.
+ */
+public final class BranchProfile {
+
+    private static final int MAGIC = 0x534b4250;
+    private static final int VERSION = 1;
+
+    /* visit counters, indexed by tree and then by sklearn node id */
+    private final LongAdder[][] visits;
+
+    /**
+     * Create an empty profile for trees with the given number of nodes.
+     * @param nodeCounts the number of nodes of each tree
+     * @return the BranchProfile
+     */
+    public static BranchProfile create(int ... nodeCounts) {
+        LongAdder[][] visits = new LongAdder[nodeCounts.length][];
+        for (int tree = 0; tree < nodeCounts.length; tree++) {
+            visits[tree] = new LongAdder[nodeCounts[tree]];
+            for (int node = 0; node < nodeCounts[tree]; node++) {
+                visits[tree][node] = new LongAdder();
+            }
+        }
+        return new BranchProfile(visits);
+    }
+
+    /**
+     * Read a profile previously saved with {@link #write(OutputStream)}.
+     * @param in the input stream, which is not closed
+     * @return the BranchProfile
+     * @throws IOException when the stream can't be read or is not a profile
+     */
+    public static BranchProfile read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+            throw new IOException("stream does not contain a branch profile");
+        }
+
+        int trees = data.readInt();
+        int[] nodeCounts = new int[trees];
+        for (int tree = 0; tree < trees; tree++) {
+            nodeCounts[tree] = data.readInt();
+        }
+
+        BranchProfile profile = create(nodeCounts);
+        for (int tree = 0; tree < trees; tree++) {
+            for (LongAdder counter : profile.visits[tree]) {
+                counter.add(data.readLong());
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Private constructor, use {@link #create(int...)} or {@link #read(InputStream)}.
+     * @param visits the visit counters
+     */
+    private BranchProfile(LongAdder[][] visits) {
+        this.visits = visits;
+    }
+
+    /**
+     * Save the current counts of this profile.
+     * @param out the output stream, which is flushed but not closed
+     * @throws IOException when the stream can't be written
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(visits.length);
+        for (LongAdder[] tree : visits) {
+            data.writeInt(tree.length);
+        }
+        for (LongAdder[] tree : visits) {
+            for (LongAdder counter : tree) {
+                data.writeLong(counter.sum());
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Get a view of a single tree in this profile. Visits recorded in the view are
+     * recorded in this profile.
+     * @param tree the index of the tree
+     * @return the BranchProfile of one tree
+     */
+    public BranchProfile getTree(int tree) {
+        return new BranchProfile(new LongAdder[][] {visits[tree]});
+    }
+
+    /**
+     * Get the number of trees in this profile.
+     * @return the number of trees
+     */
+    public int getTreeCount() {
+        return visits.length;
+    }
+
+    /**
+     * Get the number of nodes in a tree of this profile.
+     * @param tree the index of the tree
+     * @return the number of nodes
+     */
+    public int getNodeCount(int tree) {
+        return visits[tree].length;
+    }
+
+    /**
+     * Get the number of times a node has been visited.
+     * @param tree the index of the tree
+     * @param nodeId the sklearn node id
+     * @return the number of visits
+     */
+    public long getVisits(int tree, int nodeId) {
+        return visits[tree][nodeId].sum();
+    }
+
+    /**
+     * Clear all the counts in this profile.
+     */
+    public void reset() {
+        for (LongAdder[] tree : visits) {
+            for (LongAdder counter : tree) {
+                counter.reset();
+            }
+        }
+    }
+
+    /**
+     * Get the live counters of a tree.
+     * @param tree the index of the tree
+     * @return counters indexed by node id
+     */
+    LongAdder[] getCounters(int tree) {
+        return visits[tree];
+    }
+
+    /**
+     * Take a snapshot of the counts of a tree.
+     * @param tree the index of the tree
+     * @return counts indexed by node id
+     */
+    long[] getCounts(int tree) {
+        long[] counts = new long[visits[tree].length];
+        for (int node = 0; node < counts.length; node++) {
+            counts[node] = visits[tree][node].sum();
+        }
+        return counts;
+    }
+}
@@ -47,6 +47,22 @@ public class ChoiceNode extends TreeNode {
     return child;
   }
 
+  /**
+   * Accessor for the Operator used to evaluate this choice.
+   * @return the Operator
+   */
+  public Operator getOperator() {
+    return op;
+  }
+
+  /**
+   * Accessor for the value the feature is compared against.
+   * @return the value
+   */
+  public Double getValue() {
+    return value;
+  }
+
   /**
    * Accepts a visitor and calls visit using this node.
    * @param visitor the visitor
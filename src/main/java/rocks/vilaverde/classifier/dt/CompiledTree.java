@@ -0,0 +1,713 @@
+package rocks.vilaverde.classifier.dt;
+
+import rocks.vilaverde.classifier.FeatureMatrix;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Features;
+import rocks.vilaverde.classifier.Operator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A decision tree flattened into parallel arrays, one slot per node. The order of the
+ * slots is the memory layout of the tree: the child stored in the slot directly after
+ * its parent is the fall-through branch and the other child is reached with a jump.
+ * A freshly compiled tree uses the depth first order of the exported text, which is also
+ * the node numbering used by sklearn.
+ * <p>
+ * The thresholds are doubles, unless the tree was converted with {@link #toFloat32()} to
+ * compare the samples as float32 the way sklearn does.
+ * @param <T> the Prediction Class
+ */
+public final class CompiledTree<T> {
+
+  /** Value of the feature array for slots that hold a leaf. */
+  private static final int LEAF = -1;
+
+  private final String[] featureNames;
+  private final int[] feature;
+  private final double[] threshold;
+  private final float[] floatThreshold;
+  private final int[] jump;
+  private final int[] nodeId;
+  private final EndNode<T>[] leaves;
+  private final int classes;
+  private final double[] probability;
+  private final int[] leafClass;
+  private final double[] leafValue;
+  private final LongAdder[] visits;
+
+  /**
+   * Compile the tree below the root node into a {@link CompiledTree}.
+   * @param root the root of the parsed tree
+   * @return the CompiledTree
+   * @param <T> the Prediction Class
+   * @throws IllegalArgumentException when a split is not of the '&lt;=' / '&gt;' form sklearn exports
+   */
+  public static <T> CompiledTree<T> compile(TreeNode root) {
+    NodeCountVisitor counter = new NodeCountVisitor();
+    root.accept(counter);
+
+    CompileVisitor<T> compiler = new CompileVisitor<>(counter.nodes, counter.leaves);
+    root.accept(compiler);
+
+    return of(compiler.featureNames.toArray(new String[0]), compiler.feature, compiler.threshold,
+            compiler.jump, compiler.nodeId, compiler.leaves);
+  }
+
+  /**
+   * Create a tree from the arrays of a fitted sklearn tree, the {@code children_left},
+   * {@code children_right}, {@code feature}, {@code threshold} and {@code value} of its
+   * {@code tree_} attribute. The nodes are laid out depth first with the left child in the
+   * slot after its parent, the same as a tree compiled from the exported text, and keep the
+   * sklearn node ids.
+   * @param featureNames the names of the features the model was fit with, by index
+   * @param childrenLeft the id of the left child of every node, -1 for leaves
+   * @param childrenRight the id of the right child of every node, -1 for leaves
+   * @param featureIndex the index of the feature split on at every node
+   * @param thresholds the threshold of every split
+   * @param value the class weights of every node, {@code classes} values per node
+   * @param nodeWeight the weighted number of training samples of every node, or null to use the
+   *                   sum of the value of the node. sklearn 1.4 and later store the fraction of
+   *                   samples of each class in value, which this scales back to sample weights.
+   * @param labels the prediction of every class
+   * @return the CompiledTree
+   * @param <T> the Prediction Class
+   * @throws IllegalArgumentException when the arrays don't describe a binary tree rooted at node 0
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> CompiledTree<T> fromArrays(String[] featureNames, int[] childrenLeft, int[] childrenRight,
+                                               int[] featureIndex, double[] thresholds, double[] value,
+                                               double[] nodeWeight, List<T> labels) {
+    int nodes = childrenLeft.length;
+    int classes = labels.size();
+    if (nodes == 0 || childrenRight.length != nodes || featureIndex.length != nodes || thresholds.length != nodes
+            || value.length != (long) nodes * classes || nodeWeight != null && nodeWeight.length != nodes) {
+      throw new IllegalArgumentException(String.format(
+              "tree arrays must have a value for each of the %d nodes and %d classes", nodes, classes));
+    }
+
+    Map<Integer, Integer> localFeature = new HashMap<>();
+    List<String> names = new ArrayList<>();
+    int[] feature = new int[nodes];
+    double[] threshold = new double[nodes];
+    int[] jump = new int[nodes];
+    int[] nodeId = new int[nodes];
+    int[] slotOf = new int[nodes];
+    Arrays.fill(slotOf, -1);
+    List<EndNode<T>> leaves = new ArrayList<>();
+
+    // depth first with the right child pushed first, so the left child takes the next slot
+    int size = 0;
+    int[] stack = new int[nodes];
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[--top];
+      if (node < 0 || node >= nodes || slotOf[node] != -1) {
+        throw new IllegalArgumentException(String.format("node %d is not a valid child", node));
+      }
+      int slot = size++;
+      slotOf[node] = slot;
+      nodeId[slot] = node;
+
+      if (childrenLeft[node] == LEAF) {
+        double[] weights = Arrays.copyOfRange(value, node * classes, (node + 1) * classes);
+        if (nodeWeight != null) {
+          double sum = 0;
+          for (double w : weights) {
+            sum += w;
+          }
+          // a leaf without any weight has nothing to scale, so its raw weights are kept
+          if (sum != 0) {
+            for (int k = 0; k < classes; k++) {
+              weights[k] = weights[k] / sum * nodeWeight[node];
+            }
+          }
+        }
+        feature[slot] = LEAF;
+        jump[slot] = leaves.size();
+        leaves.add(EndNode.WeightedEndNode.of(weights, labels.get(argMax(weights, 0, classes))));
+      } else {
+        int f = featureIndex[node];
+        if (f < 0 || f >= featureNames.length) {
+          throw new IllegalArgumentException(String.format("node %d splits on feature %d of %d",
+                  node, f, featureNames.length));
+        }
+        feature[slot] = localFeature.computeIfAbsent(f, index -> {
+          names.add(featureNames[index]);
+          return names.size() - 1;
+        });
+        threshold[slot] = thresholds[node];
+        if (top + 2 > stack.length) {
+          throw new IllegalArgumentException(String.format("node %d is not a valid child", childrenRight[node]));
+        }
+        stack[top++] = childrenRight[node];
+        stack[top++] = childrenLeft[node];
+      }
+    }
+    if (size != nodes) {
+      throw new IllegalArgumentException(String.format("%d of the %d nodes are not reachable from the root",
+              nodes - size, nodes));
+    }
+
+    for (int slot = 0; slot < nodes; slot++) {
+      if (feature[slot] != LEAF) {
+        jump[slot] = slotOf[childrenRight[nodeId[slot]]];
+      }
+    }
+
+    return of(names.toArray(new String[0]), feature, threshold, jump, nodeId,
+            leaves.toArray((EndNode<T>[]) new EndNode[0]));
+  }
+
+  /**
+   * Build the tables of the leaves of a freshly laid out tree.
+   */
+  private static <T> CompiledTree<T> of(String[] featureNames, int[] feature, double[] threshold, int[] jump,
+                                        int[] nodeId, EndNode<T>[] leaves) {
+    boolean weighted = leaves.length > 0;
+    boolean valued = leaves.length > 0;
+    for (EndNode<T> leaf : leaves) {
+      weighted &= leaf instanceof EndNode.WeightedEndNode;
+      valued &= leaf instanceof EndNode.ValueEndNode;
+    }
+
+    // when exported with weights keep the probability and class of every leaf in flat tables
+    int classes = 0;
+    double[] probability = null;
+    int[] leafClass = null;
+    if (weighted) {
+      classes = leaves[0].getProbability().length;
+      probability = new double[leaves.length * classes];
+      leafClass = new int[leaves.length];
+      for (int leaf = 0; leaf < leaves.length; leaf++) {
+        double[] p = leaves[leaf].getProbability();
+        System.arraycopy(p, 0, probability, leaf * classes, classes);
+        leafClass[leaf] = argMax(p, 0, classes);
+      }
+    }
+
+    // a regression tree keeps the value of every leaf as a primitive
+    double[] leafValue = null;
+    if (valued) {
+      leafValue = new double[leaves.length];
+      for (int leaf = 0; leaf < leaves.length; leaf++) {
+        leafValue[leaf] = ((EndNode.ValueEndNode) leaves[leaf]).getValue();
+      }
+    }
+
+    return new CompiledTree<>(featureNames, feature, threshold, null, jump, nodeId,
+            leaves, classes, probability, leafClass, leafValue, null);
+  }
+
+  /**
+   * Private constructor, use {@link #compile(TreeNode)} to create.
+   */
+  private CompiledTree(String[] featureNames, int[] feature, double[] threshold, float[] floatThreshold,
+                       int[] jump, int[] nodeId, EndNode<T>[] leaves, int classes, double[] probability,
+                       int[] leafClass, double[] leafValue, LongAdder[] visits) {
+    this.featureNames = featureNames;
+    this.feature = feature;
+    this.threshold = threshold;
+    this.floatThreshold = floatThreshold;
+    this.jump = jump;
+    this.nodeId = nodeId;
+    this.leaves = leaves;
+    this.classes = classes;
+    this.probability = probability;
+    this.leafClass = leafClass;
+    this.leafValue = leafValue;
+    this.visits = visits;
+  }
+
+  /**
+   * Get the index of the largest value, the first one when there is a tie.
+   * @param values the values
+   * @param offset the index of the first value
+   * @param length the number of values
+   * @return the index of the largest value relative to the offset
+   */
+  public static int argMax(double[] values, int offset, int length) {
+    int max = 0;
+    for (int i = 1; i < length; i++) {
+      if (values[offset + i] > values[offset + max]) {
+        max = i;
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Get the index of the largest count, the first one when there is a tie. This is how the
+   * ensembles pick the class with the most votes, so that ties go to the lowest class index
+   * whichever way a sample is predicted.
+   * @param counts the counts
+   * @param offset the index of the first count
+   * @param length the number of counts
+   * @return the index of the largest count relative to the offset
+   */
+  public static int argMax(int[] counts, int offset, int length) {
+    int max = 0;
+    for (int i = 1; i < length; i++) {
+      if (counts[offset + i] > counts[offset + max]) {
+        max = i;
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Map the features used by this tree to the columns of the features of a
+   * {@link FeatureMatrix}.
+   * @param features the features of the matrix
+   * @return the column of each feature of this tree
+   * @throws IllegalArgumentException when a feature used by the tree is missing
+   */
+  public int[] bind(Features features) {
+    int[] columns = new int[featureNames.length];
+    for (int f = 0; f < featureNames.length; f++) {
+      if (!features.getFeatureNames().contains(featureNames[f])) {
+        throw new IllegalArgumentException(String.format("expected feature named '%s' but none provided",
+                featureNames[f]));
+      }
+      columns[f] = features.getFeatureIndex(featureNames[f]);
+    }
+    return columns;
+  }
+
+  /**
+   * Find the slot of the leaf a row of a {@link FeatureMatrix} ends up in.
+   * @param rows the samples
+   * @param row the row of the sample
+   * @param columns the columns from {@link #bind(Features)}
+   * @return the slot of the leaf
+   */
+  public int findLeaf(FeatureMatrix rows, int row, int[] columns) {
+    int slot = 0;
+    int f;
+    while ((f = feature[slot]) != LEAF) {
+      if (visits != null) {
+        visits[nodeId[slot]].increment();
+      }
+
+      double value = rows.get(row, columns[f]);
+      if (Double.isNaN(value)) {
+        throw new RuntimeException(String.format("no branches evaluated to true for feature '%s'",
+                featureNames[f]));
+      }
+
+      int next = jump[slot];
+      slot = goesLeft(value, slot) == (next > 0) ? slot + 1 : Math.abs(next);
+    }
+
+    if (visits != null) {
+      visits[nodeId[slot]].increment();
+    }
+
+    return slot;
+  }
+
+  /**
+   * Find the slot of the leaf the sample ends up in.
+   * @param sample the sample {@link FeatureVector}
+   * @return the slot of the leaf
+   */
+  public int findLeaf(FeatureVector sample) {
+    int slot = 0;
+    int f;
+    while ((f = feature[slot]) != LEAF) {
+      if (visits != null) {
+        visits[nodeId[slot]].increment();
+      }
+
+      double value = sample.get(featureNames[f]);
+      if (Double.isNaN(value)) {
+        throw new RuntimeException(String.format("no branches evaluated to true for feature '%s'",
+                featureNames[f]));
+      }
+
+      int next = jump[slot];
+      slot = goesLeft(value, slot) == (next > 0) ? slot + 1 : Math.abs(next);
+    }
+
+    if (visits != null) {
+      visits[nodeId[slot]].increment();
+    }
+
+    return slot;
+  }
+
+  /**
+   * Check if a split sends a value to its left child, the one taken when the value is less than
+   * or equal to the threshold.
+   * @param value the value of the feature of the split
+   * @param slot the slot of a split
+   * @return true for the left child
+   */
+  boolean goesLeft(double value, int slot) {
+    if (floatThreshold != null) {
+      return (float) value <= floatThreshold[slot];
+    }
+    return value <= threshold[slot];
+  }
+
+  /**
+   * Get the {@link EndNode} stored in a leaf slot.
+   * @param slot the slot of a leaf
+   * @return the EndNode
+   */
+  public EndNode<T> getLeaf(int slot) {
+    return leaves[jump[slot]];
+  }
+
+  /**
+   * Get the number of classes in the leaf probabilities.
+   * @return the number of classes, or 0 when the tree was not exported with weights
+   */
+  public int getClassCount() {
+    return classes;
+  }
+
+  /**
+   * Get the index of the most probable class of a leaf.
+   * @param slot the slot of a leaf
+   * @return the index of the class
+   */
+  public int getLeafClass(int slot) {
+    checkWeighted();
+    return leafClass[jump[slot]];
+  }
+
+  /**
+   * Add the class probabilities of a leaf to an accumulator.
+   * @param slot the slot of a leaf
+   * @param target the accumulator
+   * @param offset the index in the accumulator of the first class
+   */
+  public void addProbability(int slot, double[] target, int offset) {
+    checkWeighted();
+    int start = jump[slot] * classes;
+    for (int k = 0; k < classes; k++) {
+      target[offset + k] += probability[start + k];
+    }
+  }
+
+  /**
+   * Get the value of a leaf of a regression tree.
+   * @param slot the slot of a leaf
+   * @return the value
+   */
+  public double getValue(int slot) {
+    if (leafValue == null) {
+      throw new IllegalStateException("model is not a regression tree");
+    }
+    return leafValue[jump[slot]];
+  }
+
+  /**
+   * @return true when the leaves hold regression values
+   */
+  public boolean isRegression() {
+    return leafValue != null;
+  }
+
+  private void checkWeighted() {
+    if (probability == null) {
+      throw new IllegalStateException("model was not exported with weights, can't calculate probability");
+    }
+  }
+
+  /**
+   * Get the sklearn node id of the node in a slot.
+   * @param slot the slot
+   * @return the node id
+   */
+  public int getNodeId(int slot) {
+    return nodeId[slot];
+  }
+
+  /**
+   * Estimate the bytes of heap retained by this tree on a 64-bit JVM with compressed references:
+   * its arrays, the names of its features and its leaves, with the label of each leaf counted
+   * as a boxed number.
+   * @return the estimated bytes
+   */
+  long estimateBytes() {
+    long bytes = align(12 + 12 * 4 + 4);
+    bytes += arrayBytes(featureNames.length, 4);
+    for (String name : featureNames) {
+      bytes += align(12 + 4 + 4 + 1) + arrayBytes(name.length(), 1);
+    }
+    int nodes = feature.length;
+    bytes += 3 * arrayBytes(nodes, 4);
+    bytes += threshold != null ? arrayBytes(nodes, 8) : arrayBytes(nodes, 4);
+    if (probability != null) {
+      bytes += arrayBytes(probability.length, 8) + arrayBytes(leafClass.length, 4);
+    }
+    if (leafValue != null) {
+      bytes += arrayBytes(leafValue.length, 8);
+    }
+
+    // every leaf is an EndNode holding its label and, with weights, a double per class
+    bytes += arrayBytes(leaves.length, 4);
+    long leaf = align(12 + 4 + 8) + 16;
+    if (classes > 0) {
+      leaf += arrayBytes(classes, 8);
+    }
+    return bytes + leaves.length * leaf;
+  }
+
+  private static long arrayBytes(long length, int elementSize) {
+    return align(16 + length * elementSize);
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  /**
+   * Get the number of nodes in the tree, both splits and leaves.
+   * @return the node count
+   */
+  public int getNodeCount() {
+    return feature.length;
+  }
+
+  /**
+   * Check if a slot holds a leaf.
+   * @param slot the slot
+   * @return true when the slot holds a leaf
+   */
+  public boolean isLeaf(int slot) {
+    return feature[slot] == LEAF;
+  }
+
+  /**
+   * @return the index in the feature table of the feature a split compares
+   */
+  int getFeature(int slot) {
+    return feature[slot];
+  }
+
+  /**
+   * @return the name of the feature at the index of the feature table
+   */
+  String getFeatureName(int f) {
+    return featureNames[f];
+  }
+
+  /**
+   * @return the threshold a split compares to
+   */
+  double getThreshold(int slot) {
+    return floatThreshold != null ? floatThreshold[slot] : threshold[slot];
+  }
+
+  /**
+   * @return the smallest value a split sends to its right child
+   */
+  double getRightBound(int slot) {
+    return floatThreshold != null ? Math.nextUp(floatThreshold[slot]) : Math.nextUp(threshold[slot]);
+  }
+
+  /**
+   * @return true when the thresholds are float32 and the values are cast to float32 before they
+   *         are compared
+   */
+  public boolean isFloat32() {
+    return floatThreshold != null;
+  }
+
+  /**
+   * Create a copy of this tree that stores its thresholds as float32 and casts the values of the
+   * samples to float32 before comparing them, the way sklearn evaluates its trees. sklearn compares
+   * the float32 value to a double threshold, so each threshold is rounded down to the largest float
+   * that is not above it, which takes every float32 value to the same side as sklearn does. This
+   * agrees with sklearn exactly when the model was exported with enough decimals to hold the
+   * thresholds, and halves the memory of the thresholds.
+   * @return a CompiledTree with float32 thresholds, or this tree when it already has them
+   */
+  CompiledTree<T> toFloat32() {
+    if (floatThreshold != null) {
+      return this;
+    }
+
+    float[] floats = new float[threshold.length];
+    for (int slot = 0; slot < floats.length; slot++) {
+      float value = (float) threshold[slot];
+      floats[slot] = value > threshold[slot] ? Math.nextDown(value) : value;
+    }
+    return new CompiledTree<>(featureNames, feature, null, floats, jump, nodeId,
+            leaves, classes, probability, leafClass, leafValue, visits);
+  }
+
+  /**
+   * @return the slot of the child a split takes when the value is less than or equal to the threshold
+   */
+  int getLeftChild(int slot) {
+    int next = jump[slot];
+    return next > 0 ? slot + 1 : -next;
+  }
+
+  /**
+   * @return the slot of the child a split takes when the value is greater than the threshold
+   */
+  int getRightChild(int slot) {
+    int next = jump[slot];
+    return next > 0 ? next : slot + 1;
+  }
+
+  /**
+   * Lay the tree out again so that for every split the child visited more often is the
+   * fall-through branch. This makes the hottest path from the root to a leaf contiguous,
+   * with the colder subtrees placed after it.
+   * @param visits visit counts indexed by node id
+   * @return a new CompiledTree with the same nodes in the new order
+   */
+  CompiledTree<T> relayout(long[] visits) {
+    if (visits.length != getNodeCount()) {
+      throw new IllegalArgumentException(String.format("expected visit counts for %d nodes but got %d",
+              getNodeCount(), visits.length));
+    }
+
+    CompiledTree<T> result = new CompiledTree<>(featureNames, new int[feature.length],
+            threshold == null ? null : new double[threshold.length],
+            floatThreshold == null ? null : new float[floatThreshold.length],
+            new int[jump.length], new int[nodeId.length],
+            leaves, classes, probability, leafClass, leafValue, this.visits);
+    result.place(this, 0, 0, visits);
+    return result;
+  }
+
+  /**
+   * Create a copy of this tree that counts a visit for every node on the path of each
+   * prediction.
+   * @param visits counters indexed by node id, or null to stop counting
+   * @return a CompiledTree sharing the nodes of this tree
+   */
+  CompiledTree<T> withVisits(LongAdder[] visits) {
+    if (visits != null && visits.length != getNodeCount()) {
+      throw new IllegalArgumentException(String.format("expected visit counters for %d nodes but got %d",
+              getNodeCount(), visits.length));
+    }
+
+    return new CompiledTree<>(featureNames, feature, threshold, floatThreshold, jump, nodeId,
+            leaves, classes, probability, leafClass, leafValue, visits);
+  }
+
+  /**
+   * Copy the subtree at the slot of the source tree into this tree starting at the target slot.
+   * @return the next free slot in this tree
+   */
+  private int place(CompiledTree<T> source, int slot, int target, long[] visits) {
+    feature[target] = source.feature[slot];
+    if (threshold != null) {
+      threshold[target] = source.threshold[slot];
+    } else {
+      floatThreshold[target] = source.floatThreshold[slot];
+    }
+    nodeId[target] = source.nodeId[slot];
+
+    if (feature[target] == LEAF) {
+      jump[target] = source.jump[slot];
+      return target + 1;
+    }
+
+    int next = source.jump[slot];
+    int left = next > 0 ? slot + 1 : -next;
+    int right = next > 0 ? next : slot + 1;
+
+    if (visits[source.nodeId[right]] > visits[source.nodeId[left]]) {
+      int free = place(source, right, target + 1, visits);
+      jump[target] = -free;
+      return place(source, left, free, visits);
+    } else {
+      int free = place(source, left, target + 1, visits);
+      jump[target] = free;
+      return place(source, right, free, visits);
+    }
+  }
+
+  /**
+   * Counts the decision and end nodes in a tree.
+   */
+  private static class NodeCountVisitor extends AbstractDecisionTreeVisitor {
+    private int nodes;
+    private int leaves;
+
+    @Override
+    public void visit(EndNode object) {
+      nodes++;
+      leaves++;
+    }
+
+    @Override
+    public void visit(DecisionNode object) {
+      nodes++;
+      super.visit(object);
+    }
+  }
+
+  /**
+   * Fills the arrays of a {@link CompiledTree} using depth first traversal.
+   */
+  private static class CompileVisitor<T> extends AbstractDecisionTreeVisitor {
+    private final Map<String, Integer> featureIndex = new HashMap<>();
+    private final List<String> featureNames = new ArrayList<>();
+    private final int[] feature;
+    private final double[] threshold;
+    private final int[] jump;
+    private final int[] nodeId;
+    private final EndNode<T>[] leaves;
+    private int size;
+    private int leafCount;
+
+    @SuppressWarnings("unchecked")
+    private CompileVisitor(int nodes, int leaves) {
+      this.feature = new int[nodes];
+      this.threshold = new double[nodes];
+      this.jump = new int[nodes];
+      this.nodeId = new int[nodes];
+      this.leaves = (EndNode<T>[]) new EndNode[leaves];
+    }
+
+    @Override
+    public void visit(DecisionNode object) {
+      ChoiceNode left = object.getLeft();
+      ChoiceNode right = object.getRight();
+      if (left.getOperator() != Operator.LT_EQ || right.getOperator() != Operator.GT
+              || !left.getValue().equals(right.getValue())) {
+        throw new IllegalArgumentException(String.format("split on feature '%s' must be '<=' and '>' the same value",
+                object.getFeatureName()));
+      }
+
+      int slot = size++;
+      nodeId[slot] = slot;
+      feature[slot] = featureIndex.computeIfAbsent(object.getFeatureName(), name -> {
+        featureNames.add(name);
+        return featureNames.size() - 1;
+      });
+      threshold[slot] = left.getValue();
+
+      // depth first puts the left child in the next slot, making it the fall-through branch
+      left.getChild().accept(this);
+      jump[slot] = size;
+      right.getChild().accept(this);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void visit(EndNode object) {
+      int slot = size++;
+      nodeId[slot] = slot;
+      feature[slot] = LEAF;
+      jump[slot] = leafCount;
+      leaves[leafCount++] = object;
+    }
+  }
+}
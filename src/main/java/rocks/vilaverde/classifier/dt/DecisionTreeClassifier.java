@@ -1,18 +1,23 @@
 package rocks.vilaverde.classifier.dt;
 
 import rocks.vilaverde.classifier.AbstractTreeClassifier;
+import rocks.vilaverde.classifier.FeatureMatrix;
 import rocks.vilaverde.classifier.FeatureVector;
-import rocks.vilaverde.classifier.Operator;
 import rocks.vilaverde.classifier.Prediction;
 import rocks.vilaverde.classifier.dt.visitors.FeatureNameVisitor;
-import rocks.vilaverde.classifier.dt.visitors.PredictVisitor;
+import rocks.vilaverde.classifier.dt.visitors.StatisticsVisitor;
 
-import java.io.BufferedReader;
 import java.io.Reader;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.Stack;
 import java.util.stream.Collectors;
 
 /**
@@ -34,21 +39,68 @@ public class DecisionTreeClassifier<T> extends AbstractTreeClassifier<T>
   public static <T> DecisionTreeClassifier<T> parse(Reader reader, PredictionFactory<T> factory) throws Exception {
 
     try (reader) {
+      long start = System.nanoTime();
       DecisionTreeClassifier<T> classifier = new DecisionTreeClassifier<>(factory);
 
-      classifier.load(reader);
+      // the parsed nodes are only needed until the tree is compiled
+      DecisionNode root = classifier.load(reader);
 
       FeatureNameVisitor visitor = new FeatureNameVisitor();
-      classifier.root.accept(visitor);
+      root.accept(visitor);
       classifier.featureNames = visitor.getFeatureNames();
+      classifier.tree = CompiledTree.compile(root);
+      classifier.loaded = classifier.tree;
+
+      StatisticsVisitor statistics = new StatisticsVisitor();
+      root.accept(statistics);
+      classifier.statistics = ModelStatistics.of(statistics, classifier.tree,
+              Duration.ofNanos(System.nanoTime() - start));
 
       return classifier;
     }
   }
 
+  /**
+   * Factory method to create the classifier from the arrays of a fitted sklearn tree saved with
+   * NumPy, without exporting or parsing text.
+   * @param path a directory of .npy files or an .npz file
+   * @param factory the factory used to convert the class labels to the correct result type
+   * @return the Classifier
+   * @param <T> class
+   * @throws Exception when the arrays could not be read
+   * @see NumpyTrees
+   */
+  public static <T> DecisionTreeClassifier<T> fromNumpy(Path path, PredictionFactory<T> factory) throws Exception {
+    return NumpyTrees.read(path, factory);
+  }
+
+  /**
+   * Create the classifier of a tree that was compiled without parsing.
+   * @param tree the compiled tree
+   * @param factory the factory used to convert the prediction class to the correct result type
+   * @param loadTime the time it took to load the tree
+   * @return the Classifier
+   */
+  static <T> DecisionTreeClassifier<T> of(CompiledTree<T> tree, PredictionFactory<T> factory, Duration loadTime) {
+    DecisionTreeClassifier<T> classifier = new DecisionTreeClassifier<>(factory);
+    Set<String> names = new HashSet<>();
+    for (int slot = 0; slot < tree.getNodeCount(); slot++) {
+      if (!tree.isLeaf(slot)) {
+        names.add(tree.getFeatureName(tree.getFeature(slot)));
+      }
+    }
+    classifier.featureNames = names;
+    classifier.tree = tree;
+    classifier.loaded = tree;
+    classifier.statistics = ModelStatistics.of(tree, loadTime);
+    return classifier;
+  }
+
   private final PredictionFactory<T> predictionFactory;
-  private DecisionNode root;
   private Set<String> featureNames;
+  private ModelStatistics statistics;
+  private volatile CompiledTree<T> tree;
+  private CompiledTree<T> loaded;
 
   /**
    * Private constructor, use factory method to create.
@@ -92,149 +144,241 @@ public class DecisionTreeClassifier<T> extends AbstractTreeClassifier<T>
   }
 
   /**
-   * Find the {@link Prediction} in the decision tree.
+   * Predict the class index of every row of the matrix.
+   * @param rows the samples
+   * @param out receives one class index per row
    */
-  public Prediction<T> getClassification(FeatureVector sample) {
-    validateFeatures(sample);
-    return PredictVisitor.predict(sample, root);
+  @Override
+  public void predict(FeatureMatrix rows, IntBuffer out) {
+    CompiledTree<T> compiled = tree;
+    int[] columns = compiled.bind(rows.getFeatures());
+    checkCapacity(rows.getRowCount(), out.remaining());
+
+    for (int row = 0; row < rows.getRowCount(); row++) {
+      out.put(compiled.getLeafClass(compiled.findLeaf(rows, row, columns)));
+    }
   }
 
   /**
-   * Validate the features provided are expected.
+   * Predict the class probabilities of every row of the matrix.
+   * @param rows the samples
+   * @param out receives the class probabilities of the rows
    */
-  private void validateFeatures(FeatureVector sample) throws IllegalArgumentException {
-    for (String f : featureNames) {
-      if (!sample.hasFeature(f)) {
-        throw new IllegalArgumentException(String.format("expected feature named '%s' but none provided", f));
-      }
+  @Override
+  public void predict_proba(FeatureMatrix rows, DoubleBuffer out) {
+    CompiledTree<T> compiled = tree;
+    int[] columns = compiled.bind(rows.getFeatures());
+    double[] probability = new double[compiled.getClassCount()];
+    checkCapacity((long) rows.getRowCount() * probability.length, out.remaining());
+
+    for (int row = 0; row < rows.getRowCount(); row++) {
+      Arrays.fill(probability, 0.0);
+      compiled.addProbability(compiled.findLeaf(rows, row, columns), probability, 0);
+      out.put(probability);
     }
   }
 
-  public Set<String> getFeatureNames() {
-    return featureNames;
+  private static void checkCapacity(long required, int remaining) {
+    if (required > remaining) {
+      throw new IllegalArgumentException(String.format("output needs room for %d values but has %d",
+              required, remaining));
+    }
   }
 
   /**
-   * Parse a text representation created using tree.export_text() from sklearn into a DecisionTreeClassifier.
+   * Find the leaf each sample ends up in, like apply in sklearn.
+   * @param leaves receives the sklearn node id of the leaf of each sample, at the index of the sample
+   * @param samples the input samples
    */
-  private void load(Reader reader) throws Exception {
-
-    Stack<TreeNode> stack = new Stack<>();
+  public void apply(int[] leaves, FeatureVector ... samples) {
+    checkLeaves(samples.length, leaves.length);
 
-    try (BufferedReader bufferedReader = new BufferedReader(reader)) {
-      String line = bufferedReader.readLine();
+    CompiledTree<T> compiled = tree;
+    for (int i = 0; i < samples.length; i++) {
+      validateFeatures(samples[i]);
+      leaves[i] = compiled.getNodeId(compiled.findLeaf(samples[i]));
+    }
+  }
 
-      while (line != null) {
-        if (line.length() != 0) {
+  /**
+   * Predict the class of the samples and record the leaf each sample ends up in, in the
+   * same pass through the tree.
+   * @param leaves receives the sklearn node id of the leaf of each sample, at the index of the sample
+   * @param samples the input samples
+   * @return predicted class of each sample
+   */
+  public List<T> predict(int[] leaves, FeatureVector ... samples) {
+    checkLeaves(samples.length, leaves.length);
 
-          // remove the indentations from each line, this expects that export_text()
-          // used the default indent level of 3.
-          line = removeIndentations(line);
-          if (!stack.isEmpty()) {
-            processChildNode(stack, line);
-          } else {
-            processDecisionNode(stack, line);
-          }
-        }
+    List<T> predictions = new ArrayList<>(samples.length);
+    for (int i = 0; i < samples.length; i++) {
+      predictions.add(getClassification(samples[i], leaves, i).get());
+    }
+    return predictions;
+  }
 
-        // read next line
-        line = bufferedReader.readLine();
-      }
+  private static void checkLeaves(int required, int length) {
+    if (length < required) {
+      throw new IllegalArgumentException(String.format("leaves needs room for %d values but has %d",
+              required, length));
     }
+  }
 
-    root = (DecisionNode) stack.pop();
+  /**
+   * Find the {@link Prediction} in the decision tree.
+   */
+  public Prediction<T> getClassification(FeatureVector sample) {
+    validateFeatures(sample);
+    CompiledTree<T> compiled = tree;
+    return compiled.getLeaf(compiled.findLeaf(sample));
   }
 
-  private void processChildNode(Stack<TreeNode> stack, String line) throws Exception {
+  /**
+   * Find the {@link Prediction} in the decision tree and record the leaf it was found in.
+   * @param sample the input sample
+   * @param leaves receives the sklearn node id of the leaf
+   * @param index the index in leaves to write to
+   * @return the Prediction
+   */
+  public Prediction<T> getClassification(FeatureVector sample, int[] leaves, int index) {
+    validateFeatures(sample);
+    CompiledTree<T> compiled = tree;
+    int slot = compiled.findLeaf(sample);
+    leaves[index] = compiled.getNodeId(slot);
+    return compiled.getLeaf(slot);
+  }
 
-    // end nodes of the decision tree will either start with weights or class depending
-    // if show_weights=True was set on export.
-    if (!(line.startsWith("weights: ") || line.startsWith("class: "))) {
-      // we have another decision node, delegate over to that method to handle the decision node
-      processDecisionNode(stack, line);
-      return;
-    }
+  @Override
+  public int getClassCount() {
+    return tree.getClassCount();
+  }
 
-    // we have a EndNode, so pop the stack should contain a ChoiceNode,
-    // pop that and add the end as a child.
-    EndNode<T> node = EndNode.create(line, predictionFactory);
-    ((ChoiceNode)stack.pop()).addChild(node);
+  /**
+   * Create an empty {@link BranchProfile} sized for this tree.
+   * @return the BranchProfile
+   */
+  public BranchProfile newProfile() {
+    return BranchProfile.create(tree.getNodeCount());
+  }
 
-    // if the current choice has been popped check if the decision node
-    // has 2 operations, and if so pop that one as well and any other
-    // completed decision nodes.
-    while (stack.size() > 1 && ((DecisionNode)stack.peek()).isComplete() ) {
-      stack.pop();
-    }
+  /**
+   * Start counting the node visits of every prediction in the profile. Counting does not
+   * block, so this can be done on production traffic for as long as needed.
+   * @param profile a profile of a single tree created by {@link #newProfile()}
+   */
+  public synchronized void startProfiling(BranchProfile profile) {
+    validateProfile(profile);
+    this.tree = tree.withVisits(profile.getCounters(0));
   }
 
   /**
-   * Parses the given line into a {@link DecisionNode} or {@link ChoiceNode} on the stack.
+   * Stop counting node visits.
    */
-  private void processDecisionNode(Stack<TreeNode> stack, String line) {
-    int indexOfOperator = getOperatorIndex(line);
-    String feature = line.substring(0, indexOfOperator).trim();
-    String[] operatorValue = line.substring(indexOfOperator).split(" ");
-    Operator op = Operator.from(operatorValue[0]);
+  public synchronized void stopProfiling() {
+    this.tree = tree.withVisits(null);
+  }
 
-    // the 1 char operators cause the split to produce an empty array item
-    int valuePosition = 1;
-    if (op == Operator.EQ || op == Operator.LT || op == Operator.GT ) {
-      valuePosition = 2;
-    }
+  /**
+   * Lay out the nodes of this tree using the visit counts in the profile, so that the most
+   * visited path through the tree is contiguous in memory. Predictions that are running
+   * continue with the previous layout.
+   * @param profile a profile of a single tree, recorded or read for this model
+   */
+  public synchronized void relayout(BranchProfile profile) {
+    validateProfile(profile);
+    this.tree = tree.relayout(profile.getCounts(0));
+  }
 
-    Double value = Double.parseDouble(operatorValue[valuePosition]);
-
-    DecisionNode decisionNode;
-    if (stack.isEmpty()) {
-      decisionNode = DecisionNode.create(feature);
-      stack.push(decisionNode);
-    } else {
-      TreeNode peek = stack.peek();
-      if (!(peek instanceof DecisionNode && ((DecisionNode)peek).getFeatureName().equals(feature))) {
-        // new node needs to go under current choice
-        decisionNode = DecisionNode.create(feature);
-
-        // The choice node will now have a child so should be removed from the stack
-        ((ChoiceNode)stack.pop()).addChild(decisionNode);
-        stack.push(decisionNode);
-      } else {
-        decisionNode = (DecisionNode) peek;
-      }
-    }
+  /**
+   * Store the thresholds of this tree as float32 and cast the features of the samples to float32
+   * before comparing them, the way sklearn does. This gives the same predictions as sklearn for
+   * values right at a threshold, as long as the tree was exported with enough decimals to hold
+   * its thresholds (for example {@code decimals=17}), and halves the memory of the thresholds.
+   * Predictions that are running continue with the double thresholds.
+   */
+  public synchronized void useFloat32() {
+    this.tree = tree.toFloat32();
+  }
 
-    ChoiceNode choice = ChoiceNode.create(op, value);
+  /**
+   * Get the statistics of this tree, computed when it was loaded.
+   * @return the ModelStatistics
+   */
+  public ModelStatistics getStatistics() {
+    return statistics;
+  }
 
-    if (decisionNode.getLeft() == null) {
-      decisionNode.setLeft(choice);
-    } else {
-      decisionNode.setRight(choice);
-    }
+  /**
+   * Create a {@link TreeExplainer} for the probabilities predicted by this tree.
+   * @return the TreeExplainer
+   * @throws IllegalStateException when the tree was not exported with weights
+   */
+  public TreeExplainer newExplainer() {
+    return TreeExplainer.create(Collections.singletonList(tree));
+  }
+
+  /**
+   * Warm up the prediction code with samples synthesized to take every branch of the tree, so the
+   * first real predictions don't run before the JIT has compiled it.
+   * @param budget the most time to spend
+   * @return a report of what was run
+   * @see WarmUp
+   */
+  public WarmUpReport warmUp(Duration budget) {
+    return WarmUp.run(this, Collections.singletonList(tree), budget);
+  }
+
+  /**
+   * Get the compiled form of this tree.
+   * @return the {@link CompiledTree}
+   */
+  public CompiledTree<T> getCompiledTree() {
+    return tree;
+  }
 
-    stack.push(choice);
+  /**
+   * Create a classifier sharing the compiled nodes this tree was loaded with, e.g. to keep an
+   * unchanged tree when a forest is reloaded without parsing it again. The layout, float32
+   * thresholds and profiling applied to this tree since it was loaded are not carried over.
+   * @return the copy
+   */
+  public DecisionTreeClassifier<T> copy() {
+    DecisionTreeClassifier<T> copy = new DecisionTreeClassifier<>(predictionFactory);
+    copy.featureNames = featureNames;
+    copy.statistics = statistics;
+    copy.tree = loaded;
+    copy.loaded = loaded;
+    return copy;
+  }
+
+  /**
+   * Validate the profile was created for this tree.
+   */
+  private void validateProfile(BranchProfile profile) throws IllegalArgumentException {
+    if (profile.getTreeCount() != 1 || profile.getNodeCount(0) != tree.getNodeCount()) {
+      throw new IllegalArgumentException("profile does not match the nodes of the tree");
+    }
   }
 
-  private int getOperatorIndex(String line) {
-    int idx = -1;
-    for (Operator op : Operator.values()) {
-      idx = line.indexOf(op.toString());
-      if (idx >= 0) {
-        break;
+  /**
+   * Validate the features provided are expected.
+   */
+  private void validateFeatures(FeatureVector sample) throws IllegalArgumentException {
+    for (String f : featureNames) {
+      if (!sample.hasFeature(f)) {
+        throw new IllegalArgumentException(String.format("expected feature named '%s' but none provided", f));
       }
     }
+  }
 
-    return idx;
+  public Set<String> getFeatureNames() {
+    return featureNames;
   }
 
   /**
-   * Strip the indentations from the text line.
+   * Parse a text representation created using tree.export_text() from sklearn into a DecisionTreeClassifier.
    */
-  private String removeIndentations(String line) {
-    int idx = line.indexOf("|--- ");
-    while (idx >= 0) {
-      line = line.substring(idx + 5);
-      idx = line.indexOf("|--- ");
-    }
-    return line;
+  private DecisionNode load(Reader reader) throws Exception {
+    return ExportTextParser.parse(reader, line -> EndNode.create(line, predictionFactory));
   }
 }
@@ -0,0 +1,90 @@
+package rocks.vilaverde.classifier.dt;
+
+import rocks.vilaverde.classifier.FeatureMatrix;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Regressor;
+import rocks.vilaverde.classifier.dt.visitors.FeatureNameVisitor;
+
+import java.io.Reader;
+import java.nio.DoubleBuffer;
+import java.util.Set;
+
+/**
+ * Represents a DecisionTreeRegressor trained in scikit-learn and exported using
+ * export_text. The leaf values are kept in a primitive array so predicting doesn't box.
+ */
+public class DecisionTreeRegressor implements Regressor {
+
+  /**
+   * Factory method to create the regressor from the {@link Reader}.
+   * @param reader the input Reader
+   * @return the Regressor
+   * @throws Exception when the model could no be parsed
+   */
+  public static DecisionTreeRegressor parse(Reader reader) throws Exception {
+
+    try (reader) {
+      DecisionNode root = ExportTextParser.parse(reader, EndNode.ValueEndNode::createValueNode);
+
+      FeatureNameVisitor visitor = new FeatureNameVisitor();
+      root.accept(visitor);
+
+      CompiledTree<Double> tree = CompiledTree.compile(root);
+      if (!tree.isRegression()) {
+        throw new IllegalArgumentException("model is not a regression tree");
+      }
+
+      return new DecisionTreeRegressor(visitor.getFeatureNames(), tree);
+    }
+  }
+
+  private final Set<String> featureNames;
+  private final CompiledTree<Double> tree;
+
+  /**
+   * Private constructor, use factory method to create.
+   */
+  private DecisionTreeRegressor(Set<String> featureNames, CompiledTree<Double> tree) {
+    this.featureNames = featureNames;
+    this.tree = tree;
+  }
+
+  @Override
+  public double predictValue(FeatureVector sample) {
+    validateFeatures(sample);
+    return tree.getValue(tree.findLeaf(sample));
+  }
+
+  @Override
+  public void predict(FeatureMatrix rows, DoubleBuffer out) {
+    int[] columns = tree.bind(rows.getFeatures());
+
+    for (int row = 0; row < rows.getRowCount(); row++) {
+      out.put(tree.getValue(tree.findLeaf(rows, row, columns)));
+    }
+  }
+
+  /**
+   * Get the compiled form of this tree.
+   * @return the {@link CompiledTree}
+   */
+  public CompiledTree<Double> getCompiledTree() {
+    return tree;
+  }
+
+  /**
+   * Validate the features provided are expected.
+   */
+  private void validateFeatures(FeatureVector sample) throws IllegalArgumentException {
+    for (String f : featureNames) {
+      if (!sample.hasFeature(f)) {
+        throw new IllegalArgumentException(String.format("expected feature named '%s' but none provided", f));
+      }
+    }
+  }
+
+  @Override
+  public Set<String> getFeatureNames() {
+    return featureNames;
+  }
+}
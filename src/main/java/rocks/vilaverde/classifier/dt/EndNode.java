@@ -81,6 +81,17 @@ public class EndNode<T> extends TreeNode implements Prediction<T> {
       return new WeightedEndNode<>(weights, predictionFactory.create(parse[1].toString()));
     }
 
+    /**
+     * Create a leaf from the weights of its classes.
+     * @param weights the weighted number of training samples of every class in the leaf
+     * @param prediction the class predicted by the leaf
+     * @return the WeightedEndNode
+     * @param <T> the Prediction Class
+     */
+    static <T> WeightedEndNode<T> of(double[] weights, T prediction) {
+      return new WeightedEndNode<>(weights, prediction);
+    }
+
     /**
      * Constructor.
      */
@@ -89,6 +100,17 @@ public class EndNode<T> extends TreeNode implements Prediction<T> {
       this.weights = weights;
     }
 
+    /**
+     * @return the sum of the weights, the weighted number of training samples in the leaf
+     */
+    public double getWeight() {
+      double totalSamples = 0;
+      for (double w : weights) {
+        totalSamples += w;
+      }
+      return totalSamples;
+    }
+
     @Override
     public double[] getProbability() {
       double totalSamples = 0;
@@ -109,4 +131,53 @@ public class EndNode<T> extends TreeNode implements Prediction<T> {
       return "WeightedEndNode{" + "weights=" + Arrays.toString(weights) + ", classification=" + get() + '}';
     }
   }
+
+
+  /**
+   * {@link EndNode} of a regression tree, holding the mean target value of the samples that
+   * reached the leaf.
+   */
+  public static class ValueEndNode extends EndNode<Double> {
+
+    private static final MessageFormat VALUE_FORMAT = new MessageFormat("value: {0}");
+
+    private final double value;
+
+    static ValueEndNode createValueNode(String endNodeString) throws Exception {
+      Object[] parse = VALUE_FORMAT.parse(endNodeString);
+      String value = parse[0].toString().trim();
+      value = value.substring(1, value.length() - 1);
+
+      if (value.contains(",")) {
+        throw new IllegalArgumentException("only single output regression trees are supported");
+      }
+
+      return new ValueEndNode(Double.parseDouble(value.trim()));
+    }
+
+    /**
+     * Constructor.
+     */
+    private ValueEndNode(double value) {
+      super(value);
+      this.value = value;
+    }
+
+    /**
+     * @return the value of the leaf as a primitive
+     */
+    public double getValue() {
+      return value;
+    }
+
+    @Override
+    public double[] getProbability() {
+      throw new IllegalStateException("regression trees don't have class probabilities");
+    }
+
+    @Override
+    public String toString() {
+      return "ValueEndNode{" + "value=" + value + '}';
+    }
+  }
 }
@@ -0,0 +1,155 @@
+package rocks.vilaverde.classifier.dt;
+
+import rocks.vilaverde.classifier.Operator;
+import rocks.vilaverde.classifier.util.ThrowingFunction;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.util.Stack;
+
+/**
+ * Parses the text representation created using tree.export_text() from sklearn into a tree of
+ * {@link TreeNode}s. The parsing of the end nodes is delegated, so the same parser reads
+ * classification and regression trees.
+ */
+class ExportTextParser {
+
+  private final ThrowingFunction<String, EndNode<?>, Exception> leafFactory;
+
+  /**
+   * Parse the exported tree.
+   * @param reader the input Reader
+   * @param leafFactory creates the {@link EndNode} for the text of an end node
+   * @return the root of the tree
+   * @throws Exception when the model could no be parsed
+   */
+  static DecisionNode parse(Reader reader,
+                            ThrowingFunction<String, EndNode<?>, Exception> leafFactory) throws Exception {
+    return new ExportTextParser(leafFactory).load(reader);
+  }
+
+  private ExportTextParser(ThrowingFunction<String, EndNode<?>, Exception> leafFactory) {
+    this.leafFactory = leafFactory;
+  }
+
+  private DecisionNode load(Reader reader) throws Exception {
+
+    Stack<TreeNode> stack = new Stack<>();
+
+    try (BufferedReader bufferedReader = new BufferedReader(reader)) {
+      String line = bufferedReader.readLine();
+
+      while (line != null) {
+        if (line.length() != 0) {
+
+          // remove the indentations from each line, this expects that export_text()
+          // used the default indent level of 3.
+          line = removeIndentations(line);
+          if (!stack.isEmpty()) {
+            processChildNode(stack, line);
+          } else {
+            processDecisionNode(stack, line);
+          }
+        }
+
+        // read next line
+        line = bufferedReader.readLine();
+      }
+    }
+
+    return (DecisionNode) stack.pop();
+  }
+
+  private void processChildNode(Stack<TreeNode> stack, String line) throws Exception {
+
+    // end nodes of a classification tree will either start with weights or class depending
+    // if show_weights=True was set on export, the end nodes of a regression tree start with value.
+    if (!(line.startsWith("weights: ") || line.startsWith("class: ") || line.startsWith("value: "))) {
+      // we have another decision node, delegate over to that method to handle the decision node
+      processDecisionNode(stack, line);
+      return;
+    }
+
+    // we have a EndNode, so pop the stack should contain a ChoiceNode,
+    // pop that and add the end as a child.
+    EndNode<?> node = leafFactory.apply(line);
+    ((ChoiceNode)stack.pop()).addChild(node);
+
+    // if the current choice has been popped check if the decision node
+    // has 2 operations, and if so pop that one as well and any other
+    // completed decision nodes.
+    while (stack.size() > 1 && ((DecisionNode)stack.peek()).isComplete() ) {
+      stack.pop();
+    }
+  }
+
+  /**
+   * Parses the given line into a {@link DecisionNode} or {@link ChoiceNode} on the stack.
+   */
+  private void processDecisionNode(Stack<TreeNode> stack, String line) {
+    int indexOfOperator = getOperatorIndex(line);
+    String feature = line.substring(0, indexOfOperator).trim();
+    String[] operatorValue = line.substring(indexOfOperator).split(" ");
+    Operator op = Operator.from(operatorValue[0]);
+
+    // the 1 char operators cause the split to produce an empty array item
+    int valuePosition = 1;
+    if (op == Operator.EQ || op == Operator.LT || op == Operator.GT ) {
+      valuePosition = 2;
+    }
+
+    Double value = Double.parseDouble(operatorValue[valuePosition]);
+
+    DecisionNode decisionNode;
+    if (stack.isEmpty()) {
+      decisionNode = DecisionNode.create(feature);
+      stack.push(decisionNode);
+    } else {
+      TreeNode peek = stack.peek();
+      if (!(peek instanceof DecisionNode && ((DecisionNode)peek).getFeatureName().equals(feature))) {
+        // new node needs to go under current choice
+        decisionNode = DecisionNode.create(feature);
+
+        // The choice node will now have a child so should be removed from the stack
+        ((ChoiceNode)stack.pop()).addChild(decisionNode);
+        stack.push(decisionNode);
+      } else {
+        decisionNode = (DecisionNode) peek;
+      }
+    }
+
+    ChoiceNode choice = ChoiceNode.create(op, value);
+
+    if (decisionNode.getLeft() == null) {
+      decisionNode.setLeft(choice);
+    } else {
+      decisionNode.setRight(choice);
+    }
+
+    stack.push(choice);
+  }
+
+  private static int getOperatorIndex(String line) {
+    int idx = -1;
+    for (Operator op : Operator.values()) {
+      idx = line.indexOf(op.toString());
+      if (idx >= 0) {
+        break;
+      }
+    }
+
+    return idx;
+  }
+
+  /**
+   * Strip the indentations from the text line.
+   */
+  private static String removeIndentations(String line) {
+    int idx = line.indexOf("|--- ");
+    while (idx >= 0) {
+      line = line.substring(idx + 5);
+      idx = line.indexOf("|--- ");
+    }
+    return line;
+  }
+}
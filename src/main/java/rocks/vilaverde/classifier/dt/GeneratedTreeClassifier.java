@@ -0,0 +1,209 @@
+package rocks.vilaverde.classifier.dt;
+
+import rocks.vilaverde.classifier.AbstractTreeClassifier;
+import rocks.vilaverde.classifier.FeatureMatrix;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Features;
+import rocks.vilaverde.classifier.Prediction;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The base class of the classifiers generated into Java source by {@link JavaSourceGenerator}.
+ * The generated subclass holds the trees as nested comparisons with the leaf probabilities
+ * written inline, and this class reads the features of the samples and aggregates the trees the
+ * same way a {@link DecisionTreeClassifier} or a forest does.
+ * <p>
+ * The features of a sample are read before the trees are walked, so a missing or NaN value of a
+ * feature used by the model fails the prediction even when no tree would have compared it.
+ * @param <T> the Prediction Class
+ */
+public abstract class GeneratedTreeClassifier<T> extends AbstractTreeClassifier<T> {
+
+    private final String[] featureNames;
+    private final Set<String> featureSet;
+    private final int classes;
+    private final int trees;
+    private final List<T> labels;
+
+    /**
+     * Constructor
+     * @param featureNames the features read by the trees, in the order of the values passed to
+     *                     {@link #accumulate(double[], double[], int[])}
+     * @param classes the number of classes
+     * @param trees the number of trees
+     * @param labels the serialized label of each class, null when no leaf predicts the class
+     * @param factory the factory for creating the prediction class from the labels
+     */
+    protected GeneratedTreeClassifier(String[] featureNames, int classes, int trees, String[] labels,
+                                      PredictionFactory<T> factory) {
+        this.featureNames = featureNames;
+        this.featureSet = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(featureNames)));
+        this.classes = classes;
+        this.trees = trees;
+        this.labels = new ArrayList<>(labels.length);
+        for (String label : labels) {
+            this.labels.add(label == null ? null : factory.create(label));
+        }
+    }
+
+    /**
+     * Walk every tree, adding the class probabilities of the leaf of each tree and its vote for
+     * the most probable class of the leaf.
+     * @param x the values of the features, in the order of the feature names
+     * @param probability receives the sum of the class probabilities of the trees
+     * @param votes receives the number of trees voting for each class
+     */
+    protected abstract void accumulate(double[] x, double[] probability, int[] votes);
+
+    @Override
+    public List<T> predict(FeatureVector ... samples) {
+        List<T> result = new ArrayList<>(samples.length);
+        for (FeatureVector sample : samples) {
+            result.add(getClassification(sample).get());
+        }
+        return result;
+    }
+
+    @Override
+    public double[][] predict_proba(FeatureVector ... samples) {
+        double[][] result = new double[samples.length][];
+        for (int i = 0; i < samples.length; i++) {
+            result[i] = getClassification(samples[i]).getProbability();
+        }
+        return result;
+    }
+
+    /**
+     * Get the prediction for a sample. The class is the one most trees vote for, the lowest class
+     * index when classes tie.
+     * @param sample the feature vector
+     * @return a Prediction
+     */
+    @Override
+    public Prediction<T> getClassification(FeatureVector sample) {
+        double[] x = new double[featureNames.length];
+        for (int f = 0; f < x.length; f++) {
+            x[f] = check(sample.get(featureNames[f]), f);
+        }
+
+        double[] probability = new double[classes];
+        int[] votes = new int[classes];
+        accumulate(x, probability, votes);
+
+        final T prediction = labels.get(CompiledTree.argMax(votes, 0, classes));
+        for (int k = 0; k < classes; k++) {
+            probability[k] /= trees;
+        }
+
+        return new Prediction<T>() {
+            @Override
+            public T get() {
+                return prediction;
+            }
+
+            @Override
+            public double[] getProbability() {
+                return probability.clone();
+            }
+        };
+    }
+
+    /**
+     * Predict the class of every row of the matrix, the class most trees vote for like
+     * {@link #getClassification(FeatureVector)}.
+     * @param rows the samples
+     * @param out receives one class index per row starting at its position, which is advanced
+     */
+    @Override
+    public void predict(FeatureMatrix rows, IntBuffer out) {
+        checkCapacity(rows.getRowCount(), out.remaining());
+        int[] columns = bind(rows.getFeatures());
+        double[] x = new double[featureNames.length];
+        double[] probability = new double[classes];
+        int[] votes = new int[classes];
+
+        for (int row = 0; row < rows.getRowCount(); row++) {
+            score(rows, row, columns, x, probability, votes);
+            out.put(CompiledTree.argMax(votes, 0, classes));
+        }
+    }
+
+    /**
+     * Predict the class probabilities of every row of the matrix.
+     * @param rows the samples
+     * @param out receives the class probabilities of the rows starting at its position, which is advanced
+     */
+    @Override
+    public void predict_proba(FeatureMatrix rows, DoubleBuffer out) {
+        checkCapacity((long) rows.getRowCount() * classes, out.remaining());
+        int[] columns = bind(rows.getFeatures());
+        double[] x = new double[featureNames.length];
+        double[] probability = new double[classes];
+        int[] votes = new int[classes];
+
+        for (int row = 0; row < rows.getRowCount(); row++) {
+            score(rows, row, columns, x, probability, votes);
+            for (int k = 0; k < classes; k++) {
+                out.put(probability[k] / trees);
+            }
+        }
+    }
+
+    private void score(FeatureMatrix rows, int row, int[] columns, double[] x, double[] probability, int[] votes) {
+        for (int f = 0; f < x.length; f++) {
+            x[f] = check(rows.get(row, columns[f]), f);
+        }
+        Arrays.fill(probability, 0.0);
+        Arrays.fill(votes, 0);
+        accumulate(x, probability, votes);
+    }
+
+    private int[] bind(Features features) {
+        int[] columns = new int[featureNames.length];
+        for (int f = 0; f < columns.length; f++) {
+            columns[f] = features.getFeatureIndex(featureNames[f]);
+        }
+        return columns;
+    }
+
+    private double check(double value, int f) {
+        if (Double.isNaN(value)) {
+            throw new RuntimeException(String.format("no branches evaluated to true for feature '%s'",
+                    featureNames[f]));
+        }
+        return value;
+    }
+
+    private static void checkCapacity(long required, int remaining) {
+        if (required > remaining) {
+            throw new IllegalArgumentException(String.format("output needs room for %d values but has %d",
+                    required, remaining));
+        }
+    }
+
+    @Override
+    public int getClassCount() {
+        return classes;
+    }
+
+    /**
+     * Get the number of trees in the model.
+     * @return the tree count
+     */
+    public int getTreeCount() {
+        return trees;
+    }
+
+    @Override
+    public Set<String> getFeatureNames() {
+        return featureSet;
+    }
+}
@@ -0,0 +1,320 @@
+package rocks.vilaverde.classifier.dt;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates the Java source of a class holding a tree or a forest as plain code: every split is
+ * an {@code if} comparing a feature to its threshold, and every leaf adds its class probabilities
+ * and its vote as constants. The class extends {@link GeneratedTreeClassifier}, so it is used like
+ * the parsed model without reading or parsing anything when it is loaded.
+ * <p>
+ * A method holds one tree, or part of a large tree, sized by an upper bound of its bytecode so no
+ * method is larger than HotSpot compiles. The constant pool of a class is limited too, so models
+ * with too many distinct thresholds and probabilities to fit in one class are rejected.
+ */
+public final class JavaSourceGenerator {
+
+    /**
+     * The most bytecode in a generated method, HotSpot doesn't compile methods larger than 8000
+     * bytes and leaves them interpreted.
+     */
+    static final int MAX_METHOD_BYTES = 8000;
+    /** The most bytecode of a split, loading the feature and its threshold and the branches. */
+    static final int SPLIT_BYTES = 16;
+    /** The most bytecode of adding a probability to the sum of a class. */
+    static final int ADD_BYTES = 11;
+    /** The most bytecode of counting a vote for a class. */
+    static final int VOTE_BYTES = 9;
+    /** The bytecode of calling a generated method. */
+    static final int CALL_BYTES = 6;
+    /**
+     * The largest subtree written into the method of its parent, in bytes of bytecode. A method
+     * holds the split of its root and two subtrees no larger than this, or calls to their methods,
+     * and a return, so it stays within {@link #MAX_METHOD_BYTES}.
+     */
+    static final int MAX_INLINE_BYTES = (MAX_METHOD_BYTES - SPLIT_BYTES - 1) / 2;
+    /** The deepest nesting of splits in one method. */
+    static final int MAX_METHOD_DEPTH = 48;
+    /**
+     * The most constant pool entries used by the generated code, of the limit of 65535 leaving
+     * room for the entries of the class itself. A double takes two entries, so this is at most
+     * 30,000 distinct doubles.
+     */
+    static final int MAX_CONSTANT_ENTRIES = 60_000;
+
+    private final List<? extends CompiledTree<?>> trees;
+    private final Map<String, Integer> features = new LinkedHashMap<>();
+    private final String[] labels;
+    private final int classes;
+    private final Set<Long> constants = new HashSet<>();
+    private final Set<Integer> floatConstants = new HashSet<>();
+    private int methodCount;
+
+    /**
+     * Generate the source of a class for the trees, whose prediction is the vote of the trees and
+     * whose probabilities are the average of the trees.
+     * @param trees the compiled trees, exported with weights
+     * @param packageName the package of the class, empty for the default package
+     * @param className the simple name of the class
+     * @param out receives the source
+     * @throws IOException when the source can't be written
+     * @throws IllegalArgumentException when the trees were not exported with weights or have too
+     *                                  many constants for one class
+     */
+    public static void generate(List<? extends CompiledTree<?>> trees, String packageName, String className,
+                                Appendable out) throws IOException {
+        if (trees.isEmpty()) {
+            throw new IllegalArgumentException("no trees to generate");
+        }
+        new JavaSourceGenerator(trees).write(packageName, className, out);
+    }
+
+    /**
+     * Private constructor, use {@link #generate(List, String, String, Appendable)}.
+     */
+    private JavaSourceGenerator(List<? extends CompiledTree<?>> trees) {
+        this.trees = trees;
+        this.classes = trees.get(0).getClassCount();
+        if (classes == 0) {
+            throw new IllegalArgumentException("model must be exported with show_weights=True");
+        }
+
+        this.labels = new String[classes];
+        for (int t = 0; t < trees.size(); t++) {
+            CompiledTree<?> tree = trees.get(t);
+            if (tree.getClassCount() != classes) {
+                throw new IllegalArgumentException(String.format("tree %d has %d classes but expected %d",
+                        t, tree.getClassCount(), classes));
+            }
+            for (int slot = 0; slot < tree.getNodeCount(); slot++) {
+                if (tree.isLeaf(slot)) {
+                    labels[tree.getLeafClass(slot)] = String.valueOf(tree.getLeaf(slot).get());
+                } else {
+                    features.putIfAbsent(tree.getFeatureName(tree.getFeature(slot)), features.size());
+                }
+            }
+        }
+    }
+
+    private void write(String packageName, String className, Appendable out) throws IOException {
+        if (!packageName.isEmpty()) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+        out.append("import rocks.vilaverde.classifier.dt.GeneratedTreeClassifier;\n")
+                .append("import rocks.vilaverde.classifier.dt.PredictionFactory;\n\n")
+                .append("/**\n * Generated by ").append(JavaSourceGenerator.class.getName())
+                .append(" from ").append(String.valueOf(trees.size()))
+                .append(trees.size() == 1 ? " tree" : " trees").append(", do not edit.\n */\n")
+                .append("public final class ").append(className)
+                .append("<T> extends GeneratedTreeClassifier<T> {\n\n");
+
+        out.append("    private static final String[] FEATURES = {");
+        int i = 0;
+        for (String name : features.keySet()) {
+            out.append(i++ > 0 ? ", " : "").append(literal(name));
+        }
+        out.append("};\n    private static final String[] LABELS = {");
+        for (int k = 0; k < classes; k++) {
+            out.append(k > 0 ? ", " : "").append(labels[k] == null ? "null" : literal(labels[k]));
+        }
+        out.append("};\n\n");
+
+        out.append("    /**\n     * Constructor\n")
+                .append("     * @param factory the factory for creating the prediction class\n     */\n")
+                .append("    public ").append(className).append("(PredictionFactory<T> factory) {\n")
+                .append("        super(FEATURES, ").append(String.valueOf(classes)).append(", ")
+                .append(String.valueOf(trees.size())).append(", LABELS, factory);\n    }\n\n");
+
+        // too many trees to call from one method are called from groups of trees
+        int perMethod = (MAX_METHOD_BYTES - 1) / CALL_BYTES;
+        int groups = trees.size() > perMethod ? (trees.size() + perMethod - 1) / perMethod : 0;
+        out.append("    @Override\n")
+                .append("    protected void accumulate(double[] x, double[] p, int[] v) {\n");
+        if (groups == 0) {
+            writeCalls("tree", 0, trees.size(), out);
+        } else {
+            writeCalls("trees", 0, groups, out);
+        }
+        out.append("    }\n");
+        for (int g = 0; g < groups; g++) {
+            addMethod();
+            out.append("\n    private static void trees").append(String.valueOf(g))
+                    .append("(double[] x, double[] p, int[] v) {\n");
+            writeCalls("tree", g * perMethod, Math.min(trees.size(), (g + 1) * perMethod), out);
+            out.append("    }\n");
+        }
+
+        for (int t = 0; t < trees.size(); t++) {
+            writeTree(trees.get(t), "tree" + t, out);
+        }
+        out.append("}\n");
+    }
+
+    private static void writeCalls(String prefix, int from, int to, Appendable out) throws IOException {
+        for (int i = from; i < to; i++) {
+            out.append("        ").append(prefix).append(String.valueOf(i)).append("(x, p, v);\n");
+        }
+    }
+
+    /**
+     * Write the methods of a tree, the subtrees that don't fit in the method of the tree going
+     * into methods of their own.
+     */
+    private void writeTree(CompiledTree<?> tree, String name, Appendable out) throws IOException {
+        // the bytecode of the subtree below every slot, children before their parents, a split
+        // is a comparison and a leaf an addition per class it has a probability for and a vote
+        long[] costs = new long[tree.getNodeCount()];
+        double[] probability = new double[classes];
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(0);
+        while (!stack.isEmpty()) {
+            int slot = stack.peek();
+            if (tree.isLeaf(slot)) {
+                costs[stack.pop()] = leafBytes(tree, slot, probability);
+            } else if (costs[tree.getLeftChild(slot)] == 0) {
+                stack.push(tree.getLeftChild(slot));
+            } else if (costs[tree.getRightChild(slot)] == 0) {
+                stack.push(tree.getRightChild(slot));
+            } else {
+                costs[stack.pop()] = SPLIT_BYTES + costs[tree.getLeftChild(slot)] + costs[tree.getRightChild(slot)];
+            }
+        }
+
+        Deque<Integer> methods = new ArrayDeque<>();
+        methods.add(0);
+        while (!methods.isEmpty()) {
+            int root = methods.poll();
+            addMethod();
+            out.append("\n    private static void ").append(method(name, root))
+                    .append("(double[] x, double[] p, int[] v) {\n");
+            writeNode(tree, name, root, root, 2, costs, methods, out);
+            out.append("    }\n");
+        }
+    }
+
+    /**
+     * The bytecode of a leaf, which can't be split into smaller methods.
+     */
+    private long leafBytes(CompiledTree<?> tree, int slot, double[] probability) {
+        Arrays.fill(probability, 0.0);
+        tree.addProbability(slot, probability, 0);
+        long bytes = VOTE_BYTES;
+        for (double p : probability) {
+            bytes += p != 0.0 ? ADD_BYTES : 0;
+        }
+        if (bytes + 1 > MAX_METHOD_BYTES) {
+            throw new IllegalArgumentException(String.format(
+                    "a leaf with probabilities for %d classes is too large for one method", classes));
+        }
+        return bytes;
+    }
+
+    private void writeNode(CompiledTree<?> tree, String name, int root, int slot, int depth, long[] costs,
+                           Deque<Integer> methods, Appendable out) throws IOException {
+        String indent = "    ".repeat(depth);
+        if (slot != root && (costs[slot] > MAX_INLINE_BYTES
+                || (depth - 2 >= MAX_METHOD_DEPTH && !tree.isLeaf(slot)))) {
+            methods.add(slot);
+            out.append(indent).append(method(name, slot)).append("(x, p, v);\n");
+            return;
+        }
+
+        if (tree.isLeaf(slot)) {
+            double[] probability = new double[classes];
+            tree.addProbability(slot, probability, 0);
+            for (int k = 0; k < classes; k++) {
+                if (probability[k] != 0.0) {
+                    out.append(indent).append("p[").append(String.valueOf(k)).append("] += ")
+                            .append(constant(probability[k])).append(";\n");
+                }
+            }
+            out.append(indent).append("v[").append(String.valueOf(tree.getLeafClass(slot))).append("]++;\n");
+            return;
+        }
+
+        int f = features.get(tree.getFeatureName(tree.getFeature(slot)));
+        if (tree.isFloat32()) {
+            out.append(indent).append("if ((float) x[").append(String.valueOf(f)).append("] <= ")
+                    .append(floatConstant((float) tree.getThreshold(slot))).append(") {\n");
+        } else {
+            out.append(indent).append("if (x[").append(String.valueOf(f)).append("] <= ")
+                    .append(constant(tree.getThreshold(slot))).append(") {\n");
+        }
+        writeNode(tree, name, root, tree.getLeftChild(slot), depth + 1, costs, methods, out);
+        out.append(indent).append("} else {\n");
+        writeNode(tree, name, root, tree.getRightChild(slot), depth + 1, costs, methods, out);
+        out.append(indent).append("}\n");
+    }
+
+    private static String method(String tree, int slot) {
+        return slot == 0 ? tree : tree + "_" + slot;
+    }
+
+    /**
+     * A double literal that reads back as the same value.
+     */
+    private String constant(double value) {
+        constants.add(Double.doubleToLongBits(value));
+        checkConstants();
+
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * A float literal that reads back as the same value.
+     */
+    private String floatConstant(float value) {
+        floatConstants.add(Float.floatToIntBits(value));
+        checkConstants();
+        if (Float.isInfinite(value)) {
+            return value > 0 ? "Float.POSITIVE_INFINITY" : "Float.NEGATIVE_INFINITY";
+        }
+        return Float.toString(value) + "f";
+    }
+
+    /**
+     * Count a generated method, which takes a name, a name and type and a method reference in the
+     * constant pool.
+     */
+    private void addMethod() {
+        methodCount++;
+        checkConstants();
+    }
+
+    private void checkConstants() {
+        // a double takes two entries, a float and each part of a method one, a string two
+        long entries = 2L * constants.size() + floatConstants.size() + 3L * methodCount
+                + 2L * (features.size() + classes);
+        if (entries > MAX_CONSTANT_ENTRIES) {
+            throw new IllegalArgumentException(String.format(
+                    "model needs more than %d constant pool entries for its thresholds, probabilities and "
+                            + "methods, too many for one class", MAX_CONSTANT_ENTRIES));
+        }
+    }
+
+    private static String literal(String value) {
+        StringBuilder out = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+}
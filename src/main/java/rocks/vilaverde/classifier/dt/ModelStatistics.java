@@ -0,0 +1,239 @@
+package rocks.vilaverde.classifier.dt;
+
+import rocks.vilaverde.classifier.dt.visitors.StatisticsVisitor;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The shape and size of a tree or forest, computed once when the model is loaded: the number of
+ * nodes, leaves and splits, the depth of the leaves, how often each feature is split on, the
+ * number of classes, an estimate of the heap the trees retain and the time it took to parse the
+ * model. The statistics describe the model as it was loaded, changing the thresholds or layout
+ * of the trees afterwards isn't reflected in them.
+ * <p>
+ * The statistics can be registered as an MBean, so they can be read with any JMX client.
+ */
+public final class ModelStatistics implements ModelStatisticsMXBean {
+
+    /** The domain of the {@link ObjectName} the statistics are registered under. */
+    public static final String JMX_DOMAIN = "rocks.vilaverde.classifier";
+
+    private final int trees;
+    private final long splits;
+    private final long leaves;
+    private final int maxDepth;
+    private final long depthSum;
+    private final Map<String, Long> featureUsage;
+    private final int classes;
+    private final long estimatedBytes;
+    private final Duration parseTime;
+
+    /**
+     * Create the statistics of a tree.
+     * @param visitor the visitor that went through the parsed nodes of the tree
+     * @param tree the compiled tree
+     * @param parseTime the time it took to parse the tree
+     * @return the ModelStatistics
+     */
+    static ModelStatistics of(StatisticsVisitor visitor, CompiledTree<?> tree, Duration parseTime) {
+        Map<String, Long> usage = new TreeMap<>();
+        for (Map.Entry<String, Integer> entry : visitor.getFeatureUsage().entrySet()) {
+            usage.put(entry.getKey(), (long) entry.getValue());
+        }
+        int classes = tree.getClassCount() > 0 ? tree.getClassCount() : visitor.getLabelCount();
+
+        return new ModelStatistics(1, visitor.getSplitCount(), visitor.getLeafCount(), visitor.getMaxDepth(),
+                visitor.getDepthSum(), usage, classes, tree.estimateBytes(), parseTime);
+    }
+
+    /**
+     * Create the statistics of a tree that was built without parsed nodes, by walking its slots.
+     * @param tree the compiled tree
+     * @param loadTime the time it took to load the tree
+     * @return the ModelStatistics
+     */
+    static ModelStatistics of(CompiledTree<?> tree, Duration loadTime) {
+        Map<String, Long> usage = new TreeMap<>();
+        long splits = 0;
+        long leaves = 0;
+        int maxDepth = 0;
+        long depthSum = 0;
+
+        int[] slots = new int[tree.getNodeCount()];
+        int[] depths = new int[tree.getNodeCount()];
+        int top = 0;
+        slots[top++] = 0;
+        while (top > 0) {
+            int slot = slots[--top];
+            int depth = depths[top];
+            if (tree.isLeaf(slot)) {
+                leaves++;
+                depthSum += depth;
+                maxDepth = Math.max(maxDepth, depth);
+            } else {
+                splits++;
+                usage.merge(tree.getFeatureName(tree.getFeature(slot)), 1L, Long::sum);
+                slots[top] = tree.getRightChild(slot);
+                depths[top++] = depth + 1;
+                slots[top] = tree.getLeftChild(slot);
+                depths[top++] = depth + 1;
+            }
+        }
+
+        return new ModelStatistics(1, splits, leaves, maxDepth, depthSum, usage, tree.getClassCount(),
+                tree.estimateBytes(), loadTime);
+    }
+
+    /**
+     * Combine the statistics of the trees of a forest.
+     * @param trees the statistics of every tree
+     * @param parseTime the time it took to parse the forest
+     * @return the ModelStatistics of the forest
+     */
+    public static ModelStatistics combine(List<ModelStatistics> trees, Duration parseTime) {
+        long splits = 0;
+        long leaves = 0;
+        int maxDepth = 0;
+        long depthSum = 0;
+        Map<String, Long> usage = new TreeMap<>();
+        int classes = 0;
+        long estimatedBytes = 0;
+        int count = 0;
+
+        for (ModelStatistics tree : trees) {
+            count += tree.trees;
+            splits += tree.splits;
+            leaves += tree.leaves;
+            maxDepth = Math.max(maxDepth, tree.maxDepth);
+            depthSum += tree.depthSum;
+            for (Map.Entry<String, Long> entry : tree.featureUsage.entrySet()) {
+                usage.merge(entry.getKey(), entry.getValue(), Long::sum);
+            }
+            classes = Math.max(classes, tree.classes);
+            estimatedBytes += tree.estimatedBytes;
+        }
+
+        return new ModelStatistics(count, splits, leaves, maxDepth, depthSum, usage, classes,
+                estimatedBytes, parseTime);
+    }
+
+    /**
+     * Private constructor, use {@link #combine(List, Duration)} to create.
+     */
+    private ModelStatistics(int trees, long splits, long leaves, int maxDepth, long depthSum,
+                            Map<String, Long> featureUsage, int classes, long estimatedBytes,
+                            Duration parseTime) {
+        this.trees = trees;
+        this.splits = splits;
+        this.leaves = leaves;
+        this.maxDepth = maxDepth;
+        this.depthSum = depthSum;
+        this.featureUsage = Collections.unmodifiableMap(featureUsage);
+        this.classes = classes;
+        this.estimatedBytes = estimatedBytes;
+        this.parseTime = parseTime;
+    }
+
+    /**
+     * Register the statistics as an MBean of the platform MBean server, under
+     * {@code rocks.vilaverde.classifier:type=ModelStatistics,name=<name>}.
+     * @param name the name of the model
+     * @return the name the MBean is registered under, for unregistering it
+     * @throws JMException when the MBean can't be registered, for example when a model with
+     *                     the same name is already registered
+     */
+    public ObjectName register(String name) throws JMException {
+        return register(ManagementFactory.getPlatformMBeanServer(), name);
+    }
+
+    /**
+     * Register the statistics as an MBean, under
+     * {@code rocks.vilaverde.classifier:type=ModelStatistics,name=<name>}.
+     * @param server the MBean server
+     * @param name the name of the model
+     * @return the name the MBean is registered under, for unregistering it
+     * @throws JMException when the MBean can't be registered
+     */
+    public ObjectName register(MBeanServer server, String name) throws JMException {
+        ObjectName objectName = new ObjectName(String.format("%s:type=ModelStatistics,name=%s",
+                JMX_DOMAIN, ObjectName.quote(name)));
+        return server.registerMBean(this, objectName).getObjectName();
+    }
+
+    @Override
+    public int getTreeCount() {
+        return trees;
+    }
+
+    @Override
+    public long getNodeCount() {
+        return splits + leaves;
+    }
+
+    @Override
+    public long getLeafCount() {
+        return leaves;
+    }
+
+    @Override
+    public long getSplitCount() {
+        return splits;
+    }
+
+    @Override
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    @Override
+    public double getAverageDepth() {
+        return leaves == 0 ? 0.0 : (double) depthSum / leaves;
+    }
+
+    @Override
+    public Map<String, Long> getFeatureUsage() {
+        return featureUsage;
+    }
+
+    @Override
+    public int getClassCount() {
+        return classes;
+    }
+
+    /**
+     * The estimate assumes a 64-bit JVM with compressed references, and counts the arrays of the
+     * compiled trees, their leaves and the labels of the leaves.
+     * @return the estimated bytes of heap retained by the trees
+     */
+    @Override
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return the time it took to parse the model
+     */
+    public Duration getParseTime() {
+        return parseTime;
+    }
+
+    @Override
+    public double getParseTimeMillis() {
+        return parseTime.toNanos() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return "ModelStatistics{" + "trees=" + trees + ", nodes=" + getNodeCount() + ", leaves=" + leaves
+                + ", maxDepth=" + maxDepth + ", averageDepth=" + String.format("%.2f", getAverageDepth())
+                + ", classes=" + classes + ", estimatedBytes=" + estimatedBytes + ", parseTime=" + parseTime + '}';
+    }
+}
@@ -0,0 +1,59 @@
+package rocks.vilaverde.classifier.dt;
+
+import java.util.Map;
+
+/**
+ * The JMX attributes of the {@link ModelStatistics} of a model.
+ */
+public interface ModelStatisticsMXBean {
+
+    /**
+     * @return the number of trees
+     */
+    int getTreeCount();
+
+    /**
+     * @return the number of nodes of all the trees, splits and leaves
+     */
+    long getNodeCount();
+
+    /**
+     * @return the number of leaves of all the trees
+     */
+    long getLeafCount();
+
+    /**
+     * @return the number of splits of all the trees
+     */
+    long getSplitCount();
+
+    /**
+     * @return the depth of the deepest leaf
+     */
+    int getMaxDepth();
+
+    /**
+     * @return the average depth of the leaves
+     */
+    double getAverageDepth();
+
+    /**
+     * @return the number of splits on each feature, by feature name
+     */
+    Map<String, Long> getFeatureUsage();
+
+    /**
+     * @return the number of classes
+     */
+    int getClassCount();
+
+    /**
+     * @return the estimated bytes of heap retained by the trees
+     */
+    long getEstimatedBytes();
+
+    /**
+     * @return the time it took to parse the model, in milliseconds
+     */
+    double getParseTimeMillis();
+}
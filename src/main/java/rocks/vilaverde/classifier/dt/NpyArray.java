@@ -0,0 +1,248 @@
+package rocks.vilaverde.classifier.dt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An array read from the NumPy {@code .npy} format: a magic string, a version, a header that is a
+ * Python dict literal describing the type and shape of the array, and the values of the array in C
+ * order. Signed and unsigned integers, floats, booleans and fixed width unicode strings are
+ * supported. The values are read in place from the buffer, which may be memory mapped.
+ */
+final class NpyArray {
+
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+    private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([<>|=])([a-zA-Z])(\\d+)'");
+    private static final Pattern FORTRAN = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+    private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+    private final String name;
+    private final char kind;
+    private final int itemSize;
+    private final int[] shape;
+    private final ByteBuffer data;
+
+    /**
+     * Read an array from the position of the buffer.
+     * @param name the name of the array, for error messages
+     * @param buffer the buffer holding the .npy file
+     * @return the NpyArray
+     * @throws IllegalArgumentException when the buffer doesn't hold a .npy array of a supported type
+     */
+    static NpyArray read(String name, ByteBuffer buffer) {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        for (byte b : MAGIC) {
+            if (!in.hasRemaining() || in.get() != b) {
+                throw new IllegalArgumentException(String.format("'%s' is not a .npy array", name));
+            }
+        }
+
+        int major = in.get() & 0xff;
+        in.get();
+        int headerLength = major == 1 ? in.getShort() & 0xffff : in.getInt();
+        byte[] headerBytes = new byte[headerLength];
+        in.get(headerBytes);
+        String header = new String(headerBytes, major >= 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+        Matcher descr = DESCR.matcher(header);
+        Matcher fortran = FORTRAN.matcher(header);
+        Matcher shapeMatch = SHAPE.matcher(header);
+        if (!descr.find() || !fortran.find() || !shapeMatch.find()) {
+            throw new IllegalArgumentException(String.format("'%s' has an unexpected .npy header: %s", name, header));
+        }
+
+        String[] dims = shapeMatch.group(1).split(",");
+        int rank = 0;
+        int[] shape = new int[dims.length];
+        for (String dim : dims) {
+            if (!dim.trim().isEmpty()) {
+                shape[rank++] = Integer.parseInt(dim.trim());
+            }
+        }
+        shape = java.util.Arrays.copyOf(shape, rank);
+        if (fortran.group(1).equals("True") && rank > 1) {
+            throw new IllegalArgumentException(String.format("'%s' is in Fortran order, save it in C order", name));
+        }
+
+        char kind = descr.group(2).charAt(0);
+        int itemSize = Integer.parseInt(descr.group(3));
+        if ("iufbU".indexOf(kind) < 0 || (kind == 'f' && itemSize != 4 && itemSize != 8)
+                || (kind == 'b' && itemSize != 1)
+                || ((kind == 'i' || kind == 'u') && (Integer.bitCount(itemSize) != 1 || itemSize > 8))) {
+            throw new IllegalArgumentException(String.format("'%s' has unsupported type %s%s%s", name,
+                    descr.group(1), descr.group(2), descr.group(3)));
+        }
+
+        ByteOrder order = descr.group(1).equals(">") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        return new NpyArray(name, kind, itemSize, shape, in.slice().order(order));
+    }
+
+    /**
+     * Private constructor, use {@link #read(String, ByteBuffer)} to create.
+     */
+    private NpyArray(String name, char kind, int itemSize, int[] shape, ByteBuffer data) {
+        this.name = name;
+        this.kind = kind;
+        this.itemSize = itemSize;
+        this.shape = shape;
+        this.data = data;
+
+        long bytes = (long) length() * getElementBytes();
+        if (bytes > data.remaining()) {
+            throw new IllegalArgumentException(String.format("'%s' needs %d bytes of values but has %d",
+                    name, bytes, data.remaining()));
+        }
+    }
+
+    /**
+     * @return the name of the array
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return the sizes of the dimensions of the array
+     */
+    int[] getShape() {
+        return shape.clone();
+    }
+
+    /**
+     * @return the number of values in the array
+     */
+    int length() {
+        long length = 1;
+        for (int dim : shape) {
+            length *= dim;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("'%s' has too many values", name));
+        }
+        return (int) length;
+    }
+
+    /**
+     * @return true when the array holds integers or booleans
+     */
+    boolean isIntegral() {
+        return kind == 'i' || kind == 'u' || kind == 'b';
+    }
+
+    /**
+     * @return true when the array holds strings
+     */
+    boolean isString() {
+        return kind == 'U';
+    }
+
+    private int getElementBytes() {
+        // the size of a unicode type is in characters, of 4 bytes each
+        return kind == 'U' ? itemSize * 4 : itemSize;
+    }
+
+    /**
+     * Get a value as a long.
+     * @param index the index of the value in C order
+     * @return the value
+     */
+    long getLong(int index) {
+        int offset = index * itemSize;
+        switch (kind) {
+            case 'b':
+                return data.get(offset) != 0 ? 1 : 0;
+            case 'i':
+                switch (itemSize) {
+                    case 1: return data.get(offset);
+                    case 2: return data.getShort(offset);
+                    case 4: return data.getInt(offset);
+                    default: return data.getLong(offset);
+                }
+            case 'u':
+                switch (itemSize) {
+                    case 1: return data.get(offset) & 0xffL;
+                    case 2: return data.getShort(offset) & 0xffffL;
+                    case 4: return data.getInt(offset) & 0xffffffffL;
+                    default: return data.getLong(offset);
+                }
+            case 'f':
+                return (long) getDouble(index);
+            default:
+                throw new IllegalArgumentException(String.format("'%s' holds strings, not numbers", name));
+        }
+    }
+
+    /**
+     * Get a value as a double.
+     * @param index the index of the value in C order
+     * @return the value
+     */
+    double getDouble(int index) {
+        if (kind == 'f') {
+            int offset = index * itemSize;
+            return itemSize == 4 ? data.getFloat(offset) : data.getDouble(offset);
+        }
+        return getLong(index);
+    }
+
+    /**
+     * Get a value as it would be printed by Python, which is how export_text prints the labels
+     * of the classes.
+     * @param index the index of the value in C order
+     * @return the text of the value
+     */
+    String getString(int index) {
+        switch (kind) {
+            case 'U':
+                StringBuilder text = new StringBuilder();
+                int offset = index * getElementBytes();
+                for (int c = 0; c < itemSize; c++) {
+                    int codePoint = data.getInt(offset + c * 4);
+                    if (codePoint == 0) {
+                        break;
+                    }
+                    text.appendCodePoint(codePoint);
+                }
+                return text.toString();
+            case 'b':
+                return getLong(index) != 0 ? "True" : "False";
+            case 'f':
+                return Double.toString(getDouble(index));
+            default:
+                return Long.toString(getLong(index));
+        }
+    }
+
+    /**
+     * Copy the values into an int array.
+     * @return the values
+     * @throws IllegalArgumentException when a value is not an int
+     */
+    int[] toIntArray() {
+        int[] values = new int[length()];
+        for (int i = 0; i < values.length; i++) {
+            long value = getLong(i);
+            if (value != (int) value || kind == 'f' && getDouble(i) != value) {
+                throw new IllegalArgumentException(String.format("'%s' has value %s at %d which is not an int",
+                        name, getString(i), i));
+            }
+            values[i] = (int) value;
+        }
+        return values;
+    }
+
+    /**
+     * Copy the values into a double array.
+     * @return the values
+     */
+    double[] toDoubleArray() {
+        double[] values = new double[length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getDouble(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,232 @@
+package rocks.vilaverde.classifier.dt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads fitted sklearn trees from the arrays of their {@code tree_} attribute saved with NumPy,
+ * which skips exporting and parsing text. A tree is a directory of {@code .npy} files or an
+ * {@code .npz} archive holding:
+ * <ul>
+ *     <li>{@code children_left}, {@code children_right}, {@code feature} and {@code threshold}</li>
+ *     <li>{@code value}, of shape (nodes, 1, classes)</li>
+ *     <li>optionally {@code weighted_n_node_samples}, to turn the fractions sklearn 1.4 and later
+ *     store in {@code value} back into sample weights</li>
+ *     <li>optionally {@code feature_names}, the {@code feature_names_in_} of the model, otherwise
+ *     the features are named feature_0, feature_1, ... as export_text names them</li>
+ *     <li>optionally {@code classes}, the {@code classes_} of the model, otherwise the classes are
+ *     labelled by their index</li>
+ * </ul>
+ * A forest is a directory with a tree for each estimator, taken in the order of their names, and
+ * the {@code feature_names} and {@code classes} shared by the trees at the top. The {@code .npy}
+ * files of a directory are memory mapped and the arrays copied from the mapping straight into the
+ * {@link CompiledTree}; the entries of an {@code .npz} are read into memory first.
+ */
+public final class NumpyTrees {
+
+    private static final String NPY = ".npy";
+    private static final String NPZ = ".npz";
+
+    /**
+     * Read a tree.
+     * @param path a directory of .npy files or an .npz file
+     * @param factory the factory used to convert the class labels to the prediction type
+     * @return the DecisionTreeClassifier
+     * @param <T> the Prediction Class
+     * @throws IOException when the arrays can't be read
+     * @throws IllegalArgumentException when the arrays don't describe a single output classification tree
+     */
+    public static <T> DecisionTreeClassifier<T> read(Path path, PredictionFactory<T> factory) throws IOException {
+        return read(path, Collections.emptyMap(), factory);
+    }
+
+    /**
+     * Read the trees of a forest.
+     * @param directory a directory with a subdirectory or .npz file for every estimator
+     * @param factory the factory used to convert the class labels to the prediction type
+     * @return the trees, in the order of their names
+     * @param <T> the Prediction Class
+     * @throws IOException when the arrays can't be read
+     * @throws IllegalArgumentException when the directory holds no trees or the arrays don't
+     *         describe single output classification trees
+     */
+    public static <T> List<DecisionTreeClassifier<T>> readEstimators(Path directory, PredictionFactory<T> factory)
+            throws IOException {
+        Map<String, NpyArray> shared = readArrays(directory);
+
+        List<Path> estimators;
+        try (Stream<Path> entries = Files.list(directory)) {
+            estimators = entries
+                    .filter(entry -> Files.isDirectory(entry) || entry.getFileName().toString().endsWith(NPZ))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        if (estimators.isEmpty()) {
+            throw new IllegalArgumentException(String.format("'%s' has no estimators", directory));
+        }
+
+        List<DecisionTreeClassifier<T>> trees = new ArrayList<>(estimators.size());
+        for (Path estimator : estimators) {
+            trees.add(read(estimator, shared, factory));
+        }
+        return trees;
+    }
+
+    /**
+     * Check whether a path looks like a tree or forest saved as arrays.
+     * @param path the path
+     * @return true for an .npz file or a directory
+     */
+    public static boolean isNumpy(Path path) {
+        return Files.isDirectory(path) || path.getFileName().toString().endsWith(NPZ);
+    }
+
+    /**
+     * Check whether a directory holds the arrays of a single tree rather than a forest.
+     * @param path the path
+     * @return true for an .npz file or a directory with a children_left.npy
+     */
+    public static boolean isTree(Path path) {
+        return path.getFileName().toString().endsWith(NPZ) || Files.exists(path.resolve("children_left" + NPY));
+    }
+
+    private static <T> DecisionTreeClassifier<T> read(Path path, Map<String, NpyArray> shared,
+                                                      PredictionFactory<T> factory) throws IOException {
+        long start = System.nanoTime();
+        Map<String, NpyArray> arrays = new HashMap<>(shared);
+        arrays.putAll(readArrays(path));
+
+        NpyArray value = require(arrays, "value", path);
+        int[] shape = value.getShape();
+        if (shape.length == 3 && shape[1] != 1) {
+            throw new IllegalArgumentException(String.format("'%s' has %d outputs, only single output trees are supported",
+                    path, shape[1]));
+        }
+        if (shape.length != 2 && shape.length != 3) {
+            throw new IllegalArgumentException(String.format("'%s' value must have shape (nodes, 1, classes)", path));
+        }
+        int classes = shape[shape.length - 1];
+
+        int[] featureIndex = require(arrays, "feature", path).toIntArray();
+        String[] featureNames = featureNames(arrays.get("feature_names"), featureIndex);
+
+        List<T> labels = new ArrayList<>(classes);
+        NpyArray classLabels = arrays.get("classes");
+        if (classLabels != null && classLabels.length() != classes) {
+            throw new IllegalArgumentException(String.format("'%s' has %d classes but values for %d",
+                    path, classLabels.length(), classes));
+        }
+        for (int k = 0; k < classes; k++) {
+            try {
+                labels.add(factory.create(classLabels != null ? classLabels.getString(k) : String.valueOf(k)));
+            } catch (Exception e) {
+                throw new IllegalArgumentException(String.format("'%s' class %d can't be converted", path, k), e);
+            }
+        }
+
+        NpyArray nodeWeight = arrays.get("weighted_n_node_samples");
+        CompiledTree<T> tree = CompiledTree.fromArrays(featureNames,
+                require(arrays, "children_left", path).toIntArray(),
+                require(arrays, "children_right", path).toIntArray(),
+                featureIndex,
+                require(arrays, "threshold", path).toDoubleArray(),
+                value.toDoubleArray(),
+                nodeWeight != null ? nodeWeight.toDoubleArray() : null,
+                labels);
+
+        return DecisionTreeClassifier.of(tree, factory, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    /**
+     * Name the features from the feature_names array, or the way export_text does without one.
+     */
+    private static String[] featureNames(NpyArray names, int[] featureIndex) {
+        if (names != null) {
+            String[] result = new String[names.length()];
+            for (int f = 0; f < result.length; f++) {
+                result[f] = names.getString(f);
+            }
+            return result;
+        }
+
+        int count = 0;
+        for (int f : featureIndex) {
+            count = Math.max(count, f + 1);
+        }
+        String[] result = new String[count];
+        for (int f = 0; f < count; f++) {
+            result[f] = "feature_" + f;
+        }
+        return result;
+    }
+
+    private static NpyArray require(Map<String, NpyArray> arrays, String name, Path path) {
+        NpyArray array = arrays.get(name);
+        if (array == null) {
+            throw new IllegalArgumentException(String.format("'%s' has no %s array", path, name));
+        }
+        return array;
+    }
+
+    /**
+     * Read the arrays of a directory or .npz file by name, without the .npy extension.
+     */
+    private static Map<String, NpyArray> readArrays(Path path) throws IOException {
+        Map<String, NpyArray> arrays = new HashMap<>();
+
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> entries = Files.list(path)) {
+                for (Path file : (Iterable<Path>) entries::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(NPY) && Files.isRegularFile(file)) {
+                        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                            // the mapping stays valid after the channel is closed
+                            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                            arrays.put(arrayName(name), NpyArray.read(file.toString(), buffer));
+                        }
+                    }
+                }
+            }
+        } else {
+            try (ZipFile zip = new ZipFile(path.toFile())) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.getName().endsWith(NPY)) {
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            ByteBuffer buffer = ByteBuffer.wrap(in.readAllBytes());
+                            arrays.put(arrayName(entry.getName()), NpyArray.read(path + ":" + entry.getName(), buffer));
+                        }
+                    }
+                }
+            }
+        }
+        return arrays;
+    }
+
+    private static String arrayName(String fileName) {
+        return fileName.substring(0, fileName.length() - NPY.length());
+    }
+
+    /**
+     * Private constructor, only static methods.
+     */
+    private NumpyTrees() {
+    }
+}
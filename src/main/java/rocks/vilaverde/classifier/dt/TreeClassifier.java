@@ -1,9 +1,13 @@
 package rocks.vilaverde.classifier.dt;
 
 import rocks.vilaverde.classifier.Classifier;
+import rocks.vilaverde.classifier.FeatureMatrix;
 import rocks.vilaverde.classifier.FeatureVector;
 import rocks.vilaverde.classifier.Prediction;
 
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
 /**
  * Implemented by Tree classifiers.
  */
@@ -15,4 +19,52 @@ public interface TreeClassifier<T> extends Classifier<T> {
      * @return a Prediction
      */
     Prediction<T> getClassification(FeatureVector features);
+
+    /**
+     * Get the number of classes in the probabilities predicted by this model.
+     * @return the number of classes, or 0 when the model was not exported with weights
+     * @throws UnsupportedOperationException when the implementation doesn't know its classes
+     */
+    default int getClassCount() {
+        throw new UnsupportedOperationException(String.format("%s doesn't report its class count",
+                getClass().getName()));
+    }
+
+    /**
+     * Predict the class of every row of the matrix, without copying the rows. For each row
+     * the index of the class {@link #predict(FeatureVector...)} predicts is written to the
+     * buffer, the same index as used in the arrays of {@link #predict_proba(FeatureVector...)}.
+     * The default predicts the probabilities of one row at a time and picks the most probable
+     * class, the lowest index when classes tie.
+     * @param rows the samples
+     * @param out receives one class index per row starting at its position, which is advanced
+     */
+    default void predict(FeatureMatrix rows, IntBuffer out) {
+        if (rows.getRowCount() > out.remaining()) {
+            throw new IllegalArgumentException(String.format("output needs room for %d values but has %d",
+                    rows.getRowCount(), out.remaining()));
+        }
+        for (int row = 0; row < rows.getRowCount(); row++) {
+            double[] probability = predict_proba(rows.getRow(row))[0];
+            out.put(CompiledTree.argMax(probability, 0, probability.length));
+        }
+    }
+
+    /**
+     * Predict the class probabilities of every row of the matrix, without copying the rows.
+     * The probabilities of each row are written one after the other. The default predicts the
+     * probabilities of one row at a time.
+     * @param rows the samples
+     * @param out receives the class probabilities of the rows starting at its position, which is advanced
+     */
+    default void predict_proba(FeatureMatrix rows, DoubleBuffer out) {
+        for (int row = 0; row < rows.getRowCount(); row++) {
+            double[] probability = predict_proba(rows.getRow(row))[0];
+            if (row == 0 && (long) rows.getRowCount() * probability.length > out.remaining()) {
+                throw new IllegalArgumentException(String.format("output needs room for %d values but has %d",
+                        (long) rows.getRowCount() * probability.length, out.remaining()));
+            }
+            out.put(probability);
+        }
+    }
 }
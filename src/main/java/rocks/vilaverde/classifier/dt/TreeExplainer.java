@@ -0,0 +1,367 @@
+package rocks.vilaverde.classifier.dt;
+
+import rocks.vilaverde.classifier.FeatureMatrix;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Features;
+import rocks.vilaverde.classifier.util.RowSlices;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Explains the class probabilities predicted by a tree, or the average of a forest of trees, with
+ * SHAP values computed by the polynomial time TreeSHAP algorithm (Lundberg et al., "Consistent
+ * Individualized Feature Attribution for Tree Ensembles", algorithm 2). The weights of the leaves
+ * give the cover of every node, so the trees must have been exported with show_weights=True.
+ * <p>
+ * The SHAP values of a sample are written as {@code (features + 1) x classes} doubles: for each
+ * feature of the {@link Features} of the sample the contribution to every class, followed by the
+ * expected value of every class. The values of a sample add up to its predicted probabilities.
+ */
+public final class TreeExplainer {
+
+  private final Tree[] trees;
+  private final int classes;
+  private final double[] expectedValue;
+  private final int maxDepth;
+
+  /**
+   * Create an explainer for the average of the trees.
+   * @param trees the compiled trees, exported with weights
+   * @return the TreeExplainer
+   * @throws IllegalStateException when the trees were not exported with weights
+   */
+  public static TreeExplainer create(List<? extends CompiledTree<?>> trees) {
+    if (trees.isEmpty()) {
+      throw new IllegalArgumentException("no trees to explain");
+    }
+    return new TreeExplainer(trees);
+  }
+
+  /**
+   * Private constructor, use {@link #create(List)} to create.
+   */
+  private TreeExplainer(List<? extends CompiledTree<?>> compiled) {
+    this.classes = compiled.get(0).getClassCount();
+    this.trees = new Tree[compiled.size()];
+    this.expectedValue = new double[classes];
+
+    int depth = 0;
+    for (int t = 0; t < trees.length; t++) {
+      CompiledTree<?> tree = compiled.get(t);
+      if (tree.getClassCount() != classes) {
+        throw new IllegalArgumentException(String.format("tree %d has %d classes but expected %d",
+                t, tree.getClassCount(), classes));
+      }
+      trees[t] = new Tree(tree, 1.0 / compiled.size());
+      depth = Math.max(depth, trees[t].depth);
+
+      for (int k = 0; k < classes; k++) {
+        expectedValue[k] += trees[t].expectedValue[k];
+      }
+    }
+    this.maxDepth = depth;
+  }
+
+  /**
+   * @return the number of classes in the explanations
+   */
+  public int getClassCount() {
+    return classes;
+  }
+
+  /**
+   * Get the expected value of the probability of each class over the training samples, which
+   * is the explanation of a sample when no features are known.
+   * @return the expected probabilities
+   */
+  public double[] getExpectedValue() {
+    return expectedValue.clone();
+  }
+
+  /**
+   * Get the number of doubles in the explanation of one sample with the features.
+   * @param features the features of the samples
+   * @return the length of one explanation
+   */
+  public int getOutputLength(Features features) {
+    return (features.getLength() + 1) * classes;
+  }
+
+  /**
+   * Explain the probabilities predicted for the sample.
+   * @param sample the sample
+   * @param out receives the SHAP values of the sample, overwriting {@link #getOutputLength(Features)}
+   *            doubles from the offset
+   * @param offset the index in out of the first value
+   */
+  public void shap_values(FeatureVector sample, double[] out, int offset) {
+    int[][] columns = bind(sample.getFeatures());
+    Arrays.fill(out, offset, offset + getOutputLength(sample.getFeatures()), 0.0);
+    explain(sample::get, columns, new Path(maxDepth), out, offset, sample.getFeatures().getLength());
+  }
+
+  /**
+   * Explain the probabilities predicted for every row of the matrix.
+   * @param rows the samples
+   * @param out receives the SHAP values of the rows one after the other
+   */
+  public void shap_values(FeatureMatrix rows, double[] out) {
+    shap_values(rows, out, null);
+  }
+
+  /**
+   * Explain the probabilities predicted for every row of the matrix, splitting the rows into
+   * slices that are explained in parallel.
+   * @param rows the samples
+   * @param out receives the SHAP values of the rows one after the other
+   * @param executor the executor to explain on, or null for the current thread
+   */
+  public void shap_values(FeatureMatrix rows, double[] out, ExecutorService executor) {
+    final int length = getOutputLength(rows.getFeatures());
+    final int featureCount = rows.getFeatures().getLength();
+    if ((long) rows.getRowCount() * length > out.length) {
+      throw new IllegalArgumentException(String.format("output needs room for %d values but has %d",
+              (long) rows.getRowCount() * length, out.length));
+    }
+
+    final int[][] columns = bind(rows.getFeatures());
+    RowSlices.run(executor, rows.getRowCount(), (start, end) -> {
+      Path path = new Path(maxDepth);
+      for (int row = start; row < end; row++) {
+        final int r = row;
+        Arrays.fill(out, row * length, (row + 1) * length, 0.0);
+        explain(column -> rows.get(r, column), columns, path, out, row * length, featureCount);
+      }
+    });
+  }
+
+  private int[][] bind(Features features) {
+    int[][] columns = new int[trees.length][];
+    for (int t = 0; t < trees.length; t++) {
+      columns[t] = trees[t].tree.bind(features);
+    }
+    return columns;
+  }
+
+  private void explain(Values values, int[][] columns, Path path, double[] out, int offset, int featureCount) {
+    for (int t = 0; t < trees.length; t++) {
+      recurse(trees[t], columns[t], values, 0, path, 0, 0, 1.0, 1.0, -1, out, offset);
+    }
+
+    int bias = offset + featureCount * classes;
+    for (int k = 0; k < classes; k++) {
+      out[bias + k] = expectedValue[k];
+    }
+  }
+
+  /**
+   * Walk every path of the tree, tracking the proportion of the subsets of the features on the
+   * path that flow down it, and add the contribution of each feature at the leaves.
+   * @param start the index in the path arrays of the path of the parent
+   * @param depth the number of features in the path of the parent
+   */
+  private void recurse(Tree t, int[] columns, Values values, int slot, Path path, int start, int depth,
+                       double zeroFraction, double oneFraction, int feature, double[] out, int offset) {
+    // each node works on its own copy of the path
+    int path0 = start + depth + 1;
+    path.copy(start, path0, depth + 1);
+    path.extend(path0, depth, zeroFraction, oneFraction, feature);
+
+    CompiledTree<?> tree = t.tree;
+    if (tree.isLeaf(slot)) {
+      for (int i = 1; i <= depth; i++) {
+        double w = path.unwoundSum(path0, depth, i);
+        int p = path0 + i;
+        double scale = w * (path.one[p] - path.zero[p]);
+        int target = offset + columns[path.feature[p]] * classes;
+        int leaf = slot * classes;
+        for (int k = 0; k < classes; k++) {
+          out[target + k] += scale * t.value[leaf + k];
+        }
+      }
+      return;
+    }
+
+    int split = tree.getFeature(slot);
+    double value = values.get(columns[split]);
+    if (Double.isNaN(value)) {
+      throw new RuntimeException(String.format("no branches evaluated to true for feature '%s'",
+              tree.getFeatureName(split)));
+    }
+
+    int left = tree.getLeftChild(slot);
+    int right = tree.getRightChild(slot);
+    int hot = tree.goesLeft(value, slot) ? left : right;
+    int cold = hot == left ? right : left;
+
+    double hotZeroFraction = t.cover[hot] / t.cover[slot];
+    double coldZeroFraction = t.cover[cold] / t.cover[slot];
+    double incomingZeroFraction = 1.0;
+    double incomingOneFraction = 1.0;
+
+    // a feature already on the path is undone, so it only appears once
+    int index = 0;
+    while (index <= depth && path.feature[path0 + index] != split) {
+      index++;
+    }
+    if (index <= depth) {
+      incomingZeroFraction = path.zero[path0 + index];
+      incomingOneFraction = path.one[path0 + index];
+      path.unwind(path0, depth, index);
+      depth--;
+    }
+
+    recurse(t, columns, values, hot, path, path0, depth + 1,
+            hotZeroFraction * incomingZeroFraction, incomingOneFraction, split, out, offset);
+    recurse(t, columns, values, cold, path, path0, depth + 1,
+            coldZeroFraction * incomingZeroFraction, 0.0, split, out, offset);
+  }
+
+  /**
+   * Reads the value of a column of a sample.
+   */
+  @FunctionalInterface
+  private interface Values {
+    double get(int column);
+  }
+
+  /**
+   * A compiled tree with the cover of every node and the weighted probabilities of the leaves.
+   */
+  private static final class Tree {
+    private final CompiledTree<?> tree;
+    private final double[] cover;
+    private final double[] value;
+    private final double[] expectedValue;
+    private final int depth;
+
+    private Tree(CompiledTree<?> tree, double weight) {
+      int classes = tree.getClassCount();
+      if (classes == 0) {
+        throw new IllegalStateException("model was not exported with weights, can't calculate cover");
+      }
+
+      this.tree = tree;
+      this.cover = new double[tree.getNodeCount()];
+      this.value = new double[tree.getNodeCount() * classes];
+      this.expectedValue = new double[classes];
+      this.depth = fill(0, classes, weight);
+
+      for (int k = 0; k < classes; k++) {
+        expectedValue[k] /= cover[0];
+      }
+    }
+
+    /**
+     * Fill the cover of the subtree and the values of its leaves.
+     * @return the depth of the subtree
+     */
+    private int fill(int slot, int classes, double weight) {
+      if (tree.isLeaf(slot)) {
+        cover[slot] = ((EndNode.WeightedEndNode<?>) tree.getLeaf(slot)).getWeight();
+        tree.addProbability(slot, value, slot * classes);
+        for (int k = 0; k < classes; k++) {
+          value[slot * classes + k] *= weight;
+          expectedValue[k] += cover[slot] * value[slot * classes + k];
+        }
+        return 0;
+      }
+
+      int left = fill(tree.getLeftChild(slot), classes, weight);
+      int right = fill(tree.getRightChild(slot), classes, weight);
+      cover[slot] = cover[tree.getLeftChild(slot)] + cover[tree.getRightChild(slot)];
+      return Math.max(left, right) + 1;
+    }
+  }
+
+  /**
+   * The stack of paths of the nodes being visited, one path after the other in parallel arrays.
+   */
+  private static final class Path {
+    private final int[] feature;
+    private final double[] zero;
+    private final double[] one;
+    private final double[] weight;
+
+    private Path(int maxDepth) {
+      int length = (maxDepth + 2) * (maxDepth + 3) / 2 + 1;
+      this.feature = new int[length];
+      this.zero = new double[length];
+      this.one = new double[length];
+      this.weight = new double[length];
+    }
+
+    private void copy(int from, int to, int length) {
+      System.arraycopy(feature, from, feature, to, length);
+      System.arraycopy(zero, from, zero, to, length);
+      System.arraycopy(one, from, one, to, length);
+      System.arraycopy(weight, from, weight, to, length);
+    }
+
+    /**
+     * Add a feature to the path, updating the proportions of the subsets of every size.
+     */
+    private void extend(int p, int depth, double zeroFraction, double oneFraction, int featureIndex) {
+      feature[p + depth] = featureIndex;
+      zero[p + depth] = zeroFraction;
+      one[p + depth] = oneFraction;
+      weight[p + depth] = depth == 0 ? 1.0 : 0.0;
+
+      for (int i = depth - 1; i >= 0; i--) {
+        weight[p + i + 1] += oneFraction * weight[p + i] * (i + 1) / (double) (depth + 1);
+        weight[p + i] = zeroFraction * weight[p + i] * (depth - i) / (double) (depth + 1);
+      }
+    }
+
+    /**
+     * Remove the feature at the index from the path, the inverse of {@link #extend}.
+     */
+    private void unwind(int p, int depth, int index) {
+      double oneFraction = one[p + index];
+      double zeroFraction = zero[p + index];
+      double nextOnePortion = weight[p + depth];
+
+      for (int i = depth - 1; i >= 0; i--) {
+        if (oneFraction != 0) {
+          double tmp = weight[p + i];
+          weight[p + i] = nextOnePortion * (depth + 1) / ((i + 1) * oneFraction);
+          nextOnePortion = tmp - weight[p + i] * zeroFraction * (depth - i) / (double) (depth + 1);
+        } else {
+          weight[p + i] = weight[p + i] * (depth + 1) / (zeroFraction * (depth - i));
+        }
+      }
+
+      for (int i = index; i < depth; i++) {
+        feature[p + i] = feature[p + i + 1];
+        zero[p + i] = zero[p + i + 1];
+        one[p + i] = one[p + i + 1];
+      }
+    }
+
+    /**
+     * The total weight of the path if the feature at the index was unwound, without changing it.
+     */
+    private double unwoundSum(int p, int depth, int index) {
+      double oneFraction = one[p + index];
+      double zeroFraction = zero[p + index];
+      double nextOnePortion = weight[p + depth];
+      double total = 0;
+
+      if (oneFraction != 0) {
+        for (int i = depth - 1; i >= 0; i--) {
+          double tmp = nextOnePortion / ((i + 1) * oneFraction);
+          total += tmp;
+          nextOnePortion = weight[p + i] - tmp * zeroFraction * (depth - i);
+        }
+      } else {
+        for (int i = depth - 1; i >= 0; i--) {
+          total += weight[p + i] / (zeroFraction * (depth - i));
+        }
+      }
+
+      return total * (depth + 1);
+    }
+  }
+}
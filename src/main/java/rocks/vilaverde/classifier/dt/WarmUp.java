@@ -0,0 +1,255 @@
+package rocks.vilaverde.classifier.dt;
+
+import rocks.vilaverde.classifier.FeatureMatrix;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Features;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Warms up the prediction code of a freshly loaded model, so the first real predictions don't pay
+ * for running interpreted while the JIT compiles the traversal. Samples are synthesized from the
+ * thresholds of the splits of the trees: for every leaf a sample takes the values that lead down
+ * the path to it, so every branch of every tree is taken, while the features not on the path take
+ * values on either side of one of their thresholds at random.
+ * <p>
+ * The samples are predicted in rounds, through both the {@link FeatureVector} and the
+ * {@link FeatureMatrix} paths of the model, until the time per row of the last rounds stops
+ * improving or the time budget is spent.
+ */
+public final class WarmUp {
+
+    /** The most samples synthesized, one per leaf taken from the trees in turn. */
+    static final int MAX_SAMPLES = 4096;
+
+    /** The number of consecutive rounds that must be within {@link #SETTLED_SPREAD} of each other. */
+    private static final int SETTLED_ROUNDS = 3;
+    private static final double SETTLED_SPREAD = 0.10;
+    private static final int MIN_ROUNDS = 5;
+
+    /* keeps the results of the predictions alive so they are not optimized away */
+    private static volatile double sink;
+
+    /**
+     * Warm up the prediction code of a model.
+     * @param model the model
+     * @param trees the compiled trees of the model, read for the thresholds of their splits
+     * @param budget the most time to spend
+     * @return a report of what was run
+     */
+    public static WarmUpReport run(TreeClassifier<?> model, List<? extends CompiledTree<?>> trees, Duration budget) {
+        if (budget.isNegative()) {
+            throw new IllegalArgumentException("budget must not be negative");
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + budget.toNanos();
+
+        Synthesized synthesized = synthesize(trees);
+        FeatureVector[] samples = synthesized.samples;
+        int width = synthesized.features.getLength();
+        double[] values = new double[samples.length * width];
+        for (int row = 0; row < samples.length; row++) {
+            for (int f = 0; f < width; f++) {
+                values[row * width + f] = samples[row].get(f);
+            }
+        }
+        FeatureMatrix matrix = FeatureMatrix.wrap(synthesized.features, values, 0, samples.length, width, 1);
+        int classes = model.getClassCount();
+        DoubleBuffer probabilities = classes > 0 ? DoubleBuffer.allocate(samples.length * classes) : null;
+        IntBuffer predicted = classes > 0 ? IntBuffer.allocate(samples.length) : null;
+
+        List<Double> nanosPerRow = new ArrayList<>();
+        long predictions = 0;
+        boolean settled = false;
+        while (samples.length > 0 && System.nanoTime() < deadline && !settled) {
+            long round = System.nanoTime();
+            double sum = 0;
+
+            sum += model.predict(samples).size();
+            if (classes > 0) {
+                double[][] single = model.predict_proba(samples);
+                sum += single[single.length - 1][0];
+
+                probabilities.clear();
+                model.predict_proba(matrix, probabilities);
+                predicted.clear();
+                model.predict(matrix, predicted);
+                sum += probabilities.get(0) + predicted.get(0);
+            }
+            sink += sum;
+
+            int paths = classes > 0 ? 4 : 1;
+            predictions += (long) paths * samples.length;
+            nanosPerRow.add((System.nanoTime() - round) / (double) (paths * samples.length));
+            settled = isSettled(nanosPerRow);
+        }
+
+        return new WarmUpReport(samples.length, synthesized.leavesCovered, synthesized.leafCount,
+                nanosPerRow.size(), predictions, settled, Duration.ofNanos(System.nanoTime() - start),
+                nanosPerRow.isEmpty() ? 0 : nanosPerRow.get(0),
+                nanosPerRow.isEmpty() ? 0 : nanosPerRow.get(nanosPerRow.size() - 1));
+    }
+
+    private static boolean isSettled(List<Double> nanosPerRow) {
+        if (nanosPerRow.size() < MIN_ROUNDS) {
+            return false;
+        }
+
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (int i = nanosPerRow.size() - SETTLED_ROUNDS; i < nanosPerRow.size(); i++) {
+            min = Math.min(min, nanosPerRow.get(i));
+            max = Math.max(max, nanosPerRow.get(i));
+        }
+        return max <= min * (1 + SETTLED_SPREAD);
+    }
+
+    /**
+     * Synthesize a sample for each leaf of the trees, up to {@link #MAX_SAMPLES}.
+     */
+    static Synthesized synthesize(List<? extends CompiledTree<?>> trees) {
+        // the thresholds of every feature, across all the trees
+        Map<String, TreeMap<Double, Double>> thresholds = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        int leafCount = 0;
+        for (CompiledTree<?> tree : trees) {
+            for (int slot = 0; slot < tree.getNodeCount(); slot++) {
+                if (tree.isLeaf(slot)) {
+                    leafCount++;
+                    continue;
+                }
+                String name = tree.getFeatureName(tree.getFeature(slot));
+                thresholds.computeIfAbsent(name, key -> {
+                    names.add(key);
+                    return new TreeMap<>();
+                }).merge(tree.getThreshold(slot), tree.getRightBound(slot), Math::max);
+            }
+        }
+
+        Features features = Features.of(names.toArray(new String[0]));
+        double[][] sides = new double[names.size()][];
+        for (int f = 0; f < sides.length; f++) {
+            TreeMap<Double, Double> bounds = thresholds.get(names.get(f));
+            sides[f] = new double[bounds.size() * 2];
+            int i = 0;
+            for (Map.Entry<Double, Double> bound : bounds.entrySet()) {
+                sides[f][i++] = bound.getKey();
+                sides[f][i++] = bound.getValue();
+            }
+        }
+
+        // the leaves of each tree, taken in turn so a large forest still has samples for every tree
+        List<int[]> leaves = new ArrayList<>();
+        List<int[]> parents = new ArrayList<>();
+        for (CompiledTree<?> tree : trees) {
+            parents.add(parents(tree));
+            int[] slots = new int[tree.getNodeCount()];
+            int count = 0;
+            for (int slot = 0; slot < tree.getNodeCount(); slot++) {
+                if (tree.isLeaf(slot)) {
+                    slots[count++] = slot;
+                }
+            }
+            leaves.add(Arrays.copyOf(slots, count));
+        }
+
+        Random random = new Random(leafCount);
+        List<FeatureVector> samples = new ArrayList<>();
+        int covered = 0;
+        for (int i = 0; samples.size() < MAX_SAMPLES; i++) {
+            boolean any = false;
+            for (int t = 0; t < trees.size() && samples.size() < MAX_SAMPLES; t++) {
+                if (i >= leaves.get(t).length) {
+                    continue;
+                }
+                any = true;
+
+                FeatureVector sample = new FeatureVector(features);
+                for (int f = 0; f < sides.length; f++) {
+                    sample.add(f, sides[f][random.nextInt(sides[f].length)]);
+                }
+
+                CompiledTree<?> tree = trees.get(t);
+                int leaf = leaves.get(t)[i];
+                constrain(tree, parents.get(t), leaf, sample, features);
+                if (tree.findLeaf(sample) == leaf) {
+                    covered++;
+                }
+                samples.add(sample);
+            }
+            if (!any) {
+                break;
+            }
+        }
+
+        return new Synthesized(features, samples.toArray(new FeatureVector[0]), covered, leafCount);
+    }
+
+    /**
+     * Set the values of the features on the path from the root down to a leaf so the sample
+     * follows the path.
+     * @param parents the parent of every slot, -1 for the root
+     */
+    private static void constrain(CompiledTree<?> tree, int[] parents, int leaf, FeatureVector sample,
+                                     Features features) {
+        int[] path = new int[tree.getNodeCount()];
+        int length = 0;
+        for (int slot = leaf; slot >= 0; slot = parents[slot]) {
+            path[length++] = slot;
+        }
+
+        // from the root down, each split narrows the value left by the splits above it
+        for (int i = length - 1; i > 0; i--) {
+            int split = path[i];
+            int f = features.getFeatureIndex(tree.getFeatureName(tree.getFeature(split)));
+            double threshold = tree.getThreshold(split);
+            if (tree.getLeftChild(split) == path[i - 1]) {
+                sample.add(f, Math.min(sample.get(f), threshold));
+            } else {
+                sample.add(f, Math.max(sample.get(f), tree.getRightBound(split)));
+            }
+        }
+    }
+
+    private static int[] parents(CompiledTree<?> tree) {
+        int[] parents = new int[tree.getNodeCount()];
+        parents[0] = -1;
+        for (int slot = 0; slot < parents.length; slot++) {
+            if (!tree.isLeaf(slot)) {
+                parents[tree.getLeftChild(slot)] = slot;
+                parents[tree.getRightChild(slot)] = slot;
+            }
+        }
+        return parents;
+    }
+
+    /**
+     * The synthesized samples.
+     */
+    static final class Synthesized {
+        final Features features;
+        final FeatureVector[] samples;
+        final int leavesCovered;
+        final int leafCount;
+
+        private Synthesized(Features features, FeatureVector[] samples, int leavesCovered, int leafCount) {
+            this.features = features;
+            this.samples = samples;
+            this.leavesCovered = leavesCovered;
+            this.leafCount = leafCount;
+        }
+    }
+
+    private WarmUp() {
+    }
+}
@@ -0,0 +1,106 @@
+package rocks.vilaverde.classifier.dt;
+
+import java.time.Duration;
+
+/**
+ * What a {@link WarmUp} of a model ran.
+ */
+public final class WarmUpReport {
+
+    private final int samples;
+    private final int leavesCovered;
+    private final int leafCount;
+    private final int rounds;
+    private final long predictions;
+    private final boolean settled;
+    private final Duration elapsed;
+    private final double firstNanosPerRow;
+    private final double lastNanosPerRow;
+
+    WarmUpReport(int samples, int leavesCovered, int leafCount, int rounds, long predictions,
+                 boolean settled, Duration elapsed, double firstNanosPerRow, double lastNanosPerRow) {
+        this.samples = samples;
+        this.leavesCovered = leavesCovered;
+        this.leafCount = leafCount;
+        this.rounds = rounds;
+        this.predictions = predictions;
+        this.settled = settled;
+        this.elapsed = elapsed;
+        this.firstNanosPerRow = firstNanosPerRow;
+        this.lastNanosPerRow = lastNanosPerRow;
+    }
+
+    /**
+     * @return the number of samples synthesized
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * Get the number of leaves, across all the trees, reached by the sample synthesized for them.
+     * Every branch on the path to such a leaf was taken.
+     * @return the number of leaves
+     */
+    public int getLeavesCovered() {
+        return leavesCovered;
+    }
+
+    /**
+     * @return the number of leaves of all the trees
+     */
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * @return the number of times the samples were predicted
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return the number of rows predicted, counting each prediction path separately
+     */
+    public long getPredictions() {
+        return predictions;
+    }
+
+    /**
+     * Returns true when the time per row stopped changing before the budget was spent.
+     * @return boolean
+     */
+    public boolean isSettled() {
+        return settled;
+    }
+
+    /**
+     * @return the time spent, including synthesizing the samples
+     */
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return the average time per row of the first round, in nanoseconds
+     */
+    public double getFirstNanosPerRow() {
+        return firstNanosPerRow;
+    }
+
+    /**
+     * @return the average time per row of the last round, in nanoseconds
+     */
+    public double getLastNanosPerRow() {
+        return lastNanosPerRow;
+    }
+
+    @Override
+    public String toString() {
+        return "WarmUpReport{" + "samples=" + samples + ", leavesCovered=" + leavesCovered + "/" + leafCount
+                + ", rounds=" + rounds + ", predictions=" + predictions + ", settled=" + settled
+                + ", elapsed=" + elapsed + String.format(", nanosPerRow=%.1f->%.1f", firstNanosPerRow,
+                lastNanosPerRow) + '}';
+    }
+}
@@ -0,0 +1,95 @@
+package rocks.vilaverde.classifier.dt.visitors;
+
+import rocks.vilaverde.classifier.dt.AbstractDecisionTreeVisitor;
+import rocks.vilaverde.classifier.dt.DecisionNode;
+import rocks.vilaverde.classifier.dt.EndNode;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Visitor that will use Depth first traversal to count the nodes of the exported
+ * DecisionTreeClassifier model, the depth of its leaves and the number of splits on
+ * each feature.
+ */
+public class StatisticsVisitor extends AbstractDecisionTreeVisitor {
+
+  private final Map<String, Integer> featureUsage = new TreeMap<>();
+  private final Set<Object> labels = new HashSet<>();
+  private int depth;
+  private int splits;
+  private int leaves;
+  private int maxDepth;
+  private long depthSum;
+
+  /**
+   * Visit a {@link DecisionNode}, counting the split on its feature before visiting the
+   * choices one level deeper.
+   * @param object the {@link DecisionNode} being visited.
+   */
+  @Override
+  public void visit(DecisionNode object) {
+    splits++;
+    featureUsage.merge(object.getFeatureName(), 1, Integer::sum);
+
+    depth++;
+    super.visit(object);
+    depth--;
+  }
+
+  /**
+   * Visit an {@link EndNode}, counting the leaf at the current depth.
+   * @param object the {@link EndNode} being visited.
+   */
+  @Override
+  public void visit(EndNode object) {
+    leaves++;
+    depthSum += depth;
+    maxDepth = Math.max(maxDepth, depth);
+    labels.add(object.get());
+  }
+
+  /**
+   * @return the number of splits
+   */
+  public int getSplitCount() {
+    return splits;
+  }
+
+  /**
+   * @return the number of leaves
+   */
+  public int getLeafCount() {
+    return leaves;
+  }
+
+  /**
+   * @return the depth of the deepest leaf, 0 when the root is a leaf
+   */
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * @return the sum of the depths of the leaves
+   */
+  public long getDepthSum() {
+    return depthSum;
+  }
+
+  /**
+   * @return the number of splits on each feature, by feature name
+   */
+  public Map<String, Integer> getFeatureUsage() {
+    return featureUsage;
+  }
+
+  /**
+   * @return the number of distinct classes predicted by the leaves
+   */
+  public int getLabelCount() {
+    return labels.size();
+  }
+}
@@ -0,0 +1,116 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import java.util.Arrays;
+
+/**
+ * The subset of trees {@link ForestDistiller} selected from a forest, with how closely it follows
+ * the forest on the samples and how much faster it is.
+ * @param <T> the Prediction Class
+ */
+public final class DistillationReport<T> {
+    private final RandomForestClassifier<T> forest;
+    private final int[] trees;
+    private final int forestTrees;
+    private final int samples;
+    private final double disagreement;
+    private final double probabilityError;
+    private final double maxProbabilityError;
+    private final long forestNanos;
+    private final long subsetNanos;
+
+    DistillationReport(RandomForestClassifier<T> forest, int[] trees, int forestTrees, int samples,
+                       double disagreement, double probabilityError, double maxProbabilityError,
+                       long forestNanos, long subsetNanos) {
+        this.forest = forest;
+        this.trees = trees;
+        this.forestTrees = forestTrees;
+        this.samples = samples;
+        this.disagreement = disagreement;
+        this.probabilityError = probabilityError;
+        this.maxProbabilityError = maxProbabilityError;
+        this.forestNanos = forestNanos;
+        this.subsetNanos = subsetNanos;
+    }
+
+    /**
+     * @return the forest of the selected trees
+     */
+    public RandomForestClassifier<T> getForest() {
+        return forest;
+    }
+
+    /**
+     * @return the indexes of the selected trees in the original forest, in the order of the
+     *         original forest
+     */
+    public int[] getTrees() {
+        return trees.clone();
+    }
+
+    /**
+     * @return the number of trees of the original forest
+     */
+    public int getForestTreeCount() {
+        return forestTrees;
+    }
+
+    /**
+     * @return the number of samples the subset was measured on
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return the fraction of the samples the subset predicts a different class for than the
+     *         original forest
+     */
+    public double getDisagreement() {
+        return disagreement;
+    }
+
+    /**
+     * @return the mean over the samples of the largest difference of a class probability of the
+     *         subset from the original forest
+     */
+    public double getProbabilityError() {
+        return probabilityError;
+    }
+
+    /**
+     * @return the largest difference of a class probability of the subset from the original
+     *         forest over all the samples
+     */
+    public double getMaxProbabilityError() {
+        return maxProbabilityError;
+    }
+
+    /**
+     * @return the time the original forest took to predict the probabilities of the samples
+     */
+    public long getForestNanos() {
+        return forestNanos;
+    }
+
+    /**
+     * @return the time the subset took to predict the probabilities of the samples
+     */
+    public long getSubsetNanos() {
+        return subsetNanos;
+    }
+
+    /**
+     * @return how many times faster the subset predicts than the original forest
+     */
+    public double getSpeedup() {
+        return (double) forestNanos / Math.max(1, subsetNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "DistillationReport{" + "trees=" + trees.length + "/" + forestTrees + ", samples=" + samples
+                + String.format(", disagreement=%.4f, probabilityError=%.4f, maxProbabilityError=%.4f, speedup=%.2f",
+                disagreement, probabilityError, maxProbabilityError, getSpeedup())
+                + ", selected=" + Arrays.toString(trees) + '}';
+    }
+}
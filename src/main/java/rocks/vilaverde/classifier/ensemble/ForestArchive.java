@@ -0,0 +1,184 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rocks.vilaverde.classifier.util.ThrowingFunction;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Reads the trees of an ensemble exported from sklearn as a TAR of export_text() files.
+ */
+final class ForestArchive {
+    private static final Logger LOG = LoggerFactory.getLogger(ForestArchive.class);
+
+    private ForestArchive() {
+    }
+
+    /**
+     * Reads one file of the archive.
+     */
+    @FunctionalInterface
+    interface EntryReader {
+        void read(String name, Reader reader) throws Exception;
+    }
+
+    /**
+     * A tree of the archive with the SHA-256 digest of the file it was parsed from.
+     * @param <M> the tree class
+     */
+    static final class Entry<M> {
+        private final String digest;
+        private final M tree;
+
+        Entry(String digest, M tree) {
+            this.digest = digest;
+            this.tree = tree;
+        }
+
+        String getDigest() {
+            return digest;
+        }
+
+        M getTree() {
+            return tree;
+        }
+    }
+
+    /**
+     * Parse every file in the archive, in the order of the archive, and close it.
+     * @param tar the {@link ArchiveInputStream}
+     * @param parser parses the text of one exported tree
+     * @return the parsed trees
+     * @param <M> the tree class
+     * @throws Exception when a tree could not be parsed
+     */
+    static <M> List<M> read(final ArchiveInputStream tar,
+                            ThrowingFunction<Reader, M, Exception> parser) throws Exception {
+        List<M> forest = new ArrayList<>();
+        forEach(tar, (name, reader) -> forest.add(parser.apply(reader)));
+        return forest;
+    }
+
+    /**
+     * Parse every file in the archive, in the order of the archive, and close it. Each file is
+     * hashed with SHA-256 while it is parsed, without holding on to its text.
+     * @param tar the {@link ArchiveInputStream}
+     * @param parser parses the text of one exported tree
+     * @return the trees with the digests of their files
+     * @param <M> the tree class
+     * @throws Exception when a tree could not be parsed
+     */
+    static <M> List<Entry<M>> readDigested(final ArchiveInputStream tar,
+                                           ThrowingFunction<Reader, M, Exception> parser) throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        byte[] skip = new byte[8192];
+        List<Entry<M>> forest = new ArrayList<>();
+        forEachStream(tar, (name, in) -> {
+            DigestInputStream hashed = new DigestInputStream(in, sha256);
+            M tree = parser.apply(new BufferedReader(new InputStreamReader(hashed)));
+            // the parser may stop before the end of the file, the digest is of all of it
+            while (hashed.read(skip) >= 0) {
+                // hashed while skipped
+            }
+            forest.add(new Entry<>(toHex(sha256.digest()), tree));
+        });
+        return forest;
+    }
+
+    /**
+     * Parse the files of the archive whose content isn't already known, in the order of the
+     * archive, and close it. Each file is hashed with SHA-256 and a tree known by the digest is
+     * used instead of parsing the file again.
+     * @param tar the {@link ArchiveInputStream}
+     * @param known gets a tree already parsed from a file with the digest, or null
+     * @param parser parses the text of one exported tree
+     * @return the trees with the digests of their files
+     * @param <M> the tree class
+     * @throws Exception when a tree could not be parsed
+     */
+    static <M> List<Entry<M>> read(final ArchiveInputStream tar, Function<String, M> known,
+                                   ThrowingFunction<Reader, M, Exception> parser) throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        List<Entry<M>> forest = new ArrayList<>();
+        forEachStream(tar, (name, in) -> {
+            byte[] text = in.readAllBytes();
+            String digest = toHex(sha256.digest(text));
+            M tree = known.apply(digest);
+            if (tree == null) {
+                tree = parser.apply(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(text))));
+            } else {
+                LOG.debug("Reusing tree {}", name);
+            }
+            forest.add(new Entry<>(digest, tree));
+        });
+        return forest;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Pass every file in the archive, in the order of the archive, to the entry reader and
+     * close the archive.
+     * @param tar the {@link ArchiveInputStream}
+     * @param entryReader reads the name and text of one file
+     * @throws Exception when a file could not be read
+     */
+    static void forEach(final ArchiveInputStream tar, EntryReader entryReader) throws Exception {
+        forEachStream(tar, (name, in) -> entryReader.read(name, new BufferedReader(new InputStreamReader(in))));
+    }
+
+    /**
+     * Reads the bytes of one file of the archive.
+     */
+    @FunctionalInterface
+    private interface EntryStream {
+        void read(String name, InputStream in) throws Exception;
+    }
+
+    private static void forEachStream(final ArchiveInputStream tar, EntryStream entryStream) throws Exception {
+        try (tar) {
+            ArchiveEntry exportedTree;
+            while ((exportedTree = tar.getNextEntry()) != null) {
+                if (!exportedTree.isDirectory()) {
+                    LOG.debug("Parsing tree {}", exportedTree.getName());
+                    final InputStream noCloseStream = new InputStream() {
+                        @Override
+                        public int read() throws IOException {
+                            return tar.read();
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            return tar.read(b, off, len);
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            // don't close otherwise next file in tar won't be read.
+                        }
+                    };
+                    entryStream.read(exportedTree.getName(), noCloseStream);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.dt.CompiledTree;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.util.RowSlices;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Selects a small subset of the trees of a {@link RandomForestClassifier} that predicts nearly the
+ * same as the whole forest on a representative set of samples, for forests trained with more
+ * trees than they need.
+ * <p>
+ * Trees are added greedily: each round adds the tree that brings the subset closest to the forest,
+ * scoring every remaining tree against every sample in parallel. Once the subset is estimated to
+ * be within both tolerances it is built and measured with
+ * {@link RandomForestClassifier#predict(FeatureVector...)} and
+ * {@link RandomForestClassifier#predict_proba(FeatureVector...)}, and returned if the measurement
+ * agrees, otherwise more trees are added. A subset is only as good as the samples it was selected
+ * on, so they should cover the traffic the forest sees.
+ */
+public final class ForestDistiller {
+
+    /**
+     * How many times the forest and the subset are timed, the fastest time is reported.
+     */
+    private static final int TIMING_ROUNDS = 3;
+
+    private ForestDistiller() {
+    }
+
+    /**
+     * Select the trees of a forest that predict within the tolerances of the forest on the samples.
+     * @param forest the forest
+     * @param samples representative samples
+     * @param maxDisagreement the largest fraction of the samples the subset may predict a different
+     *                        class for than the forest
+     * @param maxProbabilityError the largest mean, over the samples, of the largest difference of a
+     *                            class probability of the subset from the forest
+     * @param executor an executor to score the trees in parallel, or null for the calling thread
+     * @return the report with the selected forest
+     * @param <T> the Prediction Class
+     */
+    public static <T> DistillationReport<T> distill(RandomForestClassifier<T> forest, List<FeatureVector> samples,
+                                                    double maxDisagreement, double maxProbabilityError,
+                                                    ExecutorService executor) {
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("no samples to distill the forest with");
+        } else if (maxDisagreement < 0 || maxProbabilityError < 0) {
+            throw new IllegalArgumentException("tolerances must not be negative");
+        }
+
+        List<DecisionTreeClassifier<T>> trees = forest.getTrees();
+        int treeCount = trees.size();
+        int classes = forest.getClassCount();
+        int n = samples.size();
+        FeatureVector[] rows = samples.toArray(new FeatureVector[0]);
+
+        // the leaf every tree ends up in for every sample
+        CompiledTree<?>[] compiled = new CompiledTree<?>[treeCount];
+        for (int t = 0; t < treeCount; t++) {
+            compiled[t] = trees.get(t).getCompiledTree();
+        }
+        int[][] leaves = new int[treeCount][n];
+        RowSlices.run(executor, n, (start, end) -> {
+            for (int s = start; s < end; s++) {
+                for (int t = 0; t < treeCount; t++) {
+                    leaves[t][s] = compiled[t].findLeaf(rows[s]);
+                }
+            }
+        });
+
+        List<T> expected = forest.predict(rows);
+        double[][] expectedProbability = forest.predict_proba(rows);
+        int[] expectedClass = classIndexes(compiled, leaves, expected, classes);
+
+        int[] votes = new int[n * classes];
+        double[] sums = new double[n * classes];
+        boolean[] selected = new boolean[treeCount];
+        int[] order = new int[treeCount];
+        double disagreementScale = Math.max(maxDisagreement, 1.0 / n);
+        double errorScale = Math.max(maxProbabilityError, 1e-9);
+
+        for (int used = 0; used < treeCount; ) {
+            int[] candidates = new int[treeCount - used];
+            for (int t = 0, c = 0; t < treeCount; t++) {
+                if (!selected[t]) {
+                    candidates[c++] = t;
+                }
+            }
+
+            // estimate how close adding each candidate brings the subset to the forest
+            double[] disagreement = new double[candidates.length];
+            double[] error = new double[candidates.length];
+            int size = used + 1;
+            RowSlices.run(executor, candidates.length, (start, end) -> {
+                double[] probability = new double[classes];
+                for (int c = start; c < end; c++) {
+                    CompiledTree<?> tree = compiled[candidates[c]];
+                    int[] leaf = leaves[candidates[c]];
+                    int disagree = 0;
+                    double sum = 0;
+                    for (int s = 0; s < n; s++) {
+                        int offset = s * classes;
+                        System.arraycopy(sums, offset, probability, 0, classes);
+                        tree.addProbability(leaf[s], probability, 0);
+                        int vote = tree.getLeafClass(leaf[s]);
+
+                        // the class the subset votes for, the lowest class index when classes tie
+                        // like the forest
+                        int best = 0;
+                        double largest = 0;
+                        for (int k = 0; k < classes; k++) {
+                            int count = votes[offset + k] + (k == vote ? 1 : 0);
+                            if (count > votes[offset + best] + (best == vote ? 1 : 0)) {
+                                best = k;
+                            }
+                            largest = Math.max(largest, Math.abs(probability[k] / size - expectedProbability[s][k]));
+                        }
+                        disagree += best == expectedClass[s] ? 0 : 1;
+                        sum += largest;
+                    }
+                    disagreement[c] = (double) disagree / n;
+                    error[c] = sum / n;
+                }
+            });
+
+            int best = 0;
+            for (int c = 1; c < candidates.length; c++) {
+                if (disagreement[c] / disagreementScale + error[c] / errorScale
+                        < disagreement[best] / disagreementScale + error[best] / errorScale) {
+                    best = c;
+                }
+            }
+
+            int t = candidates[best];
+            selected[t] = true;
+            order[used++] = t;
+            for (int s = 0; s < n; s++) {
+                votes[s * classes + compiled[t].getLeafClass(leaves[t][s])]++;
+                compiled[t].addProbability(leaves[t][s], sums, s * classes);
+            }
+
+            if ((disagreement[best] <= maxDisagreement && error[best] <= maxProbabilityError) || used == treeCount) {
+                int[] subsetTrees = Arrays.copyOf(order, used);
+                Arrays.sort(subsetTrees);
+                DistillationReport<T> report = measure(forest, forest.subset(subsetTrees), subsetTrees, rows,
+                        expected, expectedProbability);
+                if ((report.getDisagreement() <= maxDisagreement
+                        && report.getProbabilityError() <= maxProbabilityError) || used == treeCount) {
+                    return report;
+                }
+            }
+        }
+        throw new IllegalStateException("no subset was selected");
+    }
+
+    /**
+     * Find the index of the class the forest predicted for every sample from the labels of the
+     * leaves.
+     */
+    private static <T> int[] classIndexes(CompiledTree<?>[] compiled, int[][] leaves, List<T> expected, int classes) {
+        Object[] labels = new Object[classes];
+        for (int t = 0; t < compiled.length; t++) {
+            for (int slot : leaves[t]) {
+                labels[compiled[t].getLeafClass(slot)] = compiled[t].getLeaf(slot).get();
+            }
+        }
+
+        int[] indexes = new int[expected.size()];
+        for (int s = 0; s < indexes.length; s++) {
+            indexes[s] = -1;
+            for (int k = 0; k < classes && indexes[s] < 0; k++) {
+                if (Objects.equals(labels[k], expected.get(s))) {
+                    indexes[s] = k;
+                }
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Measure how closely the subset follows the forest and how long each takes.
+     */
+    private static <T> DistillationReport<T> measure(RandomForestClassifier<T> forest, RandomForestClassifier<T> subset,
+                                                     int[] trees, FeatureVector[] rows, List<T> expected,
+                                                     double[][] expectedProbability) {
+        List<T> predicted = subset.predict(rows);
+        double[][] probability = subset.predict_proba(rows);
+
+        int disagree = 0;
+        double sum = 0;
+        double max = 0;
+        for (int s = 0; s < rows.length; s++) {
+            disagree += Objects.equals(predicted.get(s), expected.get(s)) ? 0 : 1;
+            double largest = 0;
+            for (int k = 0; k < probability[s].length; k++) {
+                largest = Math.max(largest, Math.abs(probability[s][k] - expectedProbability[s][k]));
+            }
+            sum += largest;
+            max = Math.max(max, largest);
+        }
+
+        return new DistillationReport<>(subset, trees, forest.getTreeCount(), rows.length,
+                (double) disagree / rows.length, sum / rows.length, max, time(forest, rows), time(subset, rows));
+    }
+
+    private static long time(RandomForestClassifier<?> forest, FeatureVector[] rows) {
+        long fastest = Long.MAX_VALUE;
+        for (int round = 0; round < TIMING_ROUNDS; round++) {
+            long start = System.nanoTime();
+            forest.predict_proba(rows);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest;
+    }
+}
@@ -0,0 +1,245 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import rocks.vilaverde.classifier.Prediction;
+import rocks.vilaverde.classifier.dt.CompiledTree;
+
+import java.util.Arrays;
+
+/**
+ * The result of a single pass of a sample through a {@link RandomForestClassifier}: the class the
+ * trees vote for, the averaged class probabilities and, when asked for, the leaf each tree ended
+ * up in. Everything is computed when the result is filled, so reading it doesn't go through the
+ * trees again.
+ * <p>
+ * A result filled before a deadline may aggregate only some of the trees, see
+ * {@link #getTreesUsed()}, with the probabilities averaged over the trees used.
+ * <p>
+ * A result is reused by passing it to {@link RandomForestClassifier#classify(rocks.vilaverde.classifier.FeatureVector,
+ * ForestResult)} again, which overwrites it. It is not thread safe, so each thread needs a result
+ * of its own.
+ * @param <T> the Prediction Class
+ */
+public final class ForestResult<T> implements Prediction<T> {
+
+    private final double[] probability;
+    private final int[] votes;
+    private final Object[] labels;
+    private final int[] leaves;
+    private final int trees;
+    private int used;
+    private int classIndex = -1;
+
+    /**
+     * Constructor
+     * @param classes the number of classes of the forest
+     * @param trees the number of trees of the forest
+     * @param withLeaves true to record the leaf of every tree
+     */
+    ForestResult(int classes, int trees, boolean withLeaves) {
+        this.probability = new double[classes];
+        this.votes = new int[classes];
+        this.labels = new Object[classes];
+        this.leaves = withLeaves ? new int[trees] : null;
+        this.trees = trees;
+    }
+
+    /**
+     * Clear the aggregates before the result is filled again.
+     */
+    void reset() {
+        Arrays.fill(probability, 0.0);
+        Arrays.fill(votes, 0);
+        classIndex = -1;
+    }
+
+    /**
+     * @return the probability sums, added to by the trees
+     */
+    double[] getProbabilitySums() {
+        return probability;
+    }
+
+    /**
+     * Count the vote of a tree for a class.
+     * @param k the index of the class
+     * @param label the label of the class
+     */
+    void vote(int k, T label) {
+        if (votes[k]++ == 0) {
+            labels[k] = label;
+        }
+    }
+
+    /**
+     * Record the leaf a tree ended up in, when the result records leaves.
+     * @param tree the index of the tree
+     * @param nodeId the sklearn node id of the leaf
+     */
+    void leaf(int tree, int nodeId) {
+        if (leaves != null) {
+            leaves[tree] = nodeId;
+        }
+    }
+
+    /**
+     * Divide the probability sums by the number of trees and pick the class with the most votes.
+     */
+    void complete() {
+        complete(trees);
+    }
+
+    /**
+     * Divide the probability sums by the number of trees that were used and pick the class with
+     * the most votes. Ties go to the lowest class index, the same as
+     * {@link RandomForestClassifier#predict(rocks.vilaverde.classifier.FeatureVector...)}.
+     * @param used the number of trees that voted, at least 1
+     */
+    void complete(int used) {
+        this.used = used;
+        for (int k = 0; k < probability.length; k++) {
+            probability[k] /= used;
+        }
+        classIndex = CompiledTree.argMax(votes, 0, votes.length);
+    }
+
+    /**
+     * @return the class the most trees voted for
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get() {
+        checkComplete();
+        return (T) labels[classIndex];
+    }
+
+    /**
+     * @return the index of the class the most trees voted for
+     */
+    public int getClassIndex() {
+        checkComplete();
+        return classIndex;
+    }
+
+    /**
+     * @return a copy of the class probabilities
+     */
+    @Override
+    public double[] getProbability() {
+        checkComplete();
+        return probability.clone();
+    }
+
+    /**
+     * Get the probability of one class without copying the probabilities.
+     * @param k the index of the class
+     * @return the probability
+     */
+    public double getProbability(int k) {
+        checkComplete();
+        return probability[k];
+    }
+
+    /**
+     * Get the number of trees that voted for a class.
+     * @param k the index of the class
+     * @return the vote count
+     */
+    public int getVotes(int k) {
+        checkComplete();
+        return votes[k];
+    }
+
+    /**
+     * @return the number of trees aggregated in the result, less than the trees of the forest when
+     *         a deadline stopped the evaluation
+     */
+    public int getTreesUsed() {
+        checkComplete();
+        return used;
+    }
+
+    /**
+     * @return true when some trees of the forest were not aggregated in the result
+     */
+    public boolean isPartial() {
+        checkComplete();
+        return used < trees;
+    }
+
+    /**
+     * Get how far ahead the most probable class is of the next one, in the averaged probabilities
+     * of the trees used. A small margin from few trees is a guess, a large one is unlikely to
+     * change with more trees.
+     * @return the difference of the two highest class probabilities, 1 when there is one class
+     */
+    public double getMargin() {
+        checkComplete();
+        double first = Double.NEGATIVE_INFINITY;
+        double second = Double.NEGATIVE_INFINITY;
+        for (double p : probability) {
+            if (p > first) {
+                second = first;
+                first = p;
+            } else if (p > second) {
+                second = p;
+            }
+        }
+        return probability.length == 1 ? 1.0 : first - second;
+    }
+
+    /**
+     * @return true when the class with the most votes would keep the most votes whatever the trees
+     *         that were not used vote for
+     */
+    public boolean isDecided() {
+        checkComplete();
+        int runnerUp = 0;
+        for (int k = 0; k < votes.length; k++) {
+            if (k != classIndex) {
+                runnerUp = Math.max(runnerUp, votes[k]);
+            }
+        }
+        return votes[classIndex] - runnerUp > trees - used;
+    }
+
+    /**
+     * @return the number of classes
+     */
+    public int getClassCount() {
+        return probability.length;
+    }
+
+    /**
+     * Get the sklearn node id of the leaf every tree ended up in. The array belongs to the result
+     * and is overwritten when the result is filled again.
+     * @return the leaves in the order of the forest, -1 for trees that were not used
+     * @throws IllegalStateException when the result was created without leaves
+     */
+    public int[] getLeaves() {
+        if (leaves == null) {
+            throw new IllegalStateException("result was created without leaves");
+        }
+        checkComplete();
+        return leaves;
+    }
+
+    /**
+     * @return the number of trees of the forest the result was created for
+     */
+    int getTreeCount() {
+        return trees;
+    }
+
+    /**
+     * @return true when the result records the leaf of every tree
+     */
+    public boolean hasLeaves() {
+        return leaves != null;
+    }
+
+    private void checkComplete() {
+        if (classIndex < 0) {
+            throw new IllegalStateException("result has not been filled");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a {@link RandomForestClassifier} up to date with the TAR archive it was parsed from. The
+ * directory of the archive is watched, and when the archive changes the forest is reloaded with
+ * {@link RandomForestClassifier#reload(org.apache.commons.compress.archivers.ArchiveInputStream)},
+ * parsing only the trees that changed, then published so that the next call to {@link #get()}
+ * returns it. Predictions already running finish on the forest they started with.
+ * <p>
+ * The archive should be replaced by moving a complete file over it. An archive that can't be read
+ * is logged and the current forest kept until the archive changes again.
+ * @param <T> the Prediction Class
+ */
+public final class ForestWatcher<T> implements Supplier<RandomForestClassifier<T>>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ForestWatcher.class);
+
+    /**
+     * How long the directory must be quiet before the archive is read, so a file written in
+     * several steps is read once.
+     */
+    private static final long QUIET_MILLIS = 100;
+
+    /**
+     * Parse a forest from a .tar, .tgz or .tar.gz archive and watch the archive for changes.
+     * @param archive the archive
+     * @param factory the factory for creating the prediction class
+     * @param executor An {@link ExecutorService} to run classification against the trees in parallel, or null
+     * @return the watcher
+     * @param <T> the classifier type
+     * @throws Exception when the model could no be parsed or the directory can't be watched
+     */
+    public static <T> ForestWatcher<T> watch(Path archive, PredictionFactory<T> factory,
+                                             ExecutorService executor) throws Exception {
+        RandomForestClassifier<T> forest = RandomForestClassifier.parse(open(archive), factory, executor);
+        ForestWatcher<T> watcher = new ForestWatcher<>(archive, forest);
+        watcher.thread.start();
+        return watcher;
+    }
+
+    private final Path archive;
+    private final AtomicReference<RandomForestClassifier<T>> current;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Private constructor, use {@link #watch(Path, PredictionFactory, ExecutorService)} to create.
+     */
+    private ForestWatcher(Path archive, RandomForestClassifier<T> forest) throws IOException {
+        this.archive = archive.toAbsolutePath();
+        this.current = new AtomicReference<>(forest);
+        this.watchService = this.archive.getFileSystem().newWatchService();
+        this.archive.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::watch, "forest-watcher-" + this.archive.getFileName());
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * @return the latest forest
+     */
+    @Override
+    public RandomForestClassifier<T> get() {
+        return current.get();
+    }
+
+    /**
+     * @return the archive the forest is read from
+     */
+    public Path getArchive() {
+        return archive;
+    }
+
+    /**
+     * Reload the forest from the archive now and publish it.
+     * @return the reloaded forest
+     * @throws Exception when the model could no be parsed, the current forest is kept
+     */
+    public synchronized RandomForestClassifier<T> reload() throws Exception {
+        RandomForestClassifier<T> forest = current.get().reload(open(archive));
+        current.set(forest);
+        LOG.info("Reloaded {}, reused {} of {} trees", archive, forest.getReusedTreeCount(), forest.getTreeCount());
+        return forest;
+    }
+
+    /**
+     * Stop watching the archive. The latest forest is still returned by {@link #get()}.
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || archive.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                if (changed) {
+                    try {
+                        reload();
+                    } catch (Exception e) {
+                        LOG.warn("Failed to reload {}, keeping the current forest", archive, e);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // closed
+        }
+    }
+
+    private static TarArchiveInputStream open(Path archive) throws IOException {
+        String name = archive.getFileName().toString();
+        InputStream in = new BufferedInputStream(Files.newInputStream(archive));
+        if (!name.endsWith(".tar")) {
+            in = new GzipCompressorInputStream(in);
+        }
+        return new TarArchiveInputStream(in);
+    }
+}
@@ -0,0 +1,387 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import rocks.vilaverde.classifier.AbstractTreeClassifier;
+import rocks.vilaverde.classifier.FeatureMatrix;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Prediction;
+import rocks.vilaverde.classifier.dt.CompiledTree;
+import rocks.vilaverde.classifier.dt.DecisionTreeRegressor;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.dt.WarmUp;
+import rocks.vilaverde.classifier.dt.WarmUpReport;
+import rocks.vilaverde.classifier.util.RowSlices;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A GradientBoostingClassifier trained in scikit-learn, made of the regression trees of each
+ * boosting stage exported using export_text. The raw prediction of a sample is the initial raw
+ * prediction plus the learning rate times the sum of the values of the trees, which is turned into
+ * class probabilities with the sigmoid function for two classes, or softmax for more.
+ * <p>
+ * The TAR archive contains a {@value #METADATA} file with the {@code learning_rate}, the
+ * {@code init} raw predictions separated by commas (one for two classes, otherwise one per class) and
+ * optionally the {@code classes} labels separated by commas. Each tree is in a file named
+ * {@code <stage>-<class>.txt}, or {@code <stage>.txt} for two classes, after an optional prefix.
+ * @param <T> the Prediction Class
+ */
+public class GradientBoostingClassifier<T> extends AbstractTreeClassifier<T> {
+
+    /** The name of the file in the archive with the parameters of the ensemble. */
+    public static final String METADATA = "gradient-boosting.properties";
+
+    private static final Pattern TREE_NAME = Pattern.compile("(\\d+)(?:-(\\d+))?(?:\\.\\w+)?$");
+
+    /**
+     * Accept a TAR of exported boosting stages from sklearn and produce a
+     * GradientBoostingClassifier. This default to running in a single (current) thread.
+     * @param tar the {@link ArchiveInputStream}
+     * @param factory the factory for creating the prediction class from the class labels
+     * @return the {@link GradientBoostingClassifier}
+     * @param <T> the classifier type
+     * @throws Exception when the model could no be parsed
+     */
+    public static <T> GradientBoostingClassifier<T> parse(final ArchiveInputStream tar,
+                                                          PredictionFactory<T> factory) throws Exception {
+        return GradientBoostingClassifier.parse(tar, factory, null);
+    }
+
+    /**
+     * Accept a TAR of exported boosting stages from sklearn and produce a
+     * GradientBoostingClassifier.
+     * @param tar the Tar Archive input stream
+     * @param factory the factory for creating the prediction class from the class labels
+     * @param executor An {@link ExecutorService} to predict slices of a {@link FeatureMatrix} in parallel.
+     * @return the {@link GradientBoostingClassifier}
+     * @param <T> the classifier type
+     * @throws Exception when the model could no be parsed
+     */
+    public static <T> GradientBoostingClassifier<T> parse(final ArchiveInputStream tar,
+                                                          PredictionFactory<T> factory,
+                                                          ExecutorService executor) throws Exception {
+        Properties metadata = new Properties();
+        List<Stage> stages = new ArrayList<>();
+
+        ForestArchive.forEach(tar, (name, reader) -> {
+            String fileName = name.substring(name.lastIndexOf('/') + 1);
+            if (fileName.equals(METADATA)) {
+                metadata.load(reader);
+                return;
+            }
+
+            Matcher matcher = TREE_NAME.matcher(fileName);
+            if (!matcher.find()) {
+                throw new IllegalArgumentException(String.format("tree '%s' is not named <stage>-<class>", name));
+            }
+            int stage = Integer.parseInt(matcher.group(1));
+            int output = matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2));
+            stages.add(new Stage(stage, output, DecisionTreeRegressor.parse(reader)));
+        });
+
+        if (!metadata.containsKey("learning_rate") || !metadata.containsKey("init")) {
+            throw new IllegalArgumentException(String.format("%s with learning_rate and init is missing", METADATA));
+        }
+
+        double learningRate = Double.parseDouble(metadata.getProperty("learning_rate").trim());
+        double[] init = Arrays.stream(metadata.getProperty("init").split(","))
+                .map(String::trim)
+                .mapToDouble(Double::parseDouble)
+                .toArray();
+
+        int classCount = init.length == 1 ? 2 : init.length;
+        List<T> classes = new ArrayList<>(classCount);
+        if (metadata.containsKey("classes")) {
+            for (String label : metadata.getProperty("classes").split(",")) {
+                classes.add(factory.create(label.trim()));
+            }
+        } else {
+            for (int k = 0; k < classCount; k++) {
+                classes.add(factory.create(String.valueOf(k)));
+            }
+        }
+
+        if (classes.size() != classCount) {
+            throw new IllegalArgumentException(String.format("expected %d classes but got %d",
+                    classCount, classes.size()));
+        }
+
+        // sum in the same order as sklearn, stage by stage
+        stages.sort(Comparator.comparingInt((Stage s) -> s.stage).thenComparingInt(s -> s.output));
+        for (Stage stage : stages) {
+            if (stage.output >= init.length) {
+                throw new IllegalArgumentException(String.format("tree of stage %d is for class %d but there are %d outputs",
+                        stage.stage, stage.output, init.length));
+            }
+        }
+
+        return new GradientBoostingClassifier<>(stages, init, learningRate, classes, executor);
+    }
+
+    private final ExecutorService executorService;
+    private final CompiledTree<?>[] trees;
+    private final int[] outputs;
+    private final double[] init;
+    private final double learningRate;
+    private final List<T> classes;
+    private final Set<String> featureNames;
+
+    /**
+     * Private Constructor
+     * @param stages the trees of every stage in order
+     * @param init the initial raw prediction
+     * @param learningRate the factor applied to the value of every tree
+     * @param classes the class labels
+     * @param executor the Executor service for parallel processing
+     */
+    private GradientBoostingClassifier(List<Stage> stages, double[] init, double learningRate,
+                                       List<T> classes, ExecutorService executor) {
+        this.executorService = executor;
+        this.init = init;
+        this.learningRate = learningRate;
+        this.classes = classes;
+        this.trees = new CompiledTree<?>[stages.size()];
+        this.outputs = new int[stages.size()];
+        this.featureNames = new HashSet<>();
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = stages.get(t).tree.getCompiledTree();
+            outputs[t] = stages.get(t).output;
+            featureNames.addAll(stages.get(t).tree.getFeatureNames());
+        }
+    }
+
+    /**
+     * Predict class for features.
+     * @param samples features of the sample
+     * @return the predicted class of each sample
+     */
+    @Override
+    public List<T> predict(FeatureVector ... samples) {
+        return Arrays.stream(samples)
+                .map(sample -> getClassification(sample).get())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Predict class probabilities of the input samples features.
+     * @param samples the input samples
+     * @return the class probabilities of the input sample
+     */
+    @Override
+    public double[][] predict_proba(FeatureVector ... samples) {
+        double[][] probabilities = new double[samples.length][];
+        for (int i = 0; i < samples.length; i++) {
+            probabilities[i] = getClassification(samples[i]).getProbability();
+        }
+        return probabilities;
+    }
+
+    /**
+     * Compute the raw predictions of the sample before the link function is applied,
+     * the same values as decision_function in sklearn.
+     * @param sample the input sample
+     * @return one raw prediction for two classes, otherwise one per class
+     */
+    public double[] decision_function(FeatureVector sample) {
+        validateFeatures(sample);
+
+        double[] raw = init.clone();
+        for (int t = 0; t < trees.length; t++) {
+            raw[outputs[t]] += learningRate * trees[t].getValue(trees[t].findLeaf(sample));
+        }
+        return raw;
+    }
+
+    @Override
+    public Prediction<T> getClassification(FeatureVector sample) {
+        double[] probability = new double[classes.size()];
+        link(decision_function(sample), 0, probability, 0);
+        T prediction = classes.get(CompiledTree.argMax(probability, 0, probability.length));
+
+        return new Prediction<T>() {
+            @Override
+            public T get() {
+                return prediction;
+            }
+
+            @Override
+            public double[] getProbability() {
+                return probability;
+            }
+        };
+    }
+
+    /**
+     * Predict the class index of every row of the matrix. When the ensemble was created with an
+     * {@link ExecutorService} the rows are split into slices that are predicted in parallel.
+     * @param rows the samples
+     * @param out receives one class index per row
+     */
+    @Override
+    public void predict(FeatureMatrix rows, IntBuffer out) {
+        final int base = out.position();
+        checkCapacity(rows.getRowCount(), out.remaining());
+
+        final int[][] columns = bind(rows);
+        final int classCount = classes.size();
+        RowSlices.run(executorService, rows.getRowCount(), (start, end) -> {
+            double[] raw = new double[init.length];
+            double[] probability = new double[classCount];
+            for (int row = start; row < end; row++) {
+                rawPredict(rows, row, columns, raw);
+                link(raw, 0, probability, 0);
+                out.put(base + row, CompiledTree.argMax(probability, 0, classCount));
+            }
+        });
+
+        out.position(base + rows.getRowCount());
+    }
+
+    /**
+     * Predict the class probabilities of every row of the matrix. When the ensemble was created
+     * with an {@link ExecutorService} the rows are split into slices that are predicted in parallel.
+     * @param rows the samples
+     * @param out receives the class probabilities of the rows
+     */
+    @Override
+    public void predict_proba(FeatureMatrix rows, DoubleBuffer out) {
+        final int base = out.position();
+        final int classCount = classes.size();
+        checkCapacity((long) rows.getRowCount() * classCount, out.remaining());
+
+        final int[][] columns = bind(rows);
+        RowSlices.run(executorService, rows.getRowCount(), (start, end) -> {
+            double[] raw = new double[init.length];
+            double[] probability = new double[classCount];
+            for (int row = start; row < end; row++) {
+                rawPredict(rows, row, columns, raw);
+                link(raw, 0, probability, 0);
+                for (int k = 0; k < classCount; k++) {
+                    out.put(base + row * classCount + k, probability[k]);
+                }
+            }
+        });
+
+        out.position(base + rows.getRowCount() * classCount);
+    }
+
+    /**
+     * Sum the raw prediction of a row of the matrix into the accumulator.
+     */
+    private void rawPredict(FeatureMatrix rows, int row, int[][] columns, double[] raw) {
+        System.arraycopy(init, 0, raw, 0, init.length);
+        for (int t = 0; t < trees.length; t++) {
+            raw[outputs[t]] += learningRate * trees[t].getValue(trees[t].findLeaf(rows, row, columns[t]));
+        }
+    }
+
+    /**
+     * Turn raw predictions into class probabilities, with the sigmoid function for a single
+     * raw prediction, otherwise softmax.
+     */
+    private static void link(double[] raw, int rawOffset, double[] probability, int offset) {
+        if (raw.length == 1) {
+            double p = 1.0 / (1.0 + Math.exp(-raw[rawOffset]));
+            probability[offset] = 1.0 - p;
+            probability[offset + 1] = p;
+            return;
+        }
+
+        double max = raw[rawOffset + CompiledTree.argMax(raw, rawOffset, raw.length)];
+        double sum = 0.0;
+        for (int k = 0; k < raw.length; k++) {
+            probability[offset + k] = Math.exp(raw[rawOffset + k] - max);
+            sum += probability[offset + k];
+        }
+        for (int k = 0; k < raw.length; k++) {
+            probability[offset + k] /= sum;
+        }
+    }
+
+    private int[][] bind(FeatureMatrix rows) {
+        int[][] columns = new int[trees.length][];
+        for (int t = 0; t < trees.length; t++) {
+            columns[t] = trees[t].bind(rows.getFeatures());
+        }
+        return columns;
+    }
+
+    private static void checkCapacity(long required, int remaining) {
+        if (required > remaining) {
+            throw new IllegalArgumentException(String.format("output needs room for %d values but has %d",
+                    required, remaining));
+        }
+    }
+
+    /**
+     * Validate the features provided are expected.
+     */
+    private void validateFeatures(FeatureVector sample) throws IllegalArgumentException {
+        for (String f : featureNames) {
+            if (!sample.hasFeature(f)) {
+                throw new IllegalArgumentException(String.format("expected feature named '%s' but none provided", f));
+            }
+        }
+    }
+
+    @Override
+    public int getClassCount() {
+        return classes.size();
+    }
+
+    /**
+     * Get the number of trees in all the stages.
+     * @return the tree count
+     */
+    public int getTreeCount() {
+        return trees.length;
+    }
+
+    /**
+     * Warm up the prediction code with samples synthesized to take every branch of the trees, so
+     * the first real predictions don't run before the JIT has compiled it.
+     * @param budget the most time to spend
+     * @return a report of what was run
+     * @see WarmUp
+     */
+    public WarmUpReport warmUp(Duration budget) {
+        return WarmUp.run(this, Arrays.asList(trees), budget);
+    }
+
+    /**
+     * Get the names of all the features in the model.
+     * @return set of unique features used in the model
+     */
+    @Override
+    public Set<String> getFeatureNames() {
+        return featureNames;
+    }
+
+    /**
+     * A tree of a boosting stage, with the output it adds to.
+     */
+    private static final class Stage {
+        private final int stage;
+        private final int output;
+        private final DecisionTreeRegressor tree;
+
+        private Stage(int stage, int output, DecisionTreeRegressor tree) {
+            this.stage = stage;
+            this.output = output;
+            this.tree = tree;
+        }
+    }
+}
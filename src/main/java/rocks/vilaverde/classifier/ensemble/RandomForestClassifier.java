@@ -1,51 +1,62 @@
 package rocks.vilaverde.classifier.ensemble;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import rocks.vilaverde.classifier.AbstractTreeClassifier;
 import rocks.vilaverde.classifier.Classifier;
+import rocks.vilaverde.classifier.FeatureMatrix;
 import rocks.vilaverde.classifier.FeatureVector;
 import rocks.vilaverde.classifier.Prediction;
+import rocks.vilaverde.classifier.dt.BranchProfile;
+import rocks.vilaverde.classifier.dt.CompiledTree;
 import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.EndNode;
+import rocks.vilaverde.classifier.dt.ModelStatistics;
+import rocks.vilaverde.classifier.dt.NumpyTrees;
 import rocks.vilaverde.classifier.dt.PredictionFactory;
-import rocks.vilaverde.classifier.dt.TreeClassifier;
-import rocks.vilaverde.classifier.util.ThrowingFunction;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import rocks.vilaverde.classifier.dt.TreeExplainer;
+import rocks.vilaverde.classifier.dt.WarmUp;
+import rocks.vilaverde.classifier.dt.WarmUpReport;
+import rocks.vilaverde.classifier.util.RowSlices;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * A forest of DecisionTreeClassifiers.
  */
 public class RandomForestClassifier<T> extends AbstractTreeClassifier<T>
         implements Classifier<T> {
-    private static final Logger LOG = LoggerFactory.getLogger(RandomForestClassifier.class);
 
     /**
      * Accept a TAR of exported DecisionTreeClassifiers from sklearn and product a
      * RandomForestClassifier. This default to running in a single (current) thread.
      * @param tar the {@link ArchiveInputStream}
      * @param factory the factory for creating the prediction class
-     * @return the {@link Classifier}
+     * @return the {@link RandomForestClassifier}
      * @param <T> the classifier type
      * @throws Exception when the model could no be parsed
      */
-    public static <T> Classifier<T> parse(final ArchiveInputStream tar,
-                                          PredictionFactory<T> factory) throws Exception {
+    public static <T> RandomForestClassifier<T> parse(final ArchiveInputStream tar,
+                                                      PredictionFactory<T> factory) throws Exception {
         return RandomForestClassifier.parse(tar, factory, null);
     }
 
@@ -55,56 +66,171 @@ public class RandomForestClassifier<T> extends AbstractTreeClassifier<T>
      * @param tar the Tar Archive input stream
      * @param factory the factory for creating the prediction class
      * @param executor An {@link ExecutorService} to run classification against the trees in parallel.
-     * @return the {@link Classifier}
+     * @return the {@link RandomForestClassifier}
      * @param <T> the classifier type
      * @throws Exception when the model could no be parsed
      */
-    public static <T> Classifier<T> parse(final ArchiveInputStream tar,
-                                          PredictionFactory<T> factory,
-                                          ExecutorService executor) throws Exception {
-        List<TreeClassifier<T>> forest = new ArrayList<>();
-
-        try (tar) {
-            ArchiveEntry exportedTree;
-            while ((exportedTree = tar.getNextEntry()) != null) {
-                if (!exportedTree.isDirectory()) {
-                    LOG.debug("Parsing tree {}", exportedTree.getName());
-                    final InputStream noCloseStream = new InputStream() {
-                        @Override
-                        public int read() throws IOException {
-                            return tar.read();
-                        }
-
-                        @Override
-                        public void close() throws IOException {
-                            // don't close otherwise next file in tar won't be read.
-                        }
-                    };
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(noCloseStream));
-                    TreeClassifier<T> tree = DecisionTreeClassifier.parse(reader, factory);
-                    forest.add(tree);
-                }
+    public static <T> RandomForestClassifier<T> parse(final ArchiveInputStream tar,
+                                                      PredictionFactory<T> factory,
+                                                      ExecutorService executor) throws Exception {
+        long start = System.nanoTime();
+        List<ForestArchive.Entry<DecisionTreeClassifier<T>>> entries = ForestArchive.readDigested(tar,
+                reader -> DecisionTreeClassifier.parse(reader, factory));
+
+        return new RandomForestClassifier<>(entries, factory, executor, 0,
+                Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    /**
+     * Read a forest from the arrays of its fitted sklearn trees saved with NumPy, without
+     * exporting or parsing text. This default to running in a single (current) thread.
+     * @param directory a directory with a subdirectory or .npz file for every estimator
+     * @param factory the factory for creating the prediction class
+     * @return the {@link RandomForestClassifier}
+     * @param <T> the classifier type
+     * @throws Exception when the arrays could not be read
+     * @see NumpyTrees
+     */
+    public static <T> RandomForestClassifier<T> fromNumpy(Path directory, PredictionFactory<T> factory)
+            throws Exception {
+        return RandomForestClassifier.fromNumpy(directory, factory, null);
+    }
+
+    /**
+     * Read a forest from the arrays of its fitted sklearn trees saved with NumPy, without
+     * exporting or parsing text.
+     * @param directory a directory with a subdirectory or .npz file for every estimator
+     * @param factory the factory for creating the prediction class
+     * @param executor An {@link ExecutorService} to run classification against the trees in parallel.
+     * @return the {@link RandomForestClassifier}
+     * @param <T> the classifier type
+     * @throws Exception when the arrays could not be read
+     * @see NumpyTrees
+     */
+    public static <T> RandomForestClassifier<T> fromNumpy(Path directory, PredictionFactory<T> factory,
+                                                          ExecutorService executor) throws Exception {
+        long start = System.nanoTime();
+        List<ForestArchive.Entry<DecisionTreeClassifier<T>>> entries = NumpyTrees.readEstimators(directory, factory)
+                .stream()
+                .map(tree -> new ForestArchive.Entry<>(null, tree))
+                .collect(Collectors.toList());
+
+        return new RandomForestClassifier<>(entries, factory, executor, 0,
+                Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    /**
+     * Parse a new version of this forest from a TAR of exported DecisionTreeClassifiers, parsing
+     * only the files that changed. Every file is hashed and the trees of this forest parsed from a
+     * file with the same content are reused, so retraining that changes a few estimators of a large
+     * forest reloads in a fraction of the time of {@link #parse(ArchiveInputStream, PredictionFactory, ExecutorService)}.
+     * This forest is not changed, the reloaded forest uses the same executor and factory.
+     * <p>
+     * Reused trees have the nodes they were parsed with: a layout or float32 thresholds applied to
+     * this forest need to be applied to the reloaded forest again.
+     * @param tar the Tar Archive input stream
+     * @return the reloaded {@link RandomForestClassifier}
+     * @throws IllegalArgumentException when the archive has no trees
+     * @throws Exception when the model could no be parsed
+     * @see ForestWatcher
+     */
+    public RandomForestClassifier<T> reload(final ArchiveInputStream tar) throws Exception {
+        long start = System.nanoTime();
+        Map<String, DecisionTreeClassifier<T>> parsed = new HashMap<>();
+        for (int t = 0; t < forest.size(); t++) {
+            if (digests.get(t) != null) {
+                parsed.putIfAbsent(digests.get(t), forest.get(t));
             }
         }
-        
-        return new RandomForestClassifier<>(forest, executor);
+
+        int[] reused = new int[1];
+        List<ForestArchive.Entry<DecisionTreeClassifier<T>>> entries = ForestArchive.read(tar, digest -> {
+            DecisionTreeClassifier<T> tree = parsed.get(digest);
+            if (tree == null) {
+                return null;
+            }
+            reused[0]++;
+            return tree.copy();
+        }, reader -> DecisionTreeClassifier.parse(reader, factory));
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("archive has no trees");
+        }
+
+        return new RandomForestClassifier<>(entries, factory, executorService, reused[0],
+                Duration.ofNanos(System.nanoTime() - start));
     }
 
     private final ExecutorService executorService;
-    private final List<TreeClassifier<T>> forest;
+    private final PredictionFactory<T> factory;
+    private final List<DecisionTreeClassifier<T>> forest;
+    private final List<String> digests;
+    private final int reusedTrees;
+    private final Map<String, int[]> treesByFeature;
+    private final ModelStatistics statistics;
+    private volatile int[] evaluationOrder;
 
     /**
      * Private Constructor
-     * @param forest the random forest
+     * @param entries the trees of the random forest with the digests of the files they were
+     *                parsed from, null for trees that weren't parsed from an archive
+     * @param factory the factory for creating the prediction class
      * @param executor the Executor service for parallel processing
+     * @param reusedTrees the number of trees taken from the forest this forest was reloaded from
+     * @param parseTime the time it took to parse the forest
      */
-    private RandomForestClassifier(List<TreeClassifier<T>> forest, ExecutorService executor) {
-        this.forest = forest;
+    private RandomForestClassifier(List<ForestArchive.Entry<DecisionTreeClassifier<T>>> entries,
+                                   PredictionFactory<T> factory, ExecutorService executor,
+                                   int reusedTrees, Duration parseTime) {
+        this.forest = entries.stream().map(ForestArchive.Entry::getTree).collect(Collectors.toList());
+        this.digests = entries.stream().map(ForestArchive.Entry::getDigest).collect(Collectors.toList());
+        this.factory = factory;
+        this.reusedTrees = reusedTrees;
         this.executorService = executor;
+        this.treesByFeature = indexTreesByFeature(forest);
+        this.statistics = ModelStatistics.combine(getTreeStatistics(), parseTime);
+        this.evaluationOrder = IntStream.range(0, forest.size()).toArray();
+    }
+
+    /**
+     * Build the inverted index from each feature to the trees that split on it, from the
+     * feature names collected by the {@link rocks.vilaverde.classifier.dt.visitors.FeatureNameVisitor}
+     * of every tree.
+     */
+    private static Map<String, int[]> indexTreesByFeature(List<? extends Classifier<?>> forest) {
+        Map<String, List<Integer>> trees = new HashMap<>();
+        for (int t = 0; t < forest.size(); t++) {
+            for (String feature : forest.get(t).getFeatureNames()) {
+                trees.computeIfAbsent(feature, f -> new ArrayList<>()).add(t);
+            }
+        }
+
+        Map<String, int[]> index = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : trees.entrySet()) {
+            index.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        return index;
     }
 
     /**
-     * Predict class or regression value for features.
+     * Start a session that scores the sample with every tree, and then as features of the sample
+     * change only scores it again with the trees that split on those features.
+     * @param sample the sample, which the session updates in place
+     * @return the ScoringSession
+     */
+    @SuppressWarnings("unchecked")
+    public ScoringSession<T> newSession(FeatureVector sample) {
+        validateFeatures(sample);
+
+        CompiledTree<T>[] trees = (CompiledTree<T>[]) new CompiledTree[forest.size()];
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = forest.get(t).getCompiledTree();
+        }
+        return new ScoringSession<>(sample, trees, treesByFeature);
+    }
+
+    /**
+     * Predict class or regression value for features. The class is the one most trees vote for,
+     * the lowest class index when classes tie.
      * @param samples features of the sample
      * @return class probabilities of the input sample
      */
@@ -140,6 +266,245 @@ public class RandomForestClassifier<T> extends AbstractTreeClassifier<T>
         return probabilities;
     }
 
+    /**
+     * Find the leaf each sample ends up in for every tree in the forest, like apply in sklearn.
+     * @param leaves receives the sklearn node ids of the leaves, row major with one row per sample
+     *               and one column per tree
+     * @param samples the input samples
+     */
+    public void apply(int[] leaves, FeatureVector ... samples) {
+        int trees = forest.size();
+        checkLeaves(samples.length, trees, leaves.length);
+
+        for (int i = 0; i < samples.length; i++) {
+            validateFeatures(samples[i]);
+            for (int t = 0; t < trees; t++) {
+                CompiledTree<T> tree = forest.get(t).getCompiledTree();
+                leaves[i * trees + t] = tree.getNodeId(tree.findLeaf(samples[i]));
+            }
+        }
+    }
+
+    /**
+     * Predict the class of the samples and record the leaf each sample ends up in for every
+     * tree in the forest, in the same pass through the trees.
+     * @param leaves receives the sklearn node ids of the leaves, row major with one row per sample
+     *               and one column per tree
+     * @param samples the input samples
+     * @return predicted class of each sample
+     */
+    public List<T> predict(int[] leaves, FeatureVector ... samples) {
+        int trees = forest.size();
+        checkLeaves(samples.length, trees, leaves.length);
+
+        // the leaves of one sample at a time, voted on by a prediction that is reused for every sample
+        List<Prediction<T>> predictions = new ArrayList<>(trees);
+        RandomForestPrediction<T> vote = new RandomForestPrediction<>(predictions, trees);
+        List<T> result = new ArrayList<>(samples.length);
+        for (int i = 0; i < samples.length; i++) {
+            validateFeatures(samples[i]);
+            predictions.clear();
+            for (int t = 0; t < trees; t++) {
+                CompiledTree<T> tree = forest.get(t).getCompiledTree();
+                int slot = tree.findLeaf(samples[i]);
+                leaves[i * trees + t] = tree.getNodeId(slot);
+                predictions.add(tree.getLeaf(slot));
+            }
+            result.add(vote.get());
+        }
+        return result;
+    }
+
+    private static void checkLeaves(int samples, int trees, int length) {
+        if (length < (long) samples * trees) {
+            throw new IllegalArgumentException(String.format("leaves needs room for %d values but has %d",
+                    (long) samples * trees, length));
+        }
+    }
+
+    /**
+     * Split the forest into shards, for evaluating a large forest across several processes.
+     * Tree i of the forest is in shard {@code i % count}.
+     * @param index the index of the shard
+     * @param count the number of shards
+     * @return a forest with the trees of the shard
+     * @see ShardWorker
+     */
+    public RandomForestClassifier<T> shard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException(String.format("shard %d of %d does not exist", index, count));
+        }
+
+        if (index >= forest.size()) {
+            throw new IllegalArgumentException(String.format("shard %d of %d has no trees", index, count));
+        }
+        return subset(IntStream.iterate(index, t -> t < forest.size(), t -> t + count).toArray());
+    }
+
+    /**
+     * Create a forest of some of the trees of this forest. Like {@link #reload(ArchiveInputStream)}
+     * the trees are copies sharing the nodes they were loaded with, so profiling or changing the
+     * layout of one forest leaves the other alone.
+     * @param trees the indexes of the trees, in the order of the new forest
+     * @return a forest with the trees
+     * @see ForestDistiller
+     */
+    public RandomForestClassifier<T> subset(int... trees) {
+        if (trees.length == 0) {
+            throw new IllegalArgumentException("a forest needs at least one tree");
+        }
+
+        boolean[] seen = new boolean[forest.size()];
+        List<ForestArchive.Entry<DecisionTreeClassifier<T>>> entries = new ArrayList<>(trees.length);
+        Duration parseTime = Duration.ZERO;
+        for (int t : trees) {
+            if (t < 0 || t >= forest.size() || seen[t]) {
+                throw new IllegalArgumentException(String.format("tree %d is not in the forest or is repeated", t));
+            }
+            seen[t] = true;
+            entries.add(new ForestArchive.Entry<>(digests.get(t), forest.get(t).copy()));
+            parseTime = parseTime.plus(forest.get(t).getStatistics().getParseTime());
+        }
+        return new RandomForestClassifier<>(entries, factory, executorService, 0, parseTime);
+    }
+
+    /**
+     * Get the trees of the forest.
+     */
+    List<DecisionTreeClassifier<T>> getTrees() {
+        return forest;
+    }
+
+    /**
+     * Get the compiled form of every tree in the forest.
+     * @return the {@link CompiledTree}s in the order of the forest
+     */
+    public List<CompiledTree<T>> getCompiledTrees() {
+        return forest.stream()
+                .map(DecisionTreeClassifier::getCompiledTree)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the statistics of the forest, computed when it was loaded.
+     * @return the ModelStatistics of all the trees together
+     */
+    public ModelStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Get the statistics of every tree in the forest.
+     * @return the ModelStatistics in the order of the forest
+     */
+    public List<ModelStatistics> getTreeStatistics() {
+        return forest.stream()
+                .map(DecisionTreeClassifier::getStatistics)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the number of trees in the forest.
+     * @return the tree count
+     */
+    public int getTreeCount() {
+        return forest.size();
+    }
+
+    /**
+     * Get the number of trees taken from the previous forest when this forest was reloaded.
+     * @return the reused tree count, 0 when the forest was parsed
+     * @see #reload(ArchiveInputStream)
+     */
+    public int getReusedTreeCount() {
+        return reusedTrees;
+    }
+
+    /**
+     * Predict the class index of every row of the matrix, the class most trees vote for like
+     * {@link #predict(FeatureVector...)}. When the forest was created with an
+     * {@link ExecutorService} the rows are split into slices that are predicted in parallel.
+     * @param rows the samples
+     * @param out receives one class index per row
+     */
+    @Override
+    public void predict(FeatureMatrix rows, IntBuffer out) {
+        final int base = out.position();
+        checkCapacity(rows.getRowCount(), out.remaining());
+
+        final int classes = getClassCount();
+        forEachSlice(rows, (trees, columns, start, end) -> {
+            int[] votes = new int[classes];
+            for (int row = start; row < end; row++) {
+                Arrays.fill(votes, 0);
+                for (int t = 0; t < trees.length; t++) {
+                    votes[trees[t].getLeafClass(trees[t].findLeaf(rows, row, columns[t]))]++;
+                }
+                out.put(base + row, CompiledTree.argMax(votes, 0, classes));
+            }
+        });
+
+        out.position(base + rows.getRowCount());
+    }
+
+    /**
+     * Predict the class probabilities of every row of the matrix. When the forest was created
+     * with an {@link ExecutorService} the rows are split into slices that are predicted in parallel.
+     * @param rows the samples
+     * @param out receives the class probabilities of the rows
+     */
+    @Override
+    public void predict_proba(FeatureMatrix rows, DoubleBuffer out) {
+        final int base = out.position();
+        final int classes = getClassCount();
+        checkCapacity((long) rows.getRowCount() * classes, out.remaining());
+
+        forEachSlice(rows, (trees, columns, start, end) -> {
+            double[] probability = new double[classes];
+            for (int row = start; row < end; row++) {
+                sumProbability(trees, columns, rows, row, probability);
+                for (int k = 0; k < classes; k++) {
+                    out.put(base + row * classes + k, probability[k] / trees.length);
+                }
+            }
+        });
+
+        out.position(base + rows.getRowCount() * classes);
+    }
+
+    /**
+     * Sum the leaf probabilities of every tree for a row.
+     */
+    private static void sumProbability(CompiledTree<?>[] trees, int[][] columns,
+                                       FeatureMatrix rows, int row, double[] probability) {
+        Arrays.fill(probability, 0.0);
+        for (int t = 0; t < trees.length; t++) {
+            trees[t].addProbability(trees[t].findLeaf(rows, row, columns[t]), probability, 0);
+        }
+    }
+
+    private static void checkCapacity(long required, int remaining) {
+        if (required > remaining) {
+            throw new IllegalArgumentException(String.format("output needs room for %d values but has %d",
+                    required, remaining));
+        }
+    }
+
+    /**
+     * Run the task over slices of the rows, in parallel when there is an {@link ExecutorService}.
+     * The trees are bound to the columns of the matrix once for all the slices.
+     */
+    private void forEachSlice(FeatureMatrix rows, SliceTask task) {
+        CompiledTree<?>[] trees = new CompiledTree<?>[forest.size()];
+        int[][] columns = new int[forest.size()][];
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = forest.get(t).getCompiledTree();
+            columns[t] = trees[t].bind(rows.getFeatures());
+        }
+
+        RowSlices.run(executorService, rows.getRowCount(), (start, end) -> task.run(trees, columns, start, end));
+    }
+
     /**
      * Predict for a single sample.
      * @param sample the FeatureVector
@@ -160,6 +525,255 @@ public class RandomForestClassifier<T> extends AbstractTreeClassifier<T>
         return new RandomForestPrediction<>(predictions, forest.size());
     }
 
+    /**
+     * Create a result to pass to {@link #classify(FeatureVector, ForestResult)}.
+     * @param withLeaves true to also record the leaf every tree ends up in
+     * @return an empty ForestResult sized for this forest
+     * @throws IllegalStateException when the trees were not exported with weights
+     */
+    public ForestResult<T> newResult(boolean withLeaves) {
+        int classes = getClassCount();
+        if (classes == 0) {
+            throw new IllegalStateException("model was not exported with weights, can't calculate probability");
+        }
+        return new ForestResult<>(classes, forest.size(), withLeaves);
+    }
+
+    /**
+     * Classify a sample with a single pass through the trees, filling the result with the class
+     * the trees vote for, the class probabilities and, when the result records them, the leaf of
+     * every tree. This avoids going through the trees once for {@link #predict(FeatureVector...)}
+     * and again for {@link #predict_proba(FeatureVector...)}. The trees are walked on the calling
+     * thread, even when the forest has an {@link ExecutorService}.
+     * @param sample features of the sample
+     * @param result a result created by {@link #newResult(boolean)}, which is overwritten
+     * @return the result
+     */
+    public ForestResult<T> classify(FeatureVector sample, ForestResult<T> result) {
+        validate(sample, result);
+
+        result.reset();
+        double[] probability = result.getProbabilitySums();
+        for (int t = 0; t < forest.size(); t++) {
+            CompiledTree<T> tree = forest.get(t).getCompiledTree();
+            int slot = tree.findLeaf(sample);
+            tree.addProbability(slot, probability, 0);
+            result.vote(tree.getLeafClass(slot), tree.getLeaf(slot).get());
+            result.leaf(t, tree.getNodeId(slot));
+        }
+        result.complete();
+        return result;
+    }
+
+    /**
+     * Predict the class of a sample with as many trees as can be evaluated within the budget, see
+     * {@link #classify(FeatureVector, ForestResult, long)}.
+     * @param sample features of the sample
+     * @param budget the time the prediction may take
+     * @return the result, with the number of trees used and the margin of the prediction
+     */
+    public ForestResult<T> predictWithin(FeatureVector sample, Duration budget) {
+        return classify(sample, newResult(false), System.nanoTime() + budget.toNanos());
+    }
+
+    /**
+     * Classify a sample with the trees that can be evaluated before the deadline, to answer in
+     * time with a less certain prediction when the forest can't be evaluated completely. The trees
+     * are evaluated in the order of {@link #setEvaluationOrder(int[])}, and the first tree is
+     * always evaluated so there is an answer even after the deadline. When the forest has an
+     * {@link ExecutorService} the order is split into interleaved stripes that are evaluated in
+     * parallel with the calling thread, and trees still running at the deadline are left out.
+     * The probabilities of the result are averaged over the trees used.
+     * @param sample features of the sample
+     * @param result a result created by {@link #newResult(boolean)}, which is overwritten
+     * @param deadline the {@link System#nanoTime()} after which no more trees are started
+     * @return the result
+     * @see ForestResult#getTreesUsed()
+     * @see ForestResult#getMargin()
+     */
+    @SuppressWarnings("unchecked")
+    public ForestResult<T> classify(FeatureVector sample, ForestResult<T> result, long deadline) {
+        validate(sample, result);
+
+        int[] order = evaluationOrder;
+        CompiledTree<T>[] trees = (CompiledTree<T>[]) new CompiledTree[forest.size()];
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = forest.get(t).getCompiledTree();
+        }
+
+        // the slot of the leaf of every tree plus one, 0 for trees that were not evaluated
+        AtomicIntegerArray slots = new AtomicIntegerArray(trees.length);
+        if (executorService == null) {
+            evaluateStripe(trees, order, 0, 1, sample, deadline, slots, new AtomicBoolean());
+        } else {
+            evaluateStripes(trees, order, sample, deadline, slots);
+        }
+
+        result.reset();
+        double[] probability = result.getProbabilitySums();
+        int used = 0;
+        for (int t = 0; t < trees.length; t++) {
+            int slot = slots.get(t) - 1;
+            if (slot < 0) {
+                result.leaf(t, -1);
+                continue;
+            }
+            trees[t].addProbability(slot, probability, 0);
+            result.vote(trees[t].getLeafClass(slot), trees[t].getLeaf(slot).get());
+            result.leaf(t, trees[t].getNodeId(slot));
+            used++;
+        }
+        result.complete(used);
+        return result;
+    }
+
+    /**
+     * Evaluate the stripes of the order on the executor and the calling thread, until they are
+     * done or the deadline passes.
+     */
+    private void evaluateStripes(CompiledTree<T>[] trees, int[] order, FeatureVector sample, long deadline,
+                                 AtomicIntegerArray slots) {
+        int jobs = Math.min(Runtime.getRuntime().availableProcessors(), order.length);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        CountDownLatch finished = new CountDownLatch(jobs - 1);
+
+        List<Integer> rejected = new ArrayList<>();
+        for (int job = 1; job < jobs; job++) {
+            int first = job;
+            try {
+                executorService.execute(() -> {
+                    try {
+                        evaluateStripe(trees, order, first, jobs, sample, deadline, slots, stop);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                finished.countDown();
+                rejected.add(first);
+            }
+        }
+
+        evaluateStripe(trees, order, 0, jobs, sample, deadline, slots, stop);
+        for (int first : rejected) {
+            evaluateStripe(trees, order, first, jobs, sample, deadline, slots, stop);
+        }
+
+        try {
+            finished.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stop.set(true);
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Evaluate every step-th tree of the order starting at first, until the deadline passes or
+     * evaluation is stopped. The first tree of stripe 0 is evaluated regardless.
+     */
+    private static <T> void evaluateStripe(CompiledTree<T>[] trees, int[] order, int first, int step,
+                                           FeatureVector sample, long deadline, AtomicIntegerArray slots,
+                                           AtomicBoolean stop) {
+        for (int i = first; i < order.length; i += step) {
+            if (i > 0 && (stop.get() || System.nanoTime() - deadline >= 0)) {
+                return;
+            }
+            int t = order[i];
+            slots.set(t, trees[t].findLeaf(sample) + 1);
+        }
+    }
+
+    /**
+     * Set the order in which {@link #classify(FeatureVector, ForestResult, long)} evaluates the
+     * trees, so the trees that agree most with the whole forest are evaluated first, for example
+     * the order from {@link #rankTrees(List)}.
+     * @param order the index of every tree of the forest once, in the order to evaluate them
+     * @throws IllegalArgumentException when the order is not a permutation of the trees
+     */
+    public void setEvaluationOrder(int[] order) {
+        boolean[] seen = new boolean[forest.size()];
+        if (order.length != seen.length) {
+            throw new IllegalArgumentException(String.format("order has %d trees but the forest has %d",
+                    order.length, seen.length));
+        }
+        for (int t : order) {
+            if (t < 0 || t >= seen.length || seen[t]) {
+                throw new IllegalArgumentException(String.format("order has tree %d more than once or out of range", t));
+            }
+            seen[t] = true;
+        }
+        this.evaluationOrder = order.clone();
+    }
+
+    /**
+     * @return the order in which trees are evaluated before a deadline, the order of the forest by default
+     */
+    public int[] getEvaluationOrder() {
+        return evaluationOrder.clone();
+    }
+
+    /**
+     * Rank the trees by how close their probabilities are to those of the whole forest on the
+     * samples, closest first. Evaluating the trees in this order makes a prediction cut short by
+     * a deadline closer to the prediction of the whole forest.
+     * @param samples representative samples, for example a sample of recent traffic
+     * @return the indexes of the trees, closest to the forest first
+     * @throws IllegalStateException when the trees were not exported with weights
+     */
+    public int[] rankTrees(List<FeatureVector> samples) {
+        int classes = getClassCount();
+        if (classes == 0) {
+            throw new IllegalStateException("model was not exported with weights, can't calculate probability");
+        }
+
+        double[] distance = new double[forest.size()];
+        double[] probability = new double[classes];
+        ForestResult<T> result = newResult(false);
+        for (FeatureVector sample : samples) {
+            classify(sample, result);
+            for (int t = 0; t < forest.size(); t++) {
+                CompiledTree<T> tree = forest.get(t).getCompiledTree();
+                Arrays.fill(probability, 0.0);
+                tree.addProbability(tree.findLeaf(sample), probability, 0);
+                for (int k = 0; k < classes; k++) {
+                    distance[t] += Math.abs(probability[k] - result.getProbability(k));
+                }
+            }
+        }
+
+        return IntStream.range(0, forest.size())
+                .boxed()
+                .sorted(Comparator.comparingDouble(t -> distance[t]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * Validate the result was created for this forest and the sample has the features of the trees.
+     */
+    private void validate(FeatureVector sample, ForestResult<T> result) throws IllegalArgumentException {
+        if (result.getClassCount() != getClassCount() || result.getTreeCount() != forest.size()) {
+            throw new IllegalArgumentException("result was not created for this forest");
+        }
+        validateFeatures(sample);
+    }
+
+    private void validateFeatures(FeatureVector sample) throws IllegalArgumentException {
+        for (String feature : treesByFeature.keySet()) {
+            if (!sample.hasFeature(feature)) {
+                throw new IllegalArgumentException(String.format("expected feature named '%s' but none provided",
+                        feature));
+            }
+        }
+    }
+
     /**
      * Get all the predictions for the features of the sample
      * @param sample features of the sample
@@ -169,25 +783,20 @@ public class RandomForestClassifier<T> extends AbstractTreeClassifier<T>
         List<Prediction<T>> predictions;
 
         if (executorService != null) {
-            int jobs = Runtime.getRuntime().availableProcessors();
-            List<ParallelPrediction<T>> parallel = new ArrayList<>(jobs);
-            for (int i = 0; i < jobs; i++) {
-                ParallelPrediction<T> parallelPrediction = new ParallelPrediction<>(forest, sample, i, jobs);
-                parallel.add(parallelPrediction);
-            }
-
-            try {
-                List<Future<List<Prediction<T>>>> futures = executorService.invokeAll(parallel);
-                predictions = futures.stream()
-                        .flatMap(ThrowingFunction.wrap(listFuture -> listFuture.get().stream()))
-                        .collect(Collectors.toList());
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+            // the trees are split into slices like the rows of a batch, so a scheduler queues
+            // the prediction as one entry however many slices it runs in
+            @SuppressWarnings("unchecked")
+            Prediction<T>[] results = (Prediction<T>[]) new Prediction[forest.size()];
+            RowSlices.run(executorService, results.length, (first, last) -> {
+                for (int t = first; t < last; t++) {
+                    results[t] = forest.get(t).getClassification(sample);
+                }
+            });
+            predictions = Arrays.asList(results);
 
         } else {
             predictions = new ArrayList<>(forest.size());
-            for (TreeClassifier<T> tree : forest) {
+            for (DecisionTreeClassifier<T> tree : forest) {
                 Prediction<T> prediction = tree.getClassification(sample);
                 predictions.add(prediction);
             }
@@ -196,6 +805,101 @@ public class RandomForestClassifier<T> extends AbstractTreeClassifier<T>
         return predictions;
     }
 
+    @Override
+    public int getClassCount() {
+        return forest.get(0).getClassCount();
+    }
+
+    /**
+     * Create a {@link TreeExplainer} for the probabilities predicted by this forest.
+     * @return the TreeExplainer
+     * @throws IllegalStateException when the trees were not exported with weights
+     */
+    public TreeExplainer newExplainer() {
+        return TreeExplainer.create(forest.stream()
+                .map(DecisionTreeClassifier::getCompiledTree)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Warm up the prediction code with samples synthesized to take every branch of the trees, so
+     * the first real predictions don't run before the JIT has compiled it. Samples are predicted
+     * with the executor of the forest, when it has one.
+     * @param budget the most time to spend
+     * @return a report of what was run
+     * @see WarmUp
+     */
+    public WarmUpReport warmUp(Duration budget) {
+        return WarmUp.run(this, forest.stream()
+                .map(DecisionTreeClassifier::getCompiledTree)
+                .collect(Collectors.toList()), budget);
+    }
+
+    /**
+     * Create an empty {@link BranchProfile} sized for the trees in this forest.
+     * @return the BranchProfile
+     */
+    public BranchProfile newProfile() {
+        int[] nodeCounts = new int[forest.size()];
+        for (int i = 0; i < nodeCounts.length; i++) {
+            nodeCounts[i] = forest.get(i).getCompiledTree().getNodeCount();
+        }
+        return BranchProfile.create(nodeCounts);
+    }
+
+    /**
+     * Start counting the node visits of every tree in the forest in the profile.
+     * @param profile a profile created by {@link #newProfile()}
+     */
+    public void startProfiling(BranchProfile profile) {
+        validateProfile(profile);
+        for (int i = 0; i < forest.size(); i++) {
+            forest.get(i).startProfiling(profile.getTree(i));
+        }
+    }
+
+    /**
+     * Stop counting node visits.
+     */
+    public void stopProfiling() {
+        for (DecisionTreeClassifier<T> tree : forest) {
+            tree.stopProfiling();
+        }
+    }
+
+    /**
+     * Lay out the nodes of every tree in the forest using the visit counts in the profile.
+     * @param profile a profile recorded or read for this forest
+     * @see DecisionTreeClassifier#relayout(BranchProfile)
+     */
+    public void relayout(BranchProfile profile) {
+        validateProfile(profile);
+        for (int i = 0; i < forest.size(); i++) {
+            forest.get(i).relayout(profile.getTree(i));
+        }
+    }
+
+    /**
+     * Store the thresholds of every tree in the forest as float32 and compare the features of the
+     * samples as float32, the way sklearn does.
+     * @see DecisionTreeClassifier#useFloat32()
+     */
+    public void useFloat32() {
+        for (DecisionTreeClassifier<T> tree : forest) {
+            tree.useFloat32();
+        }
+    }
+
+    /**
+     * Validate the profile has one tree for every tree in the forest.
+     */
+    private void validateProfile(BranchProfile profile) throws IllegalArgumentException {
+        if (profile.getTreeCount() != forest.size()) {
+            throw new IllegalArgumentException(String.format("profile has %d trees but the forest has %d",
+                    profile.getTreeCount(), forest.size()));
+        }
+    }
+
     /**
      * Get the names of all the features in the model.
      * @return set of unique features used in the model
@@ -210,6 +914,39 @@ public class RandomForestClassifier<T> extends AbstractTreeClassifier<T>
     }
 
 
+    /**
+     * Pick the label with the most votes of trees exported without weights, which have no class
+     * indexes. sklearn numbers the classes in sorted order, so ties go to the smallest label, the
+     * class with the lowest index.
+     * @param votes the number of votes of each label
+     * @return the label with the most votes
+     * @param <T> the Prediction Class
+     * @throws IllegalStateException when there are no votes
+     */
+    static <T> T mostVoted(Map<T, Long> votes) {
+        T best = null;
+        long max = 0;
+        for (Map.Entry<T, Long> entry : votes.entrySet()) {
+            if (entry.getValue() > max || (entry.getValue() == max && compareLabels(entry.getKey(), best) < 0)) {
+                best = entry.getKey();
+                max = entry.getValue();
+            }
+        }
+
+        if (best == null) {
+            throw new IllegalStateException("no classification");
+        }
+        return best;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareLabels(Object a, Object b) {
+        if (a instanceof Comparable && b != null && a.getClass() == b.getClass()) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+        return 0;
+    }
+
     static class RandomForestPrediction<T> implements Prediction<T> {
         private final List<Prediction<T>> predictions;
         private final int forestSize;
@@ -225,27 +962,27 @@ public class RandomForestClassifier<T> extends AbstractTreeClassifier<T>
         }
 
         /**
-         * @return The class.
+         * @return The class with the most votes, the lowest class index when classes tie.
          */
         @Override
+        @SuppressWarnings("unchecked")
         public T get() {
-            Map<T, Long> map = predictions.stream()
-                    .collect(Collectors.groupingBy(Prediction::get, Collectors.counting()));
-
-            long max = map.values().stream().mapToLong(Long::longValue).max().orElse(0);
-            T prediction = null;
-            for (Map.Entry<T, Long> entry : map.entrySet()) {
-                if (entry.getValue() == max) {
-                    prediction =  entry.getKey();
-                    break;
-                }
+            if (!predictions.stream().allMatch(prediction -> prediction instanceof EndNode.WeightedEndNode)) {
+                return mostVoted(predictions.stream()
+                        .collect(Collectors.groupingBy(Prediction::get, Collectors.counting())));
             }
 
-            if (prediction == null) {
-                throw new IllegalStateException("no classification");
+            // vote by the index of the class of each leaf, the same as the compiled trees do
+            int classes = predictions.get(0).getProbability().length;
+            int[] votes = new int[classes];
+            Object[] labels = new Object[classes];
+            for (Prediction<T> prediction : predictions) {
+                double[] probability = prediction.getProbability();
+                int k = CompiledTree.argMax(probability, 0, probability.length);
+                votes[k]++;
+                labels[k] = prediction.get();
             }
-
-            return prediction;
+            return (T) labels[CompiledTree.argMax(votes, 0, classes)];
         }
 
         /**
@@ -271,47 +1008,9 @@ public class RandomForestClassifier<T> extends AbstractTreeClassifier<T>
 
 
     /**
-     * A job that will only provide {@link Prediction} results
-     * from a subset of the trees in the forest.
-     * @param <T> the classification class
+     * Work done on a slice of the rows of a {@link FeatureMatrix}.
      */
-    private static class ParallelPrediction<T> implements Callable<List<Prediction<T>>> {
-        private final int start;
-        private final int offset;
-        private final List<TreeClassifier<T>> forest;
-        private final FeatureVector sample;
-
-        /**
-         * Constructor
-         * @param forest the random forest
-         * @param sample the features of a sample
-         * @param start the index of the tree in the forest this job will begin with
-         * @param offset the offest between the current tree and the next tree to call predict on
-         */
-        private ParallelPrediction(List<TreeClassifier<T>> forest,
-                                   FeatureVector sample,
-                                   int start,
-                                   int offset) {
-            this.offset = offset;
-            this.start = start;
-            this.forest = forest;
-            this.sample = sample;
-        }
-
-        /**
-         * Will classify the sample against every 'offset' tree from the starting tree.
-         * @return a {@link Prediction}
-         * @throws Exception when the model could not product a prediction
-         */
-        @Override
-        public List<Prediction<T>> call() throws Exception {
-            List<Prediction<T>> predictions = new ArrayList<>();
-
-            for (int i = start; i < forest.size(); i+=offset) {
-                predictions.add(forest.get(i).getClassification(sample));
-            }
-
-            return predictions;
-        }
-    }
-}
+    @FunctionalInterface
+    private interface SliceTask {
+        void run(CompiledTree<?>[] trees, int[][] columns, int start, int end);
+    }}
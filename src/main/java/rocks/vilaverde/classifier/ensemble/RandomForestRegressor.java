@@ -0,0 +1,144 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import rocks.vilaverde.classifier.FeatureMatrix;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Regressor;
+import rocks.vilaverde.classifier.dt.CompiledTree;
+import rocks.vilaverde.classifier.dt.DecisionTreeRegressor;
+import rocks.vilaverde.classifier.util.RowSlices;
+
+import java.nio.DoubleBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A forest of DecisionTreeRegressors, predicting the mean of the values of the trees.
+ * The values are summed in a primitive accumulator, so no per tree prediction objects
+ * are created.
+ */
+public class RandomForestRegressor implements Regressor {
+
+    /**
+     * Accept a TAR of exported DecisionTreeRegressors from sklearn and produce a
+     * RandomForestRegressor. This default to running in a single (current) thread.
+     * @param tar the {@link ArchiveInputStream}
+     * @return the {@link RandomForestRegressor}
+     * @throws Exception when the model could no be parsed
+     */
+    public static RandomForestRegressor parse(final ArchiveInputStream tar) throws Exception {
+        return RandomForestRegressor.parse(tar, null);
+    }
+
+    /**
+     * Accept a TAR of exported DecisionTreeRegressors from sklearn and produce a
+     * RandomForestRegressor.
+     * @param tar the Tar Archive input stream
+     * @param executor An {@link ExecutorService} to predict slices of a {@link FeatureMatrix} in parallel.
+     * @return the {@link RandomForestRegressor}
+     * @throws Exception when the model could no be parsed
+     */
+    public static RandomForestRegressor parse(final ArchiveInputStream tar,
+                                              ExecutorService executor) throws Exception {
+        List<DecisionTreeRegressor> forest = ForestArchive.read(tar, DecisionTreeRegressor::parse);
+        if (forest.isEmpty()) {
+            throw new IllegalArgumentException("no trees found in the archive");
+        }
+
+        return new RandomForestRegressor(forest, executor);
+    }
+
+    private final ExecutorService executorService;
+    private final List<DecisionTreeRegressor> forest;
+    private final CompiledTree<?>[] trees;
+    private final Set<String> featureNames;
+
+    /**
+     * Private Constructor
+     * @param forest the random forest
+     * @param executor the Executor service for parallel processing
+     */
+    private RandomForestRegressor(List<DecisionTreeRegressor> forest, ExecutorService executor) {
+        this.forest = forest;
+        this.executorService = executor;
+        this.trees = new CompiledTree<?>[forest.size()];
+        this.featureNames = new HashSet<>();
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = forest.get(t).getCompiledTree();
+            featureNames.addAll(forest.get(t).getFeatureNames());
+        }
+    }
+
+    @Override
+    public double predictValue(FeatureVector sample) {
+        validateFeatures(sample);
+
+        double sum = 0.0;
+        for (CompiledTree<?> tree : trees) {
+            sum += tree.getValue(tree.findLeaf(sample));
+        }
+        return sum / trees.length;
+    }
+
+    /**
+     * Predict the value of every row of the matrix. When the forest was created with an
+     * {@link ExecutorService} the rows are split into slices that are predicted in parallel.
+     * @param rows the samples
+     * @param out receives one value per row
+     */
+    @Override
+    public void predict(FeatureMatrix rows, DoubleBuffer out) {
+        final int base = out.position();
+        if (rows.getRowCount() > out.remaining()) {
+            throw new IllegalArgumentException(String.format("output needs room for %d values but has %d",
+                    rows.getRowCount(), out.remaining()));
+        }
+
+        int[][] columns = new int[trees.length][];
+        for (int t = 0; t < trees.length; t++) {
+            columns[t] = trees[t].bind(rows.getFeatures());
+        }
+
+        RowSlices.run(executorService, rows.getRowCount(), (start, end) -> {
+            for (int row = start; row < end; row++) {
+                double sum = 0.0;
+                for (int t = 0; t < trees.length; t++) {
+                    sum += trees[t].getValue(trees[t].findLeaf(rows, row, columns[t]));
+                }
+                out.put(base + row, sum / trees.length);
+            }
+        });
+
+        out.position(base + rows.getRowCount());
+    }
+
+    /**
+     * Get the number of trees in the forest.
+     * @return the tree count
+     */
+    public int getTreeCount() {
+        return forest.size();
+    }
+
+    /**
+     * Validate the features provided are expected.
+     */
+    private void validateFeatures(FeatureVector sample) throws IllegalArgumentException {
+        for (String f : featureNames) {
+            if (!sample.hasFeature(f)) {
+                throw new IllegalArgumentException(String.format("expected feature named '%s' but none provided", f));
+            }
+        }
+    }
+
+    /**
+     * Get the names of all the features in the model.
+     * @return set of unique features used in the model
+     */
+    @Override
+    public Set<String> getFeatureNames() {
+        return featureNames;
+    }
+}
@@ -0,0 +1,223 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Prediction;
+import rocks.vilaverde.classifier.dt.CompiledTree;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scores one sample of a {@link RandomForestClassifier} repeatedly as its features change. The
+ * session remembers the leaf every tree ended up in along with the vote counts and probability
+ * sums of the forest, so when features change only the trees that split on them are evaluated
+ * again and the aggregate is adjusted by the difference of their leaves.
+ * <p>
+ * A session is not thread safe, and keeps using the layout of the trees at the time it was
+ * created.
+ * @param <T> the Prediction Class
+ */
+public final class ScoringSession<T> {
+
+    /** The number of incremental updates after which the probability sums are added up again. */
+    private static final int RESYNC_UPDATES = 1024;
+
+    private final FeatureVector sample;
+    private final CompiledTree<T>[] trees;
+    private final Map<String, int[]> treesByFeature;
+    private final int[] leaves;
+    private final boolean[] dirty;
+    private final int[] classVotes;
+    private final Object[] labels;
+    private final Map<T, Long> votes = new HashMap<>();
+    private final double[] probability;
+    private final double[] scratch;
+    private int updates;
+    private int reevaluated;
+
+    /**
+     * Constructor, scoring the sample with every tree.
+     * @param sample the sample, which the session updates in place
+     * @param trees the compiled trees of the forest
+     * @param treesByFeature the indexes of the trees that split on each feature
+     */
+    ScoringSession(FeatureVector sample, CompiledTree<T>[] trees, Map<String, int[]> treesByFeature) {
+        this.sample = sample;
+        this.trees = trees;
+        this.treesByFeature = treesByFeature;
+        this.leaves = new int[trees.length];
+        this.dirty = new boolean[trees.length];
+        this.probability = new double[trees[0].getClassCount()];
+        this.scratch = new double[probability.length];
+        this.classVotes = new int[probability.length];
+        this.labels = new Object[probability.length];
+
+        for (int t = 0; t < trees.length; t++) {
+            leaves[t] = trees[t].findLeaf(sample);
+            vote(trees[t], leaves[t], 1);
+        }
+        resync();
+        reevaluated = trees.length;
+    }
+
+    /**
+     * Change the value of a feature and score the sample again.
+     * @param feature the name of the feature
+     * @param value the new value
+     * @return the prediction of the forest
+     */
+    public Prediction<T> update(String feature, double value) {
+        set(feature, value);
+        return rescore();
+    }
+
+    /**
+     * Change the values of several features and score the sample again.
+     * @param delta the new values by feature name
+     * @return the prediction of the forest
+     */
+    public Prediction<T> update(Map<String, Double> delta) {
+        for (Map.Entry<String, Double> entry : delta.entrySet()) {
+            set(entry.getKey(), entry.getValue());
+        }
+        return rescore();
+    }
+
+    /**
+     * Get the prediction of the forest for the current values of the sample.
+     * @return the Prediction
+     */
+    @SuppressWarnings("unchecked")
+    public Prediction<T> getPrediction() {
+        // the same class as RandomForestClassifier#predict, the lowest class index when classes tie
+        final T prediction = probability.length > 0
+                ? (T) labels[CompiledTree.argMax(classVotes, 0, classVotes.length)]
+                : RandomForestClassifier.mostVoted(votes);
+        final double[] result = new double[probability.length];
+        for (int k = 0; k < result.length; k++) {
+            result[k] = probability[k] / trees.length;
+        }
+
+        return new Prediction<T>() {
+            @Override
+            public T get() {
+                return prediction;
+            }
+
+            @Override
+            public double[] getProbability() {
+                if (result.length == 0) {
+                    throw new IllegalStateException("model was not exported with weights, can't calculate probability");
+                }
+                return result.clone();
+            }
+        };
+    }
+
+    /**
+     * Get the number of trees evaluated by the last update, or by creating the session.
+     * @return the number of trees
+     */
+    public int getReevaluatedTrees() {
+        return reevaluated;
+    }
+
+    /**
+     * Get the sample being scored.
+     * @return the FeatureVector
+     */
+    public FeatureVector getSample() {
+        return sample;
+    }
+
+    private void set(String feature, double value) {
+        if (!sample.hasFeature(feature)) {
+            throw new IllegalArgumentException(String.format("feature '%s' is not in the sample", feature));
+        }
+
+        if (Double.compare(sample.get(feature), value) == 0) {
+            return;
+        }
+
+        sample.add(feature, value);
+        int[] affected = treesByFeature.get(feature);
+        if (affected != null) {
+            for (int t : affected) {
+                dirty[t] = true;
+            }
+        }
+    }
+
+    /**
+     * Evaluate the trees that split on a changed feature, and move their contribution to the
+     * aggregate from the old leaf to the new one.
+     */
+    private Prediction<T> rescore() {
+        reevaluated = 0;
+        for (int t = 0; t < trees.length; t++) {
+            if (!dirty[t]) {
+                continue;
+            }
+
+            dirty[t] = false;
+            reevaluated++;
+            int leaf = trees[t].findLeaf(sample);
+            if (leaf != leaves[t]) {
+                move(t, leaf);
+            }
+        }
+
+        // adding and removing leaves accumulates rounding errors, so start again from time to time
+        if (updates >= RESYNC_UPDATES) {
+            resync();
+        }
+
+        return getPrediction();
+    }
+
+    /**
+     * Count the vote of a tree for the class of a leaf, by the index of the class when the trees
+     * were exported with weights.
+     */
+    private void vote(CompiledTree<T> tree, int leaf, int count) {
+        if (classVotes.length > 0) {
+            int k = tree.getLeafClass(leaf);
+            classVotes[k] += count;
+            labels[k] = tree.getLeaf(leaf).get();
+        } else {
+            votes.merge(tree.getLeaf(leaf).get(), (long) count, (a, b) -> a + b == 0 ? null : a + b);
+        }
+    }
+
+    /**
+     * Move the contribution of a tree from its old leaf to the new one.
+     */
+    private void move(int t, int leaf) {
+        CompiledTree<T> tree = trees[t];
+        vote(tree, leaves[t], -1);
+        vote(tree, leaf, 1);
+
+        if (probability.length > 0) {
+            Arrays.fill(scratch, 0.0);
+            tree.addProbability(leaves[t], scratch, 0);
+            for (int k = 0; k < probability.length; k++) {
+                probability[k] -= scratch[k];
+            }
+            tree.addProbability(leaf, probability, 0);
+            updates++;
+        }
+
+        leaves[t] = leaf;
+    }
+
+    private void resync() {
+        updates = 0;
+        if (probability.length > 0) {
+            Arrays.fill(probability, 0.0);
+            for (int t = 0; t < trees.length; t++) {
+                trees[t].addProbability(leaves[t], probability, 0);
+            }
+        }
+    }
+}
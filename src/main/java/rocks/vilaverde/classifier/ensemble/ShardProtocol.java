@@ -0,0 +1,41 @@
+package rocks.vilaverde.classifier.ensemble;
+
+/**
+ * The binary protocol between a {@link ShardedForestClassifier} and its {@link ShardWorker}s,
+ * written with {@link java.io.DataOutput} so every value is big-endian.
+ * <p>
+ * When a connection is accepted the worker sends a handshake: the magic number, the version,
+ * the number of trees and classes of the shard and, for every class, a boolean telling if the
+ * label is known followed by the label, and last the names of the features the trees split on.
+ * The coordinator then sends messages:
+ * <ul>
+ *     <li>{@link #SCHEMA}: the number of columns and the feature name of each column, used by
+ *     the predictions that follow</li>
+ *     <li>{@link #PREDICT}: a request id, the number of rows and the values of the rows in row
+ *     major order</li>
+ * </ul>
+ * Each prediction is answered with the request id and a status. When the status is {@link #OK}
+ * the number of rows follows, then for every row the vote of the shard for each class and the sum
+ * of the class probabilities of the trees of the shard. Otherwise an error message follows.
+ * <p>
+ * A schema has at most {@link #MAX_COLUMNS} columns and a prediction at most
+ * {@link #MAX_BATCH_VALUES} values. A worker answers a prediction that is larger, or that follows
+ * a schema that is larger, with an error.
+ */
+final class ShardProtocol {
+
+    static final int MAGIC = 0x534b5348;
+    static final int VERSION = 1;
+
+    static final byte SCHEMA = 'S';
+    static final byte PREDICT = 'P';
+
+    static final int MAX_COLUMNS = 1 << 16;
+    static final int MAX_BATCH_VALUES = 1 << 24;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private ShardProtocol() {
+    }
+}
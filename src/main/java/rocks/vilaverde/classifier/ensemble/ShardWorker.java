@@ -0,0 +1,344 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rocks.vilaverde.classifier.FeatureMatrix;
+import rocks.vilaverde.classifier.Features;
+import rocks.vilaverde.classifier.dt.CompiledTree;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the trees of one shard of a {@link RandomForestClassifier} to a
+ * {@link ShardedForestClassifier} over a socket, using the {@link ShardProtocol}. For every row
+ * it is sent the worker answers with the votes and the probability sums of its trees. Each
+ * connection is served by its own thread.
+ */
+public final class ShardWorker implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardWorker.class);
+
+    private final CompiledTree<?>[] trees;
+    private final String[] labels;
+    private final int classes;
+    private final Set<String> featureNames;
+    private final ServerSocket server;
+    private final ExecutorService connections;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * Run a worker from the command line, serving one shard of a forest.
+     * @param args --model forest.tgz --shard index --shards count --port port [--bind address]
+     * @throws Exception when the model can't be loaded or the port can't be opened
+     */
+    public static void main(String[] args) throws Exception {
+        String model = null;
+        String bind = "127.0.0.1";
+        int shard = 0;
+        int shards = 1;
+        int port = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--model": model = args[i + 1]; break;
+                case "--shard": shard = Integer.parseInt(args[i + 1]); break;
+                case "--shards": shards = Integer.parseInt(args[i + 1]); break;
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--bind": bind = args[i + 1]; break;
+                default: throw new IllegalArgumentException(String.format("unexpected argument '%s'", args[i]));
+            }
+        }
+        if (model == null) {
+            System.err.println("usage: ShardWorker --model <forest.tgz> [--shard n] [--shards n] [--port n] [--bind address]");
+            System.exit(2);
+            return;
+        }
+
+        InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(model)));
+        RandomForestClassifier<String> forest = RandomForestClassifier.parse(
+                new TarArchiveInputStream(new GzipCompressorInputStream(in)), (PredictionFactory<String>) value -> value);
+
+        ShardWorker worker = start(forest.shard(shard, shards), new InetSocketAddress(bind, port));
+        System.err.printf("serving shard %d of %d on port %d%n", shard, shards, worker.getPort());
+
+        // the threads of the worker are daemons, keep the JVM running until it is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                worker.close();
+            } catch (IOException e) {
+                LOG.warn("failed to close the worker", e);
+            }
+        }));
+        worker.awaitClose();
+    }
+
+    /**
+     * Start serving the trees of the forest on the loopback address.
+     * @param forest the forest, usually one shard from {@link RandomForestClassifier#shard(int, int)}
+     * @param port the port, or 0 for any free port
+     * @return the running ShardWorker
+     * @throws IOException when the port can't be opened
+     */
+    public static ShardWorker start(RandomForestClassifier<?> forest, int port) throws IOException {
+        return start(forest, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Start serving the trees of the forest.
+     * @param forest the forest, usually one shard from {@link RandomForestClassifier#shard(int, int)}
+     * @param address the address to listen on
+     * @return the running ShardWorker
+     * @throws IOException when the address can't be bound
+     */
+    public static ShardWorker start(RandomForestClassifier<?> forest, InetSocketAddress address) throws IOException {
+        ShardWorker worker = new ShardWorker(forest.getTrees(), new ServerSocket());
+        worker.server.bind(address);
+        worker.connections.execute(worker::accept);
+        return worker;
+    }
+
+    /**
+     * Private constructor, use {@link #start(RandomForestClassifier, int)} to create.
+     */
+    private ShardWorker(List<? extends DecisionTreeClassifier<?>> forest, ServerSocket server) {
+        this.trees = new CompiledTree<?>[forest.size()];
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = forest.get(t).getCompiledTree();
+        }
+
+        this.featureNames = new HashSet<>();
+        for (DecisionTreeClassifier<?> tree : forest) {
+            featureNames.addAll(tree.getFeatureNames());
+        }
+
+        this.classes = trees[0].getClassCount();
+        if (classes == 0) {
+            throw new IllegalStateException("model was not exported with weights, can't calculate probability");
+        }
+
+        // the label of each class index, from the leaves predicting it
+        this.labels = new String[classes];
+        for (CompiledTree<?> tree : trees) {
+            for (int slot = 0; slot < tree.getNodeCount(); slot++) {
+                if (tree.isLeaf(slot)) {
+                    labels[tree.getLeafClass(slot)] = String.valueOf(tree.getLeaf(slot).get());
+                }
+            }
+        }
+
+        this.server = server;
+        this.connections = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "shard-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the port the worker is listening on
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Wait until the worker is closed.
+     * @throws InterruptedException when the thread is interrupted while waiting
+     */
+    public void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+
+    /**
+     * Stop accepting connections and close the open ones.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            server.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            connections.shutdownNow();
+        } finally {
+            closed.countDown();
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    LOG.warn("failed to accept a connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+
+            out.writeInt(ShardProtocol.MAGIC);
+            out.writeInt(ShardProtocol.VERSION);
+            out.writeInt(trees.length);
+            out.writeInt(classes);
+            for (String label : labels) {
+                out.writeBoolean(label != null);
+                out.writeUTF(label != null ? label : "");
+            }
+            out.writeInt(featureNames.size());
+            for (String name : featureNames) {
+                out.writeUTF(name);
+            }
+            out.flush();
+
+            Features features = null;
+            int[][] columns = null;
+            String schemaError = null;
+            int width = 0;
+
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                if (type == ShardProtocol.SCHEMA) {
+                    width = in.readInt();
+                    if (width < 0) {
+                        throw new IOException(String.format("invalid number of columns %d", width));
+                    }
+                    if (width > ShardProtocol.MAX_COLUMNS) {
+                        // read past the names to stay in step, and refuse the predictions that use them
+                        for (int i = 0; i < width; i++) {
+                            in.readUTF();
+                        }
+                        features = null;
+                        columns = null;
+                        schemaError = String.format("schema has %d columns, at most %d are allowed",
+                                width, ShardProtocol.MAX_COLUMNS);
+                        continue;
+                    }
+
+                    String[] names = new String[width];
+                    for (int i = 0; i < names.length; i++) {
+                        names[i] = in.readUTF();
+                    }
+                    features = Features.of(names);
+                    try {
+                        columns = new int[trees.length][];
+                        for (int t = 0; t < trees.length; t++) {
+                            columns[t] = trees[t].bind(features);
+                        }
+                        schemaError = null;
+                    } catch (IllegalArgumentException e) {
+                        schemaError = e.getMessage();
+                    }
+                } else if (type == ShardProtocol.PREDICT) {
+                    int id = in.readInt();
+                    int rows = in.readInt();
+                    long size = (long) rows * width;
+                    if (rows < 0 || size > ShardProtocol.MAX_BATCH_VALUES) {
+                        // the values are not read, so the connection is out of step and is closed
+                        out.writeInt(id);
+                        out.writeByte(ShardProtocol.ERROR);
+                        out.writeUTF(String.format("%d rows of %d columns is not a batch of at most %d values",
+                                rows, width, ShardProtocol.MAX_BATCH_VALUES));
+                        out.flush();
+                        return;
+                    }
+
+                    double[] values = new double[(int) size];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = in.readDouble();
+                    }
+
+                    out.writeInt(id);
+                    if (features == null || schemaError != null) {
+                        out.writeByte(ShardProtocol.ERROR);
+                        out.writeUTF(schemaError != null ? schemaError : "no schema was sent");
+                    } else {
+                        predict(FeatureMatrix.wrap(features, values, 0, rows, width, 1), columns, out);
+                    }
+                    out.flush();
+                } else {
+                    throw new IOException(String.format("unknown message type %d", type));
+                }
+            }
+        } catch (IOException e) {
+            if (!server.isClosed()) {
+                LOG.debug("connection closed", e);
+            }
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    private void predict(FeatureMatrix rows, int[][] columns, DataOutputStream out) throws IOException {
+        int[] votes = new int[rows.getRowCount() * classes];
+        double[] probability = new double[rows.getRowCount() * classes];
+        try {
+            for (int row = 0; row < rows.getRowCount(); row++) {
+                for (int t = 0; t < trees.length; t++) {
+                    int slot = trees[t].findLeaf(rows, row, columns[t]);
+                    votes[row * classes + trees[t].getLeafClass(slot)]++;
+                    trees[t].addProbability(slot, probability, row * classes);
+                }
+            }
+        } catch (RuntimeException e) {
+            out.writeByte(ShardProtocol.ERROR);
+            out.writeUTF(String.valueOf(e.getMessage()));
+            return;
+        }
+
+        out.writeByte(ShardProtocol.OK);
+        out.writeInt(rows.getRowCount());
+        for (int row = 0; row < rows.getRowCount(); row++) {
+            for (int k = 0; k < classes; k++) {
+                out.writeInt(votes[row * classes + k]);
+            }
+            for (int k = 0; k < classes; k++) {
+                out.writeDouble(probability[row * classes + k]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardWorker{" + "trees=" + trees.length + ", port=" + getPort()
+                + ", labels=" + Arrays.toString(labels) + '}';
+    }
+}
@@ -0,0 +1,462 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rocks.vilaverde.classifier.Classifier;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Features;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A random forest whose trees are split into shards, each evaluated by a {@link ShardWorker} in
+ * another process. Every prediction is sent to all the shards at once, and the votes and
+ * probability sums they answer with are added up into the prediction of the whole forest.
+ * <p>
+ * A shard that does not answer before the timeout, or whose connection fails, is left out of the
+ * prediction instead of failing it: the prediction is then made from the trees of the shards that
+ * did answer, and {@link ShardedPrediction#isPartial()} tells the caller. The connection to the
+ * shard is closed and opened again by the next prediction.
+ * <p>
+ * The probabilities are the same as the forest evaluated in one process. When classes tie on
+ * votes the class with the lowest index is predicted.
+ * @param <T> the Prediction Class
+ */
+public final class ShardedForestClassifier<T> implements Classifier<T>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedForestClassifier.class);
+
+    /**
+     * Connect to the workers serving the shards of a forest.
+     * @param shards the addresses of the workers, one per shard
+     * @param factory the factory for creating the prediction class from the labels of the shards
+     * @param timeout how long a prediction waits for the shards to answer
+     * @return the ShardedForestClassifier
+     * @param <T> the classifier type
+     */
+    public static <T> ShardedForestClassifier<T> connect(List<InetSocketAddress> shards,
+                                                         PredictionFactory<T> factory,
+                                                         Duration timeout) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("at least one shard is required");
+        }
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+
+        ShardedForestClassifier<T> classifier = new ShardedForestClassifier<>(shards, factory, timeout);
+
+        // connect up front so the first prediction doesn't pay for it, a shard that can't be
+        // reached now is tried again by the next prediction
+        long deadline = System.nanoTime() + classifier.timeout;
+        for (Shard shard : classifier.shards) {
+            try {
+                shard.open(deadline);
+            } catch (IOException e) {
+                LOG.warn("failed to connect to shard {}", shard.address, e);
+            }
+        }
+        return classifier;
+    }
+
+    private final Shard[] shards;
+    private final PredictionFactory<T> factory;
+    private final long timeout;
+    private final ExecutorService executor;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Private constructor, use {@link #connect(List, PredictionFactory, Duration)} to create.
+     */
+    private ShardedForestClassifier(List<InetSocketAddress> shards, PredictionFactory<T> factory, Duration timeout) {
+        this.shards = new Shard[shards.size()];
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard(shards.get(i));
+        }
+        this.factory = factory;
+        this.timeout = timeout.toNanos();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "sharded-forest");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Predict class or regression value for features.
+     * @param samples features of the sample
+     * @return class probabilities of the input sample
+     */
+    @Override
+    public List<T> predict(FeatureVector ... samples) {
+        List<T> result = new ArrayList<>(samples.length);
+        for (ShardedPrediction<T> prediction : getClassification(samples)) {
+            result.add(prediction.get());
+        }
+        return result;
+    }
+
+    /**
+     * Predict class probabilities of the input samples features.
+     * The predicted class probability is the fraction of samples of the same class in a leaf.
+     * @param samples the input samples
+     * @return the class probabilities of the input sample
+     */
+    @Override
+    public double[][] predict_proba(FeatureVector ... samples) {
+        List<ShardedPrediction<T>> predictions = getClassification(samples);
+        double[][] probabilities = new double[samples.length][];
+        for (int i = 0; i < probabilities.length; i++) {
+            probabilities[i] = predictions.get(i).getProbability();
+        }
+        return probabilities;
+    }
+
+    @Override
+    @Deprecated
+    public T predict(Map<String, Double> samples) {
+        return predict(toFeatureVector(samples)).get(0);
+    }
+
+    @Override
+    @Deprecated
+    public double[] predict_proba(Map<String, Double> samples) {
+        return predict_proba(toFeatureVector(samples))[0];
+    }
+
+    /**
+     * Get the prediction of the forest for every sample, telling which were made by only part
+     * of the forest. Samples sharing the same Features are sent to the shards together.
+     * @param samples the input samples
+     * @return the prediction of each sample
+     * @throws RuntimeException when none of the shards answered in time
+     */
+    public List<ShardedPrediction<T>> getClassification(FeatureVector ... samples) {
+        List<ShardedPrediction<T>> result = new ArrayList<>(samples.length);
+        long deadline = System.nanoTime() + timeout;
+
+        int start = 0;
+        while (start < samples.length) {
+            Features features = samples[start].getFeatures();
+            int width = features.getLength();
+            if (width > ShardProtocol.MAX_COLUMNS) {
+                throw new IllegalArgumentException(String.format("samples have %d features, at most %d can be sent",
+                        width, ShardProtocol.MAX_COLUMNS));
+            }
+
+            // a long run of samples is sent in batches the workers accept
+            int end = start + 1;
+            while (end < samples.length && samples[end].getFeatures() == features
+                    && (end - start + 1L) * width <= ShardProtocol.MAX_BATCH_VALUES) {
+                end++;
+            }
+
+            double[] values = new double[(end - start) * width];
+            for (int row = start; row < end; row++) {
+                for (int f = 0; f < width; f++) {
+                    values[(row - start) * width + f] = samples[row].get(f);
+                }
+            }
+
+            result.addAll(dispatch(features, values, end - start, deadline));
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * Get the names of all the features in the model, as told by the shards connected so far.
+     * @return set of unique features used in the model
+     */
+    @Override
+    public Set<String> getFeatureNames() {
+        Set<String> names = new HashSet<>();
+        for (Shard shard : shards) {
+            names.addAll(shard.featureNames);
+        }
+        return names;
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Close the connections to the shards.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Send the rows to every shard in parallel, and add up the answers that arrive before the
+     * deadline.
+     */
+    private List<ShardedPrediction<T>> dispatch(Features features, double[] values, int rows, long deadline) {
+        int id = requests.incrementAndGet();
+        List<Future<Response>> futures = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            futures.add(executor.submit(() -> shard.call(id, features, values, rows, deadline)));
+        }
+
+        int classes = -1;
+        int trees = 0;
+        int answered = 0;
+        int[] votes = null;
+        double[] probability = null;
+        Object[] labels = null;
+
+        for (int s = 0; s < shards.length; s++) {
+            Response response;
+            try {
+                long remaining = deadline - System.nanoTime();
+                response = futures.get(s).get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // the read of the shard times out at the deadline too, which closes its connection
+                futures.get(s).cancel(true);
+                LOG.warn("shard {} did not answer request {} in time", shards[s].address, id);
+                continue;
+            } catch (ExecutionException e) {
+                LOG.warn("shard {} failed request {}", shards[s].address, id, e.getCause());
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted waiting for the shards", e);
+            }
+
+            if (classes < 0) {
+                classes = response.classes;
+                votes = new int[rows * classes];
+                probability = new double[rows * classes];
+                labels = new Object[classes];
+            } else if (response.classes != classes) {
+                LOG.warn("shard {} has {} classes, expected {}", shards[s].address, response.classes, classes);
+                continue;
+            }
+
+            for (int i = 0; i < votes.length; i++) {
+                votes[i] += response.votes[i];
+                probability[i] += response.probability[i];
+            }
+            for (int k = 0; k < classes; k++) {
+                if (labels[k] == null && response.labels[k] != null) {
+                    labels[k] = factory.create(response.labels[k]);
+                }
+            }
+            trees += response.trees;
+            answered++;
+        }
+
+        if (answered == 0) {
+            throw new RuntimeException(String.format("none of the %d shards answered in time", shards.length));
+        }
+
+        List<ShardedPrediction<T>> result = new ArrayList<>(rows);
+        for (int row = 0; row < rows; row++) {
+            result.add(new ShardedPrediction<>(labels, votes, probability, row * classes, classes,
+                    trees, answered < shards.length));
+        }
+        return result;
+    }
+
+    private static FeatureVector toFeatureVector(Map<String, Double> samples) {
+        FeatureVector fv = new FeatureVector(Features.fromSet(samples.keySet()));
+        for (Map.Entry<String, Double> entry : samples.entrySet()) {
+            fv.add(entry.getKey(), entry.getValue());
+        }
+        return fv;
+    }
+
+    /**
+     * The answer of one shard to a request.
+     */
+    private static final class Response {
+        private final int trees;
+        private final int classes;
+        private final String[] labels;
+        private final int[] votes;
+        private final double[] probability;
+
+        private Response(int trees, int classes, String[] labels, int[] votes, double[] probability) {
+            this.trees = trees;
+            this.classes = classes;
+            this.labels = labels;
+            this.votes = votes;
+            this.probability = probability;
+        }
+    }
+
+    /**
+     * The connection to one worker. Requests to the same shard are sent one at a time, and any
+     * failure closes the connection so a late answer can never be read by the next request.
+     */
+    private static final class Shard {
+        private final InetSocketAddress address;
+        private volatile Set<String> featureNames = Set.of();
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private Features schema;
+        private int schemaLength;
+        private int trees;
+        private int classes;
+        private String[] labels;
+
+        private Shard(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        private synchronized void open(long deadline) throws IOException {
+            if (socket != null) {
+                return;
+            }
+
+            Socket connection = new Socket();
+            try {
+                connection.setTcpNoDelay(true);
+                connection.connect(address, remainingMillis(deadline));
+                connection.setSoTimeout(remainingMillis(deadline));
+                DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+
+                if (input.readInt() != ShardProtocol.MAGIC) {
+                    throw new IOException(String.format("%s is not a shard worker", address));
+                }
+                int version = input.readInt();
+                if (version != ShardProtocol.VERSION) {
+                    throw new IOException(String.format("shard %s speaks version %d, expected %d",
+                            address, version, ShardProtocol.VERSION));
+                }
+                trees = input.readInt();
+                classes = input.readInt();
+                labels = new String[classes];
+                for (int k = 0; k < classes; k++) {
+                    boolean known = input.readBoolean();
+                    String label = input.readUTF();
+                    labels[k] = known ? label : null;
+                }
+                Set<String> names = new HashSet<>();
+                for (int n = input.readInt(); n > 0; n--) {
+                    names.add(input.readUTF());
+                }
+                featureNames = names;
+
+                socket = connection;
+                in = input;
+                out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                schema = null;
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        private synchronized Response call(int id, Features features, double[] values, int rows, long deadline)
+                throws IOException {
+            try {
+                open(deadline);
+
+                if (schema != features || schemaLength != features.getLength()) {
+                    String[] names = new String[features.getLength()];
+                    for (String name : features.getFeatureNames()) {
+                        names[features.getFeatureIndex(name)] = name;
+                    }
+                    out.writeByte(ShardProtocol.SCHEMA);
+                    out.writeInt(names.length);
+                    for (String name : names) {
+                        out.writeUTF(name);
+                    }
+                    schema = features;
+                    schemaLength = names.length;
+                }
+
+                out.writeByte(ShardProtocol.PREDICT);
+                out.writeInt(id);
+                out.writeInt(rows);
+                for (double value : values) {
+                    out.writeDouble(value);
+                }
+                out.flush();
+
+                socket.setSoTimeout(remainingMillis(deadline));
+                if (in.readInt() != id) {
+                    throw new IOException(String.format("shard %s answered another request", address));
+                }
+                if (in.readByte() != ShardProtocol.OK) {
+                    // the connection is still in step, only this request failed
+                    throw new IllegalStateException(String.format("shard %s failed: %s", address, in.readUTF()));
+                }
+                if (in.readInt() != rows) {
+                    throw new IOException(String.format("shard %s answered for another number of rows", address));
+                }
+
+                int[] votes = new int[rows * classes];
+                double[] probability = new double[rows * classes];
+                for (int row = 0; row < rows; row++) {
+                    for (int k = 0; k < classes; k++) {
+                        votes[row * classes + k] = in.readInt();
+                    }
+                    for (int k = 0; k < classes; k++) {
+                        probability[row * classes + k] = in.readDouble();
+                    }
+                }
+                return new Response(trees, classes, labels, votes, probability);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private synchronized void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    LOG.debug("failed to close the connection to shard {}", address, e);
+                }
+                socket = null;
+                in = null;
+                out = null;
+                schema = null;
+            }
+        }
+
+        /**
+         * The time left until the deadline, as a socket timeout where 0 would mean forever.
+         */
+        private static int remainingMillis(long deadline) throws IOException {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("deadline passed");
+            }
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+}
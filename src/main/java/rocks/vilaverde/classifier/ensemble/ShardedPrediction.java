@@ -0,0 +1,82 @@
+package rocks.vilaverde.classifier.ensemble;
+
+import rocks.vilaverde.classifier.Prediction;
+import rocks.vilaverde.classifier.dt.CompiledTree;
+
+/**
+ * The prediction of a {@link ShardedForestClassifier}, added up from the shards that answered.
+ * @param <T> the Prediction Class
+ */
+public final class ShardedPrediction<T> implements Prediction<T> {
+    private final Object[] labels;
+    private final int[] votes;
+    private final double[] probability;
+    private final int offset;
+    private final int classes;
+    private final int trees;
+    private final boolean partial;
+
+    /**
+     * Constructor
+     * @param labels the label of each class
+     * @param votes the votes of the trees for each class, of all the rows of the request
+     * @param probability the sums of the class probabilities of the trees, of all the rows
+     * @param offset the index of the first class of this row
+     * @param classes the number of classes
+     * @param trees the number of trees that contributed
+     * @param partial true when some shards did not answer
+     */
+    ShardedPrediction(Object[] labels, int[] votes, double[] probability, int offset, int classes,
+                      int trees, boolean partial) {
+        this.labels = labels;
+        this.votes = votes;
+        this.probability = probability;
+        this.offset = offset;
+        this.classes = classes;
+        this.trees = trees;
+        this.partial = partial;
+    }
+
+    /**
+     * @return The class with the most votes, the lowest class index when classes tie like
+     *         {@link RandomForestClassifier#predict(rocks.vilaverde.classifier.FeatureVector...)}.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get() {
+        int best = CompiledTree.argMax(votes, offset, classes);
+        if (votes[offset + best] == 0 || labels[best] == null) {
+            throw new IllegalStateException("no classification");
+        }
+        return (T) labels[best];
+    }
+
+    /**
+     * @return the probability averaged over the trees that contributed
+     */
+    @Override
+    public double[] getProbability() {
+        double[] result = new double[classes];
+        for (int k = 0; k < classes; k++) {
+            result[k] = probability[offset + k] / trees;
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of trees the prediction was made from.
+     * @return the tree count
+     */
+    public int getTreeCount() {
+        return trees;
+    }
+
+    /**
+     * Returns true when some shards did not answer in time, so the prediction was made from
+     * only part of the forest.
+     * @return boolean
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+}
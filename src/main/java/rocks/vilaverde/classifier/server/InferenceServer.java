@@ -0,0 +1,440 @@
+package rocks.vilaverde.classifier.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rocks.vilaverde.classifier.Features;
+import rocks.vilaverde.classifier.cli.BatchScorer;
+import rocks.vilaverde.classifier.dt.TreeClassifier;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves tree and forest models over HTTP with the web server built into the JDK, so nothing but
+ * the JVM is needed. The rows of concurrent requests are coalesced into batches that are scored
+ * by a fixed pool of workers, see {@link RequestBatcher}. Connections are kept alive between
+ * requests.
+ * <p>
+ * The endpoints are:
+ * <ul>
+ *     <li>{@code POST /models/<name>/predict}: scores rows with a model, answering with the index
+ *     of the predicted class and the class probabilities of every row</li>
+ *     <li>{@code GET /health}: the status of the server and the names of its models</li>
+ *     <li>{@code GET /metrics}: request, row and batch counters in the Prometheus text format</li>
+ * </ul>
+ * A prediction request with a {@code Content-Type} of {@code application/json} looks like
+ * {@code {"features": ["a", "b"], "rows": [[1.0, 2.0], [3.0, 4.0]]}} and is answered with
+ * {@code {"classes": [0, 1], "probabilities": [[0.9, 0.1], [0.2, 0.8]]}}.
+ * <p>
+ * With a {@code Content-Type} of {@code application/octet-stream} the request is little-endian
+ * binary: the int32 number of columns, for each column the int32 length and the UTF-8 bytes of
+ * its feature name, the int32 number of rows and the float64 values of the rows in row major
+ * order. It is answered with the int32 number of rows, the int32 number of classes, the int32
+ * class index of every row and the float64 class probabilities of every row.
+ */
+public final class InferenceServer implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(InferenceServer.class);
+
+    static final String JSON = "application/json";
+    static final String BINARY = "application/octet-stream";
+
+    private static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_CACHED_SCHEMAS = 1024;
+
+    private final Map<String, TreeClassifier<?>> models;
+    private final RequestBatcher batcher;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final Map<List<String>, Features> schemas = new ConcurrentHashMap<>();
+    private final int handlers;
+    private HttpServer server;
+    private ExecutorService handlerPool;
+    private volatile boolean closed;
+
+    /**
+     * Run the server from the command line.
+     * @param args the command line arguments
+     * @throws Exception when a model can't be loaded or the port can't be opened
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException(String.format("unexpected argument '%s'", args[i]));
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        if (!options.containsKey("models")) {
+            System.err.println("usage: InferenceServer --models name=<tree.txt|forest.tgz>,...\n"
+                    + "         [--port n] [--threads n] [--max-batch rows] [--max-delay-ms n] [--max-queued-rows n]");
+            System.exit(2);
+            return;
+        }
+
+        Map<String, TreeClassifier<?>> models = new LinkedHashMap<>();
+        for (String model : options.get("models").split(",")) {
+            int split = model.indexOf('=');
+            if (split < 1) {
+                throw new IllegalArgumentException(String.format("model '%s' is not name=path", model));
+            }
+            models.put(model.substring(0, split), BatchScorer.loadModel(Paths.get(model.substring(split + 1))));
+        }
+
+        InferenceServer server = new InferenceServer(models,
+                Integer.parseInt(options.getOrDefault("threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(options.getOrDefault("max-batch", "256")),
+                Duration.ofMillis(Long.parseLong(options.getOrDefault("max-delay-ms", "1"))),
+                Integer.parseInt(options.getOrDefault("max-queued-rows", "65536")));
+        server.start(new InetSocketAddress(Integer.parseInt(options.getOrDefault("port", "8080"))));
+        System.err.printf("serving %s on port %d%n", models.keySet(), server.getPort());
+    }
+
+    /**
+     * Constructor, the server is started by {@link #start(InetSocketAddress)}.
+     * @param models the models by the name used in the request path
+     * @param threads the number of workers scoring batches
+     * @param maxBatch the number of rows after which a batch stops waiting for more requests
+     * @param maxDelay how long a batch waits for more requests, zero to only take the requests
+     *                 already waiting
+     * @param maxQueuedRows the most rows that can wait to be scored, requests beyond it are
+     *                      answered with 503
+     */
+    public InferenceServer(Map<String, ? extends TreeClassifier<?>> models, int threads, int maxBatch,
+                           Duration maxDelay, int maxQueuedRows) {
+        if (threads < 1 || maxBatch < 1 || maxQueuedRows < 1 || maxDelay.isNegative()) {
+            throw new IllegalArgumentException("threads, batch size and queue size must be positive");
+        }
+        for (Map.Entry<String, ? extends TreeClassifier<?>> entry : models.entrySet()) {
+            if (entry.getValue().getClassCount() == 0) {
+                throw new IllegalArgumentException(String.format("model '%s' must be exported with show_weights=True",
+                        entry.getKey()));
+            }
+        }
+
+        this.models = new LinkedHashMap<>(models);
+        // a handler waits while its rows are queued, so there are enough of them to fill the batches
+        this.handlers = Math.max(16, threads * 4);
+        this.batcher = new RequestBatcher(threads, maxBatch, maxDelay.toNanos(), maxQueuedRows, metrics);
+    }
+
+    /**
+     * Start serving.
+     * @param address the address to listen on, port 0 for any free port
+     * @throws IOException when the address can't be bound
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (server != null || closed) {
+            throw new IllegalStateException("server can only be started once");
+        }
+
+        server = HttpServer.create(address, 0);
+        handlerPool = Executors.newFixedThreadPool(handlers, runnable -> {
+            Thread thread = new Thread(runnable, "inference-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(handlerPool);
+        server.createContext("/models/", closing(this::predict));
+        server.createContext("/health", closing(this::health));
+        server.createContext("/metrics", closing(this::metrics));
+        server.start();
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop serving, waiting up to a second for the requests being answered.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (server != null) {
+            server.stop(1);
+            handlerPool.shutdownNow();
+        }
+        batcher.close();
+    }
+
+    private void predict(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        String[] path = exchange.getRequestURI().getPath().split("/");
+        if (path.length != 4 || !path[3].equals("predict")) {
+            error(exchange, 404, "not found");
+            return;
+        }
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            error(exchange, 405, "use POST");
+            return;
+        }
+        TreeClassifier<?> model = models.get(path[2]);
+        if (model == null) {
+            error(exchange, 404, String.format("no model named '%s'", path[2]));
+            return;
+        }
+
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean binary = type != null && type.startsWith(BINARY);
+        if (!binary && (type != null && !type.startsWith(JSON))) {
+            error(exchange, 415, String.format("content type must be %s or %s", JSON, BINARY));
+            return;
+        }
+
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            error(exchange, 413, String.format("request is larger than %d bytes", MAX_BODY_BYTES));
+            return;
+        }
+
+        RequestBatcher.Request request;
+        RequestBatcher.Scores scores;
+        try {
+            request = binary ? readBinary(model, body) : readJson(model, body);
+            batcher.submit(request);
+            scores = request.getResult().join();
+        } catch (IllegalArgumentException e) {
+            metrics.error();
+            error(exchange, 400, e.getMessage());
+            return;
+        } catch (RejectedExecutionException e) {
+            metrics.rejected();
+            error(exchange, 503, e.getMessage());
+            return;
+        } catch (CompletionException e) {
+            metrics.error();
+            if (e.getCause() instanceof IllegalArgumentException) {
+                error(exchange, 400, e.getCause().getMessage());
+            } else if (e.getCause() instanceof RejectedExecutionException) {
+                error(exchange, 503, e.getCause().getMessage());
+            } else {
+                LOG.warn("failed to score a request for model '{}'", path[2], e.getCause());
+                error(exchange, 500, String.valueOf(e.getCause().getMessage()));
+            }
+            return;
+        }
+
+        byte[] response = binary ? writeBinary(scores) : writeJson(scores).getBytes(StandardCharsets.UTF_8);
+        metrics.request(scores.rows, System.nanoTime() - start);
+        send(exchange, 200, binary ? BINARY : JSON, response);
+    }
+
+    private void health(HttpExchange exchange) throws IOException {
+        StringBuilder out = new StringBuilder("{\"status\":");
+        Json.quote(out, closed ? "DOWN" : "UP");
+        out.append(",\"models\":[");
+        int i = 0;
+        for (String name : models.keySet()) {
+            if (i++ > 0) {
+                out.append(',');
+            }
+            Json.quote(out, name);
+        }
+        out.append("]}");
+        send(exchange, closed ? 503 : 200, JSON, out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        StringBuilder out = new StringBuilder();
+        metrics.write(out, batcher.getQueuedRows());
+        send(exchange, 200, "text/plain; version=0.0.4", out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read the whole body, which has to be done for the connection to be kept alive.
+     * @return the body, or null when it is too large
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && Long.parseLong(length) > MAX_BODY_BYTES) {
+            return null;
+        }
+
+        InputStream in = exchange.getRequestBody();
+        byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+        return body.length > MAX_BODY_BYTES ? null : body;
+    }
+
+    private RequestBatcher.Request readJson(TreeClassifier<?> model, byte[] body) {
+        Object document = Json.parse(new String(body, StandardCharsets.UTF_8));
+        if (!(document instanceof Map)) {
+            throw new IllegalArgumentException("request must be a JSON object");
+        }
+        Map<?, ?> request = (Map<?, ?>) document;
+        if (!(request.get("features") instanceof List) || !(request.get("rows") instanceof List)) {
+            throw new IllegalArgumentException("request needs 'features' and 'rows' arrays");
+        }
+
+        List<String> names = new ArrayList<>();
+        for (Object name : (List<?>) request.get("features")) {
+            if (!(name instanceof String)) {
+                throw new IllegalArgumentException("features must be strings");
+            }
+            names.add((String) name);
+        }
+
+        List<?> rows = (List<?>) request.get("rows");
+        int width = names.size();
+        double[] values = new double[rows.size() * width];
+        for (int row = 0; row < rows.size(); row++) {
+            if (!(rows.get(row) instanceof List) || ((List<?>) rows.get(row)).size() != width) {
+                throw new IllegalArgumentException(String.format("row %d must be an array of %d numbers", row, width));
+            }
+            List<?> columns = (List<?>) rows.get(row);
+            for (int f = 0; f < width; f++) {
+                if (!(columns.get(f) instanceof Double)) {
+                    throw new IllegalArgumentException(String.format("row %d must be an array of %d numbers", row, width));
+                }
+                values[row * width + f] = (Double) columns.get(f);
+            }
+        }
+
+        return new RequestBatcher.Request(model, getFeatures(names), values, rows.size());
+    }
+
+    private RequestBatcher.Request readBinary(TreeClassifier<?> model, byte[] body) {
+        ByteBuffer in = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int width = in.getInt();
+            if (width < 0 || width > in.remaining()) {
+                throw new IllegalArgumentException(String.format("invalid number of columns %d", width));
+            }
+            List<String> names = new ArrayList<>(width);
+            for (int f = 0; f < width; f++) {
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new IllegalArgumentException(String.format("invalid length %d for column %d", length, f));
+                }
+                byte[] name = new byte[length];
+                in.get(name);
+                names.add(new String(name, StandardCharsets.UTF_8));
+            }
+
+            int rows = in.getInt();
+            if (rows < 0 || (long) rows * width * Double.BYTES != in.remaining()) {
+                throw new IllegalArgumentException(String.format("body does not hold %d rows of %d columns", rows, width));
+            }
+            double[] values = new double[rows * width];
+            in.asDoubleBuffer().get(values);
+
+            return new RequestBatcher.Request(model, getFeatures(names), values, rows);
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException) {
+                throw e;
+            }
+            throw new IllegalArgumentException("truncated binary request", e);
+        }
+    }
+
+    private static String writeJson(RequestBatcher.Scores scores) {
+        StringBuilder out = new StringBuilder(32 + scores.rows * (8 + scores.classes * 20));
+        out.append("{\"classes\":[");
+        for (int row = 0; row < scores.rows; row++) {
+            if (row > 0) {
+                out.append(',');
+            }
+            out.append(scores.predicted[row]);
+        }
+        out.append("],\"probabilities\":[");
+        for (int row = 0; row < scores.rows; row++) {
+            out.append(row > 0 ? ",[" : "[");
+            for (int k = 0; k < scores.classes; k++) {
+                if (k > 0) {
+                    out.append(',');
+                }
+                out.append(scores.probabilities[row * scores.classes + k]);
+            }
+            out.append(']');
+        }
+        return out.append("]}").toString();
+    }
+
+    private static byte[] writeBinary(RequestBatcher.Scores scores) {
+        ByteBuffer out = ByteBuffer.allocate(8 + scores.rows * Integer.BYTES
+                + scores.rows * scores.classes * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(scores.rows).putInt(scores.classes);
+        for (int row = 0; row < scores.rows; row++) {
+            out.putInt(scores.predicted[row]);
+        }
+        for (int i = 0; i < scores.rows * scores.classes; i++) {
+            out.putDouble(scores.probabilities[i]);
+        }
+        return out.array();
+    }
+
+    /**
+     * Get the Features of the columns of a request, the same instance for requests with the same
+     * columns so that their rows can be batched together.
+     */
+    private Features getFeatures(List<String> names) {
+        Features features = schemas.get(names);
+        if (features != null) {
+            return features;
+        }
+
+        features = Features.of(names.toArray(new String[0]));
+        if (schemas.size() < MAX_CACHED_SCHEMAS) {
+            Features existing = schemas.putIfAbsent(names, features);
+            return existing != null ? existing : features;
+        }
+        return features;
+    }
+
+    /**
+     * Close the exchange once handled, which ends the response when the handler failed.
+     */
+    private static HttpHandler closing(HttpHandler handler) {
+        return exchange -> {
+            try {
+                handler.handle(exchange);
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static void error(HttpExchange exchange, int status, String message) throws IOException {
+        StringBuilder out = new StringBuilder("{\"error\":");
+        Json.quote(out, String.valueOf(message));
+        send(exchange, status, JSON, out.append('}').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InferenceServer{" + "models=" + models.keySet() + ", port="
+                + (server == null ? "none" : String.valueOf(getPort())) + ", batches=" + metrics.getBatches() + '}';
+    }
+}
@@ -0,0 +1,214 @@
+package rocks.vilaverde.classifier.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the requests and responses of the {@link InferenceServer}, so the server
+ * needs no dependency. Objects are parsed to a {@link Map}, arrays to a {@link List}, numbers to
+ * {@link Double}, and strings, booleans and null to their Java counterparts.
+ */
+final class Json {
+
+    private final String text;
+    private int position;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parse a JSON document.
+     * @param text the document
+     * @return the parsed value
+     * @throws IllegalArgumentException when the document is not valid JSON
+     */
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.value();
+        json.skipWhitespace();
+        if (json.position != text.length()) {
+            throw json.error("unexpected content after the value");
+        }
+        return value;
+    }
+
+    /**
+     * Append a string to a JSON document, quoted and escaped.
+     * @param out the document
+     * @param value the string
+     */
+    static void quote(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    private Object value() {
+        skipWhitespace();
+        if (position >= text.length()) {
+            throw error("unexpected end of the document");
+        }
+
+        char c = text.charAt(position);
+        switch (c) {
+            case '{': return object();
+            case '[': return array();
+            case '"': return string();
+            case 't': return literal("true", Boolean.TRUE);
+            case 'f': return literal("false", Boolean.FALSE);
+            case 'n': return literal("null", null);
+            default: return number();
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        position++;
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return map;
+        }
+
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("expected a member name");
+            }
+            String name = string();
+            skipWhitespace();
+            expect(':');
+            map.put(name, value());
+            skipWhitespace();
+            if (peek() == ',') {
+                position++;
+            } else {
+                expect('}');
+                return map;
+            }
+        }
+    }
+
+    private List<Object> array() {
+        List<Object> list = new ArrayList<>();
+        position++;
+        skipWhitespace();
+        if (peek() == ']') {
+            position++;
+            return list;
+        }
+
+        while (true) {
+            list.add(value());
+            skipWhitespace();
+            if (peek() == ',') {
+                position++;
+            } else {
+                expect(']');
+                return list;
+            }
+        }
+    }
+
+    private String string() {
+        StringBuilder out = new StringBuilder();
+        position++;
+        while (position < text.length()) {
+            char c = text.charAt(position++);
+            if (c == '"') {
+                return out.toString();
+            }
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+
+            if (position >= text.length()) {
+                break;
+            }
+            char escaped = text.charAt(position++);
+            switch (escaped) {
+                case '"': case '\\': case '/': out.append(escaped); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'u':
+                    if (position + 4 > text.length()) {
+                        throw error("truncated unicode escape");
+                    }
+                    try {
+                        out.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("invalid unicode escape");
+                    }
+                    position += 4;
+                    break;
+                default:
+                    throw error(String.format("invalid escape '\\%c'", escaped));
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    private Double number() {
+        int start = position;
+        while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+            position++;
+        }
+        try {
+            return Double.parseDouble(text.substring(start, position));
+        } catch (NumberFormatException e) {
+            position = start;
+            throw error("expected a value");
+        }
+    }
+
+    private Object literal(String word, Object value) {
+        if (!text.startsWith(word, position)) {
+            throw error("expected a value");
+        }
+        position += word.length();
+        return value;
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error(String.format("expected '%c'", c));
+        }
+        position++;
+    }
+
+    private char peek() {
+        return position < text.length() ? text.charAt(position) : 0;
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(String.format("invalid JSON at offset %d: %s", position, message));
+    }
+}
@@ -0,0 +1,284 @@
+package rocks.vilaverde.classifier.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Features;
+import rocks.vilaverde.classifier.LazyFeatureVector;
+import rocks.vilaverde.classifier.Prediction;
+import rocks.vilaverde.classifier.dt.TreeClassifier;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Evaluates a primary model and any number of shadow models on the same samples, to compare a
+ * challenger with the champion on production traffic. The models share one {@link Features}
+ * schema: the features used by any of the models are bound to the columns of the schema once
+ * when the evaluator is created, and the values of each sample are gathered once into a vector
+ * that all of the models read.
+ * <p>
+ * The prediction of the primary model is returned on the calling thread. The shadow models are
+ * evaluated on the executor, one task per shadow, while the primary runs, and each of their
+ * results is handed to the {@link ShadowSink} together with the prediction of the primary. The
+ * primary never waits for a shadow and a shadow never waits for the primary, so an executor that
+ * runs tasks on the calling thread can't deadlock: a shadow that finishes first is reported from
+ * another task once the primary is done. Shadows the executor rejects are dropped and counted, the
+ * exception of a shadow that fails is in its result, and failures of the sink are only logged.
+ * @param <T> the Prediction Class
+ */
+public final class MultiModelEvaluator<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(MultiModelEvaluator.class);
+
+    /**
+     * Receives the results of the shadow models, on the threads of the executor.
+     * @param <T> the Prediction Class
+     */
+    public interface ShadowSink<T> {
+
+        /**
+         * Accept the result of a shadow model.
+         * @param result the result
+         */
+        void accept(ShadowResult<T> result);
+    }
+
+    private final Features features;
+    private final Features bound;
+    private final int[] columns;
+    private final TreeClassifier<T> primary;
+    private final Map<String, TreeClassifier<T>> shadows;
+    private final ShadowSink<T> sink;
+    private final ExecutorService executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Constructor
+     * @param features the schema of the samples, shared by all of the models
+     * @param primary the model whose predictions are returned
+     * @param shadows the shadow models by name
+     * @param sink receives the results of the shadow models
+     * @param executor runs the shadow models
+     * @throws IllegalArgumentException when a model uses a feature that is not in the schema
+     */
+    public MultiModelEvaluator(Features features, TreeClassifier<T> primary,
+                               Map<String, ? extends TreeClassifier<T>> shadows, ShadowSink<T> sink,
+                               ExecutorService executor) {
+        this.features = features;
+        this.primary = primary;
+        this.shadows = new LinkedHashMap<>(shadows);
+        this.sink = sink;
+        this.executor = executor;
+
+        Set<String> used = new HashSet<>(primary.getFeatureNames());
+        for (TreeClassifier<T> shadow : shadows.values()) {
+            used.addAll(shadow.getFeatureNames());
+        }
+        for (String name : used) {
+            if (!features.getFeatureNames().contains(name)) {
+                throw new IllegalArgumentException(String.format("expected feature named '%s' but none provided", name));
+            }
+        }
+
+        this.bound = features.project(used);
+        this.columns = new int[bound.getLength()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = bound.getSourceIndex(i);
+        }
+    }
+
+    /**
+     * Predict the class of the sample with the primary model, and start the shadow models on it.
+     * @param sample the sample, with the features of the evaluator
+     * @return the prediction of the primary model
+     * @throws IllegalArgumentException when the sample has other features than the evaluator
+     */
+    public Prediction<T> evaluate(FeatureVector sample) {
+        if (sample.getFeatures() != features) {
+            throw new IllegalArgumentException("sample must have the features of the evaluator");
+        }
+
+        // a lazy sample already computes each feature once for all the models that read it
+        FeatureVector shared = sample instanceof LazyFeatureVector ? sample : gather(sample);
+        long id = sequence.incrementAndGet();
+
+        CompletableFuture<Prediction<T>> champion = new CompletableFuture<>();
+        for (Map.Entry<String, TreeClassifier<T>> shadow : shadows.entrySet()) {
+            try {
+                executor.execute(() -> runShadow(id, shadow.getKey(), shadow.getValue(), shared, champion));
+            } catch (RejectedExecutionException e) {
+                dropped.increment();
+            }
+        }
+
+        Prediction<T> prediction = null;
+        try {
+            prediction = primary.getClassification(shared);
+            return prediction;
+        } finally {
+            // shadows waiting to report get null when the primary failed
+            champion.complete(prediction);
+        }
+    }
+
+    /**
+     * @return the number of shadow evaluations the executor rejected
+     */
+    public long getDroppedShadows() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the names of the shadow models
+     */
+    public Set<String> getShadowNames() {
+        return shadows.keySet();
+    }
+
+    /**
+     * Copy the values of the features used by the models into a dense vector.
+     */
+    private FeatureVector gather(FeatureVector sample) {
+        FeatureVector vector = new FeatureVector(bound);
+        for (int i = 0; i < columns.length; i++) {
+            vector.add(i, sample.get(columns[i]));
+        }
+        return vector;
+    }
+
+    private void runShadow(long id, String name, TreeClassifier<T> shadow, FeatureVector sample,
+                           CompletableFuture<Prediction<T>> champion) {
+        long start = System.nanoTime();
+        Prediction<T> prediction = null;
+        RuntimeException error = null;
+        try {
+            prediction = shadow.getClassification(sample);
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        long nanos = System.nanoTime() - start;
+
+        Prediction<T> shadowPrediction = prediction;
+        RuntimeException shadowError = error;
+        Consumer<Prediction<T>> report = primaryPrediction -> {
+            try {
+                sink.accept(new ShadowResult<>(id, name, sample, primaryPrediction, shadowPrediction, nanos,
+                        shadowError));
+            } catch (RuntimeException e) {
+                LOG.warn("shadow sink failed for model '{}'", name, e);
+            }
+        };
+
+        if (champion.isDone()) {
+            report.accept(champion.join());
+        } else {
+            // never wait for the primary, it may be waiting for this task when the executor runs
+            // tasks on the calling thread: report from another task once the primary is done
+            champion.thenAccept(primaryPrediction -> {
+                try {
+                    executor.execute(() -> report.accept(primaryPrediction));
+                } catch (RejectedExecutionException e) {
+                    dropped.increment();
+                }
+            });
+        }
+    }
+
+    /**
+     * The result of a shadow model for one sample.
+     * @param <T> the Prediction Class
+     */
+    public static final class ShadowResult<T> {
+        private final long sequence;
+        private final String model;
+        private final FeatureVector sample;
+        private final Prediction<T> primary;
+        private final Prediction<T> prediction;
+        private final long nanos;
+        private final RuntimeException error;
+
+        ShadowResult(long sequence, String model, FeatureVector sample, Prediction<T> primary,
+                     Prediction<T> prediction, long nanos, RuntimeException error) {
+            this.sequence = sequence;
+            this.model = model;
+            this.sample = sample;
+            this.primary = primary;
+            this.prediction = prediction;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        /**
+         * @return the number of the sample, counting from 1 in the order the samples were evaluated
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the name of the shadow model
+         */
+        public String getModel() {
+            return model;
+        }
+
+        /**
+         * @return the sample, holding only the features used by the models
+         */
+        public FeatureVector getSample() {
+            return sample;
+        }
+
+        /**
+         * @return the prediction of the primary model, null when it failed
+         */
+        public Prediction<T> getPrimary() {
+            return primary;
+        }
+
+        /**
+         * @return the prediction of the shadow model, null when it failed
+         */
+        public Prediction<T> getPrediction() {
+            return prediction;
+        }
+
+        /**
+         * @return true when both models predicted the same class
+         */
+        public boolean agrees() {
+            return primary != null && prediction != null && primary.get().equals(prediction.get());
+        }
+
+        /**
+         * @return the time the shadow model took, in nanoseconds
+         */
+        public long getLatencyNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the exception thrown by the shadow model, null when it succeeded
+         */
+        public RuntimeException getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "ShadowResult{" + "sequence=" + sequence + ", model='" + model + '\''
+                    + ", primary=" + (primary != null ? primary.get() : null)
+                    + ", prediction=" + (prediction != null ? prediction.get() : null)
+                    + ", nanos=" + nanos + ", error=" + error + '}';
+        }
+    }
+}
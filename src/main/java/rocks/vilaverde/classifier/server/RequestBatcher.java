@@ -0,0 +1,223 @@
+package rocks.vilaverde.classifier.server;
+
+import rocks.vilaverde.classifier.FeatureMatrix;
+import rocks.vilaverde.classifier.Features;
+import rocks.vilaverde.classifier.dt.TreeClassifier;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces the rows of concurrent requests into batches. A fixed pool of workers takes the first
+ * waiting request, waits up to the batching delay for more to arrive until the batch is full, and
+ * scores the rows of the requests for the same model and columns as one {@link FeatureMatrix}.
+ * The number of rows waiting is bounded, requests beyond it are rejected.
+ */
+final class RequestBatcher {
+
+    /**
+     * The rows of one request.
+     */
+    static final class Request {
+        private final TreeClassifier<?> model;
+        private final Features features;
+        private final double[] values;
+        private final int rows;
+        private final CompletableFuture<Scores> result = new CompletableFuture<>();
+
+        /**
+         * Constructor
+         * @param model the model to score with
+         * @param features the columns of the rows, shared by requests with the same columns
+         * @param values the rows in row major order
+         * @param rows the number of rows
+         */
+        Request(TreeClassifier<?> model, Features features, double[] values, int rows) {
+            this.model = model;
+            this.features = features;
+            this.values = values;
+            this.rows = rows;
+        }
+
+        CompletableFuture<Scores> getResult() {
+            return result;
+        }
+    }
+
+    /**
+     * The predicted class index and the class probabilities of the rows of a request.
+     */
+    static final class Scores {
+        final int rows;
+        final int classes;
+        final int[] predicted;
+        final double[] probabilities;
+
+        private Scores(int rows, int classes, int[] predicted, double[] probabilities) {
+            this.rows = rows;
+            this.classes = classes;
+            this.predicted = predicted;
+            this.probabilities = probabilities;
+        }
+    }
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger queuedRows = new AtomicInteger();
+    private final int maxBatch;
+    private final long maxDelay;
+    private final int maxQueuedRows;
+    private final ServerMetrics metrics;
+    private final ExecutorService workers;
+
+    /**
+     * Constructor, starting the workers.
+     * @param threads the number of workers scoring batches
+     * @param maxBatch the number of rows after which a batch stops waiting for more requests
+     * @param maxDelayNanos how long a batch waits for more requests
+     * @param maxQueuedRows the most rows that can wait to be scored
+     * @param metrics counts the batches
+     */
+    RequestBatcher(int threads, int maxBatch, long maxDelayNanos, int maxQueuedRows, ServerMetrics metrics) {
+        this.maxBatch = maxBatch;
+        this.maxDelay = maxDelayNanos;
+        this.maxQueuedRows = maxQueuedRows;
+        this.metrics = metrics;
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "inference-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.execute(this::work);
+        }
+    }
+
+    /**
+     * Queue a request to be scored with the next batch.
+     * @param request the request
+     * @throws RejectedExecutionException when too many rows are waiting already
+     */
+    void submit(Request request) {
+        // a request larger than the limit is still taken when nothing else is waiting
+        int queued = queuedRows.addAndGet(request.rows);
+        if (queued > maxQueuedRows && queued != request.rows) {
+            queuedRows.addAndGet(-request.rows);
+            throw new RejectedExecutionException("too many rows are waiting to be scored");
+        }
+        queue.add(request);
+    }
+
+    int getQueuedRows() {
+        return queuedRows.get();
+    }
+
+    void close() {
+        workers.shutdownNow();
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.result.completeExceptionally(new RejectedExecutionException("server is closing"));
+        }
+    }
+
+    private void work() {
+        List<Request> batch = new ArrayList<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Request first = queue.take();
+                batch.add(first);
+                int rows = first.rows;
+
+                long deadline = System.nanoTime() + maxDelay;
+                while (rows < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    rows += next.rows;
+                }
+
+                queuedRows.addAndGet(-rows);
+                score(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            for (Request request : batch) {
+                request.result.completeExceptionally(new RejectedExecutionException("server is closing"));
+            }
+        }
+    }
+
+    /**
+     * Score the requests of the batch, one matrix for the requests with the same model and columns.
+     */
+    private void score(List<Request> batch) {
+        Map<List<Object>, List<Request>> groups = new LinkedHashMap<>();
+        for (Request request : batch) {
+            groups.computeIfAbsent(Arrays.asList(request.model, request.features), key -> new ArrayList<>())
+                    .add(request);
+        }
+
+        for (List<Request> group : groups.values()) {
+            try {
+                scoreGroup(group);
+            } catch (RuntimeException e) {
+                for (Request request : group) {
+                    request.result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private void scoreGroup(List<Request> group) {
+        Request first = group.get(0);
+        int width = first.features.getLength();
+        int rows = 0;
+        for (Request request : group) {
+            rows += request.rows;
+        }
+
+        double[] values = first.values;
+        if (group.size() > 1) {
+            values = new double[rows * width];
+            int offset = 0;
+            for (Request request : group) {
+                System.arraycopy(request.values, 0, values, offset, request.values.length);
+                offset += request.values.length;
+            }
+        }
+
+        int classes = first.model.getClassCount();
+        FeatureMatrix matrix = FeatureMatrix.wrap(first.features, values, 0, rows, width, 1);
+        double[] probabilities = new double[rows * classes];
+        first.model.predict_proba(matrix, DoubleBuffer.wrap(probabilities));
+        // the class the trees vote for, which is not always the most probable class of a forest
+        int[] classIndexes = new int[rows];
+        first.model.predict(matrix, IntBuffer.wrap(classIndexes));
+        metrics.batch();
+
+        int row = 0;
+        for (Request request : group) {
+            int[] predicted = group.size() == 1 ? classIndexes
+                    : Arrays.copyOfRange(classIndexes, row, row + request.rows);
+            double[] own = group.size() == 1 ? probabilities
+                    : Arrays.copyOfRange(probabilities, row * classes, (row + request.rows) * classes);
+            request.result.complete(new Scores(request.rows, classes, predicted, own));
+            row += request.rows;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package rocks.vilaverde.classifier.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the {@link InferenceServer}, written in the Prometheus text format by the metrics
+ * endpoint.
+ */
+final class ServerMetrics {
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+
+    void request(int rowCount, long nanos) {
+        requests.increment();
+        rows.add(rowCount);
+        latencyNanos.add(nanos);
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void batch() {
+        batches.increment();
+    }
+
+    long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Write the counters.
+     * @param out receives the metrics
+     * @param queuedRows the number of rows waiting to be scored
+     */
+    void write(StringBuilder out, int queuedRows) {
+        counter(out, "requests_total", "Prediction requests answered.", requests.sum());
+        counter(out, "request_errors_total", "Prediction requests that failed.", errors.sum());
+        counter(out, "requests_rejected_total", "Prediction requests rejected because the queue was full.",
+                rejected.sum());
+        counter(out, "rows_total", "Rows scored.", rows.sum());
+        counter(out, "batches_total", "Batches the rows of the requests were coalesced into.", batches.sum());
+
+        out.append("# HELP sklearn2java_request_seconds_sum Time spent answering prediction requests.\n")
+                .append("# TYPE sklearn2java_request_seconds_sum counter\n")
+                .append("sklearn2java_request_seconds_sum ")
+                .append(latencyNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+
+        out.append("# HELP sklearn2java_queued_rows Rows waiting to be scored.\n")
+                .append("# TYPE sklearn2java_queued_rows gauge\n")
+                .append("sklearn2java_queued_rows ").append(queuedRows).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP sklearn2java_").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE sklearn2java_").append(name).append(" counter\n")
+                .append("sklearn2java_").append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,260 @@
+package rocks.vilaverde.classifier.stream;
+
+import rocks.vilaverde.classifier.Classifier;
+import rocks.vilaverde.classifier.FeatureVector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Flow.Processor} that predicts the samples it receives with a {@link Classifier} and
+ * publishes the predictions, in the order the samples were received, to a single subscriber.
+ * <p>
+ * Samples are only requested from upstream as the subscriber requests predictions, so no more
+ * than {@code maxBatch} samples are ever buffered. Buffered samples are predicted in batches as
+ * large as the outstanding demand allows, by a single drain task at a time on the executor,
+ * rather than a task per sample.
+ * @param <T> the prediction class
+ */
+public class PredictionProcessor<T> implements Flow.Processor<FeatureVector, T> {
+
+    private static final int DEFAULT_MAX_BATCH = 256;
+
+    private final Classifier<T> classifier;
+    private final Executor executor;
+    private final int maxBatch;
+
+    private final Queue<FeatureVector> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super T> subscriber;
+    private volatile boolean done;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+
+    /* only accessed by the drain task */
+    private final List<FeatureVector> batch = new ArrayList<>();
+    private long requested;
+    private long received;
+    private boolean terminated;
+
+    /**
+     * Constructor, running the predictions on the common pool.
+     * @param classifier the classifier making the predictions
+     */
+    public PredictionProcessor(Classifier<T> classifier) {
+        this(classifier, ForkJoinPool.commonPool(), DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Constructor
+     * @param classifier the classifier making the predictions
+     * @param executor the executor the predictions run on
+     * @param maxBatch the largest number of samples buffered and predicted together
+     */
+    public PredictionProcessor(Classifier<T> classifier, Executor executor, int maxBatch) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be positive");
+        }
+
+        this.classifier = classifier;
+        this.executor = executor;
+        this.maxBatch = maxBatch;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        synchronized (this) {
+            if (this.subscriber != null) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("processor only supports a single subscriber"));
+                return;
+            }
+            this.subscriber = subscriber;
+        }
+
+        subscriber.onSubscribe(new PredictionSubscription());
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+
+        upstream = subscription;
+        drain();
+    }
+
+    @Override
+    public void onNext(FeatureVector item) {
+        queue.add(item);
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        drain();
+    }
+
+    /**
+     * Schedule the drain task unless it is already running, in which case it will loop again.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this::drainLoop);
+        }
+    }
+
+    private void drainLoop() {
+        int missed = 1;
+        do {
+            if (subscriber != null && !terminated) {
+                emit();
+                requestUpstream();
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Predict and publish batches of buffered samples while there is demand, then signal the
+     * end of the stream once upstream is done and the buffer is empty.
+     */
+    private void emit() {
+        while (true) {
+            if (cancelled) {
+                queue.clear();
+                return;
+            }
+
+            // errors are signalled right away, dropping the samples that were not predicted
+            if (done && error != null) {
+                queue.clear();
+                terminate(error);
+                return;
+            }
+
+            // read before polling, so an empty queue after a completed upstream is really the end
+            boolean upstreamDone = done;
+            long limit = Math.min(demand.get(), maxBatch);
+            FeatureVector sample;
+            while (batch.size() < limit && (sample = queue.poll()) != null) {
+                batch.add(sample);
+            }
+
+            if (batch.isEmpty()) {
+                if (upstreamDone && queue.isEmpty()) {
+                    terminate(null);
+                }
+                return;
+            }
+
+            received += batch.size();
+            List<T> predictions;
+            try {
+                predictions = classifier.predict(batch.toArray(new FeatureVector[0]));
+            } catch (RuntimeException e) {
+                batch.clear();
+                cancelUpstream();
+                terminate(e);
+                return;
+            }
+
+            demand.addAndGet(-batch.size());
+            batch.clear();
+            for (T prediction : predictions) {
+                subscriber.onNext(prediction);
+            }
+        }
+    }
+
+    /**
+     * Request enough samples from upstream to cover the demand, keeping at most maxBatch
+     * samples requested and not yet predicted.
+     */
+    private void requestUpstream() {
+        Flow.Subscription subscription = upstream;
+        if (subscription == null || done || cancelled || terminated) {
+            return;
+        }
+
+        long wanted = Math.min(demand.get(), maxBatch);
+        long outstanding = requested - received;
+        if (wanted > outstanding) {
+            requested += wanted - outstanding;
+            subscription.request(wanted - outstanding);
+        }
+    }
+
+    private void terminate(Throwable throwable) {
+        terminated = true;
+        if (throwable != null) {
+            subscriber.onError(throwable);
+        } else {
+            subscriber.onComplete();
+        }
+    }
+
+    private void cancelUpstream() {
+        Flow.Subscription subscription = upstream;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * The subscription given to the subscriber of the predictions.
+     */
+    private class PredictionSubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancelUpstream();
+                onError(new IllegalArgumentException("request must be positive"));
+                return;
+            }
+
+            demand.accumulateAndGet(n, (current, add) -> {
+                long sum = current + add;
+                return sum < 0 ? Long.MAX_VALUE : sum;
+            });
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            cancelUpstream();
+            drain();
+        }
+    }
+}
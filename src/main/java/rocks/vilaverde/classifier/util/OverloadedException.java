@@ -0,0 +1,31 @@
+package rocks.vilaverde.classifier.util;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when work is shed because the queue of a {@link PredictionScheduler} lane is full, so the
+ * caller can fail fast instead of waiting behind work it can't get ahead of.
+ */
+public class OverloadedException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String lane;
+
+    /**
+     * Constructor
+     * @param lane the name of the lane that was full
+     * @param queued the number of entries waiting in the lane
+     */
+    public OverloadedException(String lane, int queued) {
+        super(String.format("lane '%s' is overloaded with %d queued", lane, queued));
+        this.lane = lane;
+    }
+
+    /**
+     * @return the name of the lane that was full
+     */
+    public String getLane() {
+        return lane;
+    }
+}
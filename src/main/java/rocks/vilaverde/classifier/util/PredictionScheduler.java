@@ -0,0 +1,577 @@
+package rocks.vilaverde.classifier.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares one pool of threads between predictions of different latency classes. Work is submitted
+ * to a {@link Lane}, an {@link java.util.concurrent.ExecutorService} that can be passed anywhere
+ * the models take one, e.g.
+ * <pre>
+ *     PredictionScheduler scheduler = new PredictionScheduler(8);
+ *     Lane interactive = scheduler.addLane("interactive", 6, 64, 0);
+ *     Lane bulk = scheduler.addLane("bulk", 2, 16, 1024);
+ *     RandomForestClassifier&lt;Double&gt; forest = RandomForestClassifier.parse(archive, PredictionFactory.DOUBLE, interactive);
+ * </pre>
+ * <p>
+ * Lanes are served in the order they were added: a free thread takes work from the first lane
+ * that has some queued and is running fewer than its concurrency limit, so the limit of the first
+ * lanes is what leaves threads for the later ones. A lane with a full queue sheds new work with an
+ * {@link OverloadedException} rather than queueing it behind work that can't finish in time.
+ * <p>
+ * A batch scored through {@link RowSlices} is queued as one entry that a lane runs a slice at a
+ * time, so the threads go back to the first lanes between slices and a large batch delays a
+ * prediction of an earlier lane by one slice at most.
+ * <p>
+ * Work submitted from a thread of the scheduler runs in that thread, so a task waiting on tasks it
+ * submitted can't hold every thread of the pool.
+ */
+public final class PredictionScheduler implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PredictionScheduler.class);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final List<Lane> lanes = new ArrayList<>();
+    private final Thread[] workers;
+    private boolean closed;
+
+    /**
+     * Constructor
+     * @param threads the number of threads shared by the lanes
+     */
+    public PredictionScheduler(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, "prediction-scheduler-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Add a lane served after the lanes already added.
+     * @param name the name of the lane
+     * @param maxConcurrency the number of threads the lane may use at once
+     * @param maxQueued the number of tasks and batches that may wait in the lane before new ones
+     *                  are shed
+     * @param sliceRows the number of rows in a slice of a batch, 0 to split a batch into one slice
+     *                  per thread the lane may use
+     * @return the lane
+     */
+    public Lane addLane(String name, int maxConcurrency, int maxQueued, int sliceRows) {
+        if (maxConcurrency < 1 || maxQueued < 1 || sliceRows < 0) {
+            throw new IllegalArgumentException("lane limits must be positive");
+        }
+
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                if (lane.name.equals(name)) {
+                    throw new IllegalArgumentException(String.format("lane '%s' already exists", name));
+                }
+            }
+            Lane lane = new Lane(name, maxConcurrency, maxQueued, sliceRows);
+            lanes.add(lane);
+            return lane;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a lane by name.
+     * @param name the name of the lane
+     * @return the lane
+     * @throws IllegalArgumentException when there is no lane with the name
+     */
+    public Lane getLane(String name) {
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                if (lane.name.equals(name)) {
+                    return lane;
+                }
+            }
+            throw new IllegalArgumentException(String.format("no lane '%s'", name));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the lanes in the order they are served
+     */
+    public List<Lane> getLanes() {
+        lock.lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<>(lanes));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of threads shared by the lanes
+     */
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     * Stop the threads. Queued tasks are cancelled, queued batches fail with a
+     * {@link RejectedExecutionException} and work that is running is interrupted.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Lane lane : lanes) {
+                lane.shutdown = true;
+                for (Runnable task : lane.drain()) {
+                    if (task instanceof Future) {
+                        ((Future<?>) task).cancel(false);
+                    }
+                }
+            }
+            ready.signalAll();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private boolean isWorker() {
+        Thread current = Thread.currentThread();
+        for (Thread worker : workers) {
+            if (worker == current) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void enqueue(Lane lane, Work work) {
+        lock.lock();
+        try {
+            if (closed || lane.shutdown) {
+                throw new RejectedExecutionException(String.format("lane '%s' is shut down", lane.name));
+            }
+            if (lane.queue.size() >= lane.maxQueued) {
+                lane.shed++;
+                throw new OverloadedException(lane.name, lane.queue.size());
+            }
+            lane.queue.addLast(work);
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Lane next() {
+        for (Lane lane : lanes) {
+            if (!lane.queue.isEmpty() && lane.running < lane.maxConcurrency) {
+                return lane;
+            }
+        }
+        return null;
+    }
+
+    private void work() {
+        lock.lock();
+        try {
+            while (!closed) {
+                Lane lane = next();
+                if (lane == null) {
+                    try {
+                        ready.await();
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                    continue;
+                }
+
+                // a batch with slices left goes behind the other work of its lane
+                Work work = lane.queue.removeFirst();
+                Runnable unit = work.take();
+                if (work.hasMore()) {
+                    lane.queue.addLast(work);
+                }
+                lane.running++;
+
+                lock.unlock();
+                try {
+                    unit.run();
+                } catch (Throwable t) {
+                    LOG.warn("task of lane '{}' failed", lane.name, t);
+                } finally {
+                    // a cancelled task may leave the thread interrupted
+                    Thread.interrupted();
+                    lock.lock();
+                }
+
+                lane.running--;
+                lane.completed++;
+                ready.signalAll();
+                if (lane.isTerminated()) {
+                    drained.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * An entry of a lane, run as one or more units.
+     */
+    private interface Work {
+
+        /**
+         * @return the next unit to run
+         */
+        Runnable take();
+
+        /**
+         * @return true when there are units left to take
+         */
+        boolean hasMore();
+
+        /**
+         * Give up on the units left.
+         * @return the task when the work is a single task, otherwise null
+         */
+        Runnable abort();
+    }
+
+    private static final class Single implements Work {
+        private final Runnable task;
+
+        Single(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public Runnable take() {
+            return task;
+        }
+
+        @Override
+        public boolean hasMore() {
+            return false;
+        }
+
+        @Override
+        public Runnable abort() {
+            return task;
+        }
+    }
+
+    private static final class Batch implements Work {
+        private final RowSlices.Task task;
+        private final int count;
+        private final int slices;
+        private final CountDownLatch done;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private int next;
+
+        Batch(RowSlices.Task task, int count, int slices) {
+            this.task = task;
+            this.count = count;
+            this.slices = slices;
+            this.done = new CountDownLatch(slices);
+        }
+
+        @Override
+        public Runnable take() {
+            int i = next++;
+            int start = (int) ((long) count * i / slices);
+            int end = (int) ((long) count * (i + 1) / slices);
+            return () -> {
+                try {
+                    if (failure.get() == null) {
+                        task.run(start, end);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            };
+        }
+
+        @Override
+        public boolean hasMore() {
+            return next < slices;
+        }
+
+        @Override
+        public Runnable abort() {
+            failure.compareAndSet(null, new RejectedExecutionException("batch was not run"));
+            for (; next < slices; next++) {
+                done.countDown();
+            }
+            return null;
+        }
+
+        void rethrow() {
+            Throwable t = failure.get();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t != null) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    /**
+     * A latency class of a {@link PredictionScheduler}, with its own concurrency limit and queue.
+     * Shutting a lane down stops it from accepting work without affecting the other lanes.
+     */
+    public final class Lane extends AbstractExecutorService implements RowSlices.Scheduler {
+        private final String name;
+        private final int maxConcurrency;
+        private final int maxQueued;
+        private final int sliceRows;
+        private final ArrayDeque<Work> queue = new ArrayDeque<>();
+        private int running;
+        private long completed;
+        private long shed;
+        private boolean shutdown;
+
+        private Lane(String name, int maxConcurrency, int maxQueued, int sliceRows) {
+            this.name = name;
+            this.maxConcurrency = maxConcurrency;
+            this.maxQueued = maxQueued;
+            this.sliceRows = sliceRows;
+        }
+
+        /**
+         * @return the name of the lane
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of threads the lane may use at once
+         */
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        /**
+         * @return the number of tasks and batches that may wait in the lane
+         */
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        /**
+         * @return the number of tasks and batches waiting in the lane
+         */
+        public int getQueued() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the number of tasks and slices running
+         */
+        public int getRunning() {
+            lock.lock();
+            try {
+                return running;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the number of tasks and slices that have run
+         */
+        public long getCompleted() {
+            lock.lock();
+            try {
+                return completed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the number of tasks and batches shed because the lane was full
+         */
+        public long getShed() {
+            lock.lock();
+            try {
+                return shed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Queue a task.
+         * @param command the task
+         * @throws OverloadedException when the queue of the lane is full
+         * @throws RejectedExecutionException when the lane is shut down
+         */
+        @Override
+        public void execute(Runnable command) {
+            if (isWorker()) {
+                command.run();
+            } else {
+                enqueue(this, new Single(command));
+            }
+        }
+
+        /**
+         * Queue a batch as one entry and wait for all of its slices to run.
+         * @param count the number of rows
+         * @param task the work for a slice
+         * @throws OverloadedException when the queue of the lane is full
+         */
+        @Override
+        public void runSlices(int count, RowSlices.Task task) {
+            int slices = sliceRows > 0 ? (int) ((count + (long) sliceRows - 1) / sliceRows)
+                    : Math.min(count, maxConcurrency);
+            if (slices == 0) {
+                return;
+            } else if (isWorker()) {
+                task.run(0, count);
+                return;
+            }
+
+            Batch batch = new Batch(task, count, slices);
+            enqueue(this, batch);
+            try {
+                batch.done.await();
+            } catch (InterruptedException e) {
+                // the slices that weren't taken don't need to run
+                lock.lock();
+                try {
+                    if (queue.remove(batch)) {
+                        batch.abort();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            batch.rethrow();
+        }
+
+        @Override
+        public void shutdown() {
+            lock.lock();
+            try {
+                shutdown = true;
+                if (isTerminated()) {
+                    drained.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            lock.lock();
+            try {
+                shutdown = true;
+                List<Runnable> pending = drain();
+                if (isTerminated()) {
+                    drained.signalAll();
+                }
+                return pending;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private List<Runnable> drain() {
+            List<Runnable> pending = new ArrayList<>();
+            for (Work work : queue) {
+                Runnable task = work.abort();
+                if (task != null) {
+                    pending.add(task);
+                }
+            }
+            queue.clear();
+            return pending;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            lock.lock();
+            try {
+                return shutdown;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            lock.lock();
+            try {
+                return shutdown && queue.isEmpty() && running == 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lock();
+            try {
+                while (!isTerminated()) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = drained.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
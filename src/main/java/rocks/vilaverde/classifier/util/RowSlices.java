@@ -0,0 +1,80 @@
+package rocks.vilaverde.classifier.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Splits the rows of a batch into contiguous slices that are scored in parallel.
+ */
+public final class RowSlices {
+
+    /**
+     * Work done on the rows from start, inclusive, to end, exclusive.
+     */
+    @FunctionalInterface
+    public interface Task {
+        void run(int start, int end);
+    }
+
+    /**
+     * Implemented by executors that schedule the slices of a batch themselves, so that other work
+     * can run between the slices.
+     */
+    public interface Scheduler {
+
+        /**
+         * Run the task over slices of the rows and wait for them to complete.
+         * @param count the number of rows
+         * @param task the work for a slice
+         */
+        void runSlices(int count, Task task);
+    }
+
+    private RowSlices() {
+    }
+
+    /**
+     * Run the task over slices of the rows, one per processor when there is an
+     * {@link ExecutorService}, otherwise over all the rows in the current thread. An executor that
+     * is a {@link Scheduler} slices the rows itself.
+     * @param executor the executor, may be null
+     * @param count the number of rows
+     * @param task the work for a slice
+     */
+    public static void run(ExecutorService executor, int count, Task task) {
+        if (executor instanceof Scheduler) {
+            ((Scheduler) executor).runSlices(count, task);
+            return;
+        }
+
+        int jobs = executor == null ? 1 : Math.min(count, Runtime.getRuntime().availableProcessors());
+        if (jobs <= 1) {
+            task.run(0, count);
+            return;
+        }
+
+        List<Callable<Void>> slices = new ArrayList<>(jobs);
+        for (int i = 0; i < jobs; i++) {
+            int start = (int) ((long) count * i / jobs);
+            int end = (int) ((long) count * (i + 1) / jobs);
+            slices.add(() -> {
+                task.run(start, end);
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> future : executor.invokeAll(slices)) {
+                future.get();
+            }
+        } catch (RejectedExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package rocks.vilaverde.classifier;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.cli.BatchScorer;
+import rocks.vilaverde.classifier.dt.TreeClassifier;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Tests for the batch scoring command line tool.
+ */
+public class BatchScorerTest {
+
+    private static final String HEADER = "sepal length (cm),sepal width (cm),petal length (cm),petal width (cm)\n";
+
+    @Test
+    public void scoreCsv() throws Exception {
+        TreeClassifier<?> model = BatchScorer.loadModel(getModel("rf/iris.tgz"));
+
+        StringBuilder csv = new StringBuilder(HEADER);
+        for (int i = 0; i < 1000; i++) {
+            csv.append("3.0,5.0,4,2e0\r\n").append("1,2.0,3.000,0.4E1\n");
+        }
+
+        Path input = Files.createTempFile("input", ".csv");
+        Path output = Files.createTempFile("output", ".csv");
+        try {
+            Files.write(input, csv.toString().getBytes(StandardCharsets.US_ASCII));
+
+            // a small chunk size splits the input over many tasks
+            BatchScorer scorer = new BatchScorer(model, 3, 100, true);
+            long rows = scorer.score(input, BatchScorer.Format.CSV, null, output, BatchScorer.Format.CSV);
+            Assertions.assertEquals(2000, rows);
+
+            List<String> lines = Files.readAllLines(output);
+            Assertions.assertEquals(2000, lines.size());
+            for (int i = 0; i < lines.size(); i += 2) {
+                Assertions.assertEquals("0.06,0.62,0.32", lines.get(i));
+                Assertions.assertEquals("0.0,0.44,0.56", lines.get(i + 1));
+            }
+        } finally {
+            Files.delete(input);
+            Files.delete(output);
+        }
+    }
+
+    @Test
+    public void scoreBinary() throws Exception {
+        TreeClassifier<?> model = BatchScorer.loadModel(getModel("rf/iris.tgz"));
+        Features features = Features.of(HEADER.trim().split(","));
+
+        ByteBuffer matrix = ByteBuffer.allocate(3 * 4 * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        matrix.asDoubleBuffer().put(new double[] {3.0, 5.0, 4.0, 2.0, 1.0, 2.0, 3.0, 4.0, 3.0, 5.0, 4.0, 2.0});
+
+        Path input = Files.createTempFile("input", ".bin");
+        Path output = Files.createTempFile("output", ".bin");
+        try {
+            Files.write(input, matrix.array());
+
+            BatchScorer scorer = new BatchScorer(model, 2, 64, false);
+            long rows = scorer.score(input, BatchScorer.Format.BIN, features, output, BatchScorer.Format.BIN);
+            Assertions.assertEquals(3, rows);
+
+            ByteBuffer result = ByteBuffer.wrap(Files.readAllBytes(output)).order(ByteOrder.LITTLE_ENDIAN);
+            Assertions.assertEquals(3 * Integer.BYTES, result.remaining());
+            Assertions.assertEquals(1, result.getInt());
+            Assertions.assertEquals(2, result.getInt());
+            Assertions.assertEquals(1, result.getInt());
+        } finally {
+            Files.delete(input);
+            Files.delete(output);
+        }
+    }
+
+    private Path getModel(String fileName) throws Exception {
+        return Paths.get(BatchScorerTest.class.getClassLoader().getResource(fileName).toURI());
+    }
+}
@@ -0,0 +1,131 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.BranchProfile;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Tests for recording a {@link BranchProfile} and laying out trees with it.
+ */
+public class BranchProfileTest {
+
+    @Test
+    public void profileAndRelayoutTree() throws Exception {
+        DecisionTreeClassifier<Boolean> decisionTree = DecisionTreeClassifier.parse(
+                getReader("decision-tree.model"), PredictionFactory.BOOLEAN);
+
+        FeatureVector fv = getSample();
+        double[] before = decisionTree.predict_proba(fv)[0];
+
+        BranchProfile profile = decisionTree.newProfile();
+        decisionTree.startProfiling(profile);
+        for (int i = 0; i < 10; i++) {
+            decisionTree.predict(fv);
+        }
+        decisionTree.stopProfiling();
+        decisionTree.predict(fv);
+
+        // the root is node 0 and is visited by every prediction
+        Assertions.assertEquals(10, profile.getVisits(0, 0));
+
+        decisionTree.relayout(profile);
+        Assertions.assertArrayEquals(before, decisionTree.predict_proba(fv)[0], .0);
+        Assertions.assertFalse(decisionTree.predict(fv).get(0));
+
+        fv.add("feature5", true);
+        Assertions.assertTrue(decisionTree.predict(fv).get(0));
+    }
+
+    @Test
+    public void saveAndReadProfile() throws Exception {
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(getArchive("rf/iris.tgz"),
+                PredictionFactory.DOUBLE);
+        BranchProfile profile = forest.newProfile();
+        forest.startProfiling(profile);
+        forest.predict(getIrisSample(3.0, 5.0, 4.0, 2.0), getIrisSample(1.0, 2.0, 3.0, 4.0));
+        forest.stopProfiling();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        profile.write(out);
+        BranchProfile read = BranchProfile.read(new ByteArrayInputStream(out.toByteArray()));
+
+        Assertions.assertEquals(profile.getTreeCount(), read.getTreeCount());
+        for (int tree = 0; tree < read.getTreeCount(); tree++) {
+            Assertions.assertEquals(2, read.getVisits(tree, 0));
+            for (int node = 0; node < read.getNodeCount(tree); node++) {
+                Assertions.assertEquals(profile.getVisits(tree, node), read.getVisits(tree, node));
+            }
+        }
+
+        RandomForestClassifier<Double> reloaded = RandomForestClassifier.parse(getArchive("rf/iris.tgz"),
+                PredictionFactory.DOUBLE);
+        reloaded.relayout(read);
+        double[] proba = reloaded.predict_proba(getIrisSample(3.0, 5.0, 4.0, 2.0))[0];
+        Assertions.assertEquals(.06, proba[0], .0);
+        Assertions.assertEquals(.62, proba[1], .0);
+        Assertions.assertEquals(.32, proba[2], .0);
+    }
+
+    @Test
+    public void mismatchedProfile() throws Exception {
+        DecisionTreeClassifier<Boolean> decisionTree = DecisionTreeClassifier.parse(
+                getReader("simple-tree.model"), PredictionFactory.BOOLEAN);
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> decisionTree.relayout(BranchProfile.create(5, 3)));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> decisionTree.startProfiling(BranchProfile.create(4)));
+    }
+
+    private FeatureVector getSample() {
+        Features features = Features.of("feature1", "feature2", "feature3", "feature4",
+                "feature5", "feature6", "feature7", "feature8");
+        return features.newSample()
+                .add("feature1", 0.0)
+                .add("feature2", 1.0)
+                .add("feature3", false)
+                .add("feature4", 0.0)
+                .add("feature5", false)
+                .add("feature6", 1.0)
+                .add("feature7", 1.0)
+                .add("feature8", 0.0);
+    }
+
+    private FeatureVector getIrisSample(double... values) {
+        Features features = Features.of("sepal length (cm)",
+                "sepal width (cm)",
+                "petal length (cm)",
+                "petal width (cm)");
+        FeatureVector fv = features.newSample();
+        for (int i = 0; i < values.length; i++) {
+            fv.add(i, values[i]);
+        }
+        return fv;
+    }
+
+    private InputStreamReader getReader(String fileName) {
+        return new InputStreamReader(getStream(fileName));
+    }
+
+    private TarArchiveInputStream getArchive(String fileName) throws Exception {
+        return new TarArchiveInputStream(new GzipCompressorInputStream(getStream(fileName)));
+    }
+
+    private InputStream getStream(String fileName) {
+        InputStream stream = BranchProfileTest.class.getClassLoader().getResourceAsStream(fileName);
+        if (stream == null) {
+            throw new RuntimeException(String.format("no model found with name %s", fileName));
+        }
+        return stream;
+    }
+}
@@ -4,10 +4,18 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
 import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.dt.TreeClassifier;
 
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 
 public class DecisionTreeClassifierTest {
@@ -155,6 +163,132 @@ public class DecisionTreeClassifierTest {
         Assertions.assertEquals(2, prediction.intValue());
     }
 
+    @Test
+    public void applyLeafIds() throws Exception {
+        Reader tree = getExportedModel("simple-tree.model");
+        DecisionTreeClassifier<Boolean> decisionTree = DecisionTreeClassifier.parse(tree, PredictionFactory.BOOLEAN);
+
+        // sklearn numbers the nodes depth first: the split is 0, the left leaf 1 and the right leaf 2
+        Features features = Features.of("feature1");
+        int[] leaves = new int[2];
+        List<Boolean> predictions = decisionTree.predict(leaves,
+                features.newSample().add(0, 1.2), features.newSample().add(0, 2.4));
+
+        Assertions.assertEquals(List.of(false, true), predictions);
+        Assertions.assertArrayEquals(new int[] {1, 2}, leaves);
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> decisionTree.apply(new int[0], features.newSample().add(0, 1.2)));
+    }
+
+    @Test
+    public void float32ThresholdsMatchSklearn() throws Exception {
+        // sklearn splits halfway between two float32 values, as a double, and casts the samples to float32
+        String threshold = "0.15000000223517418";
+        String model = "|--- x <= " + threshold + "\n"
+                + "|   |--- weights: [1.00, 0.00] class: 0\n"
+                + "|--- x >  " + threshold + "\n"
+                + "|   |--- weights: [0.00, 1.00] class: 1\n";
+        DecisionTreeClassifier<Integer> decisionTree = DecisionTreeClassifier.parse(new StringReader(model),
+                PredictionFactory.INTEGER);
+
+        // 0.15 is below the threshold as a double, but not once it is cast to float32
+        Features features = Features.of("x");
+        FeatureVector boundary = features.newSample().add(0, 0.15);
+        Assertions.assertEquals(0, decisionTree.predict(boundary).get(0).intValue());
+        decisionTree.useFloat32();
+        Assertions.assertEquals(1, decisionTree.predict(boundary).get(0).intValue());
+
+        double split = Double.parseDouble(threshold);
+        Random random = new Random(7);
+        double[] values = new double[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = split + (random.nextDouble() - 0.5) * 1e-7;
+            int expected = (float) values[i] <= split ? 0 : 1;
+            Assertions.assertEquals(expected, decisionTree.predict(features.newSample().add(0, values[i])).get(0).intValue());
+        }
+
+        IntBuffer classes = IntBuffer.allocate(values.length);
+        decisionTree.predict(FeatureMatrix.wrap(features, values, 0, values.length, 1, 1), classes);
+        for (int i = 0; i < values.length; i++) {
+            Assertions.assertEquals((float) values[i] <= split ? 0 : 1, classes.get(i));
+        }
+    }
+
+    @Test
+    public void matrixOutputCapacity() throws Exception {
+        DecisionTreeClassifier<Boolean> decisionTree = DecisionTreeClassifier.parse(
+                getExportedModel("simple-tree.model"), PredictionFactory.BOOLEAN);
+        FeatureMatrix rows = FeatureMatrix.wrap(Features.of("feature1"), new double[] {1.2, 2.4}, 0, 2, 1, 1);
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> decisionTree.predict(rows, IntBuffer.allocate(1)));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> decisionTree.predict_proba(rows, DoubleBuffer.allocate(3)));
+    }
+
+    @Test
+    public void defaultMatrixMethods() throws Exception {
+        String model = "|--- feature1 <= 1.50\n"
+                + "|   |--- weights: [5.00, 2.00] class: False\n"
+                + "|--- feature1 >  1.50\n"
+                + "|   |--- weights: [1.00, 3.00] class: True\n";
+        DecisionTreeClassifier<Boolean> decisionTree = DecisionTreeClassifier.parse(new StringReader(model),
+                PredictionFactory.BOOLEAN);
+
+        // an implementation outside of the library that only predicts one sample at a time
+        TreeClassifier<Boolean> external = new TreeClassifier<>() {
+            @Override
+            public Prediction<Boolean> getClassification(FeatureVector features) {
+                return decisionTree.getClassification(features);
+            }
+
+            @Override
+            public List<Boolean> predict(FeatureVector... samples) {
+                return decisionTree.predict(samples);
+            }
+
+            @Override
+            public double[][] predict_proba(FeatureVector... samples) {
+                return decisionTree.predict_proba(samples);
+            }
+
+            @Override
+            @Deprecated
+            public Boolean predict(Map<String, Double> samples) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            @Deprecated
+            public double[] predict_proba(Map<String, Double> samples) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Set<String> getFeatureNames() {
+                return decisionTree.getFeatureNames();
+            }
+        };
+
+        FeatureMatrix rows = FeatureMatrix.wrap(Features.of("feature1"), new double[] {1.2, 2.4}, 0, 2, 1, 1);
+        IntBuffer expectedClasses = IntBuffer.allocate(2);
+        IntBuffer classes = IntBuffer.allocate(2);
+        decisionTree.predict(rows, expectedClasses);
+        external.predict(rows, classes);
+        Assertions.assertEquals(expectedClasses.flip(), classes.flip());
+
+        DoubleBuffer expectedProbabilities = DoubleBuffer.allocate(4);
+        DoubleBuffer probabilities = DoubleBuffer.allocate(4);
+        decisionTree.predict_proba(rows, expectedProbabilities);
+        external.predict_proba(rows, probabilities);
+        Assertions.assertEquals(expectedProbabilities.flip(), probabilities.flip());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> external.predict(rows, IntBuffer.allocate(1)));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> external.predict_proba(rows, DoubleBuffer.allocate(3)));
+        Assertions.assertThrows(UnsupportedOperationException.class, external::getClassCount);
+    }
+
     private Reader getExportedModel(String fileName) {
         ClassLoader cl = DecisionTreeClassifierTest.class.getClassLoader();
         InputStream stream = cl.getResourceAsStream(fileName);
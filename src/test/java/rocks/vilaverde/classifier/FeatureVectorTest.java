@@ -0,0 +1,182 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests for the sparse, lazy and projected samples.
+ */
+public class FeatureVectorTest {
+
+    @Test
+    public void sparseSample() {
+        String[] names = new String[20000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "f" + i;
+        }
+        Features features = Features.of(names);
+        SparseFeatureVector fv = features.newSparseSample(-1.0);
+
+        for (int i = 0; i < names.length; i += 97) {
+            fv.add(i, i * 2.0);
+        }
+        fv.add("f5", true);
+
+        for (int i = 0; i < names.length; i += 97) {
+            Assertions.assertEquals(i * 2.0, fv.get(i), .0);
+        }
+        Assertions.assertEquals(1.0, fv.get("f5"), .0);
+        Assertions.assertEquals(-1.0, fv.get(1), .0);
+        Assertions.assertEquals(208, fv.size());
+
+        fv.clear();
+        Assertions.assertEquals(-1.0, fv.get(0), .0);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> fv.get(names.length));
+    }
+
+    @Test
+    public void lazySample() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            RandomForestClassifier<Double> forest = RandomForestClassifier.parse(
+                    new TarArchiveInputStream(new GzipCompressorInputStream(
+                            FeatureVectorTest.class.getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                    PredictionFactory.DOUBLE, executor);
+
+            Features features = Features.of("sepal length (cm)", "sepal width (cm)",
+                    "petal length (cm)", "petal width (cm)", "unused");
+            AtomicIntegerArray calls = new AtomicIntegerArray(features.getLength());
+            double[] values = {3.0, 5.0, 4.0, 2.0, 0.0};
+
+            LazyFeatureVector lazy = new LazyFeatureVector(features);
+            for (int i = 0; i < values.length; i++) {
+                final int index = i;
+                lazy.add(i, () -> {
+                    calls.incrementAndGet(index);
+                    return values[index];
+                });
+            }
+
+            FeatureVector dense = features.newSample();
+            for (int i = 0; i < values.length; i++) {
+                dense.add(i, values[i]);
+            }
+
+            Assertions.assertEquals(forest.predict(dense), forest.predict(lazy));
+            Assertions.assertArrayEquals(forest.predict_proba(dense)[0], forest.predict_proba(lazy)[0], .0);
+            for (int i = 0; i < values.length; i++) {
+                Assertions.assertTrue(calls.get(i) <= 1);
+            }
+            Assertions.assertEquals(0, calls.get(4));
+            Assertions.assertFalse(lazy.isComputed(4));
+
+            lazy.reset();
+            forest.predict(lazy);
+            Assertions.assertEquals(2, calls.get(2));
+
+            LazyFeatureVector missing = new LazyFeatureVector(features);
+            Assertions.assertThrows(IllegalStateException.class, () -> missing.get(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void lazySuppliersRunConcurrently() throws Exception {
+        Features features = Features.of("a", "b");
+        CountDownLatch started = new CountDownLatch(2);
+        AtomicIntegerArray calls = new AtomicIntegerArray(2);
+
+        // each supplier only returns once the other one is running as well
+        LazyFeatureVector lazy = new LazyFeatureVector(features);
+        for (int i = 0; i < 2; i++) {
+            final int index = i;
+            lazy.add(i, () -> {
+                calls.incrementAndGet(index);
+                started.countDown();
+                try {
+                    return started.await(10, TimeUnit.SECONDS) ? index + 1.0 : -1.0;
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Double>> reads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final int index = i % 2;
+                reads.add(executor.submit(() -> lazy.get(index)));
+            }
+            for (int i = 0; i < reads.size(); i++) {
+                Assertions.assertEquals(i % 2 + 1.0, reads.get(i).get(20, TimeUnit.SECONDS));
+            }
+            Assertions.assertEquals(1, calls.get(0));
+            Assertions.assertEquals(1, calls.get(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void projectWideSchema() throws Exception {
+        Classifier<Boolean> decisionTree = DecisionTreeClassifier.parse(getExportedModel("decision-tree.model"),
+                PredictionFactory.BOOLEAN);
+
+        Set<String> wide = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            wide.add("unused" + i);
+        }
+        for (int i = 1; i <= 8; i++) {
+            wide.add("feature" + i);
+        }
+        Features schema = Features.fromSet(wide);
+
+        double[] row = new double[schema.getLength()];
+        row[schema.getFeatureIndex("feature2")] = 1.0;
+        row[schema.getFeatureIndex("feature6")] = 1.0;
+        row[schema.getFeatureIndex("feature7")] = 1.0;
+
+        Features projected = decisionTree.project(schema);
+        Assertions.assertEquals(8, projected.getLength());
+        Assertions.assertEquals(schema.getFeatureIndex("feature7"),
+                projected.getSourceIndex(projected.getFeatureIndex("feature7")));
+
+        FeatureVector fv = projected.newSample().addAll(row);
+        Assertions.assertFalse(decisionTree.predict(fv).get(0));
+
+        fv.add("feature5", true);
+        Assertions.assertTrue(decisionTree.predict(fv).get(0));
+
+        SparseFeatureVector sparse = schema.newSparseSample(0.0);
+        sparse.add("feature2", 1.0).add("feature6", 1.0).add("feature7", 1.0).add("feature5", true);
+        Assertions.assertTrue(decisionTree.predict(sparse).get(0));
+    }
+
+    private InputStreamReader getExportedModel(String fileName) {
+        InputStream stream = FeatureVectorTest.class.getClassLoader().getResourceAsStream(fileName);
+        if (stream == null) {
+            throw new RuntimeException(String.format("no model found with name %s", fileName));
+        }
+        return new InputStreamReader(stream);
+    }
+}
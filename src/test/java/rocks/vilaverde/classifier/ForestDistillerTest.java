@@ -0,0 +1,154 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.cli.DistillForest;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.DistillationReport;
+import rocks.vilaverde.classifier.ensemble.ForestDistiller;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for selecting a subset of the trees of a forest.
+ */
+public class ForestDistillerTest {
+
+    private static final Features FEATURES = Features.of("sepal length (cm)", "sepal width (cm)",
+            "petal length (cm)", "petal width (cm)");
+
+    @Test
+    public void subsetPredictsWithinTolerance() throws Exception {
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(new TarArchiveInputStream(
+                new GzipCompressorInputStream(getClass().getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                PredictionFactory.DOUBLE);
+        List<FeatureVector> samples = samples(500);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            DistillationReport<Double> report = ForestDistiller.distill(forest, samples, 0.02, 0.05, executor);
+            Assertions.assertTrue(report.getTrees().length < forest.getTreeCount(), report.toString());
+            Assertions.assertTrue(report.getDisagreement() <= 0.02, report.toString());
+            Assertions.assertTrue(report.getProbabilityError() <= 0.05, report.toString());
+            Assertions.assertTrue(report.getSpeedup() > 0);
+            Assertions.assertEquals(report.getTrees().length, report.getForest().getTreeCount());
+
+            // the report measures the forest it returns
+            FeatureVector[] rows = samples.toArray(new FeatureVector[0]);
+            List<Double> expected = forest.predict(rows);
+            List<Double> predicted = report.getForest().predict(rows);
+            int disagree = 0;
+            for (int s = 0; s < rows.length; s++) {
+                disagree += expected.get(s).equals(predicted.get(s)) ? 0 : 1;
+            }
+            Assertions.assertEquals((double) disagree / rows.length, report.getDisagreement(), 0.0);
+
+            // no tolerance keeps the predictions
+            DistillationReport<Double> exact = ForestDistiller.distill(forest, samples, 0, 0, executor);
+            Assertions.assertEquals(0, exact.getDisagreement(), 0.0);
+            Assertions.assertEquals(0, exact.getProbabilityError(), 1e-12);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void writeSelectedEstimators() throws Exception {
+        Path directory = Files.createTempDirectory("distill");
+        Path source = directory.resolve("iris.tgz");
+        Path output = directory.resolve("subset.tgz");
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("rf/iris.tgz")) {
+            Files.copy(in, source, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        try {
+            RandomForestClassifier<Double> forest = RandomForestClassifier.parse(new TarArchiveInputStream(
+                    new GzipCompressorInputStream(Files.newInputStream(source))), PredictionFactory.DOUBLE);
+            int[] trees = {1, 4, 9};
+            DistillForest.writeArchive(source, trees, output);
+
+            RandomForestClassifier<Double> written = RandomForestClassifier.parse(new TarArchiveInputStream(
+                    new GzipCompressorInputStream(Files.newInputStream(output))), PredictionFactory.DOUBLE);
+            RandomForestClassifier<Double> subset = forest.subset(trees);
+            Assertions.assertEquals(3, written.getTreeCount());
+            for (FeatureVector sample : samples(100)) {
+                Assertions.assertArrayEquals(subset.predict_proba(sample)[0], written.predict_proba(sample)[0], 0.0);
+            }
+
+            Assertions.assertThrows(IllegalArgumentException.class, () -> forest.subset(1, 1));
+        } finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(output);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void commandLineWritesSmallerArchive() throws Exception {
+        Path directory = Files.createTempDirectory("distill");
+        Path source = directory.resolve("iris.tgz");
+        Path input = directory.resolve("samples.csv");
+        Path output = directory.resolve("subset.tgz");
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("rf/iris.tgz")) {
+            Files.copy(in, source, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        StringBuilder csv = new StringBuilder("sepal length (cm),sepal width (cm),petal length (cm),petal width (cm)\n");
+        for (FeatureVector sample : samples(200)) {
+            csv.append(sample.get("sepal length (cm)")).append(',').append(sample.get("sepal width (cm)"))
+                    .append(',').append(sample.get("petal length (cm)")).append(',')
+                    .append(sample.get("petal width (cm)")).append('\n');
+        }
+        Files.write(input, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        try {
+            DistillForest.main(new String[]{"--model", source.toString(), "--input", input.toString(),
+                    "--max-disagreement", "0.02", "--max-error", "0.05", "--threads", "2",
+                    "--output", output.toString()});
+
+            RandomForestClassifier<Double> forest = RandomForestClassifier.parse(new TarArchiveInputStream(
+                    new GzipCompressorInputStream(Files.newInputStream(source))), PredictionFactory.DOUBLE);
+            RandomForestClassifier<Double> written = RandomForestClassifier.parse(new TarArchiveInputStream(
+                    new GzipCompressorInputStream(Files.newInputStream(output))), PredictionFactory.DOUBLE);
+            Assertions.assertTrue(written.getTreeCount() < forest.getTreeCount(),
+                    written.getTreeCount() + " of " + forest.getTreeCount() + " trees");
+
+            FeatureVector[] rows = samples(200).toArray(new FeatureVector[0]);
+            List<Double> expected = forest.predict(rows);
+            List<Double> predicted = written.predict(rows);
+            int disagree = 0;
+            for (int s = 0; s < rows.length; s++) {
+                disagree += expected.get(s).equals(predicted.get(s)) ? 0 : 1;
+            }
+            Assertions.assertTrue(disagree <= 4, disagree + " disagreements");
+        } finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(output);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static List<FeatureVector> samples(int count) {
+        Random random = new Random(11);
+        List<FeatureVector> samples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            samples.add(FEATURES.newSample().add(0, 4.3 + random.nextDouble() * 3.6)
+                    .add(1, 2 + random.nextDouble() * 2.4).add(2, 1 + random.nextDouble() * 5.9)
+                    .add(3, 0.1 + random.nextDouble() * 2.4));
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,134 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.ForestWatcher;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for reloading the changed trees of a forest.
+ */
+public class ForestWatcherTest {
+
+    private static final Features FEATURES = Features.of("sepal length (cm)", "sepal width (cm)",
+            "petal length (cm)", "petal width (cm)");
+
+    @Test
+    public void reloadParsesOnlyChangedTrees() throws Exception {
+        Map<String, byte[]> entries = readEntries();
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(toTar(entries), PredictionFactory.DOUBLE);
+        int trees = forest.getTreeCount();
+        // changes to the trees of the current forest are not carried over
+        forest.useFloat32();
+
+        RandomForestClassifier<Double> unchanged = forest.reload(toTar(entries));
+        Assertions.assertEquals(trees, unchanged.getReusedTreeCount());
+        Assertions.assertEquals(trees, unchanged.getTreeCount());
+
+        changeFirstTree(entries);
+        RandomForestClassifier<Double> reloaded = forest.reload(toTar(entries));
+        RandomForestClassifier<Double> parsed = RandomForestClassifier.parse(toTar(entries), PredictionFactory.DOUBLE);
+        Assertions.assertEquals(trees - 1, reloaded.getReusedTreeCount());
+        Assertions.assertEquals(0, parsed.getReusedTreeCount());
+
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            FeatureVector sample = FEATURES.newSample().add(0, 4 + random.nextDouble() * 4)
+                    .add(1, 2 + random.nextDouble() * 2).add(2, 1 + random.nextDouble() * 6)
+                    .add(3, random.nextDouble() * 2.5);
+            Assertions.assertArrayEquals(parsed.predict_proba(sample)[0], reloaded.predict_proba(sample)[0], 0.0);
+        }
+    }
+
+    @Test
+    public void watcherPublishesReloadedForest() throws Exception {
+        Map<String, byte[]> entries = readEntries();
+        Path directory = Files.createTempDirectory("forest");
+        Path archive = directory.resolve("forest.tar");
+        Files.write(archive, toBytes(entries));
+
+        try (ForestWatcher<Double> watcher = ForestWatcher.watch(archive, PredictionFactory.DOUBLE, null)) {
+            RandomForestClassifier<Double> initial = watcher.get();
+            Assertions.assertEquals(0, initial.getReusedTreeCount());
+
+            changeFirstTree(entries);
+            Path staged = directory.resolve("forest.tar.tmp");
+            Files.write(staged, toBytes(entries));
+            Files.move(staged, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (watcher.get() == initial && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertNotSame(initial, watcher.get());
+            Assertions.assertEquals(initial.getTreeCount() - 1, watcher.get().getReusedTreeCount());
+
+            // a broken archive keeps the current forest
+            RandomForestClassifier<Double> current = watcher.get();
+            Files.write(archive, "not a tar".getBytes(StandardCharsets.UTF_8));
+            Assertions.assertThrows(Exception.class, watcher::reload);
+            Assertions.assertSame(current, watcher.get());
+        } finally {
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private Map<String, byte[]> readEntries() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new GzipCompressorInputStream(
+                getClass().getClassLoader().getResourceAsStream("rf/iris.tgz")))) {
+            ArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                if (!entry.isDirectory()) {
+                    entries.put(entry.getName(), tar.readAllBytes());
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Change the file of the first tree without changing the tree.
+     */
+    private static void changeFirstTree(Map<String, byte[]> entries) {
+        String name = entries.keySet().iterator().next();
+        String text = new String(entries.get(name), StandardCharsets.UTF_8);
+        entries.put(name, (text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static TarArchiveInputStream toTar(Map<String, byte[]> entries) throws IOException {
+        return new TarArchiveInputStream(new ByteArrayInputStream(toBytes(entries)));
+    }
+
+    private static byte[] toBytes(Map<String, byte[]> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(bytes)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                TarArchiveEntry tarEntry = new TarArchiveEntry(entry.getKey());
+                tarEntry.setSize(entry.getValue().length);
+                tar.putArchiveEntry(tarEntry);
+                tar.write(entry.getValue());
+                tar.closeArchiveEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
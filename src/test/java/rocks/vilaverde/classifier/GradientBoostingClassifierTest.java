@@ -0,0 +1,114 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.GradientBoostingClassifier;
+
+import java.io.InputStream;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for the {@link GradientBoostingClassifier}.
+ */
+public class GradientBoostingClassifierTest {
+
+    private static final Features FEATURES = Features.of("x", "y");
+
+    @Test
+    public void binary() throws Exception {
+        GradientBoostingClassifier<Integer> model = GradientBoostingClassifier.parse(
+                getExportedModel("gb/binary.tgz"), PredictionFactory.INTEGER);
+        Assertions.assertEquals(2, model.getTreeCount());
+        Assertions.assertEquals(2, model.getClassCount());
+
+        // -0.5 + 0.1 * (10 + 20)
+        Assertions.assertArrayEquals(new double[] {2.5}, model.decision_function(sample(1.0, 3.0)), 1e-12);
+        double p = 1.0 / (1.0 + Math.exp(-2.5));
+        Assertions.assertArrayEquals(new double[] {1 - p, p}, model.predict_proba(sample(1.0, 3.0))[0], 1e-12);
+
+        // -0.5 + 0.1 * (1 + 3)
+        List<Integer> predictions = model.predict(sample(1.0, 3.0), sample(0.0, 1.0), sample(0.0, 0.0));
+        Assertions.assertEquals(List.of(1, 0, 0), predictions);
+    }
+
+    @Test
+    public void multiclass() throws Exception {
+        GradientBoostingClassifier<String> model = GradientBoostingClassifier.parse(
+                getExportedModel("gb/multiclass.tgz"), value -> value);
+        Assertions.assertEquals(6, model.getTreeCount());
+        Assertions.assertEquals(3, model.getClassCount());
+
+        Assertions.assertArrayEquals(new double[] {1.1, 2.2, 2.8}, model.decision_function(sample(0.0, 1.0)), 1e-12);
+        Assertions.assertEquals(List.of("virginica", "setosa"), model.predict(sample(0.0, 1.0), sample(1.0, 0.0)));
+
+        double[] expected = softmax(1.1, 2.2, 2.8);
+        Assertions.assertArrayEquals(expected, model.predict_proba(sample(0.0, 1.0))[0], 1e-12);
+    }
+
+    @Test
+    public void predictMatrix() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            GradientBoostingClassifier<String> model = GradientBoostingClassifier.parse(
+                    getExportedModel("gb/multiclass.tgz"), value -> value, executor);
+
+            double[] matrix = new double[500 * 2];
+            for (int row = 0; row < 500; row++) {
+                matrix[row * 2] = row % 2;
+                matrix[row * 2 + 1] = row % 3;
+            }
+            FeatureMatrix rows = FeatureMatrix.wrap(FEATURES, matrix, 0, 500, 2, 1);
+
+            IntBuffer classes = IntBuffer.allocate(500);
+            model.predict(rows, classes);
+            DoubleBuffer probabilities = DoubleBuffer.allocate(500 * 3);
+            model.predict_proba(rows, probabilities);
+
+            for (int row = 0; row < 500; row++) {
+                FeatureVector sample = sample(row % 2, row % 3);
+                double[] expected = model.predict_proba(sample)[0];
+                for (int k = 0; k < 3; k++) {
+                    Assertions.assertEquals(expected[k], probabilities.get(row * 3 + k), .0);
+                }
+                Assertions.assertEquals(row % 2 == 0 ? 2 : 0, classes.get(row));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static double[] softmax(double... raw) {
+        double sum = 0;
+        double[] result = new double[raw.length];
+        for (int k = 0; k < raw.length; k++) {
+            result[k] = Math.exp(raw[k]);
+            sum += result[k];
+        }
+        for (int k = 0; k < raw.length; k++) {
+            result[k] /= sum;
+        }
+        return result;
+    }
+
+    private FeatureVector sample(double x, double y) {
+        FeatureVector fv = FEATURES.newSample();
+        fv.add(0, x);
+        fv.add(1, y);
+        return fv;
+    }
+
+    private TarArchiveInputStream getExportedModel(String fileName) throws Exception {
+        InputStream stream = GradientBoostingClassifierTest.class.getClassLoader().getResourceAsStream(fileName);
+        if (stream == null) {
+            throw new RuntimeException(String.format("no zip found with name %s", fileName));
+        }
+        return new TarArchiveInputStream(new GzipCompressorInputStream(stream));
+    }
+}
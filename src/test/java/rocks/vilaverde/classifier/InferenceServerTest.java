@@ -0,0 +1,195 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+import rocks.vilaverde.classifier.server.InferenceServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for serving models over HTTP with the {@link InferenceServer}.
+ */
+public class InferenceServerTest {
+
+    private static final String[] NAMES = {"sepal length (cm)", "sepal width (cm)",
+            "petal length (cm)", "petal width (cm)"};
+    private static final Features FEATURES = Features.of(NAMES);
+
+    @Test
+    public void jsonAndBinaryRequests() throws Exception {
+        RandomForestClassifier<Double> forest = getForest();
+
+        try (InferenceServer server = new InferenceServer(Collections.singletonMap("iris", forest), 2, 64,
+                Duration.ofMillis(1), 1024)) {
+            server.start(new InetSocketAddress("127.0.0.1", 0));
+
+            double[][] rows = {{5.1, 3.5, 1.4, 0.2}, {6.7, 3.0, 5.2, 2.3}};
+            double[][] expected = forest.predict_proba(sample(rows[0]), sample(rows[1]));
+
+            String json = new String(post(server, "iris", "application/json",
+                    ("{\"features\": [\"sepal length (cm)\", \"sepal width (cm)\", \"petal length (cm)\","
+                            + " \"petal width (cm)\"], \"rows\": [[5.1, 3.5, 1.4, 0.2], [6.7, 3.0, 5.2, 2.3]]}")
+                            .getBytes(StandardCharsets.UTF_8), 200), StandardCharsets.UTF_8);
+            StringBuilder probabilities = new StringBuilder();
+            for (int row = 0; row < 2; row++) {
+                probabilities.append(row > 0 ? ",[" : "[").append(expected[row][0]).append(',')
+                        .append(expected[row][1]).append(',').append(expected[row][2]).append(']');
+            }
+            Assertions.assertEquals("{\"classes\":[0,2],\"probabilities\":[" + probabilities + "]}", json);
+
+            ByteBuffer response = ByteBuffer.wrap(post(server, "iris", "application/octet-stream",
+                    binaryRequest(rows), 200)).order(ByteOrder.LITTLE_ENDIAN);
+            Assertions.assertEquals(2, response.getInt());
+            Assertions.assertEquals(3, response.getInt());
+            Assertions.assertEquals(0, response.getInt());
+            Assertions.assertEquals(2, response.getInt());
+            for (int row = 0; row < 2; row++) {
+                for (int k = 0; k < 3; k++) {
+                    Assertions.assertEquals(expected[row][k], response.getDouble());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void concurrentRequestsAreBatched() throws Exception {
+        RandomForestClassifier<Double> forest = getForest();
+
+        try (InferenceServer server = new InferenceServer(Collections.singletonMap("iris", forest), 1, 256,
+                Duration.ofMillis(20), 1024)) {
+            server.start(new InetSocketAddress("127.0.0.1", 0));
+
+            ExecutorService clients = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<byte[]>> responses = new ArrayList<>();
+                for (int i = 0; i < 32; i++) {
+                    double[] row = {4.0 + i * 0.1, 3.0, 1.0 + i * 0.15, i * 0.08};
+                    responses.add(clients.submit(() -> post(server, "iris", "application/octet-stream",
+                            binaryRequest(new double[][] {row}), 200)));
+                }
+
+                for (int i = 0; i < responses.size(); i++) {
+                    double[] row = {4.0 + i * 0.1, 3.0, 1.0 + i * 0.15, i * 0.08};
+                    ByteBuffer response = ByteBuffer.wrap(responses.get(i).get()).order(ByteOrder.LITTLE_ENDIAN);
+                    response.position(12);
+                    double[] expected = forest.predict_proba(sample(row))[0];
+                    for (int k = 0; k < 3; k++) {
+                        Assertions.assertEquals(expected[k], response.getDouble());
+                    }
+                }
+            } finally {
+                clients.shutdownNow();
+            }
+
+            String metrics = new String(get(server, "/metrics", 200), StandardCharsets.UTF_8);
+            Assertions.assertTrue(metrics.contains("sklearn2java_requests_total 32\n"));
+            Assertions.assertTrue(metrics.contains("sklearn2java_rows_total 32\n"));
+            long batches = Long.parseLong(metrics.split("\nsklearn2java_batches_total ")[1].split("\n")[0]);
+            Assertions.assertTrue(batches < 32, "expected requests to be coalesced, got " + batches + " batches");
+        }
+    }
+
+    @Test
+    public void errorsAndHealth() throws Exception {
+        try (InferenceServer server = new InferenceServer(Collections.singletonMap("iris", getForest()), 1, 64,
+                Duration.ZERO, 1024)) {
+            server.start(new InetSocketAddress("127.0.0.1", 0));
+
+            Assertions.assertEquals("{\"status\":\"UP\",\"models\":[\"iris\"]}",
+                    new String(get(server, "/health", 200), StandardCharsets.UTF_8));
+            post(server, "unknown", "application/json", "{}".getBytes(StandardCharsets.UTF_8), 404);
+            post(server, "iris", "application/json", "{\"rows\": [[1]]".getBytes(StandardCharsets.UTF_8), 400);
+            post(server, "iris", "text/csv", "1,2".getBytes(StandardCharsets.UTF_8), 415);
+
+            // the model needs features that are not in the request
+            byte[] missing = ("{\"features\": [\"sepal length (cm)\"], \"rows\": [[1.0]]}")
+                    .getBytes(StandardCharsets.UTF_8);
+            Assertions.assertTrue(new String(post(server, "iris", "application/json", missing, 400),
+                    StandardCharsets.UTF_8).startsWith("{\"error\":"));
+
+            // a column name longer than the body is refused before anything is allocated for it
+            byte[] huge = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(1).putInt(Integer.MAX_VALUE).putInt(0).array();
+            post(server, "iris", "application/octet-stream", huge, 400);
+        }
+    }
+
+    private static FeatureVector sample(double[] row) {
+        return FEATURES.newSample().addAll(row);
+    }
+
+    private static byte[] binaryRequest(double[][] rows) {
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        names.writeBytes(header.putInt(NAMES.length).array());
+        for (String name : NAMES) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            names.writeBytes(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(bytes.length).array());
+            names.writeBytes(bytes);
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(names.size() + 4 + rows.length * NAMES.length * 8)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        body.put(names.toByteArray()).putInt(rows.length);
+        for (double[] row : rows) {
+            for (double value : row) {
+                body.putDouble(value);
+            }
+        }
+        return body.array();
+    }
+
+    private static byte[] post(InferenceServer server, String model, String type, byte[] body, int status)
+            throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort()
+                + "/models/" + model + "/predict").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", type);
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        return read(connection, status);
+    }
+
+    private static byte[] get(InferenceServer server, String path, int status) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort()
+                + path).openConnection();
+        return read(connection, status);
+    }
+
+    private static byte[] read(HttpURLConnection connection, int status) throws Exception {
+        Assertions.assertEquals(status, connection.getResponseCode());
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private RandomForestClassifier<Double> getForest() throws Exception {
+        InputStream stream = InferenceServerTest.class.getClassLoader().getResourceAsStream("rf/iris.tgz");
+        if (stream == null) {
+            throw new RuntimeException("no zip found with name rf/iris.tgz");
+        }
+        return RandomForestClassifier.parse(new TarArchiveInputStream(new GzipCompressorInputStream(stream)),
+                PredictionFactory.DOUBLE);
+    }
+}
@@ -0,0 +1,136 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.cli.LoadTest;
+import rocks.vilaverde.classifier.cli.LoadTestResult;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for the load test harness.
+ */
+public class LoadTestTest {
+
+    private static final Features FEATURES = Features.of("sepal length (cm)", "sepal width (cm)",
+            "petal length (cm)", "petal width (cm)");
+
+    @Test
+    public void sendsRequestsAtTheTargetRate() throws Exception {
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(new TarArchiveInputStream(
+                new GzipCompressorInputStream(getClass().getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                PredictionFactory.DOUBLE);
+        List<FeatureVector> samples = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            samples.add(FEATURES.newSample().add(0, i).add(1, 3.0).add(2, i / 2.0).add(3, i / 4.0));
+        }
+
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        try {
+            LoadTestResult result = new LoadTest(1000, Duration.ofMillis(100), Duration.ofMillis(500))
+                    .run("forest", forest, samples, clients);
+
+            Assertions.assertEquals(500, result.getRequests(), 5);
+            Assertions.assertEquals(result.getRequests(), result.getCompleted());
+            Assertions.assertEquals(0, result.getErrors());
+            Assertions.assertEquals(0, result.getIncomplete());
+            Assertions.assertTrue(result.getThroughput() > 500);
+            Assertions.assertTrue(result.getLatencyNanos(50) <= result.getLatencyNanos(99));
+            Assertions.assertTrue(result.getLatencyNanos(99) <= result.getLatencyNanos(99.9));
+            Assertions.assertTrue(result.getLatencyNanos(99.9) <= result.getMaxLatencyNanos());
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void latencyIncludesTimeSpentQueued() {
+        // a single client thread taking 5 ms per request can only keep up with 200 requests a
+        // second, so at 400 the requests queue and the latency grows with the queue
+        Classifier<Integer> slow = new Classifier<>() {
+            @Override
+            public List<Integer> predict(FeatureVector... samples) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Collections.singletonList(0);
+            }
+
+            @Override
+            public double[][] predict_proba(FeatureVector... samples) {
+                return new double[0][];
+            }
+
+            @Override
+            @Deprecated
+            public Integer predict(Map<String, Double> samples) {
+                return predict(new FeatureVector[0]).get(0);
+            }
+
+            @Override
+            @Deprecated
+            public double[] predict_proba(Map<String, Double> samples) {
+                return new double[0];
+            }
+
+            @Override
+            public Set<String> getFeatureNames() {
+                return Collections.emptySet();
+            }
+        };
+
+        ExecutorService clients = Executors.newSingleThreadExecutor();
+        try {
+            LoadTestResult result = new LoadTest(400, Duration.ZERO, Duration.ofMillis(300))
+                    .run("slow", slow, Collections.singletonList(FEATURES.newSample()), clients);
+
+            Assertions.assertEquals(120, result.getRequests(), 2);
+            Assertions.assertTrue(result.getLatencyNanos(99) > Duration.ofMillis(100).toNanos(),
+                    result.toJson());
+            Assertions.assertTrue(result.getThroughput() < 250, result.toJson());
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void commandLineWritesJson() throws Exception {
+        Path model = Files.createTempFile("iris", ".tgz");
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("rf/iris.tgz")) {
+            Files.copy(in, model, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Path input = Files.createTempFile("samples", ".csv");
+        Files.write(input, ("sepal length (cm),sepal width (cm),petal length (cm),petal width (cm)\n"
+                + "5.1,3.5,1.4,0.2\n6.2,2.9,4.3,1.3\n7.7,3.0,6.1,2.3\n").getBytes(StandardCharsets.UTF_8));
+        Path output = Files.createTempFile("results", ".json");
+
+        LoadTest.main(new String[] {"--model", model.toString(), "--input", input.toString(),
+                "--rate", "200", "--warmup-seconds", "0", "--duration-seconds", "1",
+                "--threads", "2", "--forest-threads", "0,2", "--output", output.toString()});
+
+        String json = new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+        Assertions.assertTrue(json.contains("\"samples\": 3"), json);
+        Assertions.assertTrue(json.contains("\"name\": \"forest-threads=0\""), json);
+        Assertions.assertTrue(json.contains("\"name\": \"forest-threads=2\""), json);
+        Assertions.assertTrue(json.contains("\"p99.9\": "), json);
+        Assertions.assertTrue(json.contains("\"errors\": 0,"), json);
+    }
+}
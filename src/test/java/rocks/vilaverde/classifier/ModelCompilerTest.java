@@ -0,0 +1,219 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.cli.ModelCompiler;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.GeneratedTreeClassifier;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests for generating the Java source of models at build time.
+ */
+public class ModelCompilerTest {
+
+    private static final Features FEATURES = Features.of("sepal length (cm)", "sepal width (cm)",
+            "petal length (cm)", "petal width (cm)");
+
+    @Test
+    public void generatedForestMatchesParsedForest() throws Exception {
+        Path model = Files.createTempFile("iris", ".tgz");
+        try (InputStream in = ModelCompilerTest.class.getClassLoader().getResourceAsStream("rf/iris.tgz")) {
+            Files.copy(in, model, StandardCopyOption.REPLACE_EXISTING);
+        }
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(
+                new TarArchiveInputStream(new GzipCompressorInputStream(Files.newInputStream(model))),
+                PredictionFactory.DOUBLE);
+
+        Path sources = Files.createTempDirectory("generated");
+        Path source = ModelCompiler.compile(model, "com.example.model.IrisForest", sources);
+        Assertions.assertEquals(sources.resolve("com/example/model/IrisForest.java"), source);
+
+        // an unchanged model doesn't rewrite the source
+        long modified = Files.getLastModifiedTime(source).toMillis();
+        Thread.sleep(20);
+        ModelCompiler.compile(model, "com.example.model.IrisForest", sources);
+        Assertions.assertEquals(modified, Files.getLastModifiedTime(source).toMillis());
+
+        GeneratedTreeClassifier<Double> generated = load(source, "com.example.model.IrisForest",
+                PredictionFactory.DOUBLE);
+        Assertions.assertEquals(forest.getTreeCount(), generated.getTreeCount());
+        Assertions.assertEquals(forest.getFeatureNames(), generated.getFeatureNames());
+
+        Random random = new Random(3);
+        int rows = 500;
+        double[] values = new double[rows * 4];
+        FeatureVector[] samples = new FeatureVector[rows];
+        for (int row = 0; row < rows; row++) {
+            samples[row] = FEATURES.newSample();
+            for (int f = 0; f < 4; f++) {
+                values[row * 4 + f] = random.nextDouble() * 8.0;
+                samples[row].add(f, values[row * 4 + f]);
+            }
+        }
+
+        double[][] expected = forest.predict_proba(samples);
+        double[][] actual = generated.predict_proba(samples);
+        for (int row = 0; row < rows; row++) {
+            Assertions.assertArrayEquals(expected[row], actual[row]);
+        }
+
+        FeatureMatrix matrix = FeatureMatrix.wrap(FEATURES, values, 0, rows, 4, 1);
+        IntBuffer expectedClasses = IntBuffer.allocate(rows);
+        IntBuffer actualClasses = IntBuffer.allocate(rows);
+        forest.predict(matrix, expectedClasses);
+        generated.predict(matrix, actualClasses);
+        Assertions.assertArrayEquals(expectedClasses.array(), actualClasses.array());
+        // the samples and the matrix pick the class the same way
+        Assertions.assertEquals(forest.predict(samples), generated.predict(samples));
+        for (int row = 0; row < rows; row++) {
+            Assertions.assertEquals(forest.classify(samples[row], forest.newResult(false)).getClassIndex(),
+                    actualClasses.get(row));
+        }
+
+        DoubleBuffer expectedProba = DoubleBuffer.allocate(rows * 3);
+        DoubleBuffer actualProba = DoubleBuffer.allocate(rows * 3);
+        forest.predict_proba(matrix, expectedProba);
+        generated.predict_proba(matrix, actualProba);
+        Assertions.assertArrayEquals(expectedProba.array(), actualProba.array());
+    }
+
+    @Test
+    public void deepTreeIsSplitIntoMethods() throws Exception {
+        // a chain of splits deeper than a single method holds
+        int depth = 120;
+        StringBuilder text = new StringBuilder();
+        for (int d = 0; d < depth; d++) {
+            String indent = "|   ".repeat(d);
+            text.append(indent).append("|--- x <= ").append(d).append(".50\n");
+            text.append(indent).append("|   |--- weights: [").append(d + 1).append(".00, 1.00] class: 0\n");
+            text.append(indent).append("|--- x >  ").append(d).append(".50\n");
+        }
+        text.append("|   ".repeat(depth)).append("|--- weights: [0.00, 5.00] class: 1\n");
+
+        Path model = Files.createTempFile("deep", ".txt");
+        Files.write(model, text.toString().getBytes(StandardCharsets.UTF_8));
+        DecisionTreeClassifier<Integer> tree = DecisionTreeClassifier.parse(Files.newBufferedReader(model),
+                PredictionFactory.INTEGER);
+
+        Path source = ModelCompiler.compile(model, "DeepTree", Files.createTempDirectory("generated"));
+        Assertions.assertTrue(new String(Files.readAllBytes(source), StandardCharsets.UTF_8)
+                .contains("private static void tree0_"));
+        GeneratedTreeClassifier<Integer> generated = load(source, "DeepTree", PredictionFactory.INTEGER);
+
+        Features features = Features.of("x");
+        for (double x = -1; x < depth + 1; x += 0.5) {
+            FeatureVector sample = features.newSample().add("x", x);
+            Assertions.assertEquals(tree.predict(sample), generated.predict(sample));
+            Assertions.assertArrayEquals(tree.predict_proba(sample)[0], generated.predict_proba(sample)[0]);
+        }
+    }
+
+    @Test
+    public void largeTreeMethodsStayCompilable() throws Exception {
+        // a balanced tree with far more code than fits in one method
+        int depth = 13;
+        Random random = new Random(9);
+        StringBuilder text = new StringBuilder();
+        writeBalanced(text, 0, depth, random);
+
+        Path model = Files.createTempFile("large", ".txt");
+        Files.write(model, text.toString().getBytes(StandardCharsets.UTF_8));
+        DecisionTreeClassifier<Integer> tree = DecisionTreeClassifier.parse(Files.newBufferedReader(model),
+                PredictionFactory.INTEGER);
+        Path source = ModelCompiler.compile(model, "LargeTree", Files.createTempDirectory("generated"));
+        Path classes = compile(source);
+
+        // the offset of the last instruction of every method, a return of one byte
+        StringWriter listing = new StringWriter();
+        java.util.spi.ToolProvider javap = java.util.spi.ToolProvider.findFirst("javap").orElseThrow();
+        Assertions.assertEquals(0, javap.run(new PrintWriter(listing), new PrintWriter(new StringWriter()),
+                "-c", "-p", "-cp", classes.toString(), "LargeTree"));
+        Map<String, Integer> sizes = new HashMap<>();
+        String method = null;
+        for (String line : listing.toString().split("\n")) {
+            Matcher instruction = Pattern.compile("^\\s+(\\d+): ").matcher(line);
+            if (line.matches("^  \\S.*;$")) {
+                method = line.trim();
+            } else if (method != null && instruction.find()) {
+                sizes.put(method, Integer.parseInt(instruction.group(1)) + 1);
+            }
+        }
+
+        // HotSpot doesn't compile methods larger than 8000 bytes
+        Assertions.assertTrue(sizes.size() > 10, sizes.toString());
+        for (Map.Entry<String, Integer> size : sizes.entrySet()) {
+            Assertions.assertTrue(size.getValue() <= 8000, size.toString());
+        }
+
+        GeneratedTreeClassifier<Integer> generated = loadCompiled(classes, "LargeTree", PredictionFactory.INTEGER);
+        Features features = Features.of("a", "b");
+        for (int i = 0; i < 500; i++) {
+            FeatureVector sample = features.newSample().add(0, random.nextDouble()).add(1, random.nextDouble());
+            Assertions.assertEquals(tree.predict(sample), generated.predict(sample));
+            Assertions.assertArrayEquals(tree.predict_proba(sample)[0], generated.predict_proba(sample)[0]);
+        }
+    }
+
+    private static void writeBalanced(StringBuilder text, int level, int depth, Random random) {
+        String indent = "|   ".repeat(level);
+        if (level == depth) {
+            int[] weights = {random.nextInt(4), random.nextInt(4), 1 + random.nextInt(4)};
+            int best = weights[0] >= weights[1] && weights[0] >= weights[2] ? 0 : weights[1] >= weights[2] ? 1 : 2;
+            text.append(indent).append(String.format("|--- weights: [%d.00, %d.00, %d.00] class: %d%n",
+                    weights[0], weights[1], weights[2], best));
+            return;
+        }
+        String feature = level % 2 == 0 ? "a" : "b";
+        String threshold = String.format("%.6f", random.nextDouble());
+        text.append(indent).append("|--- ").append(feature).append(" <= ").append(threshold).append('\n');
+        writeBalanced(text, level + 1, depth, random);
+        text.append(indent).append("|--- ").append(feature).append(" >  ").append(threshold).append('\n');
+        writeBalanced(text, level + 1, depth, random);
+    }
+
+    private static <T> GeneratedTreeClassifier<T> load(Path source, String className,
+                                                       PredictionFactory<T> factory) throws Exception {
+        return loadCompiled(compile(source), className, factory);
+    }
+
+    private static Path compile(Path source) throws Exception {
+        Path classes = Files.createTempDirectory("classes");
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        int status = compiler.run(null, null, null, "-d", classes.toString(),
+                "-cp", System.getProperty("java.class.path"), source.toString());
+        Assertions.assertEquals(0, status);
+        return classes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> GeneratedTreeClassifier<T> loadCompiled(Path classes, String className,
+                                                               PredictionFactory<T> factory) throws Exception {
+        URLClassLoader loader = new URLClassLoader(new URL[] {classes.toUri().toURL()},
+                ModelCompilerTest.class.getClassLoader());
+        Class<?> type = loader.loadClass(className);
+        return (GeneratedTreeClassifier<T>) type.getConstructor(PredictionFactory.class).newInstance(factory);
+    }
+}
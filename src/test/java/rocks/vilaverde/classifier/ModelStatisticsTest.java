@@ -0,0 +1,115 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.ModelStatistics;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for the statistics of the models.
+ */
+public class ModelStatisticsTest {
+
+    @Test
+    public void treeStatistics() throws Exception {
+        String model = "|--- a <= 1.50\n"
+                + "|   |--- b <= 2.50\n"
+                + "|   |   |--- weights: [3.00, 1.00] class: 0\n"
+                + "|   |--- b >  2.50\n"
+                + "|   |   |--- a <= 0.50\n"
+                + "|   |   |   |--- weights: [1.00, 1.00] class: 0\n"
+                + "|   |   |--- a >  0.50\n"
+                + "|   |   |   |--- weights: [0.00, 2.00] class: 1\n"
+                + "|--- a >  1.50\n"
+                + "|   |--- weights: [0.00, 4.00] class: 1\n";
+        DecisionTreeClassifier<Integer> tree = DecisionTreeClassifier.parse(new StringReader(model),
+                PredictionFactory.INTEGER);
+
+        ModelStatistics statistics = tree.getStatistics();
+        Assertions.assertEquals(1, statistics.getTreeCount());
+        Assertions.assertEquals(7, statistics.getNodeCount());
+        Assertions.assertEquals(4, statistics.getLeafCount());
+        Assertions.assertEquals(3, statistics.getSplitCount());
+        Assertions.assertEquals(3, statistics.getMaxDepth());
+        Assertions.assertEquals((2 + 3 + 3 + 1) / 4.0, statistics.getAverageDepth(), 1e-12);
+        Assertions.assertEquals(Map.of("a", 2L, "b", 1L), statistics.getFeatureUsage());
+        Assertions.assertEquals(2, statistics.getClassCount());
+        Assertions.assertTrue(statistics.getEstimatedBytes() > 0);
+        Assertions.assertTrue(statistics.getParseTime().toNanos() > 0);
+
+        // without weights the classes are counted from the labels of the leaves
+        DecisionTreeClassifier<Integer> unweighted = DecisionTreeClassifier.parse(
+                new InputStreamReader(getClass().getClassLoader().getResourceAsStream("iris.model")),
+                PredictionFactory.INTEGER);
+        Assertions.assertEquals(3, unweighted.getStatistics().getClassCount());
+    }
+
+    @Test
+    public void forestStatistics() throws Exception {
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(new TarArchiveInputStream(
+                new GzipCompressorInputStream(getClass().getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                PredictionFactory.DOUBLE);
+
+        ModelStatistics statistics = forest.getStatistics();
+        List<ModelStatistics> trees = forest.getTreeStatistics();
+        Assertions.assertEquals(forest.getTreeCount(), statistics.getTreeCount());
+        Assertions.assertEquals(forest.getTreeCount(), trees.size());
+        Assertions.assertEquals(3, statistics.getClassCount());
+
+        long nodes = 0;
+        long bytes = 0;
+        long usage = 0;
+        int maxDepth = 0;
+        for (ModelStatistics tree : trees) {
+            nodes += tree.getNodeCount();
+            bytes += tree.getEstimatedBytes();
+            maxDepth = Math.max(maxDepth, tree.getMaxDepth());
+            Assertions.assertEquals(tree.getSplitCount() + 1, tree.getLeafCount());
+        }
+        for (long splits : statistics.getFeatureUsage().values()) {
+            usage += splits;
+        }
+        Assertions.assertEquals(nodes, statistics.getNodeCount());
+        Assertions.assertEquals(bytes, statistics.getEstimatedBytes());
+        Assertions.assertEquals(statistics.getSplitCount(), usage);
+        Assertions.assertEquals(maxDepth, statistics.getMaxDepth());
+        Assertions.assertTrue(statistics.getAverageDepth() > 0 && statistics.getAverageDepth() <= maxDepth);
+
+        // float32 thresholds don't change the statistics of the model as loaded
+        forest.useFloat32();
+        Assertions.assertSame(statistics, forest.getStatistics());
+    }
+
+    @Test
+    public void registeredAsMBean() throws Exception {
+        DecisionTreeClassifier<Boolean> tree = DecisionTreeClassifier.parse(
+                new InputStreamReader(getClass().getClassLoader().getResourceAsStream("simple-tree.model")),
+                PredictionFactory.BOOLEAN);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = tree.getStatistics().register("simple tree");
+        try {
+            Assertions.assertEquals(ModelStatistics.JMX_DOMAIN, name.getDomain());
+            Assertions.assertEquals(3L, server.getAttribute(name, "NodeCount"));
+            Assertions.assertEquals(1, server.getAttribute(name, "MaxDepth"));
+            Assertions.assertEquals(2, server.getAttribute(name, "ClassCount"));
+            TabularData usage = (TabularData) server.getAttribute(name, "FeatureUsage");
+            Assertions.assertEquals(1, usage.size());
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.dt.TreeClassifier;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+import rocks.vilaverde.classifier.server.MultiModelEvaluator;
+import rocks.vilaverde.classifier.server.MultiModelEvaluator.ShadowResult;
+
+import java.io.InputStreamReader;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for evaluating shadow models next to a primary model.
+ */
+public class MultiModelEvaluatorTest {
+
+    private static final Features FEATURES = Features.of("sepal length (cm)", "sepal width (cm)",
+            "petal length (cm)", "petal width (cm)", "unused");
+
+    @Test
+    public void shadowsSeeTheSameSampleAsThePrimary() throws Exception {
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(new TarArchiveInputStream(
+                new GzipCompressorInputStream(getClass().getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                PredictionFactory.DOUBLE);
+        DecisionTreeClassifier<Double> tree = DecisionTreeClassifier.parse(new InputStreamReader(
+                getClass().getClassLoader().getResourceAsStream("iris.model")), PredictionFactory.DOUBLE);
+
+        BlockingQueue<ShadowResult<Double>> results = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            MultiModelEvaluator<Double> evaluator = new MultiModelEvaluator<>(FEATURES, forest,
+                    Collections.singletonMap("tree", tree), results::add, executor);
+
+            for (int i = 0; i < 50; i++) {
+                FeatureVector sample = FEATURES.newSample().add(0, 4 + i * 0.08).add(1, 3.0)
+                        .add(2, 1 + i * 0.12).add(3, i * 0.05).add(4, Double.NaN);
+
+                Assertions.assertEquals(forest.predict(sample).get(0), evaluator.evaluate(sample).get());
+
+                ShadowResult<Double> result = results.poll(5, TimeUnit.SECONDS);
+                Assertions.assertNotNull(result);
+                Assertions.assertEquals(i + 1, result.getSequence());
+                Assertions.assertEquals("tree", result.getModel());
+                Assertions.assertNull(result.getError());
+                Assertions.assertEquals(tree.predict(sample).get(0), result.getPrediction().get());
+                Assertions.assertEquals(forest.predict(sample).get(0), result.getPrimary().get());
+                Assertions.assertEquals(result.getPrimary().get().equals(result.getPrediction().get()), result.agrees());
+                // only the features used by the models are gathered
+                Assertions.assertFalse(result.getSample().hasFeature("unused"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shadowsNeverDelayThePrimary() throws Exception {
+        DecisionTreeClassifier<Double> tree = DecisionTreeClassifier.parse(new InputStreamReader(
+                getClass().getClassLoader().getResourceAsStream("iris.model")), PredictionFactory.DOUBLE);
+        CountDownLatch release = new CountDownLatch(1);
+        TreeClassifier<Double> blocked = new DelegatingClassifier(tree) {
+            @Override
+            public Prediction<Double> getClassification(FeatureVector features) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getClassification(features);
+            }
+        };
+        TreeClassifier<Double> failing = new DelegatingClassifier(tree) {
+            @Override
+            public Prediction<Double> getClassification(FeatureVector features) {
+                throw new IllegalStateException("broken");
+            }
+        };
+
+        Map<String, TreeClassifier<Double>> shadows = new LinkedHashMap<>();
+        shadows.put("blocked", blocked);
+        shadows.put("failing", failing);
+        BlockingQueue<ShadowResult<Double>> results = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            MultiModelEvaluator<Double> evaluator = new MultiModelEvaluator<>(FEATURES, tree, shadows,
+                    results::add, executor);
+            FeatureVector sample = FEATURES.newSample().add(0, 5.1).add(1, 3.5).add(2, 1.4).add(3, 0.2);
+
+            Assertions.assertEquals(0.0, evaluator.evaluate(sample).get(), 0.0);
+
+            ShadowResult<Double> failed = results.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(failed);
+            Assertions.assertEquals("failing", failed.getModel());
+            Assertions.assertNull(failed.getPrediction());
+            Assertions.assertEquals("broken", failed.getError().getMessage());
+            Assertions.assertFalse(failed.agrees());
+            Assertions.assertTrue(results.isEmpty());
+
+            release.countDown();
+            ShadowResult<Double> late = results.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(late);
+            Assertions.assertTrue(late.agrees());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        MultiModelEvaluator<Double> stopped = new MultiModelEvaluator<>(FEATURES, tree, shadows,
+                results::add, executor);
+        FeatureVector sample = FEATURES.newSample().add(0, 5.1).add(1, 3.5).add(2, 1.4).add(3, 0.2);
+        Assertions.assertEquals(0.0, stopped.evaluate(sample).get(), 0.0);
+        Assertions.assertEquals(2, stopped.getDroppedShadows());
+    }
+
+    @Test
+    public void shadowsRunOnTheCallingThread() throws Exception {
+        DecisionTreeClassifier<Double> tree = DecisionTreeClassifier.parse(new InputStreamReader(
+                getClass().getClassLoader().getResourceAsStream("iris.model")), PredictionFactory.DOUBLE);
+
+        // the only thread of the executor is busy, so the shadows run on the caller before the primary
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        BlockingQueue<ShadowResult<Double>> results = new LinkedBlockingQueue<>();
+        try {
+            MultiModelEvaluator<Double> evaluator = new MultiModelEvaluator<>(FEATURES, tree,
+                    Collections.singletonMap("tree", tree), results::add, executor);
+            FeatureVector sample = FEATURES.newSample().add(0, 5.1).add(1, 3.5).add(2, 1.4).add(3, 0.2);
+
+            Prediction<Double> prediction = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5),
+                    () -> evaluator.evaluate(sample));
+            Assertions.assertEquals(0.0, prediction.get(), 0.0);
+
+            ShadowResult<Double> result = results.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(result);
+            Assertions.assertTrue(result.agrees());
+            Assertions.assertEquals(0, evaluator.getDroppedShadows());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void modelsMustShareTheSchema() throws Exception {
+        DecisionTreeClassifier<Double> tree = DecisionTreeClassifier.parse(new InputStreamReader(
+                getClass().getClassLoader().getResourceAsStream("iris.model")), PredictionFactory.DOUBLE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> new MultiModelEvaluator<>(
+                    Features.of("petal width (cm)"), tree, Collections.emptyMap(), result -> { }, executor));
+
+            MultiModelEvaluator<Double> evaluator = new MultiModelEvaluator<>(FEATURES, tree,
+                    Collections.emptyMap(), result -> { }, executor);
+            Features other = Features.of("sepal length (cm)", "sepal width (cm)",
+                    "petal length (cm)", "petal width (cm)");
+            Assertions.assertThrows(IllegalArgumentException.class, () -> evaluator.evaluate(other.newSample()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Delegates to a tree, for shadows that misbehave.
+     */
+    private static class DelegatingClassifier extends AbstractTreeClassifier<Double> {
+        private final DecisionTreeClassifier<Double> tree;
+
+        DelegatingClassifier(DecisionTreeClassifier<Double> tree) {
+            this.tree = tree;
+        }
+
+        @Override
+        public Prediction<Double> getClassification(FeatureVector features) {
+            return tree.getClassification(features);
+        }
+
+        @Override
+        public int getClassCount() {
+            return tree.getClassCount();
+        }
+
+        @Override
+        public void predict(FeatureMatrix rows, IntBuffer out) {
+            tree.predict(rows, out);
+        }
+
+        @Override
+        public void predict_proba(FeatureMatrix rows, DoubleBuffer out) {
+            tree.predict_proba(rows, out);
+        }
+
+        @Override
+        public List<Double> predict(FeatureVector... samples) {
+            return tree.predict(samples);
+        }
+
+        @Override
+        public double[][] predict_proba(FeatureVector... samples) {
+            return tree.predict_proba(samples);
+        }
+
+        @Override
+        public Set<String> getFeatureNames() {
+            return tree.getFeatureNames();
+        }
+    }
+}
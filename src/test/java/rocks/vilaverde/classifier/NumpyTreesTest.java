@@ -0,0 +1,302 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.ModelStatistics;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests for reading trees from the arrays of sklearn trees saved with NumPy. The arrays are
+ * written from the exported text of the test models, so the two can be compared.
+ */
+public class NumpyTreesTest {
+
+    @Test
+    public void treeFromDirectoryMatchesExportedText() throws Exception {
+        String text = resource("decision-tree.model");
+        List<String> names = Arrays.asList("feature1", "feature2", "feature3", "feature4",
+                "feature5", "feature6", "feature7", "feature8");
+        Path dir = Files.createTempDirectory("tree");
+        TreeArrays arrays = TreeArrays.of(text, names);
+        arrays.write(dir);
+        writeNpy(dir.resolve("feature_names.npy"), strings(names));
+        writeNpy(dir.resolve("classes.npy"), npy("|b1", 2, 1, buffer -> buffer.put((byte) 0).put((byte) 1)));
+
+        DecisionTreeClassifier<Boolean> parsed = DecisionTreeClassifier.parse(new StringReader(text),
+                PredictionFactory.BOOLEAN);
+        DecisionTreeClassifier<Boolean> loaded = DecisionTreeClassifier.fromNumpy(dir, PredictionFactory.BOOLEAN);
+
+        Assertions.assertEquals(parsed.getFeatureNames(), loaded.getFeatureNames());
+        Features features = Features.of(names.toArray(new String[0]));
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            FeatureVector sample = features.newSample();
+            for (int f = 0; f < names.size(); f++) {
+                sample.add(f, random.nextInt(4) == 0 ? random.nextDouble() * 200 : random.nextDouble() * 3);
+            }
+            Assertions.assertEquals(parsed.predict(sample), loaded.predict(sample));
+            Assertions.assertArrayEquals(parsed.predict_proba(sample)[0], loaded.predict_proba(sample)[0], 1e-12);
+            Assertions.assertEquals(parsed.getClassification(sample, new int[1], 0).get(),
+                    loaded.getClassification(sample, new int[1], 0).get());
+        }
+
+        ModelStatistics expected = parsed.getStatistics();
+        ModelStatistics actual = loaded.getStatistics();
+        Assertions.assertEquals(expected.getSplitCount(), actual.getSplitCount());
+        Assertions.assertEquals(expected.getLeafCount(), actual.getLeafCount());
+        Assertions.assertEquals(expected.getMaxDepth(), actual.getMaxDepth());
+        Assertions.assertEquals(expected.getAverageDepth(), actual.getAverageDepth(), 1e-12);
+        Assertions.assertEquals(expected.getFeatureUsage(), actual.getFeatureUsage());
+    }
+
+    @Test
+    public void treeFromNpzWithFractionsAndDefaultNames() throws Exception {
+        // sklearn 1.4 and later store the fraction of each class in value, the weighted number
+        // of samples in weighted_n_node_samples
+        Path npz = Files.createTempFile("tree", ".npz");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(npz))) {
+            putEntry(zip, "children_left.npy", ints(1, -1, -1));
+            putEntry(zip, "children_right.npy", ints(2, -1, -1));
+            putEntry(zip, "feature.npy", ints(1, -2, -2));
+            putEntry(zip, "threshold.npy", doubles(1.5, -2, -2));
+            putEntry(zip, "value.npy", npy("<f8", new int[] {3, 1, 2}, 6, 8,
+                    buffer -> buffer.putDouble(0.75).putDouble(0.25).putDouble(5 / 7.0).putDouble(2 / 7.0)
+                            .putDouble(1.0).putDouble(0.0)));
+            putEntry(zip, "weighted_n_node_samples.npy", doubles(8, 7, 1));
+        }
+
+        DecisionTreeClassifier<Integer> tree = DecisionTreeClassifier.fromNumpy(npz, PredictionFactory.INTEGER);
+
+        Assertions.assertEquals(Collections.singleton("feature_1"), tree.getFeatureNames());
+        Features features = Features.of("feature_1");
+        FeatureVector left = features.newSample().add(0, 1.2);
+        Assertions.assertEquals(0, tree.predict(left).get(0).intValue());
+        Assertions.assertArrayEquals(new double[] {5 / 7.0, 2 / 7.0}, tree.predict_proba(left)[0], 1e-12);
+        Assertions.assertEquals(0, tree.predict(features.newSample().add(0, 2.4)).get(0).intValue());
+
+        // the leaf weights are sample counts again, which the explainer weighs the leaves by
+        Assertions.assertEquals(0.75, tree.newExplainer().getExpectedValue()[0], 1e-12);
+    }
+
+    @Test
+    public void forestFromEstimatorDirectories() throws Exception {
+        Path dir = Files.createTempDirectory("forest");
+        List<String> names = Arrays.asList("sepal length (cm)", "sepal width (cm)",
+                "petal length (cm)", "petal width (cm)");
+        writeNpy(dir.resolve("feature_names.npy"), strings(names));
+        writeNpy(dir.resolve("classes.npy"), doubles(0, 1, 2));
+
+        List<String> texts = new ArrayList<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new GzipCompressorInputStream(
+                getClass().getClassLoader().getResourceAsStream("rf/iris.tgz")))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                if (entry.isFile()) {
+                    texts.add(new String(tar.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        for (int i = 0; i < texts.size(); i++) {
+            Path estimator = Files.createDirectory(dir.resolve(String.format("estimator-%04d", i)));
+            TreeArrays.of(texts.get(i), names).write(estimator);
+        }
+
+        RandomForestClassifier<Double> parsed = RandomForestClassifier.parse(new TarArchiveInputStream(
+                new GzipCompressorInputStream(getClass().getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                PredictionFactory.DOUBLE);
+        RandomForestClassifier<Double> loaded = RandomForestClassifier.fromNumpy(dir, PredictionFactory.DOUBLE);
+
+        Assertions.assertEquals(texts.size(), loaded.getStatistics().getTreeCount());
+        Assertions.assertEquals(parsed.getStatistics().getNodeCount(), loaded.getStatistics().getNodeCount());
+        Features features = Features.of(names.toArray(new String[0]));
+        Random random = new Random(11);
+        for (int i = 0; i < 500; i++) {
+            FeatureVector sample = features.newSample()
+                    .add(0, 4 + random.nextDouble() * 4).add(1, 2 + random.nextDouble() * 2.5)
+                    .add(2, 1 + random.nextDouble() * 6).add(3, random.nextDouble() * 2.5);
+            Assertions.assertArrayEquals(parsed.predict_proba(sample)[0], loaded.predict_proba(sample)[0], 1e-12);
+        }
+    }
+
+    @Test
+    public void rejectsMultiOutputTrees() throws Exception {
+        Path dir = Files.createTempDirectory("tree");
+        writeNpy(dir.resolve("children_left.npy"), ints(-1));
+        writeNpy(dir.resolve("children_right.npy"), ints(-1));
+        writeNpy(dir.resolve("feature.npy"), ints(-2));
+        writeNpy(dir.resolve("threshold.npy"), doubles(-2));
+        writeNpy(dir.resolve("value.npy"), npy("<f8", new int[] {1, 2, 2}, 4, 8,
+                buffer -> buffer.putDouble(1).putDouble(0).putDouble(0).putDouble(1)));
+
+        IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class,
+                () -> DecisionTreeClassifier.fromNumpy(dir, PredictionFactory.INTEGER));
+        Assertions.assertTrue(e.getMessage().contains("2 outputs"), e.getMessage());
+    }
+
+    /**
+     * The arrays of the tree_ of a fitted tree, rebuilt from its exported text. The nodes are
+     * numbered depth first, the way sklearn numbers them.
+     */
+    private static final class TreeArrays {
+        private static final Pattern SPLIT = Pattern.compile("(.*) <= (\\S+)");
+        private static final Pattern LEAF = Pattern.compile("weights: \\[(.*)] class: .*");
+
+        private final List<String> names;
+        private final List<String> lines = new ArrayList<>();
+        private final List<Integer> left = new ArrayList<>();
+        private final List<Integer> right = new ArrayList<>();
+        private final List<Integer> feature = new ArrayList<>();
+        private final List<Double> threshold = new ArrayList<>();
+        private final List<double[]> value = new ArrayList<>();
+        private int line;
+
+        static TreeArrays of(String text, List<String> names) {
+            TreeArrays arrays = new TreeArrays(names);
+            for (String l : text.split("\n")) {
+                if (!l.trim().isEmpty()) {
+                    arrays.lines.add(l.substring(l.indexOf("|--- ") + 5).trim());
+                }
+            }
+            arrays.node();
+            return arrays;
+        }
+
+        private TreeArrays(List<String> names) {
+            this.names = names;
+        }
+
+        private int node() {
+            int id = left.size();
+            left.add(-1);
+            right.add(-1);
+            feature.add(-2);
+            threshold.add(-2.0);
+            value.add(null);
+
+            Matcher leaf = LEAF.matcher(lines.get(line));
+            if (leaf.matches()) {
+                line++;
+                value.set(id, Arrays.stream(leaf.group(1).split(",")).map(String::trim)
+                        .mapToDouble(Double::parseDouble).toArray());
+                return id;
+            }
+
+            Matcher split = SPLIT.matcher(lines.get(line++));
+            Assertions.assertTrue(split.matches());
+            feature.set(id, names.indexOf(split.group(1)));
+            threshold.set(id, Double.parseDouble(split.group(2)));
+            int l = node();
+            line++;
+            int r = node();
+            left.set(id, l);
+            right.set(id, r);
+
+            double[] sum = value.get(l).clone();
+            for (int k = 0; k < sum.length; k++) {
+                sum[k] += value.get(r)[k];
+            }
+            value.set(id, sum);
+            return id;
+        }
+
+        void write(Path dir) throws IOException {
+            writeNpy(dir.resolve("children_left.npy"), ints(left.stream().mapToInt(Integer::intValue).toArray()));
+            writeNpy(dir.resolve("children_right.npy"), ints(right.stream().mapToInt(Integer::intValue).toArray()));
+            writeNpy(dir.resolve("feature.npy"), ints(feature.stream().mapToInt(Integer::intValue).toArray()));
+            writeNpy(dir.resolve("threshold.npy"), doubles(threshold.stream().mapToDouble(Double::doubleValue).toArray()));
+            int classes = value.get(0).length;
+            writeNpy(dir.resolve("value.npy"), npy("<f8", new int[] {value.size(), 1, classes},
+                    value.size() * classes, 8, buffer -> value.forEach(row -> Arrays.stream(row).forEach(buffer::putDouble))));
+        }
+    }
+
+    private interface Filler {
+        void fill(ByteBuffer buffer);
+    }
+
+    private static byte[] ints(int... values) {
+        return npy("<i8", values.length, 8, buffer -> Arrays.stream(values).forEach(v -> buffer.putLong(v)));
+    }
+
+    private static byte[] doubles(double... values) {
+        return npy("<f8", values.length, 8, buffer -> Arrays.stream(values).forEach(buffer::putDouble));
+    }
+
+    private static byte[] strings(List<String> values) {
+        int width = values.stream().mapToInt(String::length).max().orElse(1);
+        return npy("<U" + width, new int[] {values.size()}, values.size(), width * 4, buffer -> {
+            for (String value : values) {
+                for (int c = 0; c < width; c++) {
+                    buffer.putInt(c < value.length() ? value.charAt(c) : 0);
+                }
+            }
+        });
+    }
+
+    private static byte[] npy(String descr, int length, int itemSize, Filler filler) {
+        return npy(descr, new int[] {length}, length, itemSize, filler);
+    }
+
+    /**
+     * Write an array the way numpy.save does, with a version 1 header padded to 64 bytes.
+     */
+    private static byte[] npy(String descr, int[] shape, int length, int itemSize, Filler filler) {
+        StringBuilder dims = new StringBuilder();
+        for (int dim : shape) {
+            dims.append(dim).append(", ");
+        }
+        String shapeText = shape.length == 1 ? shape[0] + "," : dims.substring(0, dims.length() - 2);
+        StringBuilder header = new StringBuilder(String.format("{'descr': '%s', 'fortran_order': False, 'shape': (%s), }",
+                descr, shapeText));
+        while ((10 + header.length() + 1) % 64 != 0) {
+            header.append(' ');
+        }
+        header.append('\n');
+
+        ByteBuffer buffer = ByteBuffer.allocate(10 + header.length() + length * itemSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[] {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0});
+        buffer.putShort((short) header.length());
+        buffer.put(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+        filler.fill(buffer);
+        return buffer.array();
+    }
+
+    private static void writeNpy(Path path, byte[] npy) throws IOException {
+        Files.write(path, npy);
+    }
+
+    private static void putEntry(ZipOutputStream zip, String name, byte[] npy) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(npy);
+        zip.closeEntry();
+    }
+
+    private String resource(String name) throws IOException {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+import rocks.vilaverde.classifier.stream.PredictionProcessor;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for streaming predictions through the {@link PredictionProcessor}.
+ */
+public class PredictionProcessorTest {
+
+    @Test
+    public void streamInOrderWithBackpressure() throws Exception {
+        Classifier<Double> forest = RandomForestClassifier.parse(getExportedModel("rf/iris.tgz"),
+                PredictionFactory.DOUBLE);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            PredictionProcessor<Double> processor = new PredictionProcessor<>(forest, executor, 16);
+            CollectingSubscriber subscriber = new CollectingSubscriber(10);
+            processor.subscribe(subscriber);
+
+            SubmissionPublisher<FeatureVector> publisher = new SubmissionPublisher<>(executor, 1024);
+            publisher.subscribe(processor);
+            for (int i = 0; i < 1000; i++) {
+                publisher.submit(i % 2 == 0 ? getSample(3.0, 5.0, 4.0, 2.0) : getSample(1.0, 2.0, 3.0, 4.0));
+            }
+            publisher.close();
+
+            Assertions.assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+            Assertions.assertNull(subscriber.error);
+            Assertions.assertEquals(1000, subscriber.predictions.size());
+            for (int i = 0; i < 1000; i++) {
+                Assertions.assertEquals(i % 2 == 0 ? 1.0 : 2.0, subscriber.predictions.get(i), .0);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void predictionErrorIsSignalled() throws Exception {
+        Classifier<Double> forest = RandomForestClassifier.parse(getExportedModel("rf/iris.tgz"),
+                PredictionFactory.DOUBLE);
+
+        PredictionProcessor<Double> processor = new PredictionProcessor<>(forest);
+        CollectingSubscriber subscriber = new CollectingSubscriber(Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+
+        SubmissionPublisher<FeatureVector> publisher = new SubmissionPublisher<>();
+        publisher.subscribe(processor);
+        publisher.submit(Features.of("sepal length (cm)").newSample());
+        publisher.close();
+
+        Assertions.assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    private FeatureVector getSample(double... values) {
+        Features features = Features.of("sepal length (cm)",
+                "sepal width (cm)",
+                "petal length (cm)",
+                "petal width (cm)");
+        FeatureVector fv = features.newSample();
+        for (int i = 0; i < values.length; i++) {
+            fv.add(i, values[i]);
+        }
+        return fv;
+    }
+
+    private TarArchiveInputStream getExportedModel(String fileName) throws Exception {
+        InputStream stream = PredictionProcessorTest.class.getClassLoader().getResourceAsStream(fileName);
+        if (stream == null) {
+            throw new RuntimeException(String.format("no zip found with name %s", fileName));
+        }
+        return new TarArchiveInputStream(new GzipCompressorInputStream(stream));
+    }
+
+    /**
+     * Requests predictions a few at a time and collects them.
+     */
+    private static class CollectingSubscriber implements Flow.Subscriber<Double> {
+        private final List<Double> predictions = new CopyOnWriteArrayList<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final long batch;
+        private Flow.Subscription subscription;
+        private long remaining;
+        private volatile Throwable error;
+
+        private CollectingSubscriber(long batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            this.remaining = batch;
+            subscription.request(batch);
+        }
+
+        @Override
+        public void onNext(Double item) {
+            predictions.add(item);
+            if (--remaining == 0) {
+                remaining = batch;
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
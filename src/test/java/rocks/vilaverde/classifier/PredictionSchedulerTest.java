@@ -0,0 +1,185 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+import rocks.vilaverde.classifier.util.OverloadedException;
+import rocks.vilaverde.classifier.util.PredictionScheduler;
+import rocks.vilaverde.classifier.util.PredictionScheduler.Lane;
+import rocks.vilaverde.classifier.util.RowSlices;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for sharing threads between lanes of different latency classes.
+ */
+public class PredictionSchedulerTest {
+
+    @Test
+    public void interactiveWorkRunsBetweenSlicesOfABatch() throws Exception {
+        try (PredictionScheduler scheduler = new PredictionScheduler(1)) {
+            Lane interactive = scheduler.addLane("interactive", 1, 8, 0);
+            Lane bulk = scheduler.addLane("bulk", 1, 8, 1);
+
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch proceed = new CountDownLatch(1);
+            Thread batch = new Thread(() -> RowSlices.run(bulk, 4, (start, end) -> {
+                if (start == 0) {
+                    started.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                order.add("b" + start);
+            }));
+            batch.start();
+
+            Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<?> request = interactive.submit(() -> order.add("i"));
+            proceed.countDown();
+            request.get(5, TimeUnit.SECONDS);
+            batch.join(5000);
+
+            Assertions.assertEquals(Arrays.asList("b0", "i", "b1", "b2", "b3"), order);
+        }
+    }
+
+    @Test
+    public void fullLaneShedsWork() throws Exception {
+        try (PredictionScheduler scheduler = new PredictionScheduler(1)) {
+            Lane lane = scheduler.addLane("interactive", 1, 2, 0);
+            CountDownLatch release = new CountDownLatch(1);
+            lane.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            while (lane.getRunning() == 0) {
+                Thread.sleep(1);
+            }
+
+            Future<?> first = lane.submit(() -> { });
+            Future<?> second = lane.submit(() -> { });
+            OverloadedException e = Assertions.assertThrows(OverloadedException.class, () -> lane.submit(() -> { }));
+            Assertions.assertEquals("interactive", e.getLane());
+            Assertions.assertEquals(1, lane.getShed());
+
+            release.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+
+            lane.shutdown();
+            Assertions.assertTrue(lane.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void lanesLimitConcurrency() throws Exception {
+        try (PredictionScheduler scheduler = new PredictionScheduler(4)) {
+            Lane lane = scheduler.addLane("bulk", 2, 64, 0);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger peak = new AtomicInteger();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(lane.submit(() -> {
+                    peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+            Assertions.assertTrue(peak.get() <= 2, "peak concurrency " + peak.get());
+        }
+    }
+
+    @Test
+    public void forestPredictsOnLanes() throws Exception {
+        RandomForestClassifier<Double> plain = RandomForestClassifier.parse(new TarArchiveInputStream(
+                new GzipCompressorInputStream(getClass().getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                PredictionFactory.DOUBLE);
+
+        try (PredictionScheduler scheduler = new PredictionScheduler(4)) {
+            Lane interactive = scheduler.addLane("interactive", 3, 1, 0);
+            Lane bulk = scheduler.addLane("bulk", 1, 4, 16);
+            RandomForestClassifier<Double> online = RandomForestClassifier.parse(new TarArchiveInputStream(
+                    new GzipCompressorInputStream(getClass().getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                    PredictionFactory.DOUBLE, interactive);
+            RandomForestClassifier<Double> batch = RandomForestClassifier.parse(new TarArchiveInputStream(
+                    new GzipCompressorInputStream(getClass().getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                    PredictionFactory.DOUBLE, bulk);
+
+            Features features = Features.of("sepal length (cm)", "sepal width (cm)",
+                    "petal length (cm)", "petal width (cm)");
+            int rows = 100;
+            double[] values = new double[rows * 4];
+            FeatureVector[] samples = new FeatureVector[rows];
+            for (int row = 0; row < rows; row++) {
+                values[row * 4] = 4 + row * 0.04;
+                values[row * 4 + 1] = 3.0;
+                values[row * 4 + 2] = 1 + row * 0.06;
+                values[row * 4 + 3] = row * 0.025;
+                samples[row] = features.newSample().add(0, values[row * 4]).add(1, 3.0)
+                        .add(2, values[row * 4 + 2]).add(3, values[row * 4 + 3]);
+            }
+
+            List<Double> expected = plain.predict(samples);
+            Assertions.assertEquals(expected, online.predict(samples));
+
+            IntBuffer classes = IntBuffer.allocate(rows);
+            batch.predict(FeatureMatrix.wrap(features, values, 0, rows, 4, 1), classes);
+            IntBuffer plainClasses = IntBuffer.allocate(rows);
+            plain.predict(FeatureMatrix.wrap(features, values, 0, rows, 4, 1), plainClasses);
+            Assertions.assertArrayEquals(plainClasses.array(), classes.array());
+            Assertions.assertEquals(0, bulk.getShed());
+            Assertions.assertEquals(0, interactive.getShed());
+        }
+    }
+
+    @Test
+    public void forestSampleTakesOneQueueEntry() throws Exception {
+        RandomForestClassifier<Double> plain = RandomForestClassifier.parse(new TarArchiveInputStream(
+                new GzipCompressorInputStream(getClass().getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                PredictionFactory.DOUBLE);
+
+        // a queue shorter than the number of processors, each of which used to take an entry
+        try (PredictionScheduler scheduler = new PredictionScheduler(2)) {
+            Lane interactive = scheduler.addLane("interactive", 2, 1, 0);
+            Assertions.assertTrue(interactive.getMaxQueued() < Math.max(2, Runtime.getRuntime().availableProcessors()));
+            RandomForestClassifier<Double> forest = RandomForestClassifier.parse(new TarArchiveInputStream(
+                    new GzipCompressorInputStream(getClass().getClassLoader().getResourceAsStream("rf/iris.tgz"))),
+                    PredictionFactory.DOUBLE, interactive);
+
+            Features features = Features.of("sepal length (cm)", "sepal width (cm)",
+                    "petal length (cm)", "petal width (cm)");
+            for (int i = 0; i < 20; i++) {
+                FeatureVector sample = features.newSample().add(0, 4 + i * 0.2).add(1, 3.0)
+                        .add(2, 1 + i * 0.3).add(3, i * 0.12);
+                Assertions.assertEquals(plain.predict(sample), forest.predict(sample));
+                Assertions.assertArrayEquals(plain.predict_proba(sample)[0], forest.predict_proba(sample)[0], 0.0);
+            }
+            Assertions.assertEquals(0, interactive.getShed());
+        }
+    }
+}
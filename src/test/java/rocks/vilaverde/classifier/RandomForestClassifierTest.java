@@ -1,18 +1,32 @@
 package rocks.vilaverde.classifier;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.ForestResult;
 import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+import rocks.vilaverde.classifier.ensemble.ScoringSession;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -92,6 +106,38 @@ public class RandomForestClassifierTest {
         assertSample(proba, 0.0, .44, .56);
     }
 
+    @Test
+    public void predictMatrix() throws Exception {
+        Features features = Features.of("sepal length (cm)",
+                "sepal width (cm)",
+                "petal length (cm)",
+                "petal width (cm)");
+
+        // two samples in a columnar layout, after one unused value
+        double[] columns = {-1.0, 3.0, 1.0, 5.0, 2.0, 4.0, 3.0, 2.0, 4.0};
+        FeatureMatrix matrix = FeatureMatrix.wrap(features, columns, 1, 2, 1, 2);
+
+        ByteBuffer bytes = ByteBuffer.allocateDirect(8 * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asDoubleBuffer().put(new double[] {3.0, 5.0, 4.0, 2.0, 1.0, 2.0, 3.0, 4.0});
+        FeatureMatrix rows = FeatureMatrix.wrap(features, bytes, 2, 4, 1);
+
+        for (RandomForestClassifier<Double> forest : new RandomForestClassifier[] {
+                RandomForestClassifier.parse(getExportedModel("rf/iris.tgz"), PredictionFactory.DOUBLE),
+                RandomForestClassifier.parse(getExportedModel("rf/iris.tgz"), PredictionFactory.DOUBLE,
+                        executorService)}) {
+            for (FeatureMatrix m : new FeatureMatrix[] {matrix, rows}) {
+                DoubleBuffer proba = DoubleBuffer.allocate(6);
+                forest.predict_proba(m, proba);
+                Assertions.assertEquals(6, proba.position());
+                Assertions.assertArrayEquals(new double[] {.06, .62, .32, 0.0, .44, .56}, proba.array(), 1e-12);
+
+                IntBuffer classes = IntBuffer.allocate(2);
+                forest.predict(m, classes);
+                Assertions.assertArrayEquals(new int[] {1, 2}, classes.array());
+            }
+        }
+    }
+
     @Test
     public void invalidFeatureCount() {
         IllegalArgumentException ex = Assertions.assertThrows(IllegalArgumentException.class, () -> {
@@ -119,6 +165,164 @@ public class RandomForestClassifierTest {
         Assertions.assertEquals(4, decisionTree.getFeatureNames().size());
     }
 
+    @Test
+    public void applyLeafIds() throws Exception {
+        TarArchiveInputStream exported = getExportedModel("rf/iris.tgz");
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(exported, PredictionFactory.DOUBLE);
+        int trees = forest.getTreeCount();
+
+        int[] leaves = new int[2 * trees];
+        List<Double> predictions = forest.predict(leaves, getSample1(), getSample2());
+        Assertions.assertEquals(forest.predict(getSample1(), getSample2()), predictions);
+
+        int[] applied = new int[2 * trees];
+        forest.apply(applied, getSample1(), getSample2());
+        Assertions.assertArrayEquals(leaves, applied);
+
+        for (int i = 0; i < leaves.length; i++) {
+            Assertions.assertTrue(leaves[i] > 0);
+        }
+    }
+
+    @Test
+    public void scoringSession() throws Exception {
+        TarArchiveInputStream exported = getExportedModel("rf/iris.tgz");
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(exported, PredictionFactory.DOUBLE);
+
+        FeatureVector sample = getSample1();
+        ScoringSession<Double> session = forest.newSession(sample);
+        Assertions.assertEquals(forest.getTreeCount(), session.getReevaluatedTrees());
+        Assertions.assertArrayEquals(forest.predict_proba(sample)[0], session.getPrediction().getProbability(), 1e-12);
+
+        String[] names = sample.getFeatures().getFeatureNames().toArray(new String[0]);
+        Random random = new Random(11);
+        for (int i = 0; i < 2000; i++) {
+            String feature = names[random.nextInt(names.length)];
+            Prediction<Double> prediction = session.update(feature, random.nextInt(80) / 10.0);
+            Assertions.assertTrue(session.getReevaluatedTrees() <= forest.getTreeCount());
+
+            Assertions.assertArrayEquals(forest.predict_proba(sample)[0], prediction.getProbability(), 1e-12);
+            Assertions.assertEquals(forest.predict(sample).get(0), prediction.get());
+        }
+
+        // a feature no tree splits on doesn't evaluate any trees
+        FeatureVector wide = Features.of("sepal length (cm)", "sepal width (cm)",
+                "petal length (cm)", "petal width (cm)", "unused").newSample();
+        ScoringSession<Double> wideSession = forest.newSession(wide);
+        wideSession.update("unused", 1.0);
+        Assertions.assertEquals(0, wideSession.getReevaluatedTrees());
+    }
+
+    @Test
+    public void classifyMatchesSeparateCalls() throws Exception {
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(getExportedModel("rf/iris.tgz"),
+                PredictionFactory.DOUBLE);
+        ForestResult<Double> result = forest.newResult(true);
+        int[] leaves = new int[forest.getTreeCount()];
+
+        Random random = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            FeatureVector sample = getSample1();
+            for (int f = 0; f < 4; f++) {
+                sample.add(f, random.nextInt(80) / 10.0);
+            }
+
+            Assertions.assertSame(result, forest.classify(sample, result));
+            Assertions.assertEquals(forest.predict(sample).get(0), result.get());
+            Assertions.assertArrayEquals(forest.predict_proba(sample)[0], result.getProbability(), .0);
+            forest.apply(leaves, sample);
+            Assertions.assertArrayEquals(leaves, result.getLeaves());
+
+            int votes = 0;
+            for (int k = 0; k < result.getClassCount(); k++) {
+                votes += result.getVotes(k);
+                Assertions.assertTrue(result.getVotes(k) <= result.getVotes(result.getClassIndex()));
+            }
+            Assertions.assertEquals(forest.getTreeCount(), votes);
+        }
+
+        ForestResult<Double> withoutLeaves = forest.classify(getSample2(), forest.newResult(false));
+        assertSample(withoutLeaves.getProbability(), 0.0, .44, .56);
+        Assertions.assertEquals(2, withoutLeaves.get().intValue());
+        Assertions.assertThrows(IllegalStateException.class, withoutLeaves::getLeaves);
+        Assertions.assertThrows(IllegalStateException.class, () -> forest.newResult(false).get());
+    }
+
+    @Test
+    public void tiesGoToTheLowestClassIndex() throws Exception {
+        // two trees that each vote for a different class whatever the sample
+        RandomForestClassifier<String> forest = RandomForestClassifier.parse(toTar(
+                "|--- x <= 0.50\n|   |--- weights: [0.00, 2.00] class: virginica\n"
+                        + "|--- x >  0.50\n|   |--- weights: [0.00, 3.00] class: virginica\n",
+                "|--- x <= 0.50\n|   |--- weights: [2.00, 0.00] class: setosa\n"
+                        + "|--- x >  0.50\n|   |--- weights: [3.00, 0.00] class: setosa\n"), value -> value);
+        FeatureVector sample = Features.of("x").newSample().add(0, 1.0);
+
+        Assertions.assertEquals("setosa", forest.predict(sample).get(0));
+        ForestResult<String> result = forest.classify(sample, forest.newResult(false));
+        Assertions.assertEquals("setosa", result.get());
+        Assertions.assertEquals(0, result.getClassIndex());
+        Assertions.assertEquals("setosa", forest.newSession(sample).getPrediction().get());
+
+        // without weights there are no class indexes, sklearn sorts the classes
+        RandomForestClassifier<String> unweighted = RandomForestClassifier.parse(toTar(
+                "|--- x <= 0.50\n|   |--- class: virginica\n|--- x >  0.50\n|   |--- class: virginica\n",
+                "|--- x <= 0.50\n|   |--- class: setosa\n|--- x >  0.50\n|   |--- class: setosa\n"),
+                value -> value);
+        Assertions.assertEquals("setosa", unweighted.predict(sample).get(0));
+        Assertions.assertEquals("setosa", unweighted.newSession(sample).getPrediction().get());
+    }
+
+    @Test
+    public void deadlineLimitsTheTreesUsed() throws Exception {
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(getExportedModel("rf/iris.tgz"),
+                PredictionFactory.DOUBLE);
+        RandomForestClassifier<Double> parallel = RandomForestClassifier.parse(getExportedModel("rf/iris.tgz"),
+                PredictionFactory.DOUBLE, executorService);
+        int trees = forest.getTreeCount();
+
+        for (RandomForestClassifier<Double> model : new RandomForestClassifier[] {forest, parallel}) {
+            ForestResult<Double> full = model.predictWithin(getSample2(), Duration.ofMinutes(1));
+            Assertions.assertEquals(trees, full.getTreesUsed());
+            Assertions.assertFalse(full.isPartial());
+            Assertions.assertTrue(full.isDecided());
+            Assertions.assertEquals(forest.predict(getSample2()).get(0), full.get());
+            Assertions.assertArrayEquals(forest.predict_proba(getSample2())[0], full.getProbability(), 1e-12);
+            Assertions.assertEquals(0.12, full.getMargin(), 1e-9);
+
+            // past the deadline only the first tree of the order is evaluated
+            ForestResult<Double> late = model.classify(getSample2(), model.newResult(true), System.nanoTime() - 1);
+            Assertions.assertTrue(late.isPartial());
+            Assertions.assertTrue(late.getTreesUsed() >= 1);
+            Assertions.assertNotEquals(-1, late.getLeaves()[0]);
+        }
+
+        List<FeatureVector> samples = new ArrayList<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            FeatureVector sample = getSample1();
+            for (int f = 0; f < 4; f++) {
+                sample.add(f, random.nextInt(80) / 10.0);
+            }
+            samples.add(sample);
+        }
+        int[] order = forest.rankTrees(samples);
+        forest.setEvaluationOrder(order);
+        Assertions.assertArrayEquals(order, forest.getEvaluationOrder());
+
+        ForestResult<Double> first = forest.classify(getSample2(), forest.newResult(true), System.nanoTime() - 1);
+        Assertions.assertEquals(1, first.getTreesUsed());
+        Assertions.assertEquals(trees - 1, Arrays.stream(first.getLeaves()).filter(leaf -> leaf == -1).count());
+        Assertions.assertNotEquals(-1, first.getLeaves()[order[0]]);
+        double[] sorted = first.getProbability();
+        Arrays.sort(sorted);
+        Assertions.assertEquals(sorted[2] - sorted[1], first.getMargin(), 1e-12);
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> forest.setEvaluationOrder(new int[] {0}));
+        int[] duplicate = new int[trees];
+        Assertions.assertThrows(IllegalArgumentException.class, () -> forest.setEvaluationOrder(duplicate));
+    }
+
     private FeatureVector getSample1() {
         Features features = Features.of("sepal length (cm)",
                 "sepal width (cm)",
@@ -150,6 +354,21 @@ public class RandomForestClassifierTest {
         Assertions.assertEquals(expected2, proba[2], .0);
     }
 
+    private static TarArchiveInputStream toTar(String... trees) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(bytes)) {
+            for (int t = 0; t < trees.length; t++) {
+                byte[] text = trees[t].getBytes(StandardCharsets.UTF_8);
+                TarArchiveEntry entry = new TarArchiveEntry("estimator_" + t + ".txt");
+                entry.setSize(text.length);
+                tar.putArchiveEntry(entry);
+                tar.write(text);
+                tar.closeArchiveEntry();
+            }
+        }
+        return new TarArchiveInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
     private TarArchiveInputStream getExportedModel(String fileName) throws IOException {
         ClassLoader cl = DecisionTreeClassifierTest.class.getClassLoader();
         InputStream stream = cl.getResourceAsStream(fileName);
@@ -0,0 +1,94 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.DecisionTreeRegressor;
+import rocks.vilaverde.classifier.ensemble.RandomForestRegressor;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.DoubleBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for the regression trees and forests.
+ */
+public class RegressorTest {
+
+    private static final Features FEATURES = Features.of("x", "y");
+
+    @Test
+    public void decisionTree() throws Exception {
+        Regressor tree = DecisionTreeRegressor.parse(new InputStreamReader(getResource("regression-tree.model")));
+
+        Assertions.assertEquals(1.0, tree.predictValue(sample(0.0, 1.0)), .0);
+        Assertions.assertEquals(2.0, tree.predictValue(sample(0.5, 2.0)), .0);
+        Assertions.assertEquals(10.0, tree.predictValue(sample(1.0, 0.0)), .0);
+        Assertions.assertArrayEquals(new double[] {1.0, 10.0},
+                tree.predictValues(sample(0.0, 1.0), sample(1.0, 0.0)), .0);
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> tree.predictValue(Features.of("x").newSample()));
+    }
+
+    @Test
+    public void randomForest() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            RandomForestRegressor forest = RandomForestRegressor.parse(getExportedModel("rf/regression.tgz"), executor);
+            Assertions.assertEquals(2, forest.getTreeCount());
+
+            Assertions.assertEquals(2.0, forest.predictValue(sample(0.0, 1.0)), .0);
+            Assertions.assertEquals(2.5, forest.predictValue(sample(0.0, 2.0)), .0);
+            Assertions.assertEquals(15.0, forest.predictValue(sample(1.0, 3.0)), .0);
+
+            double[] matrix = new double[1000 * 2];
+            for (int row = 0; row < 1000; row++) {
+                matrix[row * 2] = row % 2;
+                matrix[row * 2 + 1] = row % 4;
+            }
+
+            DoubleBuffer out = DoubleBuffer.allocate(1001);
+            out.put(-1.0);
+            forest.predict(FeatureMatrix.wrap(FEATURES, matrix, 0, 1000, 2, 1), out);
+            Assertions.assertEquals(1001, out.position());
+            Assertions.assertEquals(-1.0, out.get(0), .0);
+            for (int row = 0; row < 1000; row++) {
+                double expected = forest.predictValue(sample(row % 2, row % 4));
+                Assertions.assertEquals(expected, out.get(row + 1), .0);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void multiOutputNotSupported() {
+        String tree = "|--- x <= 0.50\n|   |--- value: [1.00, 2.00]\n|--- x >  0.50\n|   |--- value: [3.00, 4.00]\n";
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> DecisionTreeRegressor.parse(new StringReader(tree)));
+    }
+
+    private FeatureVector sample(double x, double y) {
+        FeatureVector fv = FEATURES.newSample();
+        fv.add(0, x);
+        fv.add(1, y);
+        return fv;
+    }
+
+    private InputStream getResource(String fileName) {
+        InputStream stream = RegressorTest.class.getClassLoader().getResourceAsStream(fileName);
+        if (stream == null) {
+            throw new RuntimeException(String.format("no resource found with name %s", fileName));
+        }
+        return stream;
+    }
+
+    private TarArchiveInputStream getExportedModel(String fileName) throws Exception {
+        return new TarArchiveInputStream(new GzipCompressorInputStream(getResource(fileName)));
+    }
+}
@@ -0,0 +1,196 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+import rocks.vilaverde.classifier.ensemble.ShardWorker;
+import rocks.vilaverde.classifier.ensemble.ShardedForestClassifier;
+import rocks.vilaverde.classifier.ensemble.ShardedPrediction;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for evaluating a forest split across {@link ShardWorker}s.
+ */
+public class ShardedForestClassifierTest {
+
+    private static final Features FEATURES = Features.of("sepal length (cm)", "sepal width (cm)",
+            "petal length (cm)", "petal width (cm)");
+
+    @Test
+    public void shardsAddUpToTheForest() throws Exception {
+        RandomForestClassifier<Double> forest = getForest();
+
+        try (ShardWorker first = ShardWorker.start(forest.shard(0, 2), 0);
+             ShardWorker second = ShardWorker.start(forest.shard(1, 2), 0);
+             ShardedForestClassifier<Double> sharded = ShardedForestClassifier.connect(
+                     Arrays.asList(address(first.getPort()), address(second.getPort())),
+                     PredictionFactory.DOUBLE, Duration.ofSeconds(10))) {
+
+            FeatureVector[] samples = randomSamples(50);
+            double[][] expected = forest.predict_proba(samples);
+            List<Double> classes = forest.predict(samples);
+            List<ShardedPrediction<Double>> predictions = sharded.getClassification(samples);
+
+            for (int i = 0; i < samples.length; i++) {
+                ShardedPrediction<Double> prediction = predictions.get(i);
+                Assertions.assertFalse(prediction.isPartial());
+                Assertions.assertEquals(forest.getTreeCount(), prediction.getTreeCount());
+                Assertions.assertArrayEquals(expected[i], prediction.getProbability(), 1e-12);
+                // ties between the classes are broken the same way across the shards
+                Assertions.assertEquals(classes.get(i), prediction.get());
+            }
+            Assertions.assertEquals(forest.getFeatureNames(), sharded.getFeatureNames());
+        }
+    }
+
+    @Test
+    public void stalledShardGivesPartialPrediction() throws Exception {
+        RandomForestClassifier<Double> forest = getForest();
+        RandomForestClassifier<Double> shard = forest.shard(0, 2);
+
+        // accepts connections but never answers them
+        try (ServerSocket stalled = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             ShardWorker worker = ShardWorker.start(shard, 0);
+             ShardedForestClassifier<Double> sharded = ShardedForestClassifier.connect(
+                     Arrays.asList(address(worker.getPort()), address(stalled.getLocalPort())),
+                     PredictionFactory.DOUBLE, Duration.ofMillis(300))) {
+
+            FeatureVector[] samples = randomSamples(5);
+            double[][] expected = shard.predict_proba(samples);
+            List<ShardedPrediction<Double>> predictions = sharded.getClassification(samples);
+
+            for (int i = 0; i < samples.length; i++) {
+                Assertions.assertTrue(predictions.get(i).isPartial());
+                Assertions.assertEquals(shard.getTreeCount(), predictions.get(i).getTreeCount());
+                Assertions.assertArrayEquals(expected[i], predictions.get(i).getProbability(), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void noShardAnswering() throws Exception {
+        try (ServerSocket stalled = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             ShardedForestClassifier<Double> sharded = ShardedForestClassifier.connect(
+                     Arrays.asList(address(stalled.getLocalPort())),
+                     PredictionFactory.DOUBLE, Duration.ofMillis(200))) {
+            Assertions.assertThrows(RuntimeException.class, () -> sharded.predict(randomSamples(1)));
+        }
+    }
+
+    @Test
+    public void reconnectsAfterWorkerRestart() throws Exception {
+        RandomForestClassifier<Double> forest = getForest();
+        ShardWorker worker = ShardWorker.start(forest, 0);
+        int port = worker.getPort();
+
+        try (ShardedForestClassifier<Double> sharded = ShardedForestClassifier.connect(
+                Arrays.asList(address(port)), PredictionFactory.DOUBLE, Duration.ofSeconds(10))) {
+            FeatureVector[] samples = randomSamples(3);
+            Assertions.assertEquals(forest.predict(samples), sharded.predict(samples));
+
+            worker.close();
+            Assertions.assertThrows(RuntimeException.class, () -> sharded.predict(samples));
+
+            worker = ShardWorker.start(forest, port);
+            Assertions.assertEquals(forest.predict(samples), sharded.predict(samples));
+        } finally {
+            worker.close();
+        }
+    }
+
+    @Test
+    public void oversizedBatchIsAnsweredWithError() throws Exception {
+        try (ShardWorker worker = ShardWorker.start(getForest(), 0);
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), worker.getPort())) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            // skip the handshake
+            in.readInt();
+            in.readInt();
+            in.readInt();
+            for (int k = in.readInt(); k > 0; k--) {
+                in.readBoolean();
+                in.readUTF();
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                in.readUTF();
+            }
+
+            // rows * columns overflows an int, and no values follow
+            out.writeByte('S');
+            out.writeInt(4);
+            for (String name : FEATURES.getFeatureNames()) {
+                out.writeUTF(name);
+            }
+            out.writeByte('P');
+            out.writeInt(7);
+            out.writeInt(Integer.MAX_VALUE);
+            out.flush();
+
+            socket.setSoTimeout(5000);
+            Assertions.assertEquals(7, in.readInt());
+            Assertions.assertEquals(1, in.readByte());
+            Assertions.assertTrue(in.readUTF().contains("rows of 4 columns"));
+        }
+    }
+
+    @Test
+    public void awaitCloseBlocksUntilClosed() throws Exception {
+        ShardWorker worker = ShardWorker.start(getForest(), 0);
+        Thread waiting = new Thread(() -> {
+            try {
+                worker.awaitClose();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+
+        waiting.join(200);
+        Assertions.assertTrue(waiting.isAlive());
+
+        worker.close();
+        waiting.join(5000);
+        Assertions.assertFalse(waiting.isAlive());
+    }
+
+    private static InetSocketAddress address(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    private static FeatureVector[] randomSamples(int count) {
+        Random random = new Random(11);
+        FeatureVector[] samples = new FeatureVector[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = FEATURES.newSample();
+            for (int f = 0; f < 4; f++) {
+                samples[i].add(f, random.nextDouble() * 8.0);
+            }
+        }
+        return samples;
+    }
+
+    private RandomForestClassifier<Double> getForest() throws Exception {
+        InputStream stream = ShardedForestClassifierTest.class.getClassLoader().getResourceAsStream("rf/iris.tgz");
+        if (stream == null) {
+            throw new RuntimeException("no zip found with name rf/iris.tgz");
+        }
+        return RandomForestClassifier.parse(new TarArchiveInputStream(new GzipCompressorInputStream(stream)),
+                PredictionFactory.DOUBLE);
+    }
+}
@@ -0,0 +1,120 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.dt.TreeExplainer;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for the SHAP values of the {@link TreeExplainer}.
+ */
+public class TreeExplainerTest {
+
+    private static final String TREE = "|--- x <= 0.50\n"
+            + "|   |--- y <= 0.50\n"
+            + "|   |   |--- weights: [3.00, 1.00] class: 0\n"
+            + "|   |--- y >  0.50\n"
+            + "|   |   |--- weights: [0.00, 4.00] class: 1\n"
+            + "|--- x >  0.50\n"
+            + "|   |--- weights: [6.00, 2.00] class: 0\n";
+
+    @Test
+    public void exactShapleyValues() throws Exception {
+        DecisionTreeClassifier<Integer> tree = DecisionTreeClassifier.parse(new StringReader(TREE),
+                PredictionFactory.INTEGER);
+        TreeExplainer explainer = tree.newExplainer();
+
+        Assertions.assertArrayEquals(new double[] {9.0 / 16, 7.0 / 16}, explainer.getExpectedValue(), 1e-12);
+
+        // z is not used by the tree, the columns are in a different order to the tree
+        Features features = Features.of("y", "z", "x");
+        FeatureVector sample = features.newSample().add("x", 0.0).add("y", 1.0).add("z", 5.0);
+
+        double[] out = new double[1 + explainer.getOutputLength(features)];
+        explainer.shap_values(sample, out, 1);
+
+        // computed by hand from the Shapley value definition
+        double[] expected = {
+                -9.0 / 32, 9.0 / 32,
+                0.0, 0.0,
+                -9.0 / 32, 9.0 / 32,
+                9.0 / 16, 7.0 / 16};
+        for (int i = 0; i < expected.length; i++) {
+            Assertions.assertEquals(expected[i], out[i + 1], 1e-12);
+        }
+    }
+
+    @Test
+    public void forestValuesAddUpToProbabilities() throws Exception {
+        RandomForestClassifier<Double> forest = RandomForestClassifier.parse(getExportedModel("rf/iris.tgz"),
+                PredictionFactory.DOUBLE);
+        TreeExplainer explainer = forest.newExplainer();
+        int classes = explainer.getClassCount();
+
+        Features features = Features.of("sepal length (cm)", "sepal width (cm)",
+                "petal length (cm)", "petal width (cm)");
+        Random random = new Random(7);
+        int rows = 200;
+        double[] matrix = new double[rows * 4];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = random.nextDouble() * 8.0;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            int length = explainer.getOutputLength(features);
+            double[] out = new double[rows * length];
+            explainer.shap_values(FeatureMatrix.wrap(features, matrix, 0, rows, 4, 1), out, executor);
+
+            double[] single = new double[length];
+            for (int row = 0; row < rows; row++) {
+                FeatureVector sample = features.newSample();
+                for (int f = 0; f < 4; f++) {
+                    sample.add(f, matrix[row * 4 + f]);
+                }
+
+                double[] probability = forest.predict_proba(sample)[0];
+                for (int k = 0; k < classes; k++) {
+                    double sum = 0;
+                    for (int f = 0; f <= 4; f++) {
+                        sum += out[row * length + f * classes + k];
+                    }
+                    Assertions.assertEquals(probability[k], sum, 1e-9);
+                }
+
+                explainer.shap_values(sample, single, 0);
+                for (int i = 0; i < length; i++) {
+                    Assertions.assertEquals(single[i], out[row * length + i], 1e-12);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void requiresWeights() throws Exception {
+        DecisionTreeClassifier<Integer> tree = DecisionTreeClassifier.parse(
+                new StringReader("|--- x <= 0.50\n|   |--- class: 0\n|--- x >  0.50\n|   |--- class: 1\n"),
+                PredictionFactory.INTEGER);
+        Assertions.assertThrows(IllegalStateException.class, tree::newExplainer);
+    }
+
+    private TarArchiveInputStream getExportedModel(String fileName) throws Exception {
+        InputStream stream = TreeExplainerTest.class.getClassLoader().getResourceAsStream(fileName);
+        if (stream == null) {
+            throw new RuntimeException(String.format("no zip found with name %s", fileName));
+        }
+        return new TarArchiveInputStream(new GzipCompressorInputStream(stream));
+    }
+}
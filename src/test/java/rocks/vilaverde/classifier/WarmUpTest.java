@@ -0,0 +1,72 @@
+package rocks.vilaverde.classifier;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.dt.DecisionTreeClassifier;
+import rocks.vilaverde.classifier.dt.PredictionFactory;
+import rocks.vilaverde.classifier.dt.WarmUpReport;
+import rocks.vilaverde.classifier.ensemble.RandomForestClassifier;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.time.Duration;
+
+/**
+ * Tests for warming up models after they are loaded.
+ */
+public class WarmUpTest {
+
+    private static final String TREE = "|--- x <= 0.50\n"
+            + "|   |--- y <= 0.50\n"
+            + "|   |   |--- weights: [3.00, 1.00] class: 0\n"
+            + "|   |--- y >  0.50\n"
+            + "|   |   |--- x <= 0.25\n"
+            + "|   |   |   |--- weights: [0.00, 4.00] class: 1\n"
+            + "|   |   |--- x >  0.25\n"
+            + "|   |   |   |--- weights: [1.00, 4.00] class: 1\n"
+            + "|--- x >  0.50\n"
+            + "|   |--- weights: [6.00, 2.00] class: 0\n";
+
+    @Test
+    public void everyLeafOfTheTreeIsReached() throws Exception {
+        DecisionTreeClassifier<Integer> tree = DecisionTreeClassifier.parse(new StringReader(TREE),
+                PredictionFactory.INTEGER);
+
+        WarmUpReport report = tree.warmUp(Duration.ofSeconds(5));
+        Assertions.assertEquals(4, report.getLeafCount());
+        Assertions.assertEquals(4, report.getLeavesCovered());
+        Assertions.assertEquals(4, report.getSamples());
+        Assertions.assertTrue(report.getRounds() > 0);
+        Assertions.assertEquals(report.getRounds() * 4L * 4, report.getPredictions());
+    }
+
+    @Test
+    public void forestWarmUp() throws Exception {
+        RandomForestClassifier<Double> forest = getForest();
+
+        WarmUpReport report = forest.warmUp(Duration.ofSeconds(5));
+        Assertions.assertTrue(report.getLeafCount() > forest.getTreeCount());
+        Assertions.assertEquals(Math.min(report.getLeafCount(), 4096), report.getSamples());
+        Assertions.assertEquals(report.getSamples(), report.getLeavesCovered());
+        Assertions.assertTrue(report.getElapsed().compareTo(Duration.ofSeconds(10)) < 0);
+    }
+
+    @Test
+    public void emptyBudget() throws Exception {
+        WarmUpReport report = getForest().warmUp(Duration.ZERO);
+        Assertions.assertEquals(0, report.getRounds());
+        Assertions.assertFalse(report.isSettled());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> getForest().warmUp(Duration.ofSeconds(-1)));
+    }
+
+    private RandomForestClassifier<Double> getForest() throws Exception {
+        InputStream stream = WarmUpTest.class.getClassLoader().getResourceAsStream("rf/iris.tgz");
+        if (stream == null) {
+            throw new RuntimeException("no zip found with name rf/iris.tgz");
+        }
+        return RandomForestClassifier.parse(new TarArchiveInputStream(new GzipCompressorInputStream(stream)),
+                PredictionFactory.DOUBLE);
+    }
+}
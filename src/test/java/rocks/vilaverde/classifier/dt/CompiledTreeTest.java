@@ -0,0 +1,54 @@
+package rocks.vilaverde.classifier.dt;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rocks.vilaverde.classifier.FeatureVector;
+import rocks.vilaverde.classifier.Features;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Tests for the layout of the slots of a {@link CompiledTree}.
+ */
+public class CompiledTreeTest {
+
+    @Test
+    public void relayoutMovesHotRightChildNextToSplit() throws Exception {
+        DecisionTreeClassifier<Boolean> decisionTree = DecisionTreeClassifier.parse(
+                getReader("simple-tree.model"), PredictionFactory.BOOLEAN);
+        FeatureVector right = new FeatureVector(Features.of("feature1")).add("feature1", 3.0);
+        FeatureVector left = new FeatureVector(Features.of("feature1")).add("feature1", 1.0);
+
+        // as parsed, the left child falls through and the right child is jumped to
+        CompiledTree<Boolean> parsed = decisionTree.getCompiledTree();
+        Assertions.assertEquals(1, parsed.getLeftChild(0));
+        Assertions.assertEquals(2, parsed.getRightChild(0));
+
+        BranchProfile profile = decisionTree.newProfile();
+        decisionTree.startProfiling(profile);
+        for (int i = 0; i < 10; i++) {
+            decisionTree.predict(right);
+        }
+        decisionTree.predict(left);
+        decisionTree.stopProfiling();
+        decisionTree.relayout(profile);
+
+        // the right child is now the fall-through slot, and the split jumps to the left child
+        CompiledTree<Boolean> relaid = decisionTree.getCompiledTree();
+        Assertions.assertEquals(1, relaid.getRightChild(0));
+        Assertions.assertEquals(2, relaid.getLeftChild(0));
+        Assertions.assertEquals(2, relaid.getNodeId(relaid.findLeaf(right)));
+        Assertions.assertEquals(1, relaid.getNodeId(relaid.findLeaf(left)));
+        Assertions.assertTrue(decisionTree.predict(right).get(0));
+        Assertions.assertFalse(decisionTree.predict(left).get(0));
+    }
+
+    private InputStreamReader getReader(String fileName) {
+        InputStream stream = CompiledTreeTest.class.getClassLoader().getResourceAsStream(fileName);
+        if (stream == null) {
+            throw new RuntimeException(String.format("no model found with name %s", fileName));
+        }
+        return new InputStreamReader(stream);
+    }
+}